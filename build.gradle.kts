@@ -86,6 +86,7 @@ dependencies {
         implementation(bundle(project(":slf4j-to-log4j"))!!)
     }
     implementation(bundle(project(":quic-connector"))!!)
+    implementation(bundle(project(":ice"))!!)
 
     implementation(bundle(project(":clipboard"))!!)
     implementation(bundle(project(":utils"))!!)
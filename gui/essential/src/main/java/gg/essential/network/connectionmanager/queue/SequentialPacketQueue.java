@@ -23,10 +23,15 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class SequentialPacketQueue implements PacketQueue {
 
@@ -35,6 +40,8 @@ public class SequentialPacketQueue implements PacketQueue {
     private final CMConnection cmConnection;
     @NotNull
     private final TimeoutPolicy timeoutPolicy;
+    @NotNull
+    private final Map<Class<? extends Packet>, Function<Packet, Object>> coalescingKeys;
 
     @NotNull
     private final Queue<Pair<Packet, Consumer<Optional<Packet>>>> queue = new ArrayDeque<>();
@@ -45,17 +52,58 @@ public class SequentialPacketQueue implements PacketQueue {
     public SequentialPacketQueue(
             @NotNull CMConnection cmConnection,
             @NotNull TimeoutPolicy timeoutPolicy
+    ) {
+        this(cmConnection, timeoutPolicy, new HashMap<>());
+    }
+
+    private SequentialPacketQueue(
+            @NotNull CMConnection cmConnection,
+            @NotNull TimeoutPolicy timeoutPolicy,
+            @NotNull Map<Class<? extends Packet>, Function<Packet, Object>> coalescingKeys
     ) {
         this.cmConnection = cmConnection;
         this.timeoutPolicy = timeoutPolicy;
+        this.coalescingKeys = coalescingKeys;
     }
 
     @Override
     public synchronized void enqueue(Packet packet, Consumer<Optional<Packet>> responseCallback) {
+        Object key = coalescingKey(packet);
+        if (key != null) {
+            // Only queued packets can be superseded, the one in flight has already been sent
+            for (Iterator<Pair<Packet, Consumer<Optional<Packet>>>> iter = this.queue.iterator(); iter.hasNext(); ) {
+                Pair<Packet, Consumer<Optional<Packet>>> queued = iter.next();
+                if (key.equals(coalescingKey(queued.getFirst()))) {
+                    iter.remove();
+                    responseCallback = combine(queued.getSecond(), responseCallback);
+                    break; // there can only ever be one queued packet per key
+                }
+            }
+        }
         this.queue.add(new Pair<>(packet, responseCallback));
         this.process();
     }
 
+    @Nullable
+    private Object coalescingKey(@NotNull Packet packet) {
+        Function<Packet, Object> keyFunction = this.coalescingKeys.get(packet.getClass());
+        return keyFunction != null ? Arrays.asList(packet.getClass(), keyFunction.apply(packet)) : null;
+    }
+
+    @Nullable
+    private static Consumer<Optional<Packet>> combine(
+            @Nullable Consumer<Optional<Packet>> first,
+            @Nullable Consumer<Optional<Packet>> second
+    ) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        } else {
+            return first.andThen(second);
+        }
+    }
+
     private void process() {
         if (this.waitingFor != null) {
             return;
@@ -132,6 +180,7 @@ public class SequentialPacketQueue implements PacketQueue {
     public static class Builder {
         private final @NotNull CMConnection cmConnection;
         private @NotNull TimeoutPolicy timeoutPolicy = TimeoutPolicy.RETRANSMIT;
+        private final @NotNull Map<Class<? extends Packet>, Function<Packet, Object>> coalescingKeys = new HashMap<>();
 
         public Builder(@NotNull CMConnection cmConnection) {
             this.cmConnection = cmConnection;
@@ -150,8 +199,19 @@ public class SequentialPacketQueue implements PacketQueue {
             return this;
         }
 
+        /**
+         * Packets of the given class which fully replace the state set by an earlier packet of the same class with
+         * an equal key are coalesced while queued, i.e. the earlier one is dropped (and its response callback
+         * invoked with the response to the later one instead).
+         */
+        @SuppressWarnings("unchecked")
+        public <T extends Packet> Builder coalesce(@NotNull Class<T> cls, @NotNull Function<T, Object> key) {
+            this.coalescingKeys.put(cls, (Function<Packet, Object>) key);
+            return this;
+        }
+
         public SequentialPacketQueue create() {
-            return new SequentialPacketQueue(cmConnection, timeoutPolicy);
+            return new SequentialPacketQueue(cmConnection, timeoutPolicy, new HashMap<>(coalescingKeys));
         }
     }
 }
@@ -25,6 +25,7 @@ import gg.essential.model.file.SoundDefinitionsFile
 import gg.essential.network.cosmetics.Cosmetic.Diagnostic
 import gg.essential.util.GuiEssentialPlatform.Companion.platform
 import gg.essential.util.LimitedExecutor
+import gg.essential.util.WorkerPool
 import gg.essential.util.httpClient
 import gg.essential.util.image.bitmap.Bitmap
 import gg.essential.util.image.bitmap.fromOrThrow
@@ -46,26 +47,14 @@ import java.util.concurrent.CompletableFuture
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executor
 import java.util.concurrent.PriorityBlockingQueue
-import java.util.concurrent.SynchronousQueue
-import java.util.concurrent.ThreadFactory
-import java.util.concurrent.ThreadPoolExecutor
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 
 class AssetLoader(private val cachePath: Path) {
     private val logger = LoggerFactory.getLogger(AssetLoader::class.java)
 
-    private val pool = ThreadPoolExecutor(
-        0, Int.MAX_VALUE,
-        10L, TimeUnit.SECONDS,
-        SynchronousQueue(),
-        AtomicInteger().let { threadId ->
-            ThreadFactory { Thread(it, "Essential Asset Loader " + threadId.incrementAndGet()) }
-        },
-    )
-    private val networkExecutor = LimitedExecutor(pool, 10, PriorityBlockingQueue())
-    private val diskExecutor = LimitedExecutor(pool, 10, PriorityBlockingQueue())
+    private val pool = WorkerPool("Asset Loader", NETWORK_PARALLELISM + DISK_PARALLELISM, keepAliveSeconds = 10)
+    private val networkExecutor = LimitedExecutor(pool, NETWORK_PARALLELISM, PriorityBlockingQueue())
+    private val diskExecutor = LimitedExecutor(pool, DISK_PARALLELISM, PriorityBlockingQueue())
 
     private val assets: MutableMap<String, AssetState> = ConcurrentHashMap()
 
@@ -336,4 +325,9 @@ class AssetLoader(private val cachePath: Path) {
     ) : AssetType<T>({ _, bytes ->
         json.decodeFromString(serializer, bytes.decodeToString())
     })
+
+    companion object {
+        private const val NETWORK_PARALLELISM = 10
+        private const val DISK_PARALLELISM = 10
+    }
 }
@@ -99,6 +99,12 @@ class OutfitManager(
 
     private val packetQueue: PacketQueue = SequentialPacketQueue.Builder(connectionManager)
         .onTimeoutRetransmit()
+        .coalesce(ClientCosmeticOutfitNameUpdatePacket::class.java) { it.outfitId }
+        .coalesce(ClientCosmeticOutfitUpdateFavoriteStatePacket::class.java) { it.outfitId }
+        .coalesce(ClientCosmeticOutfitCosmeticSettingsUpdatePacket::class.java) { listOf(it.outfitId, it.cosmeticId) }
+        .coalesce(ClientCosmeticOutfitEquippedCosmeticsUpdatePacket::class.java) { listOf(it.outfitId, it.slot) }
+        .coalesce(ClientCosmeticOutfitSkinUpdatePacket::class.java) { it.outfitId }
+        .coalesce(ClientCosmeticOutfitSelectPacket::class.java) { Unit }
         .create()
     private val referenceHolder = ReferenceHolderImpl()
 
@@ -38,7 +38,6 @@ import gg.essential.util.FirewallUtil
 import gg.essential.util.GuiEssentialPlatform.Companion.platform
 import gg.essential.util.USession
 import gg.essential.util.UuidNameLookup
-import gg.essential.util.forwardChannelsInto
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineName
@@ -442,9 +441,11 @@ abstract class IceManagerImpl(
         private val inboundDataChannel = Channel<ByteArray>(1000, BufferOverflow.DROP_OLDEST) { packet ->
             logger.warn("IceConnection.inboundDataChannel overflow, dropping packet of {} bytes", packet.size)
         }
-        private val outboundDataChannel = Channel<ByteArray>(1000, BufferOverflow.DROP_OLDEST) { packet ->
-            logger.warn("IceConnection.outboundDataChannel overflow, dropping packet of {} bytes", packet.size)
-        }
+        /**
+         * Not dropping on overflow, so the sender is slowed down instead. Non-suspending senders (QUIC/PseudoTCP) will
+         * have their newest packet dropped, which their congestion control then treats as a loss signal.
+         */
+        private val outboundDataChannel = Channel<ByteArray>(OUTBOUND_DATA_QUEUE_PACKETS)
 
         private val inboundVoiceChannel = Channel<ByteArray>(1000, BufferOverflow.DROP_OLDEST) { packet ->
             logger.warn("IceConnection.inboundVoiceChannel overflow, dropping packet of {} bytes", packet.size)
@@ -465,11 +466,18 @@ abstract class IceManagerImpl(
             inboundVoiceChannel.close()
             inboundDataChannel.close()
         }
-        val outboundPacketMergingJob = coroutineScope.launch(Dispatchers.Unconfined) {
-            val mergedChannel = Channel<ByteArray>()
-            launch { forwardChannelsInto(mergedChannel, outboundVoiceChannel, outboundDataChannel) }
+        val outboundPacketForwardingJob = coroutineScope.launch(Dispatchers.Unconfined) {
+            // Voice skips the data queues entirely, so it is neither delayed by nor subject to back-pressure from bulk
+            // data transfers (its channel drops the oldest packets instead)
+            launch {
+                for (packet in outboundVoiceChannel) {
+                    telemetry.packetSent(packet.size)
+                    agent.outboundPriorityDataChannel.send(packet)
+                }
+                agent.outboundPriorityDataChannel.close()
+            }
             launch {
-                for (packet in mergedChannel) {
+                for (packet in outboundDataChannel) {
                     telemetry.packetSent(packet.size)
                     agent.outboundDataChannel.send(packet)
                 }
@@ -477,6 +485,17 @@ abstract class IceManagerImpl(
             }
         }
 
+        private var quicChannel: QuicChannel? = null
+
+        private fun reportFlowControl() {
+            val quicChannel = quicChannel ?: return
+            val budget = quicChannel.quicStreamInboundBudget
+            val dropped = quicChannel.transportSendDropped.get()
+            logger.debug("Flow control: {}, {} outbound transport packets dropped", budget, dropped)
+            telemetry.flowControl(budget.name, budget.peakBytes, budget.stallCount)
+            telemetry.flowControl("QuicChannel.transportSend", 0, dropped)
+        }
+
         val connectJob: Deferred<McConnectionArgs> = coroutineScope.async {
             // Wait until we're ready to send data
             withTimeoutOrNull(ICE_TIMEOUT.seconds) {
@@ -489,6 +508,7 @@ abstract class IceManagerImpl(
             val connectionScope = coroutineScope + connectionJob
             val (recvChannel, sendChannel) = if (flags.await().isQuic) {
                 val quicChannel = QuicChannel(connectionScope, logger, inboundDataChannel, outboundDataChannel)
+                this@IceConnection.quicChannel = quicChannel
                 if (client) {
                     val (streams, httpPort) = quicChannel.connect()
                     proxyHttpPort = httpPort
@@ -521,6 +541,7 @@ abstract class IceManagerImpl(
                     }
                     // and finally, cancel everything
                     job.cancel()
+                    reportFlowControl()
                     telemetry.closed()
                 }
             }
@@ -695,11 +716,14 @@ abstract class IceManagerImpl(
     interface Telemetry {
         fun packetReceived(bytes: Int, ipv6: Boolean, relay: Boolean)
         fun packetSent(bytes: Int)
+        /** Reports the peak occupancy of a flow-controlled queue and how often it stalled (or dropped) its producer. */
+        fun flowControl(queue: String, peakBytes: Int, stalls: Long)
         fun closed()
 
         object None : Telemetry {
             override fun packetReceived(bytes: Int, ipv6: Boolean, relay: Boolean) {}
             override fun packetSent(bytes: Int) {}
+            override fun flowControl(queue: String, peakBytes: Int, stalls: Long) {}
             override fun closed() {}
         }
     }
@@ -709,6 +733,7 @@ abstract class IceManagerImpl(
         @OptIn(ExperimentalCoroutinesApi::class) // will become stable in 1.9 (currently still in RC phase)
         private val mainThread = Dispatchers.Default.limitedParallelism(1)
         private var nextIceConnectionId = AtomicInteger(0)
+        private const val OUTBOUND_DATA_QUEUE_PACKETS = 256
         private val secureRandom = SecureRandom()
 
         private fun candidateToString(candidate: LocalCandidate): String = buildList {
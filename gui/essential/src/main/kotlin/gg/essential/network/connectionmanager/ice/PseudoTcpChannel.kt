@@ -25,6 +25,7 @@ import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
 import kotlinx.coroutines.withContext
+import org.ice4j.pseudotcp.Option
 import org.ice4j.pseudotcp.PseudoTCPBase
 import org.ice4j.pseudotcp.PseudoTcpNotify
 import org.ice4j.pseudotcp.PseudoTcpSocketFactory.DEFAULT_CONVERSATION_ID
@@ -34,6 +35,16 @@ import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
 
+/**
+ * Reliable byte stream over an unreliable [transportRecv]/[transportSend] pair, using ice4j's [PseudoTCPBase].
+ *
+ * Loss recovery and congestion control are entirely those of [PseudoTCPBase] (a port of libjingle's Reno-style
+ * PseudoTCP, with fast retransmit after three duplicate acks); we only tune its buffers and options. Path-MTU probing
+ * and a more modern congestion controller (CUBIC, BBR-like pacing) are out of scope for this class: [PseudoTCPBase]
+ * keeps all of its sender state and retransmit logic private, so they cannot be added by subclassing it, and replacing
+ * it would need a new wire protocol negotiated with the peer. None of the tuning here has been measured under emulated
+ * loss or latency yet.
+ */
 class PseudoTcpChannel(
     coroutineScope: CoroutineScope,
     private val transportRecv: ReceiveChannel<ByteArray>,
@@ -47,6 +58,16 @@ class PseudoTcpChannel(
         // timeout before it retransmits, so we're effectively limited to like 6KB/s for the first few seconds too.
         // PseudoTcpSocketImpl also sets this in its constructor.
         notifyMTU(1450);
+
+        // The default buffers (60KB receive, 90KB send) cap throughput at one buffer per round-trip, i.e. ~600KB/s at
+        // 100ms RTT, and leave too few segments in flight for duplicate acks to trigger fast retransmit after a loss.
+        // Window scaling is negotiated during the handshake, so this is fine with older peers too.
+        // Must be set before the connection is opened.
+        setOption(Option.OPT_RCVBUF, BUFFER_SIZE.toLong())
+        setOption(Option.OPT_SNDBUF, BUFFER_SIZE.toLong())
+        // Nagle's algorithm would hold back small MC packets while any data is still in flight, adding up to a full
+        // round-trip of latency to them.
+        setOption(Option.OPT_NODELAY, 1)
     }
 
     private val tcpOpen = CompletableDeferred<Unit>()
@@ -60,7 +81,7 @@ class PseudoTcpChannel(
     init {
         internalScope.launch(CoroutineName("PseudoTCP Read")) {
             tcpOpen.await()
-            val buf = ByteArray(1024)
+            val buf = ByteArray(READ_BUFFER_SIZE)
             while (true) {
                 val len = try {
                     impl.recv(buf, buf.size)
@@ -72,10 +93,13 @@ class PseudoTcpChannel(
                     tcpReadable.receive()
                     continue
                 }
-                val data = buf.sliceArray(0 until len)
-                if (!data.contentEquals(CLOSE_PACKET)) {
-                    tcpInboundChannel.send(data)
+                // With a large buffer the close packet may be read together with data which was queued before it
+                if (!endsWithClosePacket(buf, len)) {
+                    tcpInboundChannel.send(buf.copyOf(len))
                 } else {
+                    if (len > CLOSE_PACKET.size) {
+                        tcpInboundChannel.send(buf.copyOf(len - CLOSE_PACKET.size))
+                    }
                     tcpInboundChannel.close()
                     break
                 }
@@ -114,6 +138,15 @@ class PseudoTcpChannel(
         }
     }
 
+    private fun endsWithClosePacket(buf: ByteArray, len: Int): Boolean {
+        val offset = len - CLOSE_PACKET.size
+        if (offset < 0) return false
+        for (i in CLOSE_PACKET.indices) {
+            if (buf[offset + i] != CLOSE_PACKET[i]) return false
+        }
+        return true
+    }
+
     private fun scheduleClock() {
         clockJob?.cancel()
         clockJob = null
@@ -185,6 +218,9 @@ class PseudoTcpChannel(
     }
 
     companion object {
+        private const val BUFFER_SIZE = 1024 * 1024
+        private const val READ_BUFFER_SIZE = 64 * 1024
+
         // Ice4j's pseudo TCP implementation does not actually implement socket shutdown. So, to avoid having to wait
         // for timeout each time, we send a specially crafted packet which we can detect on the other side and then
         // close from there as well.
@@ -11,6 +11,7 @@
  */
 package gg.essential.network.connectionmanager.ice
 
+import gg.essential.ice.ByteBudget
 import gg.essential.quic.backend.QuicBackendLoader
 import gg.essential.quic.backend.QuicListener
 import kotlinx.coroutines.CompletableDeferred
@@ -23,10 +24,13 @@ import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ReceiveChannel
 import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
 import org.slf4j.Logger
+import java.util.concurrent.atomic.AtomicLong
 
 class QuicChannel(
     coroutineScope: CoroutineScope,
@@ -38,14 +42,30 @@ class QuicChannel(
     private val impl = QuicBackendLoader.INSTANCE.createImpl(logger, this)
 
     private val quicOpen = CompletableDeferred<Unit>()
-    private val quicStreamInboundChannel = Channel<ByteArray>(Channel.UNLIMITED)
-    private val quicStreamOutboundChannel = Channel<ByteArray>(Channel.UNLIMITED)
+
+    /**
+     * Data received on the QUIC stream which has yet to be picked up by the application.
+     * Filled from the QUIC thread which cannot suspend, so instead we stop reading from the QUIC stream once the
+     * [quicStreamInboundBudget] is exhausted, which will in turn make QUIC flow control stop the remote side.
+     */
+    private val quicStreamInboundQueue = Channel<ByteArray>(Channel.UNLIMITED)
+    val quicStreamInboundBudget = ByteBudget("QuicChannel.quicStreamInbound", STREAM_INBOUND_BUDGET)
+    private var quicRecvPaused = false // guarded by quicStreamInboundBudget
+    private val quicStreamInboundChannel = Channel<ByteArray>()
+
+    /** Data to be sent on the QUIC stream. Not buffered, so the application is suspended while QUIC is not writable. */
+    private val quicStreamOutboundChannel = Channel<ByteArray>()
+    private val quicStreamWritable = MutableStateFlow(true)
+
+    /** Transport packets dropped because the transport channel was full. QUIC will treat these as lost. */
+    val transportSendDropped = AtomicLong()
 
     init {
         internalScope.launch(CoroutineName("QUIC Write"), start = CoroutineStart.UNDISPATCHED) {
             try {
                 quicOpen.await()
                 for (buf in quicStreamOutboundChannel) {
+                    quicStreamWritable.first { it }
                     impl.quicSend(buf)
                 }
 
@@ -56,6 +76,25 @@ class QuicChannel(
         }
     }
 
+    init {
+        internalScope.launch(CoroutineName("QUIC Read")) {
+            try {
+                for (buf in quicStreamInboundQueue) {
+                    quicStreamInboundChannel.send(buf)
+                    synchronized(quicStreamInboundBudget) {
+                        quicStreamInboundBudget.release(buf.size)
+                        if (quicRecvPaused && quicStreamInboundBudget.queuedBytes <= quicStreamInboundBudget.capacity / 2) {
+                            quicRecvPaused = false
+                            impl.setQuicRecvPaused(false)
+                        }
+                    }
+                }
+            } finally {
+                quicStreamInboundChannel.close()
+            }
+        }
+    }
+
     private val feeder = internalScope.launch(CoroutineName("QUIC Feed"), start = CoroutineStart.LAZY) {
         for (buf in transportRecv) {
             impl.transportRecv(buf)
@@ -85,7 +124,7 @@ class QuicChannel(
 
     override fun onReceivingStreamClosed() {
         logger.debug("QuicChannel.onReceivingStreamClosed")
-        quicStreamInboundChannel.close()
+        quicStreamInboundQueue.close()
     }
 
     override fun onClosed() {
@@ -94,10 +133,26 @@ class QuicChannel(
     }
 
     override fun transportSend(packet: ByteArray) {
-        transportSend.trySend(packet)
+        if (transportSend.trySend(packet).isFailure) {
+            transportSendDropped.incrementAndGet()
+        }
     }
 
     override fun quicRecv(packet: ByteArray) {
-        quicStreamInboundChannel.trySend(packet)
+        quicStreamInboundQueue.trySend(packet)
+        synchronized(quicStreamInboundBudget) {
+            if (!quicStreamInboundBudget.forceAcquire(packet.size) && !quicRecvPaused) {
+                quicRecvPaused = true
+                impl.setQuicRecvPaused(true)
+            }
+        }
+    }
+
+    override fun onQuicSendWritabilityChanged(writable: Boolean) {
+        quicStreamWritable.value = writable
+    }
+
+    companion object {
+        private const val STREAM_INBOUND_BUDGET = 1024 * 1024
     }
 }
@@ -53,6 +53,7 @@ val subprojects = listOf(
     ":cosmetics",
     ":feature-flags",
     ":ice",
+    ":ice-bench",
     ":immediatelyfast",
     ":infra",
     ":kdiscordipc",
@@ -11,6 +11,7 @@
  */
 package gg.essential.cosmetics;
 
+import gg.essential.mixins.impl.client.entity.AbstractClientPlayerExt;
 import gg.essential.model.EnumPart;
 import gg.essential.model.ModelInstance;
 import gg.essential.model.backend.PlayerPose;
@@ -73,7 +74,13 @@ public class EssentialModelRenderer implements LayerRenderer<AbstractClientPlaye
             return false;
         }
 
-        return !player.isInvisible() && !player.isSpectator();
+        if (player.isInvisible() || player.isSpectator()) {
+            return false;
+        }
+
+        // Too far away or over budget. Must be checked here rather than only when rendering the models, so the skin
+        // mask, hidden armor, etc. are reverted as well and the player doesn't end up with holes.
+        return ((AbstractClientPlayerExt) player).getWearablesManager().getLod().getVisible();
     }
 
     public void render(
@@ -90,6 +97,7 @@ public class EssentialModelRenderer implements LayerRenderer<AbstractClientPlaye
         if (models.isEmpty()) {
             return;
         }
+        long start = System.nanoTime();
 
         PlayerPose pose = PlayerPoseKt.toPose(playerRenderer);
         RenderBackend.Texture skin = new MinecraftRenderBackend.SkinTexture(cState.skinTexture());
@@ -139,6 +147,7 @@ public class EssentialModelRenderer implements LayerRenderer<AbstractClientPlaye
         //#endif
 
         cState.setRenderedPose(pose);
+        CosmeticLodManager.addElapsed(start);
     }
 
     @Override
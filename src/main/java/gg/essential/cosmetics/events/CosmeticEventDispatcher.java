@@ -32,7 +32,9 @@ public class CosmeticEventDispatcher {
         World world = player.world;
         //#endif
         ParticleSystem particleSystem;
-        if (player instanceof EmulatedUI3DPlayer.EmulatedPlayer) {
+        if (!wearablesManager.getLod().getParticles()) {
+            particleSystem = null; // too far away for its particles to be worth it
+        } else if (player instanceof EmulatedUI3DPlayer.EmulatedPlayer) {
             particleSystem = ((EmulatedUI3DPlayer.EmulatedPlayer) player).getParticleSystem();
         } else if (world instanceof ParticleSystemHolder) {
             particleSystem = ((ParticleSystemHolder) world).getParticleSystem();
@@ -21,19 +21,22 @@ import gg.essential.universal.UMinecraft;
 import gg.essential.util.ExtensionsKt;
 import gg.essential.util.HelpersKt;
 import gg.essential.util.Multithreading;
-import gg.essential.util.image.bitmap.Bitmap;
+import gg.essential.util.WorkerPool;
+import gg.essential.util.image.bitmap.MutableBitmap;
 import gg.essential.util.image.bitmap.UImageBitmap;
 import net.minecraft.client.Minecraft;
-import net.minecraft.client.renderer.texture.AbstractTexture;
 import net.minecraft.client.renderer.texture.ITextureObject;
-import net.minecraft.client.renderer.texture.TextureManager;
 import net.minecraft.client.resources.DefaultPlayerSkin;
 import net.minecraft.client.resources.IResourceManager;
 import net.minecraft.util.ResourceLocation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import static gg.essential.util.image.bitmap.GuiEssentialExtensionsKt.toUImage;
@@ -46,35 +49,49 @@ import gg.essential.mixins.ext.client.renderer.PlayerSkinTextureExt;
 import net.minecraft.client.renderer.ThreadDownloadImageData;
 //#endif
 
+/**
+ * Provides the masked version of a player's skin.
+ *
+ * Masked skins are shared between all players with the same skin and mask, and computed off-thread. Until a masked
+ * skin is ready, {@link #provide} returns {@code null} and the caller should render the unmasked skin.
+ */
 public class MaskedSkinProvider {
-    private static final DynamicTextureManager dynamicTextureManager = new DynamicTextureManager();
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final MaskedSkinCache cache = new MaskedSkinCache();
 
-    private ResourceLocation generatedSkin;
-    private SkinMask generatedConfig;
-    private ResourceLocation generatedId;
+    private Key lastKey;
 
     public ResourceLocation provide(ResourceLocation skin, SkinMask config) {
         // Only need to change their skin if any of our cosmetics have a mask
         // and only if they have a custom skin (Steve/Alex do not have an outer layer)
         if (config.getParts().isEmpty() || !skin.getResourcePath().startsWith("skins/")) {
-            generatedSkin = null;
-            generatedConfig = null;
+            lastKey = null;
             return null;
         }
 
-        final TextureManager textureManager = Minecraft.getMinecraft().getTextureManager();
+        // Skin textures are named after the hash of their content, so together with the (content-based) mask, this
+        // uniquely identifies the result
+        Key key = lastKey;
+        if (key == null || key.mask != config || !key.skin.equals(skin)) {
+            key = new Key(skin, config);
+        }
 
-        // Check if we are already done
-        if (skin.equals(generatedSkin) && config.equals(generatedConfig) && generatedId != null) {
-            generatedConfig = config; // keep the specific object so the next `equals` can take the fast path
-            dynamicTextureManager.keepAlive(this);
-            return generatedId; // if so, we're good to go
+        MaskedSkin maskedSkin = cache.get(key);
+        if (maskedSkin == null) {
+            UImage skinImage = getSkinImage(skin);
+            if (skinImage == null) {
+                return null; // cannot yet apply the mask
+            }
+            maskedSkin = cache.compute(key, new UImageBitmap(skinImage).mutableCopy());
         }
 
-        // Need to generate a masked skin
+        lastKey = key; // keep the specific objects so the next check can take the fast path
+        return maskedSkin.id;
+    }
 
+    private static @Nullable UImage getSkinImage(ResourceLocation skin) {
         // Fetch the original skin
-        ITextureObject skinTexture = textureManager.getTexture(skin);
+        ITextureObject skinTexture = Minecraft.getMinecraft().getTextureManager().getTexture(skin);
         if (skinTexture == null) {
             return null; // if not, then we cannot yet apply the mask
         }
@@ -89,7 +106,7 @@ public class MaskedSkinProvider {
         //$$     return null;
         //$$ }
         //$$
-        //$$ UImage skinImage = new UImage(skinNativeImage);
+        //$$ return new UImage(skinNativeImage);
         //#else
         // Sanity check, this should always be the case at least for vanilla
         if (!(skinTexture instanceof PlayerSkinTextureExt)) {
@@ -101,34 +118,44 @@ public class MaskedSkinProvider {
         // If however the texture is currently downloading and it is requested a second time (e.g. when there are
         // player entities with the same skin), is however possible for the texture to be registered before it is
         // done downloading.
-        UImage skinImage = skinTextureExt.essential$getImage();
-        if (skinImage == null) {
-            return null; // in that case, we cannot yet apply the mask
-        }
+        return skinTextureExt.essential$getImage(); // in that case, this is null and we cannot yet apply the mask
         //#endif
-
-        // All good, compute the masked skin, store it for later, and register it with MC
-        Bitmap generatedTexture = config.apply(new UImageBitmap(skinImage));
-        generatedSkin = skin;
-        generatedConfig = config;
-        generatedId = dynamicTextureManager.generateUniqueId(generatedSkin.toString().replace(':', '/'));
-        //#if MC>=12104
-        //$$ dynamicTextureManager.register(this, generatedId, new NativeImageBackedTexture(toUImage(generatedTexture).getNativeImage()));
-        //#else
-        dynamicTextureManager.register(this, generatedId, new MaskedSkinTexture(toUImage(generatedTexture)));
-        //#endif
-        return generatedId;
     }
 
-    void expireTexture(ResourceLocation id) {
-        if (id.equals(generatedId)) {
-            generatedId = null;
+    private static final class Key {
+        private final ResourceLocation skin;
+        private final SkinMask mask;
+
+        private Key(ResourceLocation skin, SkinMask mask) {
+            this.skin = skin;
+            this.mask = mask;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return skin.equals(key.skin) && mask.equals(key.mask);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * skin.hashCode() + mask.hashCode();
         }
-        Minecraft.getMinecraft().getTextureManager().deleteTexture(id);
     }
 
-    private static class DynamicTextureManager implements RemovalListener<MaskedSkinProvider, ResourceLocation> {
-        private final Cache<MaskedSkinProvider, ResourceLocation> loaded = Caffeine.newBuilder()
+    /** State of a single masked skin. Only accessed from the main thread. */
+    private static final class MaskedSkin {
+        /** The registered texture, or {@code null} while the mask is still being applied. */
+        private ResourceLocation id;
+        /** Set once this entry has been evicted from the cache, so its texture will not be registered (anymore). */
+        private boolean expired;
+    }
+
+    private static class MaskedSkinCache implements RemovalListener<Key, MaskedSkin> {
+        private final Executor worker = new WorkerPool("Skin Masker", 1);
+        private final Cache<Key, MaskedSkin> loaded = Caffeine.newBuilder()
             .expireAfterAccess(1, TimeUnit.MINUTES)
             .executor(Multithreading.POOL)
             .scheduler(Scheduler.forScheduledExecutorService(Multithreading.getScheduledPool()))
@@ -137,25 +164,53 @@ public class MaskedSkinProvider {
 
         private int nextUniqueId;
 
-        public ResourceLocation generateUniqueId(String name) {
-            return HelpersKt.identifier("essential", String.format(Locale.ROOT, "masked_skins/%s/%d", name, nextUniqueId++));
+        public @Nullable MaskedSkin get(Key key) {
+            return loaded.getIfPresent(key);
         }
 
-        public void register(MaskedSkinProvider provider, ResourceLocation id, AbstractTexture texture) {
-            Minecraft.getMinecraft().getTextureManager().loadTexture(id, texture);
-            loaded.put(provider, id);
-        }
-
-        public void keepAlive(MaskedSkinProvider provider) {
-            loaded.getIfPresent(provider);
+        public MaskedSkin compute(Key key, MutableBitmap skin) {
+            MaskedSkin maskedSkin = new MaskedSkin();
+            loaded.put(key, maskedSkin);
+
+            Executor mainThread = ExtensionsKt.getExecutor(UMinecraft.getMinecraft());
+            CompletableFuture.supplyAsync(() -> {
+                key.mask.applyTo(skin);
+                return toUImage(skin);
+            }, worker).thenAcceptAsync(image -> {
+                if (maskedSkin.expired) {
+                    return;
+                }
+                ResourceLocation id = HelpersKt.identifier("essential", String.format(Locale.ROOT,
+                    "masked_skins/%s/%d", key.skin.toString().replace(':', '/'), nextUniqueId++));
+                //#if MC>=12104
+                //$$ Minecraft.getMinecraft().getTextureManager().loadTexture(id, new NativeImageBackedTexture(image.getNativeImage()));
+                //#else
+                Minecraft.getMinecraft().getTextureManager().loadTexture(id, new MaskedSkinTexture(image));
+                //#endif
+                maskedSkin.id = id;
+            }, mainThread).whenCompleteAsync((result, throwable) -> {
+                if (throwable != null) {
+                    LOGGER.error("Failed to mask skin " + key.skin, throwable);
+                    // Otherwise the entry would stay cached without a texture, so the skin would never be masked
+                    loaded.asMap().remove(key, maskedSkin);
+                }
+            }, mainThread);
+
+            return maskedSkin;
         }
 
         @Override
-        public void onRemoval(@Nullable MaskedSkinProvider provider, @Nullable ResourceLocation id, @NotNull RemovalCause cause) {
-            if (id == null || provider == null) {
+        public void onRemoval(@Nullable Key key, @Nullable MaskedSkin maskedSkin, @NotNull RemovalCause cause) {
+            if (maskedSkin == null) {
                 return;
             }
-            ExtensionsKt.getExecutor(UMinecraft.getMinecraft()).execute(() -> provider.expireTexture(id));
+            ExtensionsKt.getExecutor(UMinecraft.getMinecraft()).execute(() -> {
+                maskedSkin.expired = true;
+                if (maskedSkin.id != null) {
+                    Minecraft.getMinecraft().getTextureManager().deleteTexture(maskedSkin.id);
+                    maskedSkin.id = null;
+                }
+            });
         }
     }
 
@@ -19,6 +19,8 @@ package gg.essential.image.imagescaling;
 
 import gg.essential.gui.screenshot.downsampling.BufferBackedImage;
 import gg.essential.gui.screenshot.downsampling.PixelBuffer;
+import gg.essential.util.WorkerPool;
+import gg.essential.util.WorkerPools;
 import io.netty.buffer.ByteBuf;
 
 import java.nio.ByteBuffer;
@@ -27,9 +29,8 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Based on work from Java Image Util ( http://schmidt.devlib.org/jiu/ )
@@ -40,9 +41,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Heinz Doerr
  */
 public class ResampleOp extends AdvancedResizeOp {
-    private static final ExecutorService service = new ThreadPoolExecutor(100, 100,
-        0L, TimeUnit.MILLISECONDS,
-        new PriorityBlockingQueue<>(100, Comparator.comparingInt(o -> ((ResampleTask) o).targetWidth)));
+    private static final ExecutorService service = new WorkerPool(
+        "Image Resampler",
+        WorkerPools.getCpuThreads(),
+        WorkerPool.UNBOUNDED,
+        WorkerPool.BackPressure.ABORT,
+        new PriorityBlockingQueue<>(100, Comparator.comparingInt(o -> ((ResampleTask) o).targetWidth)),
+        new WorkerPool.WorkerThreadFactory("Image Resampler", Thread.NORM_PRIORITY),
+        30,
+        false // priority queue needs the raw ResampleTask
+    );
 
     private static final Executor backgroundService = Runnable::run;
 
@@ -56,18 +64,10 @@ public class ResampleOp extends AdvancedResizeOp {
 
     public static final ThreadLocal<Boolean> isBackgroundTask = ThreadLocal.withInitial(() -> false);
 
-    private final int MAX_CHANNEL_VALUE = 255;
-    private int nrChannels;
-    private int srcWidth;
-    private int srcHeight;
-    private int dstWidth;
-    private int dstHeight;
-    private SubSamplingData horizontalSubsamplingData;
-    private SubSamplingData verticalSubsamplingData;
-    private int processedItems;
+    private final AtomicInteger processedItems = new AtomicInteger();
     private float totalItems;
-    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
-    private AtomicInteger multipleInvocationLock = new AtomicInteger();
+    private final int numberOfThreads = WorkerPools.getCpuThreads();
+    private final AtomicInteger multipleInvocationLock = new AtomicInteger();
     private ResampleFilter filter = ResampleFilters.getLanczos3Filter();
 
     public ResampleOp(int destWidth, int destHeight) {
@@ -195,168 +195,77 @@ public class ResampleOp extends AdvancedResizeOp {
     }
 
     public PixelBuffer doFilter(PixelBuffer srcImg, int dstWidth, int dstHeight) throws InterruptedException {
-        this.dstWidth = dstWidth;
-        this.dstHeight = dstHeight;
-
         if (dstWidth < 3 || dstHeight < 3) {
             throw new RuntimeException("Error doing rescale. Target size was " + dstWidth + "x" + dstHeight + " but must be at least 3x3.");
         }
 
         assert multipleInvocationLock.incrementAndGet() == 1 : "Multiple concurrent invocations detected";
 
+        int srcHeight = srcImg.getHeight();
+        TiledResampler resampler = new TiledResampler(filter, srcImg.getWidth(), srcHeight, srcImg.getChannels(), dstWidth, dstHeight);
 
-        this.nrChannels = srcImg.getChannels();
-        this.srcWidth = srcImg.getWidth();
-        this.srcHeight = srcImg.getHeight();
-
-        byte[][] workPixels = new byte[srcHeight][dstWidth * 4];
-
-        this.processedItems = 0;
-        this.totalItems = srcHeight + dstWidth;
-
-        // Pre-calculate  sub-sampling
-        horizontalSubsamplingData = createSubSampling(filter, srcWidth, dstWidth);
-        verticalSubsamplingData = createSubSampling(filter, srcHeight, dstHeight);
-
-
-        final PixelBuffer scrImgCopy = srcImg;
-        final byte[][] workPixelsCopy = workPixels;
-        CountDownLatch latch = new CountDownLatch(numberOfThreads);
-        for (int i = 0; i < numberOfThreads; i++) {
-            final int finalI = i;
-            CountDownLatch finalLatch1 = latch;
-            getService().execute(new ResampleTask(dstWidth, () -> horizontallyFromSrcToWork(scrImgCopy, workPixelsCopy, finalI, numberOfThreads, finalLatch1)));
-        }
-        latch.await();
+        this.processedItems.set(0);
+        this.totalItems = srcHeight + dstHeight;
 
         int dstSize = dstHeight * dstWidth * 4;
         ByteBuf outPixels = srcImg.content().alloc().directBuffer(dstSize);
         outPixels.writerIndex(dstSize);
-        // --------------------------------------------------
-        // Apply filter to sample vertically from Work to Dst
-        // --------------------------------------------------
-        final ByteBuffer outPixelsCopy = outPixels.nioBuffer();
-        latch = new CountDownLatch(numberOfThreads);
-        for (int i = 0; i < numberOfThreads; i++) {
-            final int finalI = i;
-            CountDownLatch finalLatch = latch;
-            getService().execute(new ResampleTask(dstWidth, () -> verticalFromWorkToDst(workPixelsCopy, outPixelsCopy, finalI, numberOfThreads, finalLatch)));
+        try {
+            // Apply filter to sample horizontally from Src to Work
+            final ByteBuffer srcBuffer = srcImg.getBuffer();
+            runInRowRanges(dstWidth, srcHeight, (from, to) -> resampler.horizontalPass(srcBuffer, from, to));
+
+            // Apply filter to sample vertically from Work to Dst
+            final ByteBuffer dstBuffer = outPixels.nioBuffer();
+            runInRowRanges(dstWidth, dstHeight, (from, to) -> resampler.verticalPass(dstBuffer, from, to));
+        } catch (Throwable t) {
+            outPixels.release();
+            throw t;
+        } finally {
+            resampler.release();
+            assert multipleInvocationLock.decrementAndGet() == 0 : "Multiple concurrent invocations detected";
         }
 
-        latch.await();
-
-        //noinspection UnusedAssignment
-        workPixels = null; // free memory
-
-        assert multipleInvocationLock.decrementAndGet() == 0 : "Multiple concurrent invocations detected";
-
         return new BufferBackedImage(dstWidth, dstHeight, outPixels);
     }
 
-
-    private void verticalFromWorkToDst(byte[][] workPixels, ByteBuffer outPixels, int start, int delta, CountDownLatch latch) {
-        for (int x = start; x < dstWidth; x += delta) {
-            final int xLocation = x * 4;
-            for (int y = dstHeight - 1; y >= 0; y--) {
-                final int yTimesNumContributors = y * verticalSubsamplingData.numContributors;
-                final int max = verticalSubsamplingData.arrN[y];
-                final int sampleLocation = (y * dstWidth + x) * 4;
-
-
-                float sample0 = 0.0f;
-                float sample1 = 0.0f;
-                float sample2 = 0.0f;
-                int index = yTimesNumContributors;
-                for (int j = max - 1; j >= 0; j--) {
-                    int valueLocation = verticalSubsamplingData.arrPixel[index];
-                    float arrWeight = verticalSubsamplingData.arrWeight[index];
-                    sample0 += (workPixels[valueLocation][xLocation] & 0xff) * arrWeight;
-                    sample1 += (workPixels[valueLocation][xLocation + 1] & 0xff) * arrWeight;
-                    sample2 += (workPixels[valueLocation][xLocation + 2] & 0xff) * arrWeight;
-//                    if (useChannel3) {
-//                        sample3 += (workPixels[valueLocation][xLocation + 3] & 0xff) * arrWeight;
-//                    }
-
-                    index++;
-                }
-
-                outPixels.put(sampleLocation, toByte(sample0));
-                outPixels.put(sampleLocation + 1, toByte(sample1));
-                outPixels.put(sampleLocation + 2, toByte(sample2));
-//                if (useChannel3) {
-                outPixels.put(sampleLocation + 3, ((byte) 255));
-//                }
-
-            }
-            processedItems++;
-            if (start == 0) { // only update progress listener from main thread
-                setProgress();
-            }
-        }
-        latch.countDown();
-    }
-
     /**
-     * Apply filter to sample horizontally from Src to Work
-     *
-     * @param srcImg
-     * @param workPixels
-     * @param latch
+     * Splits {@code [0, rows)} into contiguous ranges, runs the given operation on each of them and waits for all of
+     * them to complete.
      */
-    private void horizontallyFromSrcToWork(PixelBuffer srcImg, byte[][] workPixels, int start, int delta, CountDownLatch latch) {
-        if (nrChannels == 1) {
-            latch.countDown();
-            return;
-        }
-        final ByteBuffer srcImgArray = srcImg.getBuffer();
-
-
-        for (int k = start; k < srcHeight; k = k + delta) {
-            int offset = k * srcImg.getWidth() * srcImg.getChannels();
-
-            for (int i = dstWidth - 1; i >= 0; i--) {
-                int sampleLocation = i * 4;
-                final int max = horizontalSubsamplingData.arrN[i];
-
-                float sample0 = 0.0f;
-                float sample1 = 0.0f;
-                float sample2 = 0.0f;
-                int index = i * horizontalSubsamplingData.numContributors;
-                for (int j = max - 1; j >= 0; j--) {
-                    float arrWeight = horizontalSubsamplingData.arrWeight[index];
-                    int pixelIndex = horizontalSubsamplingData.arrPixel[index] * srcImg.getChannels();
-
-                    sample0 += (srcImgArray.get(offset + pixelIndex) & 0xff) * arrWeight;
-                    sample1 += (srcImgArray.get(offset + pixelIndex + 1) & 0xff) * arrWeight;
-                    sample2 += (srcImgArray.get(offset + pixelIndex + 2) & 0xff) * arrWeight;
-                    index++;
+    private void runInRowRanges(int targetWidth, int rows, RowRangeOperation operation) throws InterruptedException {
+        int tasks = Math.max(1, Math.min(numberOfThreads, rows / TiledResampler.MIN_ROWS_PER_TASK));
+        CountDownLatch latch = new CountDownLatch(tasks);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Executor executor = getService();
+        for (int i = 0; i < tasks; i++) {
+            final int from = (int) ((long) rows * i / tasks);
+            final int to = (int) ((long) rows * (i + 1) / tasks);
+            final boolean reportProgress = i == 0; // only update progress listener from one thread
+            executor.execute(new ResampleTask(targetWidth, () -> {
+                try {
+                    operation.run(from, to);
+                    int processed = processedItems.addAndGet(to - from);
+                    if (reportProgress) {
+                        fireProgressChanged(processed / totalItems);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
                 }
-
-                workPixels[k][sampleLocation] = toByte(sample0);
-                workPixels[k][sampleLocation + 1] = toByte(sample1);
-                workPixels[k][sampleLocation + 2] = toByte(sample2);
-            }
-            processedItems++;
-            if (start == 0) { // only update progress listener from main thread
-                setProgress();
-            }
+            }));
         }
-        latch.countDown();
-    }
-
+        latch.await();
 
-    private byte toByte(float f) {
-        if (f < 0) {
-            return 0;
-        }
-        if (f > MAX_CHANNEL_VALUE) {
-            return (byte) MAX_CHANNEL_VALUE;
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new RuntimeException("Error doing rescale", t);
         }
-        return (byte) (f + 0.5f); // add 0.5 same as Math.round
     }
 
-    private void setProgress() {
-        fireProgressChanged(processedItems / totalItems);
+    private interface RowRangeOperation {
+        void run(int fromRow, int toRow);
     }
 
     static class ResampleTask implements Runnable {
@@ -379,10 +288,10 @@ public class ResampleOp extends AdvancedResizeOp {
     }
 
     static class SubSamplingData {
-        private final int[] arrN; // individual - per row or per column - nr of contributions
-        private final int[] arrPixel;  // 2Dim: [wid or hei][contrib]
-        private final float[] arrWeight; // 2Dim: [wid or hei][contrib]
-        private final int numContributors; // the primary index length for the 2Dim arrays : arrPixel and arrWeight
+        final int[] arrN; // individual - per row or per column - nr of contributions
+        final int[] arrPixel;  // 2Dim: [wid or hei][contrib]
+        final float[] arrWeight; // 2Dim: [wid or hei][contrib]
+        final int numContributors; // the primary index length for the 2Dim arrays : arrPixel and arrWeight
 
         private SubSamplingData(int[] arrN, int[] arrPixel, float[] arrWeight, int numContributors) {
             this.arrN = arrN;
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.image.imagescaling;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Separable two-pass resampler working on contiguous row ranges.
+ * <p>
+ * The horizontal pass scales every source row into a flat work buffer which holds one packed RGBA int per pixel,
+ * the vertical pass then produces whole destination rows by accumulating entire work rows at once, so both passes
+ * walk memory linearly and no two threads ever write to the same cache line (other than at range boundaries).
+ * Weights are pre-computed in fixed point, so the inner loops only do integer multiply-adds for all channels of a pixel in one go.
+ */
+final class TiledResampler {
+    /** Number of fractional bits in the fixed point weights. */
+    static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int WEIGHT_ROUND = 1 << (WEIGHT_BITS - 1);
+
+    /** Minimum number of rows handed to a single task, smaller ranges are not worth the scheduling overhead. */
+    static final int MIN_ROWS_PER_TASK = 16;
+
+    /** Work buffers larger than this (in pixels) are not kept around after use. */
+    private static final int MAX_POOLED_WORK_BUFFER = 4 * 1024 * 1024;
+
+    private static final AtomicReference<int[]> pooledWorkBuffer = new AtomicReference<>();
+    private static final ThreadLocal<RowBuffers> rowBuffers = ThreadLocal.withInitial(RowBuffers::new);
+
+    private static final int WEIGHTS_CACHE_SIZE = 16;
+    private static final Map<WeightsKey, Weights> weightsCache = new LinkedHashMap<WeightsKey, Weights>(WEIGHTS_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<WeightsKey, Weights> eldest) {
+            return size() > WEIGHTS_CACHE_SIZE;
+        }
+    };
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int srcChannels;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final Weights horizontal;
+    private final Weights vertical;
+    private final int[] work;
+
+    TiledResampler(ResampleFilter filter, int srcWidth, int srcHeight, int srcChannels, int dstWidth, int dstHeight) {
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.srcChannels = srcChannels;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.horizontal = weights(filter, srcWidth, dstWidth);
+        this.vertical = weights(filter, srcHeight, dstHeight);
+        this.work = acquireWorkBuffer(srcHeight * dstWidth);
+    }
+
+    /**
+     * Returns the work buffer to the pool. The resampler must not be used afterwards.
+     */
+    void release() {
+        if (work.length <= MAX_POOLED_WORK_BUFFER) {
+            int[] current = pooledWorkBuffer.get();
+            if (current == null || current.length < work.length) {
+                pooledWorkBuffer.compareAndSet(current, work);
+            }
+        }
+    }
+
+    /**
+     * Scales source rows {@code [fromRow, toRow)} horizontally into the work buffer.
+     * Only the first three channels of the source are used (or the only one for grayscale images), alpha is always
+     * treated as opaque.
+     */
+    void horizontalPass(@NotNull ByteBuffer src, int fromRow, int toRow) {
+        final int channels = srcChannels;
+        final int green = channels >= 3 ? 1 : 0;
+        final int blue = channels >= 3 ? 2 : 0;
+        final int dstWidth = this.dstWidth;
+        final int[] count = horizontal.count;
+        final int[] pixel = horizontal.pixel;
+        final int[] weight = horizontal.weight;
+        final int stride = horizontal.stride;
+        final int[] work = this.work;
+
+        int rowBytes = srcWidth * channels;
+        byte[] row = rowBuffers.get().source(rowBytes);
+        ByteBuffer srcView = src.duplicate();
+
+        for (int y = fromRow; y < toRow; y++) {
+            srcView.clear().position(y * rowBytes);
+            srcView.get(row, 0, rowBytes);
+
+            int workOffset = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int r = WEIGHT_ROUND;
+                int g = WEIGHT_ROUND;
+                int b = WEIGHT_ROUND;
+                int index = x * stride;
+                int end = index + count[x];
+                for (; index < end; index++) {
+                    int w = weight[index];
+                    int p = pixel[index] * channels;
+                    r += (row[p] & 0xff) * w;
+                    g += (row[p + green] & 0xff) * w;
+                    b += (row[p + blue] & 0xff) * w;
+                }
+                work[workOffset + x] = clamp(r >> WEIGHT_BITS) | clamp(g >> WEIGHT_BITS) << 8 | clamp(b >> WEIGHT_BITS) << 16;
+            }
+        }
+    }
+
+    /**
+     * Scales the work buffer vertically into destination rows {@code [fromRow, toRow)}.
+     * Must only be called once {@link #horizontalPass} has completed for all source rows.
+     * Output is always RGBA with an opaque alpha channel.
+     */
+    void verticalPass(@NotNull ByteBuffer dst, int fromRow, int toRow) {
+        final int dstWidth = this.dstWidth;
+        final int[] count = vertical.count;
+        final int[] pixel = vertical.pixel;
+        final int[] weight = vertical.weight;
+        final int stride = vertical.stride;
+        final int[] work = this.work;
+
+        RowBuffers buffers = rowBuffers.get();
+        int[] acc = buffers.accumulator(dstWidth * 3);
+        byte[] out = buffers.destination(dstWidth * 4);
+        ByteBuffer dstView = dst.duplicate();
+
+        for (int y = fromRow; y < toRow; y++) {
+            for (int i = 0, len = dstWidth * 3; i < len; i++) {
+                acc[i] = WEIGHT_ROUND;
+            }
+
+            int index = y * stride;
+            int end = index + count[y];
+            for (; index < end; index++) {
+                int w = weight[index];
+                int workOffset = pixel[index] * dstWidth;
+                for (int x = 0, a = 0; x < dstWidth; x++, a += 3) {
+                    int p = work[workOffset + x];
+                    acc[a] += (p & 0xff) * w;
+                    acc[a + 1] += ((p >>> 8) & 0xff) * w;
+                    acc[a + 2] += ((p >>> 16) & 0xff) * w;
+                }
+            }
+
+            for (int x = 0, a = 0, o = 0; x < dstWidth; x++, a += 3, o += 4) {
+                out[o] = (byte) clamp(acc[a] >> WEIGHT_BITS);
+                out[o + 1] = (byte) clamp(acc[a + 1] >> WEIGHT_BITS);
+                out[o + 2] = (byte) clamp(acc[a + 2] >> WEIGHT_BITS);
+                out[o + 3] = (byte) 255;
+            }
+
+            dstView.clear().position(y * dstWidth * 4);
+            dstView.put(out, 0, dstWidth * 4);
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int[] acquireWorkBuffer(int size) {
+        int[] buffer = pooledWorkBuffer.getAndSet(null);
+        if (buffer == null || buffer.length < size) {
+            // Too small ones are simply dropped, the newly allocated one will replace it on release
+            buffer = new int[size];
+        }
+        return buffer;
+    }
+
+    private static Weights weights(ResampleFilter filter, int srcSize, int dstSize) {
+        WeightsKey key = new WeightsKey(filter, srcSize, dstSize);
+        synchronized (weightsCache) {
+            Weights weights = weightsCache.get(key);
+            if (weights != null) {
+                return weights;
+            }
+        }
+        Weights weights = new Weights(ResampleOp.createSubSampling(filter, srcSize, dstSize));
+        synchronized (weightsCache) {
+            weightsCache.put(key, weights);
+        }
+        return weights;
+    }
+
+    /**
+     * Fixed point version of {@link ResampleOp.SubSamplingData}.
+     * Contributions with a weight of zero are dropped and the remaining weights of each output pixel are adjusted so
+     * they sum to exactly {@link #WEIGHT_ONE}, so rounding cannot brighten or darken flat areas.
+     */
+    private static final class Weights {
+        final int[] count;
+        final int[] pixel;
+        final int[] weight;
+        final int stride;
+
+        Weights(ResampleOp.SubSamplingData data) {
+            int size = data.arrN.length;
+            this.stride = data.numContributors;
+            this.count = new int[size];
+            this.pixel = new int[size * stride];
+            this.weight = new int[size * stride];
+
+            for (int i = 0; i < size; i++) {
+                int base = i * stride;
+                int n = 0;
+                int sum = 0;
+                int largest = -1;
+                for (int k = 0; k < data.arrN[i]; k++) {
+                    int w = Math.round(data.arrWeight[base + k] * WEIGHT_ONE);
+                    if (w == 0) {
+                        continue;
+                    }
+                    pixel[base + n] = data.arrPixel[base + k];
+                    weight[base + n] = w;
+                    sum += w;
+                    if (largest < 0 || w > weight[base + largest]) {
+                        largest = n;
+                    }
+                    n++;
+                }
+                if (largest >= 0) {
+                    weight[base + largest] += WEIGHT_ONE - sum;
+                }
+                count[i] = n;
+            }
+        }
+    }
+
+    private static final class WeightsKey {
+        private final ResampleFilter filter;
+        private final int srcSize;
+        private final int dstSize;
+
+        WeightsKey(ResampleFilter filter, int srcSize, int dstSize) {
+            this.filter = filter;
+            this.srcSize = srcSize;
+            this.dstSize = dstSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof WeightsKey)) return false;
+            WeightsKey that = (WeightsKey) o;
+            return filter == that.filter && srcSize == that.srcSize && dstSize == that.dstSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(filter), srcSize, dstSize);
+        }
+    }
+
+    /** Per-thread scratch rows, grown as needed and re-used across images. */
+    private static final class RowBuffers {
+        private byte[] source = new byte[0];
+        private byte[] destination = new byte[0];
+        private int[] accumulator = new int[0];
+
+        byte[] source(int size) {
+            if (source.length < size) {
+                source = new byte[size];
+            }
+            return source;
+        }
+
+        byte[] destination(int size) {
+            if (destination.length < size) {
+                destination = new byte[size];
+            }
+            return destination;
+        }
+
+        int[] accumulator(int size) {
+            if (accumulator.length < size) {
+                accumulator = new int[size];
+            }
+            return accumulator;
+        }
+    }
+}
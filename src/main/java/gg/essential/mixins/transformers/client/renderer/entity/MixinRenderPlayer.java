@@ -110,6 +110,7 @@ public abstract class MixinRenderPlayer
     //#if MC>=12102
     //$$ @Inject(method = "updateRenderState(Lnet/minecraft/client/network/AbstractClientPlayerEntity;Lnet/minecraft/client/render/entity/state/PlayerEntityRenderState;F)V", at = @At("RETURN"))
     //$$ private void disableOuterLayerWhereCoveredByCosmetic(AbstractClientPlayerEntity player, PlayerEntityRenderState state, float tickDelta, CallbackInfo ci) {
+    //$$     if (!EssentialModelRenderer.shouldRender(player)) return;
     //$$     Set<SkinLayer> coveredLayers = ((AbstractClientPlayerExt) player).getCosmeticsState().getCoveredLayers();
     //$$     state.hatVisible &= !coveredLayers.contains(SkinLayer.HAT);
     //$$     state.jacketVisible &= !coveredLayers.contains(SkinLayer.JACKET);
@@ -121,6 +122,7 @@ public abstract class MixinRenderPlayer
     //#else
     @Inject(method = "setModelVisibilities", at = @At("RETURN"))
     private void disableOuterLayerWhereCoveredByCosmetic(AbstractClientPlayer player, CallbackInfo ci) {
+        if (!EssentialModelRenderer.shouldRender(player)) return;
         Set<SkinLayer> coveredLayers = ((AbstractClientPlayerExt) player).getCosmeticsState().getCoveredLayers();
         ModelPlayer model = getMainModel();
         model.bipedHeadwear.showModel &= !coveredLayers.contains(SkinLayer.HAT);
@@ -11,18 +11,27 @@
  */
 package gg.essential.mixins.transformers.feature.cosmetics;
 
+import gg.essential.cosmetics.CosmeticLodManager;
 import gg.essential.cosmetics.WearablesManager;
 import gg.essential.mixins.impl.client.entity.AbstractClientPlayerExt;
+import net.minecraft.client.Minecraft;
 import net.minecraft.client.entity.AbstractClientPlayer;
 import net.minecraft.client.multiplayer.WorldClient;
 import net.minecraft.client.renderer.RenderGlobal;
+import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.EntityPlayer;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import static gg.essential.cosmetics.events.CosmeticEventDispatcher.dispatchEvents;
 
 @Mixin(RenderGlobal.class)
@@ -30,6 +39,10 @@ public abstract class Mixin_UpdateCosmetics {
     @Shadow
     private WorldClient world;
 
+    /** Wearables of all players in the world during the previous frame, to notice when one is removed. */
+    @Unique
+    private Set<WearablesManager> essential$lastWearablesManagers = new HashSet<>();
+
     //#if MC>=12102
     //$$ @Inject(method = "method_62214", at = @At(value = "CONSTANT", args = "stringValue=entities"))
     //#elseif MC>=11400
@@ -38,20 +51,44 @@ public abstract class Mixin_UpdateCosmetics {
     @Inject(method = "renderEntities", at = @At("HEAD"))
     //#endif
     private void essential$updateCosmeticsPreRender(CallbackInfo ci) {
+        Entity camera = Minecraft.getMinecraft().getRenderViewEntity();
+        List<AbstractClientPlayerExt> players = new ArrayList<>();
         //#if MC>=11400
         //$$ for (PlayerEntity player : this.world.getPlayers()) {
         //#else
         for (EntityPlayer player : this.world.playerEntities) {
         //#endif
-            if (!(player instanceof AbstractClientPlayerExt)) {
-                continue;
+            if (player instanceof AbstractClientPlayerExt) {
+                players.add((AbstractClientPlayerExt) player);
             }
-            AbstractClientPlayerExt playerExt = (AbstractClientPlayerExt) player;
+        }
 
-            WearablesManager wearablesManager = playerExt.getWearablesManager();
+        List<WearablesManager> wearablesManagers = new ArrayList<>(players.size());
+        double[] distances = new double[players.size()];
+        for (int i = 0; i < players.size(); i++) {
+            AbstractClientPlayerExt playerExt = players.get(i);
+            wearablesManagers.add(playerExt.getWearablesManager());
+            distances[i] = camera == null ? 0 : Math.sqrt(((Entity) playerExt).getDistanceSqToEntity(camera));
+        }
+
+        // Players which left (or whose world was unloaded) no longer need their space in the shared texture atlas
+        Set<WearablesManager> currentWearablesManagers = new HashSet<>(wearablesManagers);
+        for (WearablesManager wearablesManager : essential$lastWearablesManagers) {
+            if (!currentWearablesManagers.contains(wearablesManager)) {
+                wearablesManager.releaseSharedResources();
+            }
+        }
+        essential$lastWearablesManagers = currentWearablesManagers;
+
+        long start = System.nanoTime();
+        CosmeticLodManager.beginFrame(wearablesManagers, distances);
+        for (int i = 0; i < players.size(); i++) {
+            AbstractClientPlayerExt playerExt = players.get(i);
+            WearablesManager wearablesManager = wearablesManagers.get(i);
             wearablesManager.update();
             playerExt.getPoseManager().update(wearablesManager);
         }
+        CosmeticLodManager.addElapsed(start);
     }
 
     //#if MC>=12102
@@ -62,6 +99,7 @@ public abstract class Mixin_UpdateCosmetics {
     @Inject(method = "renderEntities", at = @At("RETURN"))
     //#endif
     private void essential$updateCosmeticsPostRender(CallbackInfo ci) {
+        long start = System.nanoTime();
         //#if MC>=11400
         //$$ for (PlayerEntity player : this.world.getPlayers()) {
         //#else
@@ -76,5 +114,6 @@ public abstract class Mixin_UpdateCosmetics {
             wearablesManager.updateLocators(playerExt.getRenderedPose());
             dispatchEvents((AbstractClientPlayer) player, wearablesManager);
         }
+        CosmeticLodManager.addElapsed(start);
     }
 }
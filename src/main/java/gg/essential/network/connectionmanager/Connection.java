@@ -17,6 +17,8 @@ import gg.essential.connectionmanager.common.packet.Packet;
 import gg.essential.connectionmanager.common.packet.connection.ConnectionKeepAlivePacket;
 import gg.essential.handlers.CertChain;
 import gg.essential.network.connectionmanager.ConnectionManagerKt.CloseInfo;
+import gg.essential.network.connectionmanager.codec.BinaryPacketReader;
+import gg.essential.network.connectionmanager.codec.BinaryPacketWriter;
 import gg.essential.network.connectionmanager.legacyjre.LegacyJre;
 import gg.essential.network.connectionmanager.legacyjre.LegacyJreDnsResolver;
 import gg.essential.network.connectionmanager.legacyjre.LegacyJreSocketFactory;
@@ -32,9 +34,11 @@ import org.jetbrains.annotations.NotNull;
 import javax.net.ssl.SSLSocketFactory;
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledFuture;
@@ -75,16 +79,41 @@ public class Connection extends WebSocketClient {
 
     @NotNull
     private final Executor sendExecutor = new LimitedExecutor(Multithreading.getPool(), 1, new ConcurrentLinkedQueue<>());
+    @NotNull
+    private final OutboundPacketQueue outboundQueue = new OutboundPacketQueue();
+    /** Output buffer for multi-packet frames. Only used from the {@link #sendExecutor}. */
+    @NotNull
+    private final BinaryPacketWriter batchWriter = new BinaryPacketWriter();
+    private int batchedPackets;
 
     //
     @NotNull
     private final Callbacks callbacks;
     private final ConnectionCodec codec = new ConnectionCodec();
 
-    private int usingProtocol = 1;
+    private volatile int usingProtocol = 1;
     private ScheduledFuture<?> timeoutTask;
 
     private static final int MAX_PROTOCOL = 6;
+    /**
+     * First protocol version in which packets are encoded with the binary codec instead of json.
+     * Only advertised if explicitly enabled, json remains the default.
+     */
+    private static final int BINARY_CODEC_PROTOCOL = 7;
+    private static final boolean BINARY_CODEC = Boolean.getBoolean("essential.cm.binaryCodec");
+    /**
+     * First protocol version in which every frame is a multi-packet envelope: a sequence of var-int length prefixed
+     * packets. Only advertised if explicitly enabled.
+     */
+    private static final int BATCHING_PROTOCOL = 8;
+    private static final boolean BATCHING = Boolean.getBoolean("essential.cm.batching");
+    /**
+     * How long to wait after the first packet of a burst before sending it, so that the rest of the burst (usually
+     * emitted within the same tick) ends up in the same frame.
+     */
+    private static final long BATCH_LINGER_MILLIS = 5;
+    private static final int MAX_BATCH_PACKETS = 64;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
 
     public Connection(@NotNull Callbacks callbacks) {
         super(
@@ -110,6 +139,7 @@ public class Connection extends WebSocketClient {
     @Override
     public void onOpen(@NotNull final ServerHandshake serverHandshake) {
         this.usingProtocol = Integer.parseInt(serverHandshake.getFieldValue("Essential-Protocol-Version"));
+        this.codec.setBinary(this.usingProtocol >= BINARY_CODEC_PROTOCOL);
 
         scheduleTimeout();
 
@@ -146,7 +176,28 @@ public class Connection extends WebSocketClient {
     // Debug is kept for the time being.
     @Override
     public void onMessage(@NotNull final ByteBuffer byteBuffer) {
-        final Packet packet = codec.decode(byteBuffer.array());
+        if (this.usingProtocol >= BATCHING_PROTOCOL) {
+            while (byteBuffer.hasRemaining()) {
+                final int length;
+                try {
+                    length = BinaryPacketReader.readLength(byteBuffer, 1);
+                } catch (BufferUnderflowException | IllegalStateException e) {
+                    // Without a valid length we cannot find the start of the next frame, so the rest is lost too
+                    Essential.logger.error("Error when reading packet batch, discarding remaining frames.", e);
+                    return;
+                }
+                final ByteBuffer packetBuffer = byteBuffer.slice();
+                packetBuffer.limit(length);
+                byteBuffer.position(byteBuffer.position() + length);
+                this.onMessageFrame(packetBuffer);
+            }
+        } else {
+            this.onMessageFrame(byteBuffer);
+        }
+    }
+
+    private void onMessageFrame(@NotNull final ByteBuffer byteBuffer) {
+        final Packet packet = ConnectionStats.INSTANCE.decode(codec, byteBuffer);
         if (packet == null) {
             return;
         }
@@ -182,11 +233,51 @@ public class Connection extends WebSocketClient {
             return;
         }
 
-        sendExecutor.execute(() -> doSend(packet));
+        if (outboundQueue.add(packet)) {
+            if (this.usingProtocol >= BATCHING_PROTOCOL) {
+                Multithreading.getScheduledPool().schedule(
+                    () -> sendExecutor.execute(this::flush), BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                sendExecutor.execute(this::flush);
+            }
+        }
+    }
+
+    private void flush() {
+        List<Packet> packets = outboundQueue.drain();
+        if (this.usingProtocol < BATCHING_PROTOCOL) {
+            for (Packet packet : packets) {
+                codec.encode(packet, this::send);
+                ConnectionStats.INSTANCE.recordBatch(1);
+            }
+            return;
+        }
+
+        batchWriter.reset();
+        batchedPackets = 0;
+        for (Packet packet : packets) {
+            codec.encode(packet, this::appendToBatch);
+        }
+        flushBatch();
     }
 
-    private void doSend(Packet packet) {
-        codec.encode(packet, this::send);
+    private void appendToBatch(@NotNull ByteBuffer packetBuffer) {
+        if (batchedPackets > 0 && (batchedPackets >= MAX_BATCH_PACKETS || batchWriter.position() + packetBuffer.remaining() > MAX_BATCH_BYTES)) {
+            flushBatch();
+        }
+        batchWriter.writeVarInt(packetBuffer.remaining());
+        batchWriter.writeBytes(packetBuffer);
+        batchedPackets++;
+    }
+
+    private void flushBatch() {
+        if (batchedPackets == 0) {
+            return;
+        }
+        this.send(batchWriter.flip());
+        ConnectionStats.INSTANCE.recordBatch(batchedPackets);
+        batchWriter.reset();
+        batchedPackets = 0;
     }
 
     public void setupAndConnect(String userName, byte[] secret) {
@@ -198,7 +289,8 @@ public class Connection extends WebSocketClient {
 
         String protocolProperty = System.getProperty("essential.cm.protocolVersion");
         if (protocolProperty == null) {
-            this.addHeader("Essential-Max-Protocol-Version", String.valueOf(MAX_PROTOCOL));
+            int maxProtocol = BATCHING ? BATCHING_PROTOCOL : BINARY_CODEC ? BINARY_CODEC_PROTOCOL : MAX_PROTOCOL;
+            this.addHeader("Essential-Max-Protocol-Version", String.valueOf(maxProtocol));
         } else {
             this.addHeader("Essential-Protocol-Version", protocolProperty);
         }
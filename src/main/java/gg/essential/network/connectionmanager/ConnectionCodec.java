@@ -27,15 +27,21 @@ import gg.essential.connectionmanager.common.packet.connection.ConnectionRegiste
 import gg.essential.lib.gson.Gson;
 import gg.essential.lib.gson.GsonBuilder;
 import gg.essential.lib.gson.JsonParseException;
-import org.apache.commons.lang3.StringUtils;
+import gg.essential.lib.gson.JsonSyntaxException;
+import gg.essential.lib.gson.stream.JsonReader;
+import gg.essential.lib.gson.stream.JsonToken;
+import gg.essential.network.connectionmanager.codec.BinaryPacketReader;
+import gg.essential.network.connectionmanager.codec.BinaryPacketWriter;
+import gg.essential.network.connectionmanager.codec.ObjectCodec;
+import gg.essential.network.connectionmanager.codec.Utf8ByteBufferReader;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.UUID;
@@ -46,11 +52,20 @@ public class ConnectionCodec {
     private static final String PACKET_PACKAGE = "gg.essential.connectionmanager.common.packet.";
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[]{};
     private static final boolean LOG_PACKETS = System.getProperty("essential.logPackets", "false").equals("true");
+    private static final int FLAG_HAS_PACKET_ID = 1;
+
+    private static final ClassValue<String> PACKET_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(@NotNull Class<?> type) {
+            return type.getName().replace(PACKET_PACKAGE, "");
+        }
+    };
 
     @NotNull
     private final AtomicInteger packetTypeId = new AtomicInteger();
+    /** Resolved once when the type id is registered, so we do not need to look up the class for every packet. */
     @NotNull
-    private final Map<Integer, String> incomingPacketTypeIds = Maps.newConcurrentMap();
+    private final Map<Integer, Class<? extends Packet>> incomingPacketTypeIds = Maps.newConcurrentMap();
     @NotNull
     private final Map<String, Integer> outgoingPacketTypeIds = Maps.newConcurrentMap();
 
@@ -63,70 +78,197 @@ public class ConnectionCodec {
         .registerTypeAdapter(DateTime.class, new DateTimeTypeAdapter())
         .create();
 
+    /** Output buffer for the binary protocol. Only used from the (single-threaded) send executor. */
+    @NotNull
+    private final BinaryPacketWriter binaryWriter = new BinaryPacketWriter();
+    /** Re-used for the json payload of incoming packets. Only used from the (single-threaded) websocket read thread. */
+    @NotNull
+    private final Utf8ByteBufferReader jsonReader = new Utf8ByteBufferReader();
+
+    /**
+     * Whether packets are encoded in the binary format instead of json.
+     * Set once the connection has negotiated a protocol version which supports it.
+     */
+    private volatile boolean binary;
+
     {
         final String packetName = this.splitPacketPackage(ConnectionRegisterPacketTypeIdPacket.class);
-        this.incomingPacketTypeIds.put(0, packetName);
+        this.incomingPacketTypeIds.put(0, ConnectionRegisterPacketTypeIdPacket.class);
         this.outgoingPacketTypeIds.put(packetName, 0);
     }
 
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    @Nullable
+    public Packet decode(@NotNull ByteBuffer buffer) {
+        if (binary) {
+            return decodeBinary(buffer);
+        } else {
+            return decodeJson(buffer);
+        }
+    }
+
     @Nullable
-    public Packet decode(byte[] array) {
+    private Packet decodeBinary(@NotNull ByteBuffer buffer) {
         final Packet packet;
-        try (
-            final ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(array);
-            final DataInputStream dataInputStream = new DataInputStream(byteArrayInputStream)
-        ) {
-            final int packetTypeId = dataInputStream.readInt();
-            final String packetName = this.incomingPacketTypeIds.get(packetTypeId);
+        final Class<? extends Packet> packetClass;
+        try {
+            final int packetTypeId = BinaryPacketReader.readVarInt(buffer);
+            packetClass = this.incomingPacketTypeIds.get(packetTypeId);
 
-            if (packetName == null) {
+            if (packetClass == null) {
                 Essential.logger.warn("Unknown packet type id {} from connection manager.", packetTypeId);
                 return null;
             }
 
-            Class<? extends Packet> packetClass;
-            try {
-                packetClass = (Class<? extends Packet>) Class.forName(PACKET_PACKAGE + packetName);
-            } catch (final ClassNotFoundException e) {
-                packetClass = UnknownPacket.class;
-            }
+            final int flags = buffer.get();
+            final UUID packetId = (flags & FLAG_HAS_PACKET_ID) != 0 ? BinaryPacketReader.readUuid(buffer) : null;
 
-            final String packetIdString = this.readString(dataInputStream);
-            UUID packetId = null;
-            if (!StringUtils.isEmpty(packetIdString)) {
-                packetId = UUID.fromString(packetIdString);
+            if (packetClass == UnknownPacket.class) {
+                packet = new UnknownPacket();
+            } else {
+                packet = (Packet) ObjectCodec.forClass(packetClass).read(buffer);
             }
 
-            final String jsonString = this.readString(dataInputStream);
-
             if (LOG_PACKETS) {
-                Essential.debug.info("IN " + packetId + " - " + packetName + " " + jsonString);
-            }
-            try {
-                packet = gson.fromJson(jsonString, packetClass);
-            } catch (final JsonParseException e) {
-                Essential.logger.error("Error when deserialising json '{}' for '{}'.", jsonString, packetClass, e);
-                return null;
+                Essential.debug.info("IN " + packetId + " - " + splitPacketPackage(packetClass) + " " + gson.toJson(packet));
             }
 
             if (packetId != null) {
                 packet.setUniqueId(packetId);
             }
-        } catch (final IOException e) {
-            Essential.logger.error("Error when reading byte buffer data '{}'.", array, e);
+        } catch (final BufferUnderflowException | IllegalStateException e) {
+            Essential.logger.error("Error when reading binary packet data.", e);
+            return null;
+        } catch (final RuntimeException e) {
+            Essential.logger.error("Error when deserialising binary packet.", e);
+            return null;
+        }
+
+        return handleRegisterPacket(packet);
+    }
+
+    /**
+     * Decodes a json packet straight from the received buffer.
+     * The packet id is parsed from its bytes and the json payload is streamed into gson, so neither is copied into an
+     * intermediate byte array or string.
+     */
+    @Nullable
+    private Packet decodeJson(@NotNull ByteBuffer buffer) {
+        final Packet packet;
+        final Class<? extends Packet> packetClass;
+        final UUID packetId;
+        final ByteBuffer json;
+        try {
+            final int packetTypeId = buffer.getInt();
+            packetClass = this.incomingPacketTypeIds.get(packetTypeId);
+
+            if (packetClass == null) {
+                Essential.logger.warn("Unknown packet type id {} from connection manager.", packetTypeId);
+                return null;
+            }
+
+            final int packetIdLength = buffer.getInt();
+            packetId = packetIdLength > 0 ? parseUuid(buffer, packetIdLength) : null;
+
+            final int jsonLength = buffer.getInt();
+            json = buffer.slice();
+            json.limit(jsonLength);
+        } catch (final BufferUnderflowException | IllegalArgumentException e) {
+            Essential.logger.error("Error when reading byte buffer data '{}'.", buffer, e);
+            return null;
+        }
+
+        if (LOG_PACKETS) {
+            Essential.debug.info("IN " + packetId + " - " + splitPacketPackage(packetClass) + " " + StandardCharsets.UTF_8.decode(json.duplicate()));
+        }
+        try {
+            // JsonReader cannot be reset, so unlike the Utf8ByteBufferReader it wraps, it has to be created per packet
+            final JsonReader reader = new JsonReader(this.jsonReader.reset(json.duplicate()));
+            packet = gson.fromJson(reader, packetClass);
+            // Unlike fromJson(Reader, ...), fromJson(JsonReader, ...) does not check for trailing data by itself
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Trailing data after packet json");
+            }
+        } catch (final JsonParseException | IOException e) {
+            Essential.logger.error("Error when deserialising json '{}' for '{}'.", StandardCharsets.UTF_8.decode(json), packetClass, e);
             return null;
         }
 
+        if (packet == null) {
+            return null;
+        }
+
+        if (packetId != null) {
+            packet.setUniqueId(packetId);
+        }
+
+        return handleRegisterPacket(packet);
+    }
+
+    /**
+     * Parses a UUID in its canonical 36 character string form directly from the given buffer, advancing it by
+     * {@code length} bytes.
+     */
+    @NotNull
+    private static UUID parseUuid(@NotNull ByteBuffer buffer, int length) {
+        if (length != 36) {
+            // Non-canonical, let the JDK deal with it
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return UUID.fromString(new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        int start = buffer.position();
+        if (buffer.get(start + 8) != '-' || buffer.get(start + 13) != '-'
+            || buffer.get(start + 18) != '-' || buffer.get(start + 23) != '-') {
+            throw new IllegalArgumentException("Invalid packet id");
+        }
+        long most = parseHex(buffer, start, 8) << 32
+            | parseHex(buffer, start + 9, 4) << 16
+            | parseHex(buffer, start + 14, 4);
+        long least = parseHex(buffer, start + 19, 4) << 48
+            | parseHex(buffer, start + 24, 12);
+        buffer.position(start + length);
+        return new UUID(most, least);
+    }
+
+    private static long parseHex(@NotNull ByteBuffer buffer, int offset, int digits) {
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            int digit = Character.digit(buffer.get(offset + i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid packet id");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    @Nullable
+    private Packet handleRegisterPacket(@NotNull Packet packet) {
         if (packet instanceof ConnectionRegisterPacketTypeIdPacket) {
             ConnectionRegisterPacketTypeIdPacket p = (ConnectionRegisterPacketTypeIdPacket) packet;
-            this.incomingPacketTypeIds.put(p.getPacketId(), p.getClassName());
+            this.incomingPacketTypeIds.put(p.getPacketId(), resolvePacketClass(p.getClassName()));
             return null;
         }
 
         return packet;
     }
 
-    public void encode(Packet packet, Consumer<byte[]> send) {
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Packet> resolvePacketClass(@NotNull String packetName) {
+        try {
+            return (Class<? extends Packet>) Class.forName(PACKET_PACKAGE + packetName);
+        } catch (final ClassNotFoundException e) {
+            return UnknownPacket.class;
+        }
+    }
+
+    public void encode(Packet packet, Consumer<ByteBuffer> send) {
         final int packetTypeId = this.outgoingPacketTypeIds.computeIfAbsent(
             this.splitPacketPackage(packet.getClass()),
             packetName -> {
@@ -139,6 +281,11 @@ public class ConnectionCodec {
 
         final UUID packetId = packet.getPacketUniqueId();
 
+        if (binary) {
+            encodeBinary(packet, packetTypeId, packetId, send);
+            return;
+        }
+
         final byte[]
             packetBytes = gson.toJson(packet).getBytes(StandardCharsets.UTF_8),
             /* Construct a unique packet id for the packet we are sending if we need to. */
@@ -157,21 +304,38 @@ public class ConnectionCodec {
             dataOutputStream.writeInt(packetBytes.length);
             dataOutputStream.write(packetBytes);
 
-            send.accept(byteArrayOutputStream.toByteArray());
+            send.accept(ByteBuffer.wrap(byteArrayOutputStream.toByteArray()));
         } catch (final IOException e) {
             Essential.logger.error("Error occurred when sending out packet '{}'.", packet, e);
         }
     }
 
-    @NotNull
-    private String readString(@NotNull final DataInputStream dataInputStream) throws IOException {
-        final byte[] bytes = new byte[dataInputStream.readInt()];
-        dataInputStream.read(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+    private void encodeBinary(Packet packet, int packetTypeId, @Nullable UUID packetId, Consumer<ByteBuffer> send) {
+        if (LOG_PACKETS) {
+            Essential.debug.info("OUT " + packetId + " - " + splitPacketPackage(packet.getClass()) + " " + gson.toJson(packet));
+        }
+
+        final BinaryPacketWriter writer = this.binaryWriter;
+        try {
+            writer.reset();
+            writer.writeVarInt(packetTypeId);
+            if (packetId != null) {
+                writer.writeByte(FLAG_HAS_PACKET_ID);
+                writer.writeUuid(packetId);
+            } else {
+                writer.writeByte(0);
+            }
+            ObjectCodec.forClass(packet.getClass()).write(writer, packet);
+        } catch (final RuntimeException e) {
+            Essential.logger.error("Error occurred when sending out packet '{}'.", packet, e);
+            return;
+        }
+
+        send.accept(writer.flip());
     }
 
     @NotNull
     private String splitPacketPackage(@NotNull final Class<? extends Packet> packetClass) {
-        return packetClass.getName().replace(PACKET_PACKAGE, "");
+        return PACKET_NAMES.get(packetClass);
     }
 }
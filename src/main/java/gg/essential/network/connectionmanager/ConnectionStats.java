@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager;
+
+import gg.essential.connectionmanager.common.packet.Packet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Debug statistics for the connection manager connection, see {@code /essentialdebug cm}.
+ * Collection is disabled by default and costs nothing but a volatile read while disabled.
+ */
+public class ConnectionStats {
+    public static final ConnectionStats INSTANCE = new ConnectionStats();
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+
+    static {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) bean;
+        } else {
+            THREAD_MX_BEAN = null;
+        }
+    }
+
+    private static final int BATCH_SIZE_BUCKETS = 8;
+
+    private volatile boolean enabled;
+
+    public final LongAdder inboundPackets = new LongAdder();
+    public final LongAdder inboundBytes = new LongAdder();
+    public final LongAdder inboundDecodeNanos = new LongAdder();
+    /** Bytes allocated on the reading thread while decoding, only if supported by the JVM. */
+    public final LongAdder inboundAllocatedBytes = new LongAdder();
+
+    public final LongAdder outboundPackets = new LongAdder();
+    public final LongAdder outboundFrames = new LongAdder();
+    public final LongAdder outboundCoalesced = new LongAdder();
+    /** Highest number of packets waiting in the send queue at once. */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    /** Number of frames by packets per frame, bucket {@code i} counts batches of size {@code [2^i, 2^(i+1))}. */
+    private final AtomicLongArray batchSizeHistogram = new AtomicLongArray(BATCH_SIZE_BUCKETS);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (enabled && THREAD_MX_BEAN != null && !THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()) {
+            THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+        }
+        this.enabled = enabled;
+    }
+
+    public void reset() {
+        inboundPackets.reset();
+        inboundBytes.reset();
+        inboundDecodeNanos.reset();
+        inboundAllocatedBytes.reset();
+        outboundPackets.reset();
+        outboundFrames.reset();
+        outboundCoalesced.reset();
+        maxQueueDepth.set(0);
+        for (int i = 0; i < BATCH_SIZE_BUCKETS; i++) {
+            batchSizeHistogram.set(i, 0);
+        }
+    }
+
+    public static boolean isAllocationTrackingSupported() {
+        return THREAD_MX_BEAN != null;
+    }
+
+    /** Returns the total number of bytes allocated by the current thread, or 0 if not supported. */
+    private static long currentThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = THREAD_MX_BEAN;
+        return bean != null ? bean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    /**
+     * Decodes the given buffer with the given codec, recording statistics for it if enabled.
+     */
+    @Nullable
+    public Packet decode(@NotNull ConnectionCodec codec, @NotNull ByteBuffer buffer) {
+        if (!enabled) {
+            return codec.decode(buffer);
+        }
+
+        int bytes = buffer.remaining();
+        long allocatedBefore = currentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        Packet packet = codec.decode(buffer);
+        long nanos = System.nanoTime() - start;
+        recordInbound(bytes, nanos, currentThreadAllocatedBytes() - allocatedBefore);
+        return packet;
+    }
+
+    private void recordInbound(int bytes, long nanos, long allocatedBytes) {
+        inboundPackets.increment();
+        inboundBytes.add(bytes);
+        inboundDecodeNanos.add(nanos);
+        inboundAllocatedBytes.add(allocatedBytes);
+    }
+
+    void recordQueueDepth(int depth) {
+        if (!enabled) {
+            return;
+        }
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    void recordCoalesced() {
+        if (!enabled) {
+            return;
+        }
+        outboundCoalesced.increment();
+    }
+
+    void recordBatch(int packets) {
+        if (!enabled || packets <= 0) {
+            return;
+        }
+        outboundFrames.increment();
+        outboundPackets.add(packets);
+        int bucket = Math.min(31 - Integer.numberOfLeadingZeros(packets), BATCH_SIZE_BUCKETS - 1);
+        batchSizeHistogram.incrementAndGet(bucket);
+    }
+
+    @NotNull
+    public String formatOutbound() {
+        long frames = outboundFrames.sum();
+        if (frames == 0) {
+            return "No packets sent";
+        }
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE_BUCKETS; i++) {
+            long count = batchSizeHistogram.get(i);
+            if (count == 0) {
+                continue;
+            }
+            if (histogram.length() > 0) {
+                histogram.append(", ");
+            }
+            histogram.append(1 << i).append(i == BATCH_SIZE_BUCKETS - 1 ? "+" : "").append(": ").append(count);
+        }
+        return String.format(
+            "%d packets in %d frames, %d coalesced, max queue depth %d, batch sizes [%s]",
+            outboundPackets.sum(),
+            frames,
+            outboundCoalesced.sum(),
+            maxQueueDepth.get(),
+            histogram
+        );
+    }
+
+    @NotNull
+    public String formatInbound() {
+        long packets = inboundPackets.sum();
+        if (packets == 0) {
+            return "No packets received";
+        }
+        return String.format(
+            "%d packets, %d bytes, %.1f us/packet, %s/packet",
+            packets,
+            inboundBytes.sum(),
+            inboundDecodeNanos.sum() / 1000.0 / packets,
+            isAllocationTrackingSupported() ? (inboundAllocatedBytes.sum() / packets) + " bytes allocated" : "allocations unavailable"
+        );
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager;
+
+import gg.essential.connectionmanager.common.packet.Packet;
+import gg.essential.connectionmanager.common.packet.cosmetic.emote.ClientCosmeticEmoteWheelUpdatePacket;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Packets which have been passed to {@link Connection#send(Packet)} but have not yet been encoded.
+ * <p>
+ * State packets which fully replace the state set by an earlier packet of the same kind (e.g. setting the same emote
+ * wheel slot) are coalesced while queued, so only the most recent one is sent.
+ * Packets which have a unique id are never coalesced because someone may be waiting for a response to them, state
+ * packets sent via a {@link gg.essential.network.connectionmanager.queue.SequentialPacketQueue} are instead coalesced
+ * by that queue.
+ */
+class OutboundPacketQueue {
+    private static final Map<Class<? extends Packet>, Function<Packet, Object>> COALESCING_KEYS = new HashMap<>();
+
+    static {
+        registerCoalescingKey(ClientCosmeticEmoteWheelUpdatePacket.class, p -> Arrays.asList(p.id(), p.index()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Packet> void registerCoalescingKey(Class<T> cls, Function<T, Object> key) {
+        COALESCING_KEYS.put(cls, (Function<Packet, Object>) key);
+    }
+
+    private final Object lock = new Object();
+    /** Pending packets in send order. Superseded packets are replaced with {@code null}. */
+    @NotNull
+    private List<Packet> pending = new ArrayList<>();
+    /** Index into {@link #pending} of the latest packet for each coalescing key. */
+    @NotNull
+    private final Map<Object, Integer> latestByKey = new HashMap<>();
+    private int size;
+    private boolean flushScheduled;
+
+    /**
+     * Adds a packet to the queue.
+     *
+     * @return {@code true} if a flush needs to be scheduled, {@code false} if one already is
+     */
+    boolean add(@NotNull Packet packet) {
+        Object key = coalescingKey(packet);
+        synchronized (lock) {
+            if (key != null) {
+                key = Arrays.asList(packet.getClass(), key);
+                Integer previous = latestByKey.put(key, pending.size());
+                if (previous != null) {
+                    pending.set(previous, null);
+                    size--;
+                    ConnectionStats.INSTANCE.recordCoalesced();
+                }
+            }
+            pending.add(packet);
+            size++;
+            ConnectionStats.INSTANCE.recordQueueDepth(size);
+
+            if (flushScheduled) {
+                return false;
+            }
+            flushScheduled = true;
+            return true;
+        }
+    }
+
+    /**
+     * Removes and returns all queued packets in send order.
+     * Once this has been called, the next {@link #add(Packet)} will request a new flush.
+     */
+    @NotNull
+    List<Packet> drain() {
+        List<Packet> drained;
+        synchronized (lock) {
+            drained = pending;
+            pending = new ArrayList<>();
+            latestByKey.clear();
+            size = 0;
+            flushScheduled = false;
+        }
+        drained.removeIf(Objects::isNull);
+        return drained;
+    }
+
+    @Nullable
+    private static Object coalescingKey(@NotNull Packet packet) {
+        if (packet.getPacketUniqueId() != null) {
+            return null;
+        }
+        Function<Packet, Object> keyFunction = COALESCING_KEYS.get(packet.getClass());
+        return keyFunction != null ? keyFunction.apply(packet) : null;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Counterpart to {@link BinaryPacketWriter}, reads values directly from the received {@link ByteBuffer}.
+ */
+public final class BinaryPacketReader {
+    private BinaryPacketReader() {
+    }
+
+    public static boolean readBoolean(@NotNull ByteBuffer buf) {
+        return buf.get() != 0;
+    }
+
+    public static int readVarInt(@NotNull ByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift >= 35) {
+                throw new IllegalStateException("VarInt too big");
+            }
+            b = buf.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Reads the number of elements of an array, collection or map, making sure that it is plausible given the remaining
+     * size of the frame, so a corrupt or malicious length cannot make us allocate huge amounts of memory.
+     *
+     * @param minBytesPerElement the minimum number of bytes each element occupies on the wire
+     */
+    public static int readLength(@NotNull ByteBuffer buf, int minBytesPerElement) {
+        int length = readVarInt(buf);
+        if (length < 0 || length > buf.remaining() / minBytesPerElement) {
+            throw new IllegalStateException("Length " + length + " exceeds remaining " + buf.remaining() + " bytes");
+        }
+        return length;
+    }
+
+    @NotNull
+    public static UUID readUuid(@NotNull ByteBuffer buf) {
+        long most = buf.getLong();
+        long least = buf.getLong();
+        return new UUID(most, least);
+    }
+
+    @NotNull
+    public static String readString(@NotNull ByteBuffer buf) {
+        int length = readLength(buf, 1);
+        String value;
+        if (buf.hasArray()) {
+            value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+}
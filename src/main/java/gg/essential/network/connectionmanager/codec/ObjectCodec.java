@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.codec;
+
+import gg.essential.lib.gson.annotations.JsonAdapter;
+import gg.essential.lib.gson.annotations.SerializedName;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Binary serializer for packets and the model classes they contain.
+ * <p>
+ * Mirrors what gson would serialize (all non-static, non-transient fields, including those of super classes), but
+ * instead of field names, fields are written in the order of their serialized name, without any framing.
+ * The field list and per-field codecs are computed once per class and then re-used for every packet of that type.
+ * <p>
+ * Values are always encoded as exactly the class of the codec. Packets themselves are encoded by their runtime class,
+ * fields of a non-final type are prefixed with a tag identifying the runtime class of their value
+ * (see {@link ValueCodec#forType}).
+ * <p>
+ * The wire layout is part of the contract with the connection manager server, which must lay out every class exactly
+ * the same way:
+ * <ul>
+ *     <li>fields are those gson would serialize, sorted by their gson name ({@code @SerializedName} or the Java field
+ *     name) using {@link String#compareTo}</li>
+ *     <li>primitive fields are written as is, all other fields are preceded by a boolean null flag</li>
+ *     <li>there is no per-class schema version, adding, removing or renaming a field of any class which is sent over
+ *     the connection is a breaking change and requires bumping the protocol version</li>
+ * </ul>
+ */
+public final class ObjectCodec extends ValueCodec {
+    private static final ClassValue<ObjectCodec> CODECS = new ClassValue<ObjectCodec>() {
+        @Override
+        protected ObjectCodec computeValue(@NotNull Class<?> type) {
+            return new ObjectCodec(type);
+        }
+    };
+
+    @NotNull
+    private final Class<?> type;
+    @NotNull
+    private final Supplier<Object> instantiator;
+    /** Lazily initialized, so we can support (mutually) recursive types. */
+    @Nullable
+    private volatile FieldCodec[] fields;
+
+    private ObjectCodec(@NotNull Class<?> type) {
+        this.type = type;
+
+        Supplier<Object> constructor = noArgConstructor(type);
+        this.instantiator = constructor != null ? constructor : UnsafeAllocator.forClass(type);
+    }
+
+    @NotNull
+    public static ObjectCodec forClass(@NotNull Class<?> type) {
+        return CODECS.get(type);
+    }
+
+    static boolean isSupported(@NotNull Class<?> type) {
+        if (type.isInterface() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())) {
+            return false;
+        }
+        if (type.isAnnotationPresent(JsonAdapter.class)) {
+            return false;
+        }
+        String name = type.getName();
+        return name.startsWith("gg.essential.") || name.startsWith("com.sparkuniverse.");
+    }
+
+    @NotNull
+    private FieldCodec[] fields() {
+        FieldCodec[] fields = this.fields;
+        if (fields == null) {
+            this.fields = fields = computeFields(type);
+        }
+        return fields;
+    }
+
+    @NotNull
+    private static FieldCodec[] computeFields(@NotNull Class<?> type) {
+        List<FieldCodec> result = new ArrayList<>();
+        for (Class<?> cls = type; cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+            for (Field field : cls.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                result.add(FieldCodec.create(field, serializedName(field)));
+            }
+        }
+        // Field order as returned by reflection is unspecified, so we order by name for a stable wire format
+        result.sort(Comparator.comparing(it -> it.name));
+        return result.toArray(new FieldCodec[0]);
+    }
+
+    @NotNull
+    private static String serializedName(@NotNull Field field) {
+        SerializedName annotation = field.getAnnotation(SerializedName.class);
+        return annotation != null ? annotation.value() : field.getName();
+    }
+
+    @Override
+    public void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+        try {
+            for (FieldCodec field : fields()) {
+                field.write(out, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Failed to serialize " + type, e);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Object read(@NotNull ByteBuffer in) {
+        Object value = instantiator.get();
+        try {
+            for (FieldCodec field : fields()) {
+                field.read(in, value);
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Failed to deserialize " + type, e);
+        }
+        return value;
+    }
+
+    /**
+     * Accesses a single field. Primitive fields are read and written without boxing.
+     */
+    private static abstract class FieldCodec {
+        final Field field;
+        final String name;
+
+        FieldCodec(Field field, String name) {
+            this.field = field;
+            this.name = name;
+        }
+
+        abstract void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException;
+
+        abstract void read(ByteBuffer in, Object obj) throws IllegalAccessException;
+
+        static FieldCodec create(Field field, String name) {
+            Class<?> type = field.getType();
+            if (type == int.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeInt(field.getInt(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setInt(obj, in.getInt()); }
+                };
+            } else if (type == long.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeLong(field.getLong(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setLong(obj, in.getLong()); }
+                };
+            } else if (type == boolean.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeBoolean(field.getBoolean(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setBoolean(obj, BinaryPacketReader.readBoolean(in)); }
+                };
+            } else if (type == double.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeDouble(field.getDouble(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setDouble(obj, in.getDouble()); }
+                };
+            } else if (type == float.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeFloat(field.getFloat(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setFloat(obj, in.getFloat()); }
+                };
+            } else if (type == short.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeShort(field.getShort(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setShort(obj, in.getShort()); }
+                };
+            } else if (type == byte.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeByte(field.getByte(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setByte(obj, in.get()); }
+                };
+            } else if (type == char.class) {
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { out.writeChar(field.getChar(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.setChar(obj, in.getChar()); }
+                };
+            } else {
+                ValueCodec codec = ValueCodec.forType(field.getGenericType());
+                return new FieldCodec(field, name) {
+                    void write(BinaryPacketWriter out, Object obj) throws IllegalAccessException { codec.writeNullable(out, field.get(obj)); }
+                    void read(ByteBuffer in, Object obj) throws IllegalAccessException { field.set(obj, codec.readNullable(in)); }
+                };
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.function.Supplier;
+
+/**
+ * Allocates instances of classes without a no-arg constructor, same as gson does for our packet classes.
+ */
+final class UnsafeAllocator {
+    private static final Object UNSAFE;
+    private static final Method ALLOCATE_INSTANCE;
+
+    static {
+        Object unsafe = null;
+        Method allocateInstance = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+        } catch (ReflectiveOperationException ignored) {
+        }
+        UNSAFE = unsafe;
+        ALLOCATE_INSTANCE = allocateInstance;
+    }
+
+    private UnsafeAllocator() {
+    }
+
+    @NotNull
+    static Supplier<Object> forClass(@NotNull Class<?> type) {
+        return () -> {
+            if (ALLOCATE_INSTANCE == null) {
+                throw new UnsupportedOperationException("Cannot allocate " + type + " without no-arg constructor");
+            }
+            try {
+                return ALLOCATE_INSTANCE.invoke(UNSAFE, type);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Failed to allocate " + type, e);
+            }
+        };
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link Reader} which decodes UTF-8 straight from a {@link ByteBuffer}, so the json payload of a packet can be
+ * streamed into gson without first materializing it as a {@link String}.
+ * <p>
+ * Instances can be re-used via {@link #reset(ByteBuffer)} and are not thread-safe.
+ * Malformed input is replaced with U+FFFD, same as {@code new String(bytes, UTF_8)} would.
+ */
+public final class Utf8ByteBufferReader extends Reader {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    @NotNull
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    /** Low surrogate of a supplementary code point which did not fit into the previous read, or 0. */
+    private char pendingLowSurrogate;
+
+    @NotNull
+    public Utf8ByteBufferReader reset(@NotNull ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pendingLowSurrogate = 0;
+        return this;
+    }
+
+    @Override
+    public int read(@NotNull char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        ByteBuffer buf = this.buffer;
+        int i = off;
+        int end = off + len;
+
+        if (pendingLowSurrogate != 0) {
+            cbuf[i++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (i < end && buf.hasRemaining()) {
+            int b = buf.get();
+            if (b >= 0) {
+                cbuf[i++] = (char) b;
+                continue;
+            }
+
+            int codePoint;
+            int extra;
+            if ((b & 0xE0) == 0xC0) {
+                codePoint = b & 0x1F;
+                extra = 1;
+            } else if ((b & 0xF0) == 0xE0) {
+                codePoint = b & 0x0F;
+                extra = 2;
+            } else if ((b & 0xF8) == 0xF0) {
+                codePoint = b & 0x07;
+                extra = 3;
+            } else {
+                cbuf[i++] = REPLACEMENT;
+                continue;
+            }
+
+            boolean malformed = false;
+            for (int j = 0; j < extra; j++) {
+                if (!buf.hasRemaining()) {
+                    malformed = true;
+                    break;
+                }
+                int next = buf.get(buf.position());
+                if ((next & 0xC0) != 0x80) {
+                    malformed = true;
+                    break;
+                }
+                buf.get();
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+
+            if (malformed) {
+                cbuf[i++] = REPLACEMENT;
+            } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                cbuf[i++] = Character.highSurrogate(codePoint);
+                char low = Character.lowSurrogate(codePoint);
+                if (i < end) {
+                    cbuf[i++] = low;
+                } else {
+                    pendingLowSurrogate = low;
+                }
+            } else {
+                cbuf[i++] = (char) codePoint;
+            }
+        }
+
+        int read = i - off;
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() {
+    }
+}
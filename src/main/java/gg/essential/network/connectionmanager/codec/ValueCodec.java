@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.network.connectionmanager.codec;
+
+import com.sparkuniverse.toolbox.relationships.enums.FriendRequestPrivacySetting;
+import com.sparkuniverse.toolbox.relationships.enums.RelationshipState;
+import com.sparkuniverse.toolbox.relationships.enums.RelationshipType;
+import com.sparkuniverse.toolbox.util.DateTime;
+import gg.essential.lib.gson.JsonElement;
+import gg.essential.lib.gson.annotations.JsonAdapter;
+import gg.essential.network.connectionmanager.ConnectionCodec;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Reads and writes a single non-null value of a specific type in the binary packet format.
+ * Codecs are resolved once per field (see {@link ObjectCodec}), so resolution cost is not paid per packet.
+ */
+abstract class ValueCodec {
+    /** Types for which {@link ConnectionCodec#gson} has custom type adapters, these always go through json. */
+    private static final Set<Class<?>> CUSTOM_ADAPTER_TYPES = new HashSet<>(Arrays.asList(
+        RelationshipType.class,
+        RelationshipState.class,
+        FriendRequestPrivacySetting.class,
+        DateTime.class
+    ));
+
+    abstract void write(@NotNull BinaryPacketWriter out, @NotNull Object value);
+
+    @Nullable
+    abstract Object read(@NotNull ByteBuffer in);
+
+    final void writeNullable(@NotNull BinaryPacketWriter out, @Nullable Object value) {
+        if (value == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            write(out, value);
+        }
+    }
+
+    @Nullable
+    final Object readNullable(@NotNull ByteBuffer in) {
+        return BinaryPacketReader.readBoolean(in) ? read(in) : null;
+    }
+
+    @NotNull
+    static ValueCodec forType(@NotNull Type type) {
+        Class<?> rawType = rawType(type);
+        if (rawType == null) {
+            return new JsonCodec(type);
+        }
+
+        if (rawType == String.class) return StringCodec.INSTANCE;
+        if (rawType == UUID.class) return UuidCodec.INSTANCE;
+        if (rawType == Integer.class || rawType == int.class) return IntCodec.INSTANCE;
+        if (rawType == Long.class || rawType == long.class) return LongCodec.INSTANCE;
+        if (rawType == Boolean.class || rawType == boolean.class) return BooleanCodec.INSTANCE;
+        if (rawType == Double.class || rawType == double.class) return DoubleCodec.INSTANCE;
+        if (rawType == Float.class || rawType == float.class) return FloatCodec.INSTANCE;
+
+        if (CUSTOM_ADAPTER_TYPES.contains(rawType) || rawType.isAnnotationPresent(JsonAdapter.class)) {
+            return new JsonCodec(type);
+        }
+
+        if (rawType.isEnum()) {
+            ValueCodec codec = EnumCodec.create(rawType);
+            return codec != null ? codec : new JsonCodec(type);
+        }
+
+        if (rawType.isArray()) {
+            Type componentType = type instanceof GenericArrayType
+                ? ((GenericArrayType) type).getGenericComponentType()
+                : rawType.getComponentType();
+            if (rawType.getComponentType().isPrimitive()) {
+                return new JsonCodec(type);
+            }
+            return new ArrayCodec(rawType.getComponentType(), forType(componentType));
+        }
+
+        if (Collection.class.isAssignableFrom(rawType)) {
+            Supplier<Collection<Object>> factory = collectionFactory(rawType);
+            Type elementType = typeArgument(type, 0);
+            if (factory == null || elementType == null) {
+                return new JsonCodec(type);
+            }
+            return new CollectionCodec(factory, forType(elementType));
+        }
+
+        if (Map.class.isAssignableFrom(rawType)) {
+            Supplier<Map<Object, Object>> factory = mapFactory(rawType);
+            Type keyType = typeArgument(type, 0);
+            Type valueType = typeArgument(type, 1);
+            if (factory == null || keyType == null || valueType == null) {
+                return new JsonCodec(type);
+            }
+            return new MapCodec(factory, forType(keyType), forType(valueType));
+        }
+
+        if (ObjectCodec.isSupported(rawType)) {
+            if (Modifier.isFinal(rawType.getModifiers())) {
+                return ObjectCodec.forClass(rawType);
+            }
+            // The value may be of a subclass, which would silently lose all fields not declared in rawType
+            return new SubclassAwareCodec(rawType);
+        }
+
+        return new JsonCodec(type);
+    }
+
+    @Nullable
+    private static Class<?> rawType(@NotNull Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return rawType(((ParameterizedType) type).getRawType());
+        } else if (type instanceof GenericArrayType) {
+            Class<?> component = rawType(((GenericArrayType) type).getGenericComponentType());
+            return component != null ? Array.newInstance(component, 0).getClass() : null;
+        } else {
+            return null; // type variables and wildcards
+        }
+    }
+
+    @Nullable
+    private static Type typeArgument(@NotNull Type type, int index) {
+        if (!(type instanceof ParameterizedType)) {
+            return null;
+        }
+        Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+        return index < arguments.length ? arguments[index] : null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Supplier<Collection<Object>> collectionFactory(@NotNull Class<?> rawType) {
+        if (!rawType.isInterface() && !Modifier.isAbstract(rawType.getModifiers())) {
+            Supplier<Object> constructor = noArgConstructor(rawType);
+            return constructor != null ? () -> (Collection<Object>) constructor.get() : null;
+        }
+        if (SortedSet.class.isAssignableFrom(rawType)) return TreeSet::new;
+        if (Set.class.isAssignableFrom(rawType)) return LinkedHashSet::new;
+        if (rawType.isAssignableFrom(List.class)) return ArrayList::new;
+        return null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private static Supplier<Map<Object, Object>> mapFactory(@NotNull Class<?> rawType) {
+        if (!rawType.isInterface() && !Modifier.isAbstract(rawType.getModifiers())) {
+            Supplier<Object> constructor = noArgConstructor(rawType);
+            return constructor != null ? () -> (Map<Object, Object>) constructor.get() : null;
+        }
+        if (SortedMap.class.isAssignableFrom(rawType)) return TreeMap::new;
+        if (rawType.isAssignableFrom(LinkedHashMap.class)) return LinkedHashMap::new;
+        return null;
+    }
+
+    @Nullable
+    static Supplier<Object> noArgConstructor(@NotNull Class<?> rawType) {
+        final Constructor<?> constructor;
+        try {
+            constructor = rawType.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException | SecurityException e) {
+            return null;
+        }
+        return () -> {
+            try {
+                return constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Failed to construct " + rawType, e);
+            }
+        };
+    }
+
+    private static final class StringCodec extends ValueCodec {
+        static final StringCodec INSTANCE = new StringCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeString((String) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return BinaryPacketReader.readString(in);
+        }
+    }
+
+    private static final class UuidCodec extends ValueCodec {
+        static final UuidCodec INSTANCE = new UuidCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeUuid((UUID) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return BinaryPacketReader.readUuid(in);
+        }
+    }
+
+    private static final class IntCodec extends ValueCodec {
+        static final IntCodec INSTANCE = new IntCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeInt((Integer) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return in.getInt();
+        }
+    }
+
+    private static final class LongCodec extends ValueCodec {
+        static final LongCodec INSTANCE = new LongCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeLong((Long) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return in.getLong();
+        }
+    }
+
+    private static final class BooleanCodec extends ValueCodec {
+        static final BooleanCodec INSTANCE = new BooleanCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeBoolean((Boolean) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return BinaryPacketReader.readBoolean(in);
+        }
+    }
+
+    private static final class DoubleCodec extends ValueCodec {
+        static final DoubleCodec INSTANCE = new DoubleCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeDouble((Double) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return in.getDouble();
+        }
+    }
+
+    private static final class FloatCodec extends ValueCodec {
+        static final FloatCodec INSTANCE = new FloatCodec();
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeFloat((Float) value);
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return in.getFloat();
+        }
+    }
+
+    /**
+     * Enums are sent by their json name (as determined by gson, so {@code @SerializedName} is respected), such that
+     * both sides do not need to agree on constant order.
+     */
+    private static final class EnumCodec extends ValueCodec {
+        private final Map<Object, String> names;
+        private final Map<String, Object> constants;
+
+        private EnumCodec(Map<Object, String> names, Map<String, Object> constants) {
+            this.names = names;
+            this.constants = constants;
+        }
+
+        @Nullable
+        static EnumCodec create(@NotNull Class<?> enumClass) {
+            Map<Object, String> names = new HashMap<>();
+            Map<String, Object> constants = new HashMap<>();
+            for (Object constant : enumClass.getEnumConstants()) {
+                JsonElement json = ConnectionCodec.gson.toJsonTree(constant);
+                if (!json.isJsonPrimitive() || !json.getAsJsonPrimitive().isString()) {
+                    return null;
+                }
+                String name = json.getAsString();
+                names.put(constant, name);
+                constants.put(name, constant);
+            }
+            return new EnumCodec(names, constants);
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            out.writeString(names.get(value));
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            // Same as gson, unknown constants are read as null
+            return constants.get(BinaryPacketReader.readString(in));
+        }
+    }
+
+    private static final class ArrayCodec extends ValueCodec {
+        private final Class<?> componentType;
+        private final ValueCodec elementCodec;
+
+        ArrayCodec(Class<?> componentType, ValueCodec elementCodec) {
+            this.componentType = componentType;
+            this.elementCodec = elementCodec;
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            Object[] array = (Object[]) value;
+            out.writeVarInt(array.length);
+            for (Object element : array) {
+                elementCodec.writeNullable(out, element);
+            }
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            // Every element takes up at least the byte of its null flag
+            int length = BinaryPacketReader.readLength(in, 1);
+            Object[] array = (Object[]) Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                array[i] = elementCodec.readNullable(in);
+            }
+            return array;
+        }
+    }
+
+    private static final class CollectionCodec extends ValueCodec {
+        private final Supplier<Collection<Object>> factory;
+        private final ValueCodec elementCodec;
+
+        CollectionCodec(Supplier<Collection<Object>> factory, ValueCodec elementCodec) {
+            this.factory = factory;
+            this.elementCodec = elementCodec;
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeVarInt(collection.size());
+            for (Object element : collection) {
+                elementCodec.writeNullable(out, element);
+            }
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            int size = BinaryPacketReader.readLength(in, 1);
+            Collection<Object> collection = factory.get();
+            for (int i = 0; i < size; i++) {
+                collection.add(elementCodec.readNullable(in));
+            }
+            return collection;
+        }
+    }
+
+    private static final class MapCodec extends ValueCodec {
+        private final Supplier<Map<Object, Object>> factory;
+        private final ValueCodec keyCodec;
+        private final ValueCodec valueCodec;
+
+        MapCodec(Supplier<Map<Object, Object>> factory, ValueCodec keyCodec, ValueCodec valueCodec) {
+            this.factory = factory;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeVarInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                keyCodec.writeNullable(out, entry.getKey());
+                valueCodec.writeNullable(out, entry.getValue());
+            }
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            // Key and value each take up at least the byte of their null flag
+            int size = BinaryPacketReader.readLength(in, 2);
+            Map<Object, Object> map = factory.get();
+            for (int i = 0; i < size; i++) {
+                Object key = keyCodec.readNullable(in);
+                map.put(key, valueCodec.readNullable(in));
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Encodes values of a non-final class, prefixing them with a single tag byte:
+     * <ul>
+     *     <li>{@link #EXACT}: the value is exactly of the declared class and follows as per {@link ObjectCodec}</li>
+     *     <li>{@link #SUBCLASS}: the binary name of the runtime class follows as a string, then the value as per the
+     *     {@link ObjectCodec} of that class</li>
+     *     <li>{@link #JSON}: the runtime class is not supported by {@link ObjectCodec}, the value follows as per
+     *     {@link JsonCodec} (and is read back as the declared class, same as gson would)</li>
+     * </ul>
+     * Nearly all values are of their declared class, so this costs one byte per value in practice.
+     */
+    private static final class SubclassAwareCodec extends ValueCodec {
+        private static final byte EXACT = 0;
+        private static final byte SUBCLASS = 1;
+        private static final byte JSON = 2;
+
+        private final Class<?> type;
+        private final ObjectCodec exactCodec;
+        private final JsonCodec jsonCodec;
+        /** Subclasses we have already verified to be acceptable values for {@link #type}, by binary name. */
+        private final Map<String, Class<?>> subclasses = new ConcurrentHashMap<>();
+
+        SubclassAwareCodec(Class<?> type) {
+            this.type = type;
+            this.exactCodec = ObjectCodec.forClass(type);
+            this.jsonCodec = new JsonCodec(type);
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            Class<?> cls = value.getClass();
+            if (cls == type) {
+                out.writeByte(EXACT);
+                exactCodec.write(out, value);
+            } else if (ObjectCodec.isSupported(cls)) {
+                out.writeByte(SUBCLASS);
+                out.writeString(cls.getName());
+                ObjectCodec.forClass(cls).write(out, value);
+            } else {
+                out.writeByte(JSON);
+                jsonCodec.write(out, value);
+            }
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            byte tag = in.get();
+            switch (tag) {
+                case EXACT: return exactCodec.read(in);
+                case SUBCLASS: return ObjectCodec.forClass(subclass(BinaryPacketReader.readString(in))).read(in);
+                case JSON: return jsonCodec.read(in);
+                default: throw new IllegalStateException("Unknown class tag " + tag + " for " + type);
+            }
+        }
+
+        @NotNull
+        private Class<?> subclass(@NotNull String name) {
+            Class<?> cls = subclasses.get(name);
+            if (cls != null) {
+                return cls;
+            }
+            try {
+                // Not initialized, so a malicious name cannot run any static initializers
+                cls = Class.forName(name, false, type.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown subclass " + name + " of " + type, e);
+            }
+            if (!type.isAssignableFrom(cls) || !ObjectCodec.isSupported(cls)) {
+                throw new IllegalStateException(name + " is not a valid subclass of " + type);
+            }
+            subclasses.put(name, cls);
+            return cls;
+        }
+    }
+
+    /**
+     * Fallback for types which we cannot (or do not want to) express in the binary format, e.g. types with custom gson
+     * adapters. The value is embedded as a json string.
+     */
+    private static final class JsonCodec extends ValueCodec {
+        private final Type type;
+
+        JsonCodec(Type type) {
+            this.type = type;
+        }
+
+        @Override
+        void write(@NotNull BinaryPacketWriter out, @NotNull Object value) {
+            // Same as gson does for fields, write subclass instances with all their fields
+            Type writeType = type instanceof Class && value.getClass() != type ? value.getClass() : type;
+            out.writeString(ConnectionCodec.gson.toJson(value, writeType));
+        }
+
+        @Override
+        Object read(@NotNull ByteBuffer in) {
+            return ConnectionCodec.gson.fromJson(BinaryPacketReader.readString(in), type);
+        }
+    }
+}
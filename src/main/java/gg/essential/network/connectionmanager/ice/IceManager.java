@@ -292,7 +292,7 @@ public class IceManager implements NetworkedManager, IIceManager {
 
         this.connectionManager.send(new IceSessionPacket(user, agent.getLocalUfrag(), agent.getLocalPassword()));
 
-        Multithreading.getScheduledPool().execute(() -> {
+        Multithreading.runBlockingNetworkTask(() -> {
             TrickleCallback trickleCallback = candidates -> {
                 if (candidates == null) {
                     this.connectionManager.send(new IceCandidatePacket(user, null));
@@ -613,7 +613,7 @@ public class IceManager implements NetworkedManager, IIceManager {
 
         public void startConnectivityChecks() {
             // Blocking method, so we run it on the dynamic pool
-            Multithreading.getScheduledPool().execute(this.agent::startConnectivityEstablishment);
+            Multithreading.runBlockingNetworkTask(this.agent::startConnectivityEstablishment);
         }
 
         public TransportAddress getSelectedRemoteAddress() {
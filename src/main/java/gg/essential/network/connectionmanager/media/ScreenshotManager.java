@@ -43,9 +43,11 @@ import gg.essential.gui.screenshot.concurrent.PrioritizedCallable;
 import gg.essential.gui.screenshot.concurrent.PriorityThreadPoolExecutor;
 import gg.essential.gui.screenshot.downsampling.PixelBuffer;
 import gg.essential.gui.screenshot.handler.ScreenshotChecksumManager;
+import gg.essential.gui.screenshot.handler.ScreenshotIndexer;
 import gg.essential.gui.screenshot.handler.ScreenshotMetadataManager;
 import gg.essential.gui.screenshot.image.ForkedImageClipboard;
 import gg.essential.gui.screenshot.providers.FileCachedWindowedImageProvider;
+import gg.essential.gui.screenshot.providers.ThumbnailPack;
 import gg.essential.handlers.io.DirectoryWatcher;
 import gg.essential.handlers.io.FileSystemEvent;
 import gg.essential.handlers.screenshot.ClientScreenshotMetadata;
@@ -122,9 +124,10 @@ public class ScreenshotManager implements NetworkedManager {
     private final Map<String, Media> uploadedScreenshots = new HashMap<>();
     private final ConnectionManager connectionManager;
     private final ScreenshotMetadataManager screenshotMetadataManager;
+    private final ScreenshotIndexer screenshotIndexer;
     private final Set<String> screenshotFiles = Sets.newConcurrentHashSet();
 
-    private final PriorityThreadPoolExecutor backgroundExecutor = new PriorityThreadPoolExecutor(1);
+    private final PriorityThreadPoolExecutor backgroundExecutor = new PriorityThreadPoolExecutor("Screenshot Manager", 1);
     private final FileCachedWindowedImageProvider minResolutionProvider;
     private final List<WeakReference<Consumer<ScreenshotCollectionChangeEvent>>> screenshotCollectionChangeHandlers = new ArrayList<>();
     private int frameCounter = -1;
@@ -158,6 +161,7 @@ public class ScreenshotManager implements NetworkedManager {
         editorStateFile = new File(baseDir, "screenshot-editor.json");
         screenshotChecksumManager = new ScreenshotChecksumManager(new File(baseDir, "screenshot-checksum-caches.json"));
         screenshotMetadataManager = new ScreenshotMetadataManager(metadataFolder, screenshotChecksumManager);
+        screenshotIndexer = new ScreenshotIndexer(screenshotChecksumManager, screenshotMetadataManager);
         Essential.EVENT_BUS.register(this);
         minResolutionProvider = ScreenshotProviderManager.Companion.createFileCachedBicubicProvider(ScreenshotProviderManager.minResolutionTargetResolution, backgroundExecutor, UnpooledByteBufAllocator.DEFAULT, baseDir, nativeImageReader, true);
         Multithreading.runAsync(this::preloadScreenshots);
@@ -172,18 +176,12 @@ public class ScreenshotManager implements NetworkedManager {
 
     private void preloadScreenshots() {
         // Primes the cache with all screenshot metadata
-        File[] files = HelpersKt.getScreenshotFolder().listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (!fileNameMatchesImage(file.getName())) {
-                    continue;
-                }
-
-                screenshotFiles.add(file.getName());
-                precompute(file);
-                getScreenshotMetadataManager().getMetadata(file);
-            }
-        }
+        screenshotIndexer.scan(HelpersKt.getScreenshotFolder().toPath(), this::fileNameMatchesImage, path -> {
+            File file = path.toFile();
+            screenshotFiles.add(file.getName());
+            precompute(file);
+            return Unit.INSTANCE;
+        });
     }
 
     private boolean fileNameMatchesImage(String fileName) {
@@ -629,6 +627,10 @@ public class ScreenshotManager implements NetworkedManager {
         return screenshotMetadataManager;
     }
 
+    public ScreenshotIndexer getScreenshotIndexer() {
+        return screenshotIndexer;
+    }
+
     /**
      * Synchronizes the screenshot browser and associated caches with any
      * external changes to the screenshot folder.
@@ -679,7 +681,9 @@ public class ScreenshotManager implements NetworkedManager {
 
         // Clean up downsampled caches
         final File screenshot_cache = new File(Essential.getInstance().getBaseDir(), "screenshot-cache");
+        ThumbnailPack.removeFromAll(screenshot_cache.toPath(), file.getName());
         if (screenshot_cache.exists()) {
+            // Files cached by older versions which have not yet been moved into the packs
             final File[] files = screenshot_cache.listFiles();
             if (files != null) {
                 for (File directory : files) {
@@ -692,6 +696,7 @@ public class ScreenshotManager implements NetworkedManager {
         }
 
         boolean mutated = screenshotFiles.remove(file.getName());
+        screenshotIndexer.invalidate(file.toPath());
         ScreenshotOverlay.INSTANCE.delete(file);
         if (external) {
             getScreenshotMetadataManager().handleExternalDelete(file.getName());
@@ -727,6 +732,13 @@ public class ScreenshotManager implements NetworkedManager {
 
     @NotNull
     public List<Path> getOrderedPaths() {
+        Path folder = HelpersKt.getScreenshotFolder().toPath();
+        List<Path> paths = new ArrayList<>(screenshotFiles.size());
+        for (String name : screenshotFiles) {
+            paths.add(folder.resolve(name));
+        }
+        // Sorting needs the metadata of all of them, so get those which are not yet indexed done in parallel
+        screenshotIndexer.awaitIndexed(paths);
         return HelpersKt.getOrderedPaths(this.screenshotFiles, HelpersKt.getScreenshotFolder().toPath(), path -> getImageTime(path, screenshotMetadataManager.getMetadata(path), true));
     }
 
@@ -95,6 +95,7 @@ public class ProfileManager extends StateCallbackManager<IStatusManager> impleme
         this.connectionManager = connectionManager;
         this.updateQueue = new SequentialPacketQueue.Builder(connectionManager)
             .onTimeoutSkip()
+            .coalesce(ClientProfileActivityPacket.class, packet -> "")
             .create();
 
         connectionManager.registerPacketHandler(ServerProfileActivityPacket.class, new ServerProfileActivityPacketHandler());
@@ -22,13 +22,23 @@ import static gg.essential.util.ExtensionsKt.getExecutor;
 public class Multithreading {
     private static final AtomicInteger counter = new AtomicInteger(0);
 
-    private static final ScheduledExecutorService RUNNABLE_POOL = Executors.newScheduledThreadPool(10, r ->
-        new Thread(r, "Essential Thread " + counter.incrementAndGet()));
+    /**
+     * Only meant for (short) delayed and periodic tasks, long-running work should be handed off to {@link #POOL}.
+     */
+    private static final ScheduledThreadPoolExecutor RUNNABLE_POOL = new ScheduledThreadPoolExecutor(4, r ->
+        new Thread(r, "Essential Scheduler " + counter.incrementAndGet()));
 
-    public static ThreadPoolExecutor POOL = new ThreadPoolExecutor(10, 30,
-            0L, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>(),
-            r -> new Thread(r, "Essential Thread " + counter.incrementAndGet()));
+    static {
+        WorkerPools.registerUnmanaged("Scheduler", RUNNABLE_POOL);
+    }
+
+    public static ThreadPoolExecutor POOL = new WorkerPool("Thread", Math.max(10, WorkerPools.getIoThreads()));
+
+    /**
+     * For tasks which block on the network for a long time (ICE gathering and connectivity checks, Mojang API calls,
+     * shutting down connectors), so they cannot starve the short tasks on {@link #POOL}.
+     */
+    private static final ThreadPoolExecutor BLOCKING_NETWORK_POOL = new WorkerPool("Blocking Network", 10);
 
     /**
      * @deprecated This method executes the passed runnable on a background thread.
@@ -53,6 +63,10 @@ public class Multithreading {
         POOL.execute(runnable);
     }
 
+    public static void runBlockingNetworkTask(Runnable runnable) {
+        BLOCKING_NETWORK_POOL.execute(runnable);
+    }
+
     public static Future<?> submit(Runnable runnable) {
         return POOL.submit(runnable);
     }
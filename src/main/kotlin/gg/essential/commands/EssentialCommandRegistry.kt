@@ -45,6 +45,10 @@ object EssentialCommandRegistry : CommandRegistry {
             // Default Essential commands
             registerCommand(CommandConfig())
             checkMiniCommands()
+
+            if (System.getProperty("essential.debugCommands", "false") == "true") {
+                registerCommand(CommandEssentialDebug)
+            }
         }
     }
 
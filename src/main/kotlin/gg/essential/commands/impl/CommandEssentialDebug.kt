@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.commands.impl
+
+import gg.essential.Essential
+import gg.essential.api.commands.Command
+import gg.essential.api.commands.DisplayName
+import gg.essential.api.commands.SubCommand
+import gg.essential.connectionmanager.common.packet.cosmetic.ServerCosmeticsUserEquippedPacket
+import gg.essential.cosmetics.CosmeticSlot
+import gg.essential.ice.IceStats
+import gg.essential.network.connectionmanager.ConnectionCodec
+import gg.essential.network.connectionmanager.ConnectionStats
+import gg.essential.util.MinecraftUtils
+import gg.essential.util.Multithreading
+import gg.essential.util.WorkerPools
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Commands for inspecting internal performance metrics.
+ * Only registered if the `essential.debugCommands` system property is set.
+ */
+object CommandEssentialDebug : Command("essentialdebug", hideFromAutocomplete = true) {
+
+    @SubCommand("cm", description = "Connection manager packet statistics (on, off, reset)")
+    fun handleConnectionManager(@DisplayName("action") action: String?) {
+        val stats = ConnectionStats.INSTANCE
+        when (action?.lowercase(Locale.ENGLISH)) {
+            "on" -> {
+                stats.isEnabled = true
+                MinecraftUtils.sendMessage("Connection manager statistics enabled.")
+            }
+            "off" -> {
+                stats.isEnabled = false
+                MinecraftUtils.sendMessage("Connection manager statistics disabled.")
+            }
+            "reset" -> {
+                stats.reset()
+                MinecraftUtils.sendMessage("Connection manager statistics reset.")
+            }
+            else -> {
+                if (!stats.isEnabled) {
+                    MinecraftUtils.sendMessage("Connection manager statistics are disabled, use /$name cm on")
+                }
+                MinecraftUtils.sendMessage("Inbound: ${stats.formatInbound()}")
+                MinecraftUtils.sendMessage("Outbound: ${stats.formatOutbound()}")
+            }
+        }
+    }
+
+    private var iceDumpTask: ScheduledFuture<*>? = null
+
+    @SubCommand("ice", description = "ICE packet statistics (on, off, reset), dumped to ice-stats.json while on")
+    fun handleIce(@DisplayName("action") action: String?) {
+        when (action?.lowercase(Locale.ENGLISH)) {
+            "on" -> {
+                IceStats.isEnabled = true
+                if (iceDumpTask == null) {
+                    val file = File(Essential.getInstance().baseDir, "ice-stats.json")
+                    iceDumpTask = Multithreading.getScheduledPool().scheduleAtFixedRate({
+                        file.writeText(IceStats.toJson())
+                    }, ICE_DUMP_INTERVAL_SECONDS, ICE_DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                }
+                MinecraftUtils.sendMessage("ICE statistics enabled.")
+            }
+            "off" -> {
+                IceStats.isEnabled = false
+                iceDumpTask?.cancel(false)
+                iceDumpTask = null
+                MinecraftUtils.sendMessage("ICE statistics disabled.")
+            }
+            "reset" -> {
+                IceStats.reset()
+                MinecraftUtils.sendMessage("ICE statistics reset.")
+            }
+            else -> {
+                if (!IceStats.isEnabled) {
+                    MinecraftUtils.sendMessage("ICE statistics are disabled, use /$name ice on")
+                }
+                for (line in IceStats.describe()) {
+                    MinecraftUtils.sendMessage(line)
+                }
+            }
+        }
+    }
+
+    @SubCommand("pools", description = "Thread pool statistics")
+    fun handlePools() {
+        MinecraftUtils.sendMessage("Threads: ${WorkerPools.currentTotalThreads} alive, at most ${WorkerPools.maxTotalThreads}")
+        for (line in WorkerPools.describe()) {
+            MinecraftUtils.sendMessage(line)
+        }
+    }
+
+    @SubCommand("screenshots", description = "Screenshot indexing progress")
+    fun handleScreenshots() {
+        val indexer = Essential.getInstance().connectionManager.screenshotManager.screenshotIndexer
+        MinecraftUtils.sendMessage(indexer.describeProgress())
+    }
+
+    @SubCommand("cmload", description = "Decode synthetic connection manager packets at the given rate")
+    fun handleConnectionManagerLoad(
+        @DisplayName("packets per second") packetsPerSecond: Int,
+        @DisplayName("seconds") seconds: Int,
+    ) {
+        if (packetsPerSecond <= 0 || seconds <= 0) {
+            MinecraftUtils.sendMessage("Rate and duration must be positive.")
+            return
+        }
+
+        // Encode a representative packet once, then repeatedly feed it through a separate decoder
+        val frames = mutableListOf<ByteBuffer>()
+        val packet = ServerCosmeticsUserEquippedPacket(
+            UUID.randomUUID(),
+            mapOf(CosmeticSlot.of("CAPE") to "SYNTHETIC_CAPE", CosmeticSlot.of("HAT") to "SYNTHETIC_HAT"),
+        )
+        packet.setUniqueId(UUID.randomUUID())
+        ConnectionCodec().encode(packet) { buf ->
+            frames.add(ByteBuffer.allocate(buf.remaining()).put(buf).also { it.flip() })
+        }
+        val decoder = ConnectionCodec()
+        for (registerFrame in frames.dropLast(1)) {
+            decoder.decode(registerFrame)
+        }
+        val frame = frames.last()
+
+        val stats = ConnectionStats.INSTANCE
+        stats.reset()
+        stats.isEnabled = true
+
+        val packetsPerMilli = packetsPerSecond / 1000.0
+        var owed = 0.0
+        val task = Multithreading.getScheduledPool().scheduleAtFixedRate({
+            owed += packetsPerMilli
+            while (owed >= 1) {
+                owed--
+                frame.rewind()
+                stats.decode(decoder, frame)
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS)
+
+        MinecraftUtils.sendMessage("Decoding $packetsPerSecond packets/s for $seconds seconds...")
+        Multithreading.scheduleOnBackgroundThread({
+            task.cancel(false)
+            MinecraftUtils.sendMessage("Inbound: ${stats.formatInbound()}")
+        }, seconds.toLong(), TimeUnit.SECONDS)
+    }
+
+    private const val ICE_DUMP_INTERVAL_SECONDS = 10L
+}
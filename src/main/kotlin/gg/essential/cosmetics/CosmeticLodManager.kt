@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.cosmetics
+
+/**
+ * Applies the [CosmeticLodPolicy] to the players in the world and keeps track of how much time is spent on their
+ * cosmetics each frame.
+ */
+object CosmeticLodManager {
+    @JvmStatic
+    var policy = CosmeticLodPolicy(
+        reducedDistance = System.getProperty("essential.cosmetics.lod.reduced_distance")?.toDoubleOrNull() ?: 16.0,
+        lowDistance = System.getProperty("essential.cosmetics.lod.low_distance")?.toDoubleOrNull() ?: 32.0,
+        hiddenDistance = System.getProperty("essential.cosmetics.lod.hidden_distance")?.toDoubleOrNull() ?: 64.0,
+        maxFullPlayers = System.getProperty("essential.cosmetics.lod.max_full_players")?.toIntOrNull() ?: 16,
+        frameBudgetNanos = (System.getProperty("essential.cosmetics.lod.budget_us")?.toLongOrNull() ?: 4000) * 1000,
+    )
+
+    /** Time spent on cosmetics so far in the current frame. */
+    private var currentFrameNanos = 0L
+
+    /** Exponential moving average of the time spent on cosmetics per frame. */
+    private var averageFrameNanos = 0L
+
+    /** See [CosmeticLodPolicy.adjustBudgetDegradation]. */
+    private var budgetDegradation = 0
+    private var framesUntilBudgetCheck = 0
+
+    /**
+     * Starts a new frame and assigns a [CosmeticLod] to each of the given players.
+     * [distances] must be in the same order as [wearablesManagers].
+     */
+    @JvmStatic
+    fun beginFrame(wearablesManagers: List<WearablesManager>, distances: DoubleArray) {
+        averageFrameNanos += (currentFrameNanos - averageFrameNanos) / AVERAGE_FRAMES
+        currentFrameNanos = 0
+
+        // Give the average time to catch up with the previous adjustment before adjusting again
+        if (--framesUntilBudgetCheck <= 0) {
+            framesUntilBudgetCheck = AVERAGE_FRAMES * 2
+            budgetDegradation = policy.adjustBudgetDegradation(distances.size, averageFrameNanos, budgetDegradation)
+        }
+
+        val lods = policy.assign(distances, budgetDegradation)
+        for (i in wearablesManagers.indices) {
+            wearablesManagers[i].lod = lods[i]
+        }
+    }
+
+    /** Adds time (as measured via [System.nanoTime]) spent on cosmetics to the current frame. */
+    @JvmStatic
+    fun addElapsed(startNanos: Long) {
+        currentFrameNanos += System.nanoTime() - startNanos
+    }
+
+    private const val AVERAGE_FRAMES = 8
+}
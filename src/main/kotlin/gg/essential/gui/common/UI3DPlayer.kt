@@ -970,6 +970,7 @@ open class UI3DPlayer(
         fun close() {
             scope.cancel()
             entity.isValid = false
+            wearablesManager.releaseSharedResources()
         }
     }
 
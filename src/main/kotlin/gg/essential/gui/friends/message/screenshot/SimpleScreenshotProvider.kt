@@ -38,6 +38,7 @@ import gg.essential.gui.screenshot.providers.WindowedProvider
 import gg.essential.gui.screenshot.providers.WindowedTextureProvider
 import gg.essential.handlers.screenshot.ClientScreenshotMetadata
 import gg.essential.universal.UMinecraft
+import gg.essential.util.WorkerPools
 import gg.essential.util.findChildOfTypeOrNull
 import io.netty.buffer.PooledByteBufAllocator
 import net.minecraft.util.ResourceLocation
@@ -46,8 +47,7 @@ import java.util.concurrent.TimeUnit
 class SimpleScreenshotProvider {
 
     val screenshotManager = Essential.getInstance().connectionManager.screenshotManager
-    private val nThread = Runtime.getRuntime().availableProcessors() * 4
-    private val pool = PriorityThreadPoolExecutor(nThread)
+    private val pool = PriorityThreadPoolExecutor("Chat Screenshots", WorkerPools.ioThreads)
     private val nonBlockingAllocator =
         LimitedAllocator(PooledByteBufAllocator.DEFAULT, ScreenshotProviderManager.MAX_MEMORY)
     private val allocator = WorkStealingAllocator(nonBlockingAllocator) {
@@ -40,6 +40,7 @@ import gg.essential.gui.screenshot.providers.*
 import gg.essential.handlers.screenshot.ClientScreenshotMetadata
 import gg.essential.universal.UMinecraft
 import gg.essential.util.GuiUtil
+import gg.essential.util.WorkerPools
 import gg.essential.util.findChildOfTypeOrNull
 import gg.essential.util.lwjgl3.api.NativeImageReader
 import gg.essential.gui.util.pollingState
@@ -61,8 +62,7 @@ class ScreenshotProviderManager(
 
     private val nativeImageReader = browser.screenshotManager.nativeImageReader
     private val window = browser.window
-    private val nThread = Runtime.getRuntime().availableProcessors() * 4
-    private val pool = PriorityThreadPoolExecutor(nThread)
+    private val pool = PriorityThreadPoolExecutor("Screenshot Browser", WorkerPools.ioThreads)
     private val nonBlockingAllocator = LimitedAllocator(PooledByteBufAllocator.DEFAULT, MAX_MEMORY)
     private val allocator = WorkStealingAllocator(nonBlockingAllocator) {
         val task = pool.stealBackgroundTask()
@@ -411,11 +411,9 @@ class ScreenshotProviderManager(
                     ),
                     PostProcessWindowedImageProvider.bicubicFilter(targetWidth, targetHeight)
                 ),
-                FileCachedWindowedImageProvider.inDirectory(
-                    essentialDir.toPath().resolve("screenshot-cache")
-                        .resolve("bicubic_${targetWidth}x$targetHeight")
-                        .also(Files::createDirectories)
-                ),
+                essentialDir.toPath().resolve("screenshot-cache")
+                    .resolve("bicubic_${targetWidth}x$targetHeight")
+                    .also(Files::createDirectories),
                 pool,
                 nativeImageReader,
                 alloc,
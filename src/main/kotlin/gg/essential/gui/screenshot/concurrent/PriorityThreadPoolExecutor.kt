@@ -11,15 +11,17 @@
  */
 package gg.essential.gui.screenshot.concurrent
 
+import gg.essential.util.WorkerPool
 import java.util.*
 import java.util.concurrent.*
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 
 
-class PriorityThreadPoolExecutor(numThreads: Int) : ThreadPoolExecutor(
-    numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, MultiBlockingQueue(),
-    ScreenshotWorkerThreadFactory
+class PriorityThreadPoolExecutor(name: String, numThreads: Int) : WorkerPool(
+    name, numThreads, WorkerPool.UNBOUNDED, BackPressure.ABORT, MultiBlockingQueue(),
+    ScreenshotWorkerThreadFactory,
+    measureQueueTime = false, // MultiBlockingQueue needs the raw PrioritizedTask
 ) {
     private val queue = getQueue() as MultiBlockingQueue
 
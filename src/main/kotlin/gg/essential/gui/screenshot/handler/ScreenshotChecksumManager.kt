@@ -11,51 +11,57 @@
  */
 package gg.essential.gui.screenshot.handler
 
+import gg.essential.Essential
 import gg.essential.lib.gson.Gson
-import gg.essential.lib.gson.JsonSyntaxException
+import gg.essential.lib.gson.JsonParseException
+import gg.essential.lib.gson.stream.JsonReader
+import gg.essential.lib.gson.stream.JsonWriter
+import gg.essential.util.LimitedExecutor
+import gg.essential.util.Multithreading
 import gg.essential.util.screenshotFolder
-import gg.essential.vigilance.impl.nightconfig.core.utils.ObservedMap
 import org.apache.commons.codec.digest.DigestUtils
 import org.apache.commons.io.FileUtils
 import java.io.File
+import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.charset.StandardCharsets
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
 
 /**
  * Manages the file -> checksum relationship for screenshot metadata
+ *
+ * The table is persisted as a JSON array snapshot in [cacheFile] plus an append-only journal next to it which holds
+ * one JSON entry per line for every change made since the snapshot was written. Changes are batched and appended to
+ * the journal at most once every [DEBOUNCE_MILLIS], and once the journal grows larger than the table itself, it is
+ * folded back into a fresh snapshot in the background.
  */
 class ScreenshotChecksumManager(
     private val cacheFile: File,
 ) {
     private val gson = Gson()
-    private var persistChanges = true
-    private val entries = ObservedMap(mutableMapOf<ChecksumSnapshot, String>()) {
-        saveState()
-    }
+    private val journalFile = File(cacheFile.parentFile, cacheFile.name + ".log")
+    private val entries = mutableMapOf<ChecksumSnapshot, String>()
+
+    /** Changes which have not yet been written to the journal, guarded by [entries]. */
+    private var pendingChanges = mutableListOf<SerializedChecksum>()
+    private var flushScheduled = false
+
+    /** Number of entries in the journal file, only accessed from [ioExecutor]. */
+    private var journalSize = 0
+
+    /** All disk access after the initial load happens on this executor, so it is strictly sequential. */
+    private val ioExecutor = LimitedExecutor(Multithreading.getPool(), 1, ConcurrentLinkedQueue())
 
     init {
         synchronized(entries) {
-            if (cacheFile.exists()) {
-                try {
-                    // Initial population shouldn't trigger a save to disk
-                    persistChanges = false
-
-                    val data = gson.fromJson(
-                        FileUtils.readFileToString(cacheFile, StandardCharsets.UTF_8),
-                        Array<SerializedChecksum>::class.java
-                    )
-                    if (data != null) {
-                        for (entry in data) {
-                            entries[entry.snapshot] = entry.checksum
-                        }
-                    }
-                } catch (e: JsonSyntaxException) {
-                    // The file is corrupted, let's delete it and let the cache rebuild.
-                    cacheFile.delete()
-                } finally {
-                    persistChanges = true
-                }
+            loadSnapshot()
+            journalSize = replayJournal()
+            if (journalSize > 0) {
+                ioExecutor.execute(::compact)
             }
         }
     }
@@ -65,7 +71,7 @@ class ScreenshotChecksumManager(
      */
     operator fun set(file: File, checksum: String) {
         synchronized(entries) {
-            entries[getChecksumSnapshot(file)] = checksum
+            put(getChecksumSnapshot(file), checksum)
         }
     }
 
@@ -73,20 +79,36 @@ class ScreenshotChecksumManager(
      * Returns the checksum of the given file
      */
     operator fun get(file: File): String? {
+        return get(getChecksumSnapshot(file), file)
+    }
+
+    /**
+     * Returns the checksum of the given file, using the given attributes instead of reading them from disk again.
+     */
+    fun get(file: File, lastModified: Long, size: Long): String? {
+        return get(ChecksumSnapshot(file.name, lastModified, size), file)
+    }
+
+    /**
+     * Returns the checksum of the given file if it is already known, without computing it.
+     */
+    fun getCached(file: File, lastModified: Long, size: Long): String? {
         synchronized(entries) {
-            val checksumSnapshot = getChecksumSnapshot(file)
-
-            // computeIfAbsent always initiates the callback, even if the map is not updated
-            val get = entries[checksumSnapshot]
-            return if (get != null) {
-                get
-            } else {
-                val fileChecksum = readFileChecksum(file)
-                fileChecksum?.also {
-                    entries[checksumSnapshot] = fileChecksum
-                }
-            }
+            return entries[ChecksumSnapshot(file.name, lastModified, size)]
+        }
+    }
+
+    private fun get(checksumSnapshot: ChecksumSnapshot, file: File): String? {
+        synchronized(entries) {
+            entries[checksumSnapshot]?.let { return it }
+        }
+
+        // Hash outside the lock, so multiple files can be hashed in parallel
+        val fileChecksum = readFileChecksum(file) ?: return null
+        synchronized(entries) {
+            put(checksumSnapshot, fileChecksum)
         }
+        return fileChecksum
     }
 
     /**
@@ -110,26 +132,180 @@ class ScreenshotChecksumManager(
             return entries.entries.firstOrNull {
                 it.key.name == name
             }?.let {
-                entries.remove(it.key)
-                it.value
+                val checksum = it.value
+                remove(it.key)
+                checksum
             }
         }
     }
 
-    private fun saveState() {
-        if (!persistChanges) {
-            return
+    /**
+     * Deletes the checksum relationship from the supplied file
+     */
+    fun delete(file: File) {
+        synchronized(entries) {
+            remove(getChecksumSnapshot(file))
         }
+    }
+
+    private fun put(snapshot: ChecksumSnapshot, checksum: String) {
+        if (entries.put(snapshot, checksum) != checksum) {
+            recordChange(SerializedChecksum(checksum, snapshot))
+        }
+    }
 
+    private fun remove(snapshot: ChecksumSnapshot) {
+        if (entries.remove(snapshot) != null) {
+            recordChange(SerializedChecksum(null, snapshot))
+        }
+    }
+
+    private fun recordChange(change: SerializedChecksum) {
+        pendingChanges.add(change)
+        if (!flushScheduled) {
+            flushScheduled = true
+            Multithreading.scheduleOnBackgroundThread({ ioExecutor.execute(::flush) }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Appends all pending changes to the journal and compacts it if it has grown too large.
+     */
+    private fun flush() {
+        val changes: List<SerializedChecksum>
+        val tableSize: Int
         synchronized(entries) {
-            FileUtils.write(
-                cacheFile,
-                gson.toJson(entries.map { SerializedChecksum(it.value, it.key) }),
-                StandardCharsets.UTF_8
-            )
+            changes = pendingChanges
+            pendingChanges = mutableListOf()
+            flushScheduled = false
+            tableSize = entries.size
         }
+        if (changes.isEmpty()) {
+            return
+        }
+
+        try {
+            journalFile.parentFile?.mkdirs()
+            journalFile.appendingWriter().use { writer ->
+                for (change in changes) {
+                    gson.toJson(change, SerializedChecksum::class.java, writer)
+                    writer.write("\n")
+                }
+            }
+            journalSize += changes.size
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to append to screenshot checksum journal", e)
+            return
+        }
+
+        if (journalSize > COMPACTION_MIN_JOURNAL_SIZE && journalSize > tableSize) {
+            compact()
+        }
+    }
+
+    /**
+     * Writes the whole table to a new snapshot file, replaces the old snapshot with it and then truncates the journal.
+     *
+     * Changes made while the snapshot is being written are still pending and will end up in the new journal, changes
+     * which were already in the journal are part of the snapshot, so the journal can be discarded.
+     */
+    private fun compact() {
+        val snapshot = synchronized(entries) { entries.toList() }
+        val tmpFile = File(cacheFile.parentFile, cacheFile.name + ".tmp")
+        try {
+            JsonWriter(tmpFile.bufferedWriter()).use { writer ->
+                writer.beginArray()
+                for ((key, checksum) in snapshot) {
+                    gson.toJson(SerializedChecksum(checksum, key), SerializedChecksum::class.java, writer)
+                }
+                writer.endArray()
+            }
+            try {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: AtomicMoveNotSupportedException) {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            Files.deleteIfExists(journalFile.toPath())
+            journalSize = 0
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to compact screenshot checksum cache", e)
+        }
+    }
+
+    /**
+     * Streams the snapshot file into [entries] without reading it into memory as a whole first.
+     */
+    private fun loadSnapshot() {
+        if (!cacheFile.exists()) {
+            return
+        }
+        try {
+            JsonReader(cacheFile.bufferedReader()).use { reader ->
+                reader.beginArray()
+                while (reader.hasNext()) {
+                    val entry = gson.fromJson<SerializedChecksum>(reader, SerializedChecksum::class.java) ?: continue
+                    @Suppress("SENSELESS_COMPARISON") // gson ignores Kotlin nullability
+                    if (entry.checksum != null && entry.snapshot != null) {
+                        entries[entry.snapshot] = entry.checksum
+                    }
+                }
+                reader.endArray()
+            }
+        } catch (e: IOException) {
+            discardCorruptedSnapshot(e)
+        } catch (e: JsonParseException) {
+            discardCorruptedSnapshot(e)
+        } catch (e: IllegalStateException) {
+            discardCorruptedSnapshot(e)
+        }
+    }
+
+    private fun discardCorruptedSnapshot(e: Exception) {
+        // The file is corrupted, let's delete it and let the cache rebuild.
+        Essential.logger.warn("Screenshot checksum cache is corrupted, discarding it", e)
+        entries.clear()
+        cacheFile.delete()
     }
 
+    /**
+     * Applies all changes from the journal to [entries].
+     * A partially written last line (e.g. because the game crashed while writing) is ignored.
+     *
+     * @return the number of changes which were applied
+     */
+    private fun replayJournal(): Int {
+        if (!journalFile.exists()) {
+            return 0
+        }
+        var applied = 0
+        try {
+            journalFile.bufferedReader().useLines { lines ->
+                for (line in lines) {
+                    if (line.isBlank()) continue
+                    val change = try {
+                        gson.fromJson(line, SerializedChecksum::class.java)
+                    } catch (e: JsonParseException) {
+                        Essential.logger.warn("Ignoring corrupted screenshot checksum journal entry")
+                        break
+                    }
+                    @Suppress("SENSELESS_COMPARISON") // gson ignores Kotlin nullability
+                    if (change?.snapshot == null) continue
+                    if (change.checksum != null) {
+                        entries[change.snapshot] = change.checksum
+                    } else {
+                        entries.remove(change.snapshot)
+                    }
+                    applied++
+                }
+            }
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to read screenshot checksum journal", e)
+        }
+        return applied
+    }
+
+    private fun File.appendingWriter() = FileOutputStream(this, true).bufferedWriter()
+
     /**
      * Reads the checksum of the file from disk
      */
@@ -146,14 +322,19 @@ class ScreenshotChecksumManager(
         return ChecksumSnapshot(file.name, file.lastModified(), file.length())
     }
 
-    /**
-     * Deletes the checksum relationship from the supplied file
-     */
-    fun delete(file: File) {
-        entries.remove(getChecksumSnapshot(file))
+    companion object {
+        /** How long changes are collected before they are written to the journal. */
+        private const val DEBOUNCE_MILLIS = 2000L
+
+        /** The journal is never compacted while it has fewer entries than this. */
+        private const val COMPACTION_MIN_JOURNAL_SIZE = 1000
     }
 }
 
-private data class SerializedChecksum(val checksum: String, val snapshot: ChecksumSnapshot)
+/**
+ * An entry in the snapshot or journal file.
+ * In the journal, a `null` [checksum] records that the entry was removed.
+ */
+private data class SerializedChecksum(val checksum: String?, val snapshot: ChecksumSnapshot)
 
-private data class ChecksumSnapshot(val name: String, val lastModified: Long, val size: Long)
\ No newline at end of file
+private data class ChecksumSnapshot(val name: String, val lastModified: Long, val size: Long)
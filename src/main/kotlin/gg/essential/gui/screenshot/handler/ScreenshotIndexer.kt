@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.screenshot.handler
+
+import com.google.common.collect.Sets
+import gg.essential.Essential
+import gg.essential.util.WorkerPool
+import gg.essential.util.WorkerPools
+import java.io.IOException
+import java.nio.file.FileVisitOption
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.EnumSet
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedDeque
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Computes the checksums and loads the metadata of all screenshots in the background, so the screenshot browser
+ * doesn't have to do it one by one when it is first opened.
+ *
+ * Screenshots are indexed newest first, because that is the order in which the browser displays them, and any
+ * screenshots which are needed right away can be moved to the front of the queue via [awaitIndexed].
+ */
+class ScreenshotIndexer(
+    private val checksumManager: ScreenshotChecksumManager,
+    private val metadataManager: ScreenshotMetadataManager,
+) {
+    private val pool = WorkerPool("Screenshot Indexer", WorkerPools.cpuThreads, keepAliveSeconds = 10)
+
+    private val pending = ConcurrentLinkedDeque<Path>()
+    private val indexed = Sets.newConcurrentHashSet<Path>()
+    /** Screenshots currently being indexed by some thread, completed once they have been added to [indexed]. */
+    private val inProgress = ConcurrentHashMap<Path, CompletableFuture<Unit>>()
+
+    /** Attributes read while walking the folder, so the checksum lookup doesn't have to stat each file again. */
+    private val attributes = ConcurrentHashMap<Path, BasicFileAttributes>()
+
+    private val total = AtomicInteger()
+    private val activeWorkers = AtomicInteger()
+    private val bytesHashed = LongAdder()
+    @Volatile
+    private var startNanos = 0L
+    @Volatile
+    private var endNanos = 0L
+
+    /**
+     * Walks the given folder, calls [onFile] for every screenshot found in it (newest first) and then starts indexing
+     * them in the background.
+     */
+    fun scan(folder: Path, filter: (String) -> Boolean, onFile: (Path) -> Unit) {
+        val found = mutableListOf<Pair<Path, BasicFileAttributes>>()
+        startNanos = System.nanoTime()
+        try {
+            Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption::class.java), 1, object : SimpleFileVisitor<Path>() {
+                override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                    if (attrs.isRegularFile && filter(file.fileName.toString())) {
+                        found.add(file to attrs)
+                    }
+                    return FileVisitResult.CONTINUE
+                }
+
+                override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
+                    return FileVisitResult.CONTINUE
+                }
+            })
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to list screenshots in $folder", e)
+        }
+
+        found.sortByDescending { it.second.lastModifiedTime() }
+        for ((file, attrs) in found) {
+            attributes[file] = attrs
+            pending.add(file)
+            onFile(file)
+        }
+        total.addAndGet(found.size)
+        startWorkers()
+    }
+
+    /**
+     * Moves the given screenshots to the front of the queue and returns once all of them have been indexed.
+     * The calling thread helps with indexing those which no worker has picked up yet, and waits for the others.
+     */
+    fun awaitIndexed(paths: Collection<Path>) {
+        val remaining = paths.filter { it !in indexed }
+        if (remaining.isEmpty()) {
+            return
+        }
+        for (path in remaining.asReversed()) {
+            pending.addFirst(path)
+        }
+        startWorkers()
+
+        val waitingFor = remaining.mapNotNull { indexUnlessInProgress(it) }
+        for (future in waitingFor) {
+            future.join()
+        }
+    }
+
+    /**
+     * Indexes the given screenshot on the current thread, unless it already has been or is currently being indexed.
+     * @return a future which completes once the other thread indexing the screenshot is done, or `null` if it has
+     * already been indexed by the time this method returns
+     */
+    private fun indexUnlessInProgress(path: Path): CompletableFuture<Unit>? {
+        if (path in indexed) {
+            return null
+        }
+        val future = CompletableFuture<Unit>()
+        val existing = inProgress.putIfAbsent(path, future)
+        if (existing != null) {
+            return existing
+        }
+        try {
+            // May have completed between our first check and claiming it
+            if (path !in indexed) {
+                index(path)
+            }
+        } finally {
+            inProgress.remove(path)
+            future.complete(Unit)
+        }
+        return null
+    }
+
+    private fun startWorkers() {
+        while (true) {
+            val active = activeWorkers.get()
+            if (active >= pool.threads || pending.isEmpty()) {
+                return
+            }
+            if (activeWorkers.compareAndSet(active, active + 1)) {
+                pool.execute(::work)
+            }
+        }
+    }
+
+    private fun work() {
+        try {
+            val batch = ArrayList<Path>(BATCH_SIZE)
+            while (true) {
+                batch.clear()
+                while (batch.size < BATCH_SIZE) {
+                    val path = pending.pollFirst() ?: break
+                    if (path !in indexed) {
+                        batch.add(path)
+                    }
+                }
+                if (batch.isEmpty()) {
+                    break
+                }
+                for (path in batch) {
+                    indexUnlessInProgress(path)
+                }
+            }
+        } finally {
+            activeWorkers.decrementAndGet()
+            if (pending.isNotEmpty()) {
+                startWorkers()
+            } else if (activeWorkers.get() == 0) {
+                endNanos = System.nanoTime()
+            }
+        }
+    }
+
+    private fun index(path: Path) {
+        try {
+            val file = path.toFile()
+            val attrs = attributes.remove(path) ?: Files.readAttributes(path, BasicFileAttributes::class.java)
+            val lastModified = attrs.lastModifiedTime().toMillis()
+            val checksum = checksumManager.getCached(file, lastModified, attrs.size())
+                ?: checksumManager.get(file, lastModified, attrs.size())?.also { bytesHashed.add(attrs.size()) }
+                ?: return
+            metadataManager.getMetadata(checksum)
+        } catch (e: Exception) {
+            Essential.logger.warn("Failed to index screenshot $path", e)
+        } finally {
+            indexed.add(path)
+        }
+    }
+
+    /**
+     * Forgets that the given screenshot has been indexed, e.g. because it was deleted.
+     */
+    fun invalidate(path: Path) {
+        indexed.remove(path)
+        attributes.remove(path)
+    }
+
+    fun describeProgress(): String {
+        val done = indexed.size
+        val end = if (activeWorkers.get() == 0 && pending.isEmpty() && endNanos != 0L) endNanos else System.nanoTime()
+        val seconds = (end - startNanos) / 1_000_000_000.0
+        return "%d/%d screenshots indexed, %d active workers, %.1f screenshots/s, %.1f MB/s hashed".format(
+            done, total.get(), activeWorkers.get(),
+            if (seconds > 0) done / seconds else 0.0,
+            if (seconds > 0) bytesHashed.sum() / 1_000_000.0 / seconds else 0.0,
+        )
+    }
+
+    companion object {
+        private const val BATCH_SIZE = 32
+    }
+}
@@ -72,7 +72,7 @@ class ScreenshotMetadataManager(
         return metadata
     }
 
-    private fun getMetadata(checksum: String): ClientScreenshotMetadata? {
+    fun getMetadata(checksum: String): ClientScreenshotMetadata? {
         if (negativeChecksumCache.contains(checksum)) {
             return null
         }
@@ -20,7 +20,6 @@ import gg.essential.gui.screenshot.concurrent.PriorityThreadPoolExecutor
 import gg.essential.gui.screenshot.downsampling.BufferBackedImage
 import gg.essential.gui.screenshot.downsampling.ErrorImage
 import gg.essential.gui.screenshot.downsampling.PixelBuffer
-import gg.essential.util.lwjgl3.api.ImageData
 import gg.essential.util.lwjgl3.api.NativeImageReader
 import gg.essential.util.reversed
 import io.netty.buffer.ByteBuf
@@ -28,13 +27,21 @@ import io.netty.buffer.ByteBufAllocator
 import io.netty.buffer.Unpooled
 import java.io.IOException
 import java.nio.channels.FileChannel
+import java.nio.file.Files
 import java.nio.file.Path
 import java.util.concurrent.ConcurrentHashMap
-import kotlin.io.path.exists
+import kotlin.streams.toList
 
+/**
+ * Caches the images of the inner provider in a [ThumbnailPack] in [cacheDirectory].
+ *
+ * Images cached by earlier versions as individual image files in the same directory are moved into the pack the
+ * first time they are requested. The directory is only listed once to find those, so requests for images which
+ * are not cached at all do not each have to check the file system.
+ */
 class FileCachedWindowedImageProvider(
     private val innerProvider: WindowedImageProvider,
-    private val cacheFunction: ScreenshotId.() -> Path,
+    private val cacheDirectory: Path,
     private val writeExecutorPool: PriorityThreadPoolExecutor,
     private val nativeImageReader: NativeImageReader,
     private val alloc: ByteBufAllocator,
@@ -43,6 +50,24 @@ class FileCachedWindowedImageProvider(
     private val precomputeOnly: Boolean
 ) : WindowedImageProvider {
 
+    private val pack = ThumbnailPack.forDirectory(cacheDirectory)
+
+    /** Keys of images cached as individual files by earlier versions which have not yet been moved into the [pack]. */
+    private val legacyKeys: MutableSet<String> by lazy {
+        val keys = ConcurrentHashMap.newKeySet<String>()
+        if (!Files.isDirectory(cacheDirectory)) {
+            return@lazy keys
+        }
+        try {
+            Files.list(cacheDirectory).use { stream ->
+                stream.filter { Files.isRegularFile(it) }.toList().mapTo(keys) { it.fileName.toString() }
+            }
+        } catch (e: IOException) {
+            Essential.logger.warn("Failed to list legacy cached images in $cacheDirectory", e)
+        }
+        keys
+    }
+
     override var items: List<ScreenshotId> by innerProvider::items
 
 
@@ -55,18 +80,29 @@ class FileCachedWindowedImageProvider(
                     continue
                 }
 
-                val cachePath = cacheFunction(sourcePath)
-                if (cachePath.exists()) {
-                    if (precomputeOnly) {
+                val key = sourcePath.cacheKey
+                if (precomputeOnly) {
+                    if (key in pack) {
                         continue
                     }
-                    val read = read(cachePath)
-                    if (read != null) {
-                        providedImages[sourcePath] = read
+                } else {
+                    val cached = pack[key]
+                    if (cached != null) {
+                        providedImages[sourcePath] = cached
                         continue
                     }
                 }
 
+                val legacy = readLegacy(key)
+                if (legacy != null) {
+                    if (precomputeOnly) {
+                        legacy.release()
+                    } else {
+                        providedImages[sourcePath] = legacy
+                    }
+                    continue
+                }
+
                 val provide =
                     innerProvider.provide(i.toSingleWindowRequest(), emptySet()).entries.firstOrNull()
                         ?: continue
@@ -80,8 +116,11 @@ class FileCachedWindowedImageProvider(
                         object : PrioritizedCallable<Nothing>(Int.MAX_VALUE, CACHE_WRITE, 0) {
 
                             override fun call(): Nothing? {
-                                save(cachePath, provide.value)
-                                provide.value.release()
+                                try {
+                                    pack.put(key, provide.value)
+                                } finally {
+                                    provide.value.release()
+                                }
                                 return null
                             }
                         })
@@ -91,26 +130,27 @@ class FileCachedWindowedImageProvider(
         return providedImages
     }
 
-    private fun read(path: Path): PixelBuffer? {
-        //This will never return null unless an error occurs reading
-        var bytes: ByteBuf? = null
+    /**
+     * Reads an image cached as an individual file by an earlier version, moving it into the [pack] in the process.
+     */
+    private fun readLegacy(key: String): PixelBuffer? {
+        if (!legacyKeys.remove(key)) {
+            return null
+        }
+        val path = cacheDirectory.resolve(key)
 
-        locks.compute(path.toAbsolutePath().toString()) { _, _ ->
-            // sync needed because if file is in the middle of a write and we try to read it, it
-            // will read an incomplete file and not parse
-            try {
-                FileChannel.open(path).use { fileChannel ->
-                    val size = fileChannel.size().toInt()
-                    val buf = Unpooled.directBuffer(size).also { bytes = it }
-                    buf.writeBytes(fileChannel, size)
-                }
-            } catch (e: IOException) {
-                Essential.logger.warn("Failed to read cached image from $path", e)
+        var bytes: ByteBuf? = null
+        try {
+            FileChannel.open(path).use { fileChannel ->
+                val size = fileChannel.size().toInt()
+                val buf = Unpooled.directBuffer(size).also { bytes = it }
+                buf.writeBytes(fileChannel, size)
             }
-            null
+        } catch (e: IOException) {
+            Essential.logger.warn("Failed to read cached image from $path", e)
         }
 
-        return try {
+        val image = try {
             BufferBackedImage(nativeImageReader.getImageData(bytes ?: return null, alloc))
         } catch (e: IOException) {
             Essential.logger.warn("Failed to parse cached image from $path", e)
@@ -118,29 +158,25 @@ class FileCachedWindowedImageProvider(
         } finally {
             bytes?.release()
         }
-    }
 
-    private fun save(path: Path, image: PixelBuffer) {
-        // sync needed because if file is in the middle of a write and we try to read it, it will
-        // read an incomplete file and not parse
-        locks.compute(path.toAbsolutePath().toString()) { _, _ ->
-            nativeImageReader.saveImage(
-                path,
-                ImageData(image.content(), image.getWidth(), image.getHeight(), image.getChannels())
-            )
-            null
+        if (image != null) {
+            pack.put(key, image)
+        }
+        try {
+            Files.deleteIfExists(path)
+        } catch (e: IOException) {
+            Essential.logger.warn("Failed to delete legacy cached image $path", e)
         }
+        return image
     }
 
     companion object {
-        private val locks = ConcurrentHashMap<String, Nothing>()
-
-        fun inDirectory(directory: Path): ScreenshotId.() -> Path = {
-            when (this) {
-                is LocalScreenshot -> directory.resolve(path.fileName.toString())
-                is RemoteScreenshot -> directory.resolve(media.id)
+        /** The key under which the image for a screenshot is stored in the cache. */
+        val ScreenshotId.cacheKey: String
+            get() = when (this) {
+                is LocalScreenshot -> path.fileName.toString()
+                is RemoteScreenshot -> media.id
             }
-        }
     }
 
 }
@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.gui.screenshot.providers
+
+import gg.essential.Essential
+import gg.essential.gui.screenshot.downsampling.BufferBackedImage
+import gg.essential.gui.screenshot.downsampling.PixelBuffer
+import gg.essential.util.WorkerPool
+import io.netty.buffer.Unpooled
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Raw pixel data of many down sampled images, packed into a single memory-mapped file per directory.
+ *
+ * The file is split into fixed size segments, each mapped once, and images are appended as blocks which never cross a
+ * segment boundary. Reads are served straight from the mapping without any copying, decoding or file system calls.
+ *
+ * Once written, the pixels of a block are never modified. Replaced or removed blocks are only flagged as such in
+ * their header, and the space is reclaimed by [compact] which copies the most recently used blocks into a new file
+ * generation in the background. Because images handed out earlier may still reference the old mapping, the old file is
+ * merely deleted (which may fail on Windows while it is still mapped, in which case it is cleaned up on the next start).
+ *
+ * There is no separate index file, the index is rebuilt from the block headers on load. This includes the time each
+ * image was last used, so the least recently used images are still the first ones to go after a restart.
+ *
+ * A block is only considered valid once its magic number has been written, which happens last, so a partially
+ * written block (e.g. because the game crashed) is simply ignored and overwritten when the pack is loaded again.
+ */
+class ThumbnailPack private constructor(
+    private val directory: Path,
+    private val maxBytes: Long,
+) {
+    private class Entry(
+        val segment: ByteBuffer,
+        val offset: Int,
+        val pixelOffset: Int,
+        val width: Int,
+        val height: Int,
+        val length: Int,
+        val blockSize: Int,
+    ) {
+        @Volatile
+        var lastUsed: Long = 0
+            set(value) {
+                field = value
+                segment.putLong(offset + LAST_USED, value)
+            }
+    }
+
+    private val index = ConcurrentHashMap<String, Entry>()
+    private val clock = AtomicLong()
+
+    /** Guards all following fields as well as writes to the mapped segments. */
+    private val lock = Any()
+    private var generation = 0
+    private var channel: FileChannel? = null
+    private val segments = mutableListOf<MappedByteBuffer>()
+    private var writeSegment = 0
+    private var writeOffset = 0
+    private var liveBytes = 0L
+    private var deadBytes = 0L
+    private var compacting = false
+
+    operator fun contains(key: String): Boolean = index.containsKey(key)
+
+    /**
+     * Returns the image stored under the given key, backed directly by the mapped file, or `null` if there is none.
+     */
+    operator fun get(key: String): PixelBuffer? {
+        val entry = index[key] ?: return null
+        entry.lastUsed = clock.incrementAndGet()
+
+        val view = entry.segment.duplicate()
+        view.position(entry.offset + entry.pixelOffset)
+        view.limit(entry.offset + entry.pixelOffset + entry.length)
+        return BufferBackedImage(entry.width, entry.height, Unpooled.wrappedBuffer(view.slice().asReadOnlyBuffer()))
+    }
+
+    /**
+     * Stores the given image under the given key, replacing any previous one.
+     *
+     * @return `false` if the image could not be stored, e.g. because it is too large
+     */
+    fun put(key: String, image: PixelBuffer): Boolean {
+        val content = image.content()
+        val length = content.readableBytes()
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        if (keyBytes.size > Short.MAX_VALUE) {
+            return false
+        }
+        val pixelOffset = align(HEADER_SIZE + keyBytes.size)
+        val blockSize = align(pixelOffset + length)
+        if (blockSize > SEGMENT_SIZE) {
+            return false
+        }
+
+        synchronized(lock) {
+            val entry = append(key, keyBytes, image.getWidth(), image.getHeight(), length) { view ->
+                content.getBytes(content.readerIndex(), view)
+            } ?: return false
+            index.put(key, entry)?.let { markRemoved(it) }
+
+            if (!compacting && needsCompaction()) {
+                compacting = true
+                compactionPool.execute { compact() }
+            }
+        }
+        return true
+    }
+
+    /**
+     * Appends a new block to the current pack file and returns its entry, or `null` if that failed.
+     * The entry is not yet added to the [index]. Must be called while holding [lock].
+     */
+    private fun append(key: String, keyBytes: ByteArray, width: Int, height: Int, length: Int, writePixels: (ByteBuffer) -> Unit): Entry? {
+        val pixelOffset = align(HEADER_SIZE + keyBytes.size)
+        val blockSize = align(pixelOffset + length)
+        if (channel == null) {
+            return null
+        }
+        if (writeOffset + blockSize > SEGMENT_SIZE) {
+            writeSegment++
+            writeOffset = 0
+        }
+        val segment = try {
+            segment(writeSegment)
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to map thumbnail cache segment in $directory for $key", e)
+            return null
+        }
+        val offset = writeOffset
+
+        val view = segment.duplicate()
+        view.position(offset + HEADER_SIZE)
+        view.put(keyBytes)
+        view.position(offset + pixelOffset)
+        view.limit(offset + pixelOffset + length)
+        writePixels(view)
+
+        segment.put(offset + STATE, STATE_LIVE)
+        segment.putShort(offset + KEY_LENGTH, keyBytes.size.toShort())
+        segment.putInt(offset + WIDTH, width)
+        segment.putInt(offset + HEIGHT, height)
+        segment.putInt(offset + PIXEL_LENGTH, length)
+        // Make sure left-over data from a partially written block can never be mistaken for the next block
+        if (offset + blockSize + HEADER_SIZE <= SEGMENT_SIZE) {
+            segment.putInt(offset + blockSize + MAGIC_OFFSET, 0)
+        }
+        val entry = Entry(segment, offset, pixelOffset, width, height, length, blockSize)
+        entry.lastUsed = clock.incrementAndGet()
+        segment.putInt(offset + MAGIC_OFFSET, MAGIC)
+        writeOffset += blockSize
+        liveBytes += blockSize
+        return entry
+    }
+
+    fun remove(key: String) {
+        synchronized(lock) {
+            index.remove(key)?.let { markRemoved(it) }
+        }
+    }
+
+    private fun markRemoved(entry: Entry) {
+        entry.segment.put(entry.offset + STATE, STATE_REMOVED)
+        liveBytes -= entry.blockSize
+        deadBytes += entry.blockSize
+    }
+
+    private fun needsCompaction(): Boolean {
+        val fileBytes = writeSegment.toLong() * SEGMENT_SIZE + writeOffset
+        return fileBytes > maxBytes || (deadBytes > liveBytes && deadBytes > SEGMENT_SIZE)
+    }
+
+    private fun segment(i: Int): MappedByteBuffer {
+        while (segments.size <= i) {
+            val channel = channel ?: throw IOException("Thumbnail cache is closed")
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size.toLong() * SEGMENT_SIZE, SEGMENT_SIZE.toLong()))
+        }
+        return segments[i]
+    }
+
+    private fun packFile(generation: Int): Path = directory.resolve("$FILE_PREFIX$generation$FILE_SUFFIX")
+
+    /**
+     * Opens the newest pack file in the directory, deletes any older ones and rebuilds the index from it.
+     */
+    private fun load() {
+        synchronized(lock) {
+            try {
+                Files.createDirectories(directory)
+                val generations = mutableListOf<Int>()
+                Files.newDirectoryStream(directory, "$FILE_PREFIX*").use { stream ->
+                    for (file in stream) {
+                        val name = file.fileName.toString()
+                        if (name.endsWith(FILE_SUFFIX)) {
+                            name.substring(FILE_PREFIX.length, name.length - FILE_SUFFIX.length).toIntOrNull()?.let { generations.add(it) }
+                        } else {
+                            Files.deleteIfExists(file) // unfinished compaction
+                        }
+                    }
+                }
+                generation = generations.maxOrNull() ?: 0
+                for (old in generations) {
+                    if (old != generation) {
+                        deleteQuietly(packFile(old))
+                    }
+                }
+
+                open(generation)
+            } catch (e: IOException) {
+                Essential.logger.error("Failed to open thumbnail cache in $directory", e)
+                close()
+            }
+        }
+    }
+
+    private fun open(generation: Int) {
+        val channel = FileChannel.open(packFile(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        this.channel = channel
+        this.generation = generation
+        segments.clear()
+        liveBytes = 0
+        deadBytes = 0
+        writeSegment = 0
+        writeOffset = 0
+
+        val newIndex = mutableMapOf<String, Entry>()
+        var maxLastUsed = 0L
+        val segmentCount = ((channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE).toInt()
+        for (i in 0 until segmentCount) {
+            val segment = segment(i)
+            var offset = 0
+            while (offset + HEADER_SIZE <= SEGMENT_SIZE && segment.getInt(offset + MAGIC_OFFSET) == MAGIC) {
+                val keyLength = segment.getShort(offset + KEY_LENGTH).toInt()
+                val width = segment.getInt(offset + WIDTH)
+                val height = segment.getInt(offset + HEIGHT)
+                val length = segment.getInt(offset + PIXEL_LENGTH)
+                val pixelOffset = align(HEADER_SIZE + keyLength)
+                val blockSize = align(pixelOffset + length)
+                if (keyLength < 0 || width <= 0 || height <= 0 || length < 0 || offset.toLong() + blockSize > SEGMENT_SIZE) {
+                    break // corrupted, treat as end of data
+                }
+
+                if (segment.get(offset + STATE) == STATE_LIVE) {
+                    val keyBytes = ByteArray(keyLength)
+                    segment.duplicate().apply { position(offset + HEADER_SIZE) }.get(keyBytes)
+                    val entry = Entry(segment, offset, pixelOffset, width, height, length, blockSize)
+                    val lastUsed = segment.getLong(offset + LAST_USED)
+                    entry.lastUsed = lastUsed
+                    if (lastUsed > maxLastUsed) {
+                        maxLastUsed = lastUsed
+                    }
+                    liveBytes += blockSize
+                    newIndex.put(String(keyBytes, Charsets.UTF_8), entry)?.let {
+                        // Shouldn't happen because old blocks are always flagged before a new one is added, but
+                        // may if we crashed in between
+                        liveBytes -= it.blockSize
+                        deadBytes += it.blockSize
+                    }
+                } else {
+                    deadBytes += blockSize
+                }
+                offset += blockSize
+            }
+            writeSegment = i
+            writeOffset = offset
+        }
+
+        index.clear()
+        index.putAll(newIndex)
+        if (maxLastUsed > clock.get()) {
+            clock.set(maxLastUsed)
+        }
+    }
+
+    /**
+     * Copies the most recently used images into a new pack file until it is at most three quarters full, then
+     * switches over to it.
+     *
+     * Runs on [compactionPool] and only holds [lock] to take a snapshot of the index and to switch files, so [put] is not
+     * blocked while the blocks are copied. Images which are added, replaced or removed in the meantime are carried over
+     * when switching.
+     */
+    private fun compact() {
+        val (oldGeneration, snapshot) = synchronized(lock) {
+            if (channel == null) {
+                compacting = false
+                return
+            }
+            generation to index.entries.map { it.key to it.value }
+        }
+
+        val newGeneration = oldGeneration + 1
+        val tmpFile = directory.resolve("$FILE_PREFIX$newGeneration$FILE_SUFFIX.tmp")
+        val target = maxBytes / 4 * 3
+        // Keys of the blocks in the new file mapped to the entry they were copied from
+        val copied = mutableMapOf<String, Entry>()
+
+        try {
+            FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { out ->
+                var segment = 0
+                var offset = 0
+                var written = 0L
+                for ((key, entry) in snapshot.sortedByDescending { it.second.lastUsed }) {
+                    if (written + entry.blockSize > target) {
+                        break
+                    }
+                    if (offset + entry.blockSize > SEGMENT_SIZE) {
+                        segment++
+                        offset = 0
+                    }
+                    // Blocks are immutable apart from their state and last use, which are both fixed up when switching
+                    val src = entry.segment.duplicate()
+                    src.position(entry.offset)
+                    src.limit(entry.offset + entry.blockSize)
+                    var position = segment.toLong() * SEGMENT_SIZE + offset
+                    while (src.hasRemaining()) {
+                        position += out.write(src, position)
+                    }
+                    offset += entry.blockSize
+                    written += entry.blockSize
+                    copied[key] = entry
+                }
+                out.force(true)
+            }
+            try {
+                Files.move(tmpFile, packFile(newGeneration), StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: AtomicMoveNotSupportedException) {
+                Files.move(tmpFile, packFile(newGeneration))
+            }
+        } catch (e: IOException) {
+            Essential.logger.error("Failed to compact thumbnail cache in $directory", e)
+            deleteQuietly(tmpFile)
+            synchronized(lock) { compacting = false }
+            return
+        }
+
+        synchronized(lock) {
+            compacting = false
+            val oldChannel = channel
+            if (oldChannel == null || generation != oldGeneration) {
+                deleteQuietly(packFile(newGeneration))
+                return
+            }
+
+            val current = HashMap(index)
+            try {
+                open(newGeneration)
+            } catch (e: IOException) {
+                Essential.logger.error("Failed to open compacted thumbnail cache in $directory", e)
+                close()
+                return
+            } finally {
+                // Existing mappings stay valid after the channel is closed
+                try {
+                    oldChannel.close()
+                } catch (ignored: IOException) {
+                }
+            }
+
+            // Drop copies of images which have since been replaced or removed, and keep the latest use of the others
+            for ((key, entry) in index.entries.toList()) {
+                val source = current[key]
+                if (source == null || source !== copied[key]) {
+                    index.remove(key)
+                    markRemoved(entry)
+                } else {
+                    entry.lastUsed = maxOf(entry.lastUsed, source.lastUsed)
+                }
+            }
+            // Carry over images which were added while we were copying
+            val snapshotEntries = snapshot.mapTo(HashSet()) { it.second } // Entry uses identity equality
+            for ((key, source) in current) {
+                if (source in snapshotEntries) {
+                    continue // either copied or evicted
+                }
+                val keyBytes = key.toByteArray(Charsets.UTF_8)
+                val entry = append(key, keyBytes, source.width, source.height, source.length) { view ->
+                    val src = source.segment.duplicate()
+                    src.position(source.offset + source.pixelOffset)
+                    src.limit(source.offset + source.pixelOffset + source.length)
+                    view.put(src)
+                } ?: continue
+                entry.lastUsed = source.lastUsed
+                index[key] = entry
+            }
+        }
+        deleteQuietly(packFile(oldGeneration))
+    }
+
+    private fun close() {
+        try {
+            channel?.close()
+        } catch (ignored: IOException) {
+        }
+        channel = null
+        segments.clear()
+        index.clear()
+    }
+
+    private fun deleteQuietly(file: Path) {
+        try {
+            Files.deleteIfExists(file)
+        } catch (e: IOException) {
+            // Most likely still mapped on Windows, we'll get it on the next start
+            Essential.logger.debug("Failed to delete old thumbnail cache file $file", e)
+        }
+    }
+
+    companion object {
+        private const val FILE_PREFIX = "thumbnails-"
+        private const val FILE_SUFFIX = ".pack"
+
+        private const val SEGMENT_SIZE = 64 * 1024 * 1024
+        private const val ALIGNMENT = 8
+
+        private const val MAGIC = 0x45535451 // "ESTQ"
+        private const val MAGIC_OFFSET = 0
+        private const val STATE = 4
+        private const val KEY_LENGTH = 6
+        private const val WIDTH = 8
+        private const val HEIGHT = 12
+        private const val PIXEL_LENGTH = 16
+        private const val LAST_USED = 24
+        private const val HEADER_SIZE = 32
+
+        private const val STATE_LIVE: Byte = 0
+        private const val STATE_REMOVED: Byte = 1
+
+        private val MAX_BYTES = (System.getProperty("essential.screenshots.thumbnail_cache_mb")?.toLong() ?: 256) * 1_000_000
+
+        private val packs = ConcurrentHashMap<Path, ThumbnailPack>()
+
+        private val compactionPool = WorkerPool("Thumbnail Cache Compactor", 1)
+
+        private fun align(value: Int): Int = (value + ALIGNMENT - 1) and (ALIGNMENT - 1).inv()
+
+        /**
+         * Returns the pack for the given directory, opening it if necessary.
+         * There is only ever one instance per directory, so it can be shared between providers.
+         */
+        fun forDirectory(directory: Path): ThumbnailPack =
+            packs.computeIfAbsent(directory.toAbsolutePath().normalize()) { ThumbnailPack(it, MAX_BYTES).also { pack -> pack.load() } }
+
+        /**
+         * Removes the image with the given key from all packs in sub-directories of the given directory.
+         */
+        @JvmStatic
+        fun removeFromAll(cacheRoot: Path, key: String) {
+            if (!Files.isDirectory(cacheRoot)) {
+                return
+            }
+            try {
+                Files.newDirectoryStream(cacheRoot) { Files.isDirectory(it) }.use { stream ->
+                    for (directory in stream) {
+                        val hasPack = packs.containsKey(directory.toAbsolutePath().normalize())
+                            || Files.newDirectoryStream(directory, "$FILE_PREFIX*$FILE_SUFFIX").use { it.iterator().hasNext() }
+                        if (hasPack) {
+                            forDirectory(directory).remove(key)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                Essential.logger.warn("Failed to remove $key from thumbnail caches", e)
+            }
+        }
+    }
+}
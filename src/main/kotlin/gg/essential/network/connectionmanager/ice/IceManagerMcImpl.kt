@@ -41,6 +41,7 @@ import java.io.IOException
 import java.net.SocketAddress
 import java.nio.file.Path
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
@@ -128,6 +129,7 @@ class IceManagerMcImpl(
         private val sentBytes = AtomicLong()
         private val lastWasIPv6 = AtomicBoolean()
         private val lastWasRelayed = AtomicBoolean()
+        private val flowControl = ConcurrentHashMap<String, Pair<Int, Long>>()
 
         override fun packetReceived(bytes: Int, ipv6: Boolean, relay: Boolean) {
             lastWasIPv6.set(ipv6)
@@ -141,6 +143,10 @@ class IceManagerMcImpl(
             sentBytes.addAndGet((estimateHeaderSize() + bytes).toLong())
         }
 
+        override fun flowControl(queue: String, peakBytes: Int, stalls: Long) {
+            flowControl[queue] = Pair(peakBytes, stalls)
+        }
+
         private fun estimateHeaderSize() =
             (if (lastWasIPv6.get()) IPV6_HEADER_SIZE else IPV4_HEADER_SIZE) +
                     UDP_HEADER_SIZE +
@@ -157,6 +163,10 @@ class IceManagerMcImpl(
                     put("receivedBytes", receivedBytes.get())
                     put("receivedPackets", receivedPackets.get())
                     put("relayed", lastWasRelayed.get())
+                    for ((queue, stats) in flowControl) {
+                        put("$queue.peakBytes", stats.first)
+                        put("$queue.stalls", stats.second)
+                    }
                 }
                 cmConnection.telemetryManager.enqueue(ClientTelemetryPacket("SPS_CONNECTION", metadata))
             }
@@ -34,9 +34,14 @@ class CoroutinesChannelInitializer(
     private val onClose: () -> Unit,
 ) : ChannelInitializer<LocalChannel>() {
     override fun initChannel(channel: LocalChannel) {
+        val writable = Channel<Unit>(Channel.CONFLATED)
         val reader = coroutineScope.launch(start = CoroutineStart.LAZY) {
             try {
                 for (bytes in inboundChannel) {
+                    // Wait for MC to catch up, so back-pressure propagates to the transport channel
+                    while (!channel.isWritable && channel.isActive) {
+                        writable.receive()
+                    }
                     channel.writeAndFlush(Unpooled.wrappedBuffer(bytes))
                 }
             } finally {
@@ -44,13 +49,22 @@ class CoroutinesChannelInitializer(
             }
         }
 
-        // The transport channels implement backpressure, however MC doesn't really, so we need an infinite
-        // buffer inbetween so we don't end up blocking the netty thread.
+        // The transport channels implement backpressure, however MC doesn't really, so we need a buffer inbetween so
+        // we don't end up blocking the netty thread. Once that buffer is full, we stop reading from MC (disable
+        // auto-read), which is the closest thing to backpressure it does support.
         val bufferedOutboundChannel = Channel<ByteArray>(Channel.UNLIMITED)
+        val bufferedOutboundLock = Any()
+        var bufferedOutboundBytes = 0 // guarded by bufferedOutboundLock
         coroutineScope.launch(Dispatchers.Unconfined) {
             try {
                 for (bytes in bufferedOutboundChannel) {
                     outboundChannel.send(bytes)
+                    synchronized(bufferedOutboundLock) {
+                        bufferedOutboundBytes -= bytes.size
+                        if (bufferedOutboundBytes <= OUTBOUND_BUFFER_BYTES / 2 && !channel.config().isAutoRead) {
+                            channel.config().isAutoRead = true
+                        }
+                    }
                 }
             } catch (e: Exception) {
                 outboundChannel.close(e)
@@ -74,18 +88,36 @@ class CoroutinesChannelInitializer(
                     msg.readBytes(byteArray)
                     msg.release()
                     bufferedOutboundChannel.trySend(byteArray)
+                    synchronized(bufferedOutboundLock) {
+                        bufferedOutboundBytes += byteArray.size
+                        if (bufferedOutboundBytes > OUTBOUND_BUFFER_BYTES) {
+                            ctx.channel().config().isAutoRead = false
+                        }
+                    }
                     return
                 }
                 super.channelRead(ctx, msg)
             }
 
+            @Throws(Exception::class)
+            override fun channelWritabilityChanged(ctx: ChannelHandlerContext) {
+                writable.trySend(Unit)
+                super.channelWritabilityChanged(ctx)
+            }
+
             @Throws(Exception::class)
             override fun channelInactive(ctx: ChannelHandlerContext) {
                 super.channelInactive(ctx)
 
+                writable.trySend(Unit)
                 bufferedOutboundChannel.close()
                 onClose()
             }
         })
     }
-}
\ No newline at end of file
+
+    companion object {
+        /** Bytes read from MC which may be buffered before we stop reading until the transport has caught up. */
+        private const val OUTBOUND_BUFFER_BYTES = 1024 * 1024
+    }
+}
@@ -22,30 +22,58 @@ import gg.essential.util.ResourceManagerUtil
 import gg.essential.util.executor
 import net.minecraft.client.Minecraft
 import net.minecraft.client.resources.IResourcePack
+import org.apache.commons.codec.binary.Hex
 import org.apache.commons.codec.digest.DigestUtils
 import org.apache.http.HttpStatus
+import java.io.IOException
+import java.io.OutputStream
 import java.net.InetSocketAddress
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.FileTime
+import java.security.DigestOutputStream
+import java.security.MessageDigest
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
+import kotlin.io.path.createDirectories
 import kotlin.io.path.deleteIfExists
 import kotlin.io.path.exists
 import kotlin.io.path.fileSize
+import kotlin.io.path.getLastModifiedTime
 import kotlin.io.path.inputStream
 import kotlin.io.path.isDirectory
+import kotlin.io.path.isRegularFile
 import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.name
 import kotlin.io.path.outputStream
-import kotlin.io.path.readBytes
+import kotlin.io.path.readText
 import kotlin.io.path.relativeTo
+import kotlin.io.path.setLastModifiedTime
+import kotlin.io.path.writeText
+import kotlin.streams.toList
 
 object ResourcePackSharingHttpServer {
     private val spsManager = Essential.getInstance().connectionManager.spsManager
 
+    /** Zipped folder packs, named by the fingerprint of the folder they were created from. */
+    private val cacheDir = Essential.getInstance().baseDir.toPath().resolve("resource-pack-cache")
+    /** Guards [cacheDir] and [fileChecksums]. */
+    private val cacheLock = Any()
+    /** Checksums of zip packs, keyed by their [fingerprint]. */
+    private val fileChecksums = mutableMapOf<String, String>()
+
     private var server: HttpServer? = null
 
+    @Volatile
     private var packInfo: PackInfo? = null
 
+    /** Incremented for each update, so results of outdated background computations can be discarded. */
+    private var updateGeneration = 0
+
     val port: Int?
         get() = server?.address?.port
 
@@ -76,7 +104,7 @@ object ResourcePackSharingHttpServer {
 
                 else -> {
                     try {
-                        sendFile(packInfo.file, it)
+                        sendFile(packInfo, it)
                     } catch (e: Exception) {
                         e.printStackTrace() // Otherwise it will be eaten by the webserver
                         it.responseBody.close()
@@ -95,12 +123,81 @@ object ResourcePackSharingHttpServer {
         server = null
     }
 
-    private fun sendFile(file: Path, exchange: HttpExchange) {
-        exchange.sendResponseHeaders(HttpStatus.SC_OK, file.fileSize())
-        file.inputStream().use {
-            it.copyTo(exchange.responseBody)
+    /**
+     * Sends the given pack, with support for conditional (`If-None-Match`) and partial (single `Range`) requests, so
+     * guests can revalidate and resume downloads.
+     */
+    private fun sendFile(packInfo: PackInfo, exchange: HttpExchange) {
+        val etag = "\"${packInfo.checksum}\""
+        val requestHeaders = exchange.requestHeaders
+        val responseHeaders = exchange.responseHeaders
+        responseHeaders.set("ETag", etag)
+        responseHeaders.set("Accept-Ranges", "bytes")
+        responseHeaders.set("Content-Type", "application/zip")
+
+        val ifNoneMatch = requestHeaders.getFirst("If-None-Match")
+        if (ifNoneMatch != null && (ifNoneMatch.trim() == "*" || etag in ifNoneMatch)) {
+            exchange.sendResponseHeaders(HttpStatus.SC_NOT_MODIFIED, -1)
+            exchange.responseBody.close()
+            return
+        }
+
+        FileChannel.open(packInfo.file, StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            var range = 0L until size
+            var status = HttpStatus.SC_OK
+
+            // Ranges are only honored for the version the client already has parts of (if it tells us which one)
+            val rangeHeader = requestHeaders.getFirst("Range")
+                ?.takeIf { requestHeaders.getFirst("If-Range").let { ifRange -> ifRange == null || ifRange == etag } }
+            if (rangeHeader != null && rangeHeader.startsWith("bytes=") && ',' !in rangeHeader) {
+                val requested = parseRange(rangeHeader.removePrefix("bytes="), size)
+                if (requested == null) {
+                    responseHeaders.set("Content-Range", "bytes */$size")
+                    exchange.sendResponseHeaders(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, -1)
+                    exchange.responseBody.close()
+                    return
+                }
+                range = requested
+                status = HttpStatus.SC_PARTIAL_CONTENT
+                responseHeaders.set("Content-Range", "bytes ${range.first}-${range.last}/$size")
+            }
+
+            val length = range.last - range.first + 1
+            // A length of 0 would mean chunked encoding, -1 means no body
+            exchange.sendResponseHeaders(status, if (length > 0) length else -1)
+            exchange.responseBody.use { out -> transfer(channel, range.first, length, out) }
+        }
+    }
+
+    private fun transfer(channel: FileChannel, start: Long, length: Long, out: OutputStream) {
+        val target = Channels.newChannel(out)
+        var position = start
+        val end = start + length
+        while (position < end) {
+            position += channel.transferTo(position, end - position, target)
+        }
+    }
+
+    /** Parses the value of a single `bytes=` range. Returns `null` if the range is not satisfiable. */
+    private fun parseRange(spec: String, size: Long): LongRange? {
+        val separator = spec.indexOf('-')
+        if (separator < 0) return null
+        val first = spec.substring(0, separator).trim()
+        val last = spec.substring(separator + 1).trim()
+        return try {
+            if (first.isEmpty()) {
+                // Suffix range, i.e. the last N bytes
+                val suffix = last.toLong()
+                if (suffix <= 0 || size == 0L) null else maxOf(0L, size - suffix) until size
+            } else {
+                val start = first.toLong()
+                val end = if (last.isEmpty()) size - 1 else minOf(last.toLong(), size - 1)
+                if (start >= size || end < start) null else start..end
+            }
+        } catch (e: NumberFormatException) {
+            null
         }
-        exchange.responseBody.close()
     }
 
     private fun getPrimaryResourcePack(): IResourcePack? {
@@ -125,98 +222,151 @@ object ResourcePackSharingHttpServer {
     }
 
     private fun updateResourcePack() {
+        val generation = ++updateGeneration
+
         // If the user is not actively sharing their resource pack, reset the packInfo
         // and cancel computing it to avoid needlessly zipping
         if (spsManager.localSession == null || !spsManager.isShareResourcePack) {
-            packInfo?.takeIf { it.isTemp }?.file?.deleteIfExists()
             packInfo = null
             spsManager.updateResourcePack(null)
             return
         }
-        recomputePrimaryPack()
-        spsManager.updateResourcePack(packInfo)
-    }
-
-    private fun recomputePrimaryPack() {
-        // Cleanup previous temp zip file if needed
-        val packInfo = packInfo
-        if (packInfo?.isTemp == true) {
-            packInfo.file.deleteIfExists()
-        }
 
-        val resourcePack = getPrimaryResourcePack()
-        if (resourcePack == null) {
-            this.packInfo = null
+        val file = getPrimaryPackFile()
+        if (file == null) {
+            packInfo = null
+            spsManager.updateResourcePack(null)
             return
         }
 
-        if (resourcePack is FileResourcePackExt) {
-            val file = resourcePack.`essential$file`
-            if (file == null) {
-                this.packInfo = null
-                return
+        // Zipping and hashing may take multiple seconds for large packs, so we do those in the background
+        Multithreading.runAsync {
+            val info = try {
+                computePackInfo(file)
+            } catch (e: Exception) {
+                Essential.logger.error("Failed to prepare host resource pack $file", e)
+                null
             }
-            if (file.isDirectory()) {
-                // Zip the resource pack to send
-                val tempFile = Files.createTempFile("resource-pack", ".zip")
-                Essential.logger.info("Zipping host resource pack to $tempFile")
-
-                zipFolder(file, tempFile)
-                this.packInfo = PackInfo(tempFile, getChecksum(tempFile), true)
-            } else if (file.exists()) {
-                this.packInfo = PackInfo(file, getChecksum(file), false)
-            } else {
-                this.packInfo = null
-                Essential.logger.error("Unable to determine primary resource pack: ${resourcePack.packName} ${resourcePack.javaClass.name} $file")
+            UMinecraft.getMinecraft().executor.execute {
+                if (generation != updateGeneration) {
+                    return@execute // a newer update has been started in the meantime
+                }
+                packInfo = info
+                spsManager.updateResourcePack(info)
             }
+        }
+    }
 
+    private fun getPrimaryPackFile(): Path? {
+        val resourcePack = getPrimaryResourcePack() ?: return null
+
+        if (resourcePack is FileResourcePackExt) {
+            val file = resourcePack.`essential$file` ?: return null
+            if (file.isDirectory() || file.exists()) {
+                return file
+            }
+            Essential.logger.error("Unable to determine primary resource pack: ${resourcePack.packName} ${resourcePack.javaClass.name} $file")
         } else {
-            this.packInfo = null
             Essential.logger.error("Unable to determine primary resource pack: ${resourcePack.packName} ${resourcePack.javaClass.name}")
         }
+        return null
     }
 
-    private fun getChecksum(file: Path): String {
-        return DigestUtils.sha1Hex(file.readBytes())
-    }
+    private fun computePackInfo(file: Path): PackInfo = synchronized(cacheLock) { computePackInfoLocked(file) }
+
+    private fun computePackInfoLocked(file: Path): PackInfo {
+        val fingerprint = fingerprint(file)
 
-    data class PackInfo(val file: Path, val checksum: String, val isTemp: Boolean)
-
-    /** Adapted from https://stackoverflow.com/questions/51833423/how-to-zip-the-content-of-a-directory-in-java */
-    @Throws(java.lang.Exception::class)
-    private fun zipFolder(srcFolder: Path, destZipFile: Path) {
-        destZipFile.outputStream().use { fileWriter ->
-            ZipOutputStream(fileWriter).use { zip ->
-                addFolderToZip(
-                    srcFolder,
-                    srcFolder,
-                    zip
-                )
+        if (!file.isDirectory()) {
+            val checksum = fileChecksums.getOrPut(fingerprint) {
+                file.inputStream().use { DigestUtils.sha1Hex(it) }
             }
+            return PackInfo(file, checksum)
+        }
+
+        val zipFile = cacheDir.resolve("$fingerprint.zip")
+        val checksumFile = cacheDir.resolve("$fingerprint.sha1")
+        if (zipFile.exists() && checksumFile.exists()) {
+            zipFile.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis())) // mark as recently used
+            return PackInfo(zipFile, checksumFile.readText())
         }
+
+        cacheDir.createDirectories()
+        val tempFile = cacheDir.resolve("$fingerprint.zip.tmp")
+        Essential.logger.info("Zipping host resource pack to $zipFile")
+        val checksum = zipFolder(file, tempFile)
+        Files.move(tempFile, zipFile, StandardCopyOption.REPLACE_EXISTING)
+        checksumFile.writeText(checksum)
+
+        pruneCache()
+
+        return PackInfo(zipFile, checksum)
     }
 
-    @Throws(java.lang.Exception::class)
-    private fun addFileToZip(rootPath: Path, srcFile: Path, zip: ZipOutputStream) {
-        if (srcFile.isDirectory()) {
-            addFolderToZip(rootPath, srcFile, zip)
+    /**
+     * Computes a fingerprint of the given pack from the paths, sizes and modification times of its files, so we only
+     * need to re-zip or re-hash it if something has actually changed.
+     */
+    private fun fingerprint(file: Path): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        fun update(path: Path, name: String) {
+            digest.update("$name\u0000${path.fileSize()}\u0000${path.getLastModifiedTime().toMillis()}\n".encodeToByteArray())
+        }
+        if (file.isDirectory()) {
+            for (path in walkFiles(file)) {
+                update(path, path.relativeTo(file).joinToString("/"))
+            }
         } else {
-            val buf = ByteArray(1024)
-            var len: Int
-            srcFile.inputStream().use { `in` ->
-                val name = srcFile.relativeTo(rootPath).toString()
-                zip.putNextEntry(ZipEntry(name))
-                while (`in`.read(buf).also { len = it } > 0) {
-                    zip.write(buf, 0, len)
-                }
+            update(file, file.toAbsolutePath().toString())
+        }
+        return Hex.encodeHexString(digest.digest())
+    }
+
+    /**
+     * Deletes all but the most recently used zipped packs.
+     * Packs which cannot be deleted right now (e.g. because they are still being served on Windows) are left for the
+     * next time this is called.
+     */
+    private fun pruneCache() {
+        val zips = cacheDir.listDirectoryEntries("*.zip").sortedByDescending { it.getLastModifiedTime() }
+        for (zip in zips.drop(MAX_CACHED_PACKS)) {
+            try {
+                zip.deleteIfExists()
+                zip.resolveSibling(zip.name.removeSuffix(".zip") + ".sha1").deleteIfExists()
+            } catch (e: IOException) {
+                Essential.logger.warn("Failed to delete cached resource pack $zip, will try again later", e)
             }
         }
     }
 
-    @Throws(java.lang.Exception::class)
-    private fun addFolderToZip(rootPath: Path, srcFolder: Path, zip: ZipOutputStream) {
-        for (fileName in srcFolder.listDirectoryEntries()) {
-            addFileToZip(rootPath, fileName, zip)
+    data class PackInfo(val file: Path, val checksum: String)
+
+    /**
+     * Zips the given folder into the given file and returns the SHA-1 checksum of the result, computed while it is being
+     * written so the zip does not need to be read again.
+     *
+     * Entries are sorted and carry the modification time of their file, so the same folder always results in the same
+     * zip (and therefore the same checksum), allowing guests to keep using their cached copy.
+     */
+    private fun zipFolder(srcFolder: Path, destZipFile: Path): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        destZipFile.outputStream().buffered().use { fileWriter ->
+            ZipOutputStream(DigestOutputStream(fileWriter, digest)).use { zip ->
+                for (file in walkFiles(srcFolder)) {
+                    val entry = ZipEntry(file.relativeTo(srcFolder).joinToString("/"))
+                    entry.time = file.getLastModifiedTime().toMillis()
+                    zip.putNextEntry(entry)
+                    file.inputStream().use { it.copyTo(zip) }
+                    zip.closeEntry()
+                }
+            }
         }
+        return Hex.encodeHexString(digest.digest())
     }
-}
\ No newline at end of file
+
+    /** Lists all regular files in the given folder and its sub-folders, in a stable order. */
+    private fun walkFiles(folder: Path): List<Path> =
+        Files.walk(folder).use { stream -> stream.filter { it.isRegularFile() }.sorted().toList() }
+
+    private const val MAX_CACHED_PACKS = 3
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.sps.quic.jvm
+
+import gg.essential.quic.LogOnce
+import org.apache.commons.io.IOUtils
+import org.apache.logging.log4j.LogManager
+import java.io.Closeable
+import java.io.IOException
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetSocketAddress
+import java.net.PortUnreachableException
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedSelectorException
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Relays datagrams between ICE sockets and the local sockets of the forked QUIC connector.
+ *
+ * The local side of every relay is a non-blocking [DatagramChannel], all of which are served by a single selector
+ * thread that drains multiple datagrams per wakeup into one re-used buffer.
+ * The ICE side is an ice4j socket which does not have a selectable channel, so each relay still needs one thread
+ * blocking on its [DatagramSocket.receive], but that thread too re-uses a single buffer and packet for all datagrams.
+ */
+object DatagramRelay {
+    private val LOGGER = LogManager.getLogger()
+
+    private const val MAX_DATAGRAM_SIZE = 0xffff
+
+    /** Maximum number of datagrams read from a single channel before the selector moves on to the next one. */
+    private const val MAX_DATAGRAMS_PER_WAKEUP = 64
+
+    private val lock = Any()
+    /** The selector of the current relay thread, `null` if there is none because there are no relays. */
+    private var selector: Selector? = null
+    private val pendingRegistrations = ConcurrentLinkedQueue<Relay>()
+
+    /**
+     * Opens a new non-blocking datagram channel bound to a random local port, suitable to be passed to [start].
+     */
+    fun openLocalChannel(): DatagramChannel {
+        val channel = DatagramChannel.open()
+        try {
+            channel.bind(InetSocketAddress(LOCALHOST, 0))
+            channel.configureBlocking(false)
+        } catch (e: IOException) {
+            IOUtils.closeQuietly(channel)
+            throw e
+        }
+        return channel
+    }
+
+    /**
+     * Starts forwarding all datagrams received from the [iceSocket] to the [localChannel] and vice versa.
+     *
+     * Both the [iceSocket] and the [localChannel] must be connected to their respective remote address.
+     * If either is closed, the relay will terminate and the other will be closed as well.
+     */
+    fun start(name: String, iceSocket: DatagramSocket, localChannel: DatagramChannel, logOnce: LogOnce): Relay {
+        val relay = Relay(name, iceSocket, localChannel, logOnce)
+
+        synchronized(lock) {
+            pendingRegistrations.add(relay)
+            val selector = selector ?: Selector.open().also { startSelectorThread(it) }
+            this.selector = selector
+            selector.wakeup()
+        }
+
+        val thread = Thread({ relay.receiveFromIce() }, "$name ice→quic")
+        thread.isDaemon = true
+        thread.start()
+
+        return relay
+    }
+
+    private fun startSelectorThread(selector: Selector) {
+        val thread = Thread({ runSelector(selector) }, "SPS QUIC Relay")
+        thread.isDaemon = true
+        thread.start()
+    }
+
+    private fun runSelector(selector: Selector) {
+        val buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE)
+        val packet = DatagramPacket(buffer.array(), 0)
+        try {
+            while (true) {
+                while (true) {
+                    val relay = pendingRegistrations.poll() ?: break
+                    try {
+                        relay.localChannel.register(selector, SelectionKey.OP_READ, relay)
+                    } catch (e: IOException) {
+                        relay.close()
+                    }
+                }
+
+                selector.select()
+
+                val selectedKeys = selector.selectedKeys()
+                for (key in selectedKeys) {
+                    val relay = key.attachment() as Relay
+                    if (key.isValid && key.isReadable) {
+                        relay.sendToIce(buffer, packet)
+                    }
+                }
+                selectedKeys.clear()
+
+                synchronized(lock) {
+                    // Closed channels are deregistered during select, and closing a relay wakes us up, so once the
+                    // last relay is closed, the key set will be empty here.
+                    if (selector.keys().isEmpty() && pendingRegistrations.isEmpty()) {
+                        this.selector = null
+                        selector.close()
+                        return
+                    }
+                }
+            }
+        } catch (e: ClosedSelectorException) {
+            // shut down
+        } catch (e: IOException) {
+            LOGGER.error("SPS QUIC relay failed", e)
+            synchronized(lock) {
+                if (this.selector === selector) {
+                    this.selector = null
+                }
+            }
+            for (key in selector.keys()) {
+                (key.attachment() as Relay).close()
+            }
+            IOUtils.closeQuietly(selector)
+        }
+    }
+
+    /**
+     * A single relay between an ICE socket and a local channel.
+     *
+     * The packet and byte counters are each only written by a single thread, so they can be read from anywhere
+     * without synchronization but may be slightly out of date.
+     */
+    class Relay internal constructor(
+        private val name: String,
+        private val iceSocket: DatagramSocket,
+        internal val localChannel: DatagramChannel,
+        private val logOnce: LogOnce,
+    ) : Closeable {
+        private val closed = AtomicBoolean()
+
+        private val toIceKey = "$name quic→ice"
+        private val fromIceKey = "$name ice→quic"
+
+        @Volatile
+        var packetsToIce: Long = 0
+            private set
+        @Volatile
+        var bytesToIce: Long = 0
+            private set
+        @Volatile
+        var packetsFromIce: Long = 0
+            private set
+        @Volatile
+        var bytesFromIce: Long = 0
+            private set
+        /** Datagrams received from ICE which were dropped because the local socket's send buffer was full. */
+        @Volatile
+        var droppedFromIce: Long = 0
+            private set
+
+        /** Called on the selector thread when the local channel is readable. */
+        internal fun sendToIce(buffer: ByteBuffer, packet: DatagramPacket) {
+            try {
+                for (i in 0 until MAX_DATAGRAMS_PER_WAKEUP) {
+                    buffer.clear()
+                    val length = localChannel.read(buffer)
+                    if (length <= 0) {
+                        break
+                    }
+                    if (packetsToIce == 0L) {
+                        logOnce.log(toIceKey, length)
+                    }
+                    packet.setData(buffer.array(), 0, length)
+                    packet.socketAddress = iceSocket.remoteSocketAddress
+                    iceSocket.send(packet)
+                    packetsToIce++
+                    bytesToIce += length
+                }
+            } catch (e: IOException) {
+                handleException(toIceKey, e)
+            }
+        }
+
+        /** Runs on a dedicated thread until either side is closed. */
+        internal fun receiveFromIce() {
+            val buf = ByteArray(MAX_DATAGRAM_SIZE)
+            val packet = DatagramPacket(buf, buf.size)
+            val buffer = ByteBuffer.wrap(buf)
+            try {
+                while (!closed.get()) {
+                    packet.setData(buf, 0, buf.size)
+                    iceSocket.receive(packet)
+                    val length = packet.length
+                    if (packetsFromIce == 0L) {
+                        logOnce.log(fromIceKey, length)
+                    }
+                    buffer.clear().limit(length)
+                    if (localChannel.write(buffer) == 0) {
+                        droppedFromIce++
+                    }
+                    packetsFromIce++
+                    bytesFromIce += length
+                }
+            } catch (e: IOException) {
+                handleException(fromIceKey, e)
+            }
+        }
+
+        private fun handleException(direction: String, e: IOException) {
+            logOnce.log("$direction exception", e)
+            if (!closed.get() && !iceSocket.isClosed && localChannel.isOpen && e !is PortUnreachableException) {
+                e.printStackTrace()
+            }
+            close()
+        }
+
+        override fun close() {
+            if (!closed.compareAndSet(false, true)) {
+                return
+            }
+            LOGGER.debug("$name relay closed, to ice: $packetsToIce packets / $bytesToIce bytes, " +
+                "from ice: $packetsFromIce packets / $bytesFromIce bytes ($droppedFromIce dropped)")
+            IOUtils.closeQuietly(localChannel)
+            iceSocket.close()
+            synchronized(lock) {
+                selector?.wakeup()
+            }
+        }
+    }
+}
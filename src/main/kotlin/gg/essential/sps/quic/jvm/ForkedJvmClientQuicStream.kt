@@ -12,12 +12,15 @@
 package gg.essential.sps.quic.jvm
 
 import gg.essential.quic.LogOnce
+import gg.essential.quic.SharedMemoryTransport
 import gg.essential.sps.quic.QuicStream
 import org.apache.commons.io.IOUtils
 import org.apache.logging.log4j.LogManager
+import java.io.Closeable
 import java.io.InputStream
 import java.io.OutputStream
 import java.net.DatagramSocket
+import java.net.InetSocketAddress
 import java.net.Socket
 
 /**
@@ -31,8 +34,11 @@ class ForkedJvmClientQuicStream(
 ) : QuicStream {
     private val connector = ForkedJvmQuicConnector("gg.essential.quic.QuicClientConnector")
 
-    /** Unreliable socket connected to the QUIC connector. The transport layer from the POV of QUIC. */
-    private val udpSocket: DatagramSocket = DatagramSocket(0, LOCALHOST)
+    /**
+     * Relays datagrams between [iceSocket] and the QUIC connector (the transport layer from its POV), either via
+     * shared memory or a local socket.
+     */
+    private val relay: Closeable
 
     /** Reliable socket connected to the QUIC connector. The application layer from the POV of QUIC. */
     private val tcpSocket: Socket
@@ -45,33 +51,55 @@ class ForkedJvmClientQuicStream(
     /**
      * Binds a new QUIC proxy which accepts application layer connections and sends its transport layer packets to the
      * given port.
+     * If a shared memory [transport] is given, transport layer packets are instead exchanged through it and the given
+     * port is ignored.
      * Returns the port on which the QUIC proxy expects transport layer packets, as well as the port on which it expects
      * the application layer connection.
      *
      * No packets are sent on the transport layer until the application layer connects to the returned port.
      */
     @Synchronized
-    private fun ForkedJvmQuicConnector.bind(udpPort: Int): Triple<Int, Int, Int> {
+    private fun ForkedJvmQuicConnector.bind(udpPort: Int, transport: SharedMemoryTransport?): Triple<Int, Int, Int> {
         output.writeUTF(LOCALHOST.hostAddress)
         output.writeShort(udpPort)
+        output.writeUTF(transport?.path?.toString() ?: "")
         output.flush()
         return Triple(input.readUnsignedShort(), input.readUnsignedShort(), input.readUnsignedShort())
     }
 
     init {
+        val transport = if (SharedMemoryRelay.isEnabled) {
+            SharedMemoryTransport.create(SharedMemoryTransport.DEFAULT_RING_CAPACITY)
+        } else {
+            null
+        }
+        val udpChannel = if (transport == null) DatagramRelay.openLocalChannel() else null
+        var startedRelay: Closeable? = null
         try {
-            val (udpPort, tcpPort, httpPort) = connector.bind(udpSocket.localPort)
-            LOGGER.debug("udp: ${udpSocket.localPort} <> $udpPort, tcp: $tcpPort, http: $httpPort")
-
-            udpSocket.connect(LOCALHOST, udpPort)
-            forwardAsync("quic→ice", udpSocket, iceSocket, LogOnce.to(LOGGER::debug))
-            forwardAsync("ice→quic", iceSocket, udpSocket, LogOnce.to(LOGGER::debug))
+            val localPort = udpChannel?.socket()?.localPort ?: 0
+            val (udpPort, tcpPort, httpPort) = connector.bind(localPort, transport)
+
+            relay = if (transport != null) {
+                LOGGER.debug("shm: ${transport.path}, tcp: $tcpPort, http: $httpPort")
+                SharedMemoryRelay.start("client", iceSocket, transport, LogOnce.to(LOGGER::debug))
+            } else {
+                LOGGER.debug("udp: $localPort <> $udpPort, tcp: $tcpPort, http: $httpPort")
+                udpChannel!!.connect(InetSocketAddress(LOCALHOST, udpPort))
+                DatagramRelay.start("client", iceSocket, udpChannel, LogOnce.to(LOGGER::debug))
+            }
+            startedRelay = relay
 
             tcpSocket = Socket(LOCALHOST, tcpPort)
 
             this.httpPort = httpPort
         } catch (e: Exception) {
-            IOUtils.closeQuietly(udpSocket)
+            if (startedRelay != null) {
+                // Takes care of closing the transport / channel (once its threads are done with it)
+                IOUtils.closeQuietly(startedRelay)
+            } else {
+                IOUtils.closeQuietly(transport)
+                IOUtils.closeQuietly(udpChannel)
+            }
             IOUtils.closeQuietly(connector)
             throw e
         }
@@ -91,9 +119,8 @@ class ForkedJvmClientQuicStream(
         // Gracefully shut down the connector
         connector.close()
 
-        // Connector should be dead, now we can close our sockets (which will shut down the UDP/ICE forwarding threads)
-        udpSocket.close()
-        iceSocket.close()
+        // Connector should be dead, now we can close our sockets (which will shut down the UDP/ICE relay)
+        relay.close()
     }
 
     companion object {
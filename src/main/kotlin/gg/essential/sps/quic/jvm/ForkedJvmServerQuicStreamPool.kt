@@ -12,14 +12,17 @@
 package gg.essential.sps.quic.jvm
 
 import gg.essential.quic.LogOnce
+import gg.essential.quic.SharedMemoryTransport
 import gg.essential.sps.quic.QuicStream
 import gg.essential.util.Multithreading
 import gg.essential.util.RefCounted
 import org.apache.commons.io.IOUtils
 import org.apache.logging.log4j.LogManager
+import java.io.Closeable
 import java.io.InputStream
 import java.io.OutputStream
 import java.net.DatagramSocket
+import java.net.InetSocketAddress
 import java.net.ServerSocket
 import java.net.Socket
 import java.time.Duration
@@ -51,27 +54,53 @@ class ForkedJvmServerQuicStreamPool {
         return input.readUnsignedShort()
     }
 
+    /**
+     * Same as [bind] but the QUIC proxy exchanges its transport layer packets through the given shared memory
+     * [transport] instead of a socket.
+     */
+    @Synchronized
+    private fun ForkedJvmQuicConnector.bind(tcpPort: Int, httpPort: Int, transport: SharedMemoryTransport) {
+        output.write(1)
+        output.writeUTF(LOCALHOST.hostAddress)
+        output.writeShort(tcpPort)
+        output.writeShort(httpPort)
+        output.writeUTF(transport.path.toString())
+        output.flush()
+        input.readUnsignedShort() // port is irrelevant, all packets go through shared memory
+    }
+
     /**
      * Wraps the given ICE socket into a QuicStream by listening for an incoming connection from the remote side.
      */
     fun accept(iceSocket: DatagramSocket, httpPort: Int): QuicStream {
         val connector = lazyConnector.obtain()
-        val udpSocket = DatagramSocket(0, LOCALHOST)
+        var resource: Closeable? = null
         try {
             ServerSocket(0, 1, LOCALHOST).use { serverSocket ->
-                val connectorPort = connector.bind(serverSocket.localPort, httpPort)
-                LOGGER.debug("udp: ${udpSocket.localPort} <> $connectorPort, tcp: ${serverSocket.localPort}, http: $httpPort")
-
-                udpSocket.connect(LOCALHOST, connectorPort)
-                forwardAsync("quic→ice", udpSocket, iceSocket, LogOnce.to(LOGGER::debug))
-                forwardAsync("ice→quic", iceSocket, udpSocket, LogOnce.to(LOGGER::debug))
+                val relay = if (SharedMemoryRelay.isEnabled) {
+                    val transport = SharedMemoryTransport.create(SharedMemoryTransport.DEFAULT_RING_CAPACITY)
+                    resource = transport
+                    connector.bind(serverSocket.localPort, httpPort, transport)
+                    LOGGER.debug("shm: ${transport.path}, tcp: ${serverSocket.localPort}, http: $httpPort")
+
+                    SharedMemoryRelay.start("server", iceSocket, transport, LogOnce.to(LOGGER::debug))
+                } else {
+                    val udpChannel = DatagramRelay.openLocalChannel()
+                    resource = udpChannel
+                    val connectorPort = connector.bind(serverSocket.localPort, httpPort)
+                    LOGGER.debug("udp: ${udpChannel.socket().localPort} <> $connectorPort, tcp: ${serverSocket.localPort}, http: $httpPort")
+
+                    udpChannel.connect(InetSocketAddress(LOCALHOST, connectorPort))
+                    DatagramRelay.start("server", iceSocket, udpChannel, LogOnce.to(LOGGER::debug))
+                }
+                resource = relay
 
                 serverSocket.soTimeout = Duration.of(10, ChronoUnit.SECONDS).toMillis().toInt()
                 val tcpSocket = serverSocket.accept()
-                return Stream(iceSocket, udpSocket, tcpSocket)
+                return Stream(relay, tcpSocket)
             }
         } catch (e: Exception) {
-            IOUtils.closeQuietly(udpSocket)
+            IOUtils.closeQuietly(resource)
             lazyConnector.release()
             throw e
         }
@@ -84,7 +113,7 @@ class ForkedJvmServerQuicStreamPool {
 
         fun release() = inner.release { connector ->
             // We don't need to wait for this, so do it async.
-            Multithreading.scheduledPool.execute { connector.close() }
+            Multithreading.runBlockingNetworkTask { connector.close() }
         }
     }
 
@@ -94,10 +123,8 @@ class ForkedJvmServerQuicStreamPool {
      * Closing the stream will also close the ICE datagram sockets.
      */
     private inner class Stream(
-        /** Socket used to communicate with the remote side via ICE. */
-        private val iceSocket: DatagramSocket,
-        /** Unreliable socket connected to the QUIC connector. The transport layer from the POV of QUIC. */
-        private val udpSocket: DatagramSocket,
+        /** Relays datagrams between the remote side via ICE and the QUIC connector (the transport layer from its POV). */
+        private val relay: Closeable,
         /** Reliable socket connected to the QUIC connector. The application layer from the POV of QUIC. */
         private val tcpSocket: Socket,
     ) : QuicStream {
@@ -120,11 +147,10 @@ class ForkedJvmServerQuicStreamPool {
 
             // Give it 5 seconds to close the connection
             Multithreading.scheduleOnBackgroundThread({
-                // Enough time has passed, now we can close our sockets (which will shut down the UDP/ICE forwarding
-                // threads) as well as release our connector (which will quit the JVM if no other connections remain)
+                // Enough time has passed, now we can close our sockets (which will shut down the UDP/ICE relay) as
+                // well as release our connector (which will quit the JVM if no other connections remain)
                 LOGGER.debug("force close")
-                iceSocket.close()
-                udpSocket.close()
+                relay.close()
                 lazyConnector.release()
             }, 5, TimeUnit.SECONDS)
         }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.sps.quic.jvm
+
+import gg.essential.quic.LogOnce
+import gg.essential.quic.SharedMemoryRing
+import gg.essential.quic.SharedMemoryTransport
+import org.apache.commons.io.IOUtils
+import org.apache.logging.log4j.LogManager
+import java.io.Closeable
+import java.io.IOException
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Relays datagrams between ICE sockets and the forked QUIC connector through [SharedMemoryTransport]s, so transport
+ * layer packets do not have to make a round trip through the kernel's loopback interface.
+ *
+ * Same as with [DatagramRelay], each relay has one thread blocking on the ICE socket, while the rings from the
+ * connector are all polled by a single thread.
+ * Experimental and opt-in via the `essential.sps.quic.shared_memory` system property, [DatagramRelay] is used unless
+ * it is set (see [isEnabled]) and shared memory is supported by the JVM.
+ */
+object SharedMemoryRelay {
+    private val LOGGER = LogManager.getLogger()
+
+    private const val MAX_DATAGRAM_SIZE = 0xffff
+
+    /** Maximum number of datagrams read from a single ring before the poller moves on to the next one. */
+    private const val MAX_DATAGRAMS_PER_BATCH = 64
+
+    private const val CLOSING_POLL_NANOS = 10_000_000L
+
+    private val active = CopyOnWriteArrayList<Relay>()
+    /** Closed relays whose transport is closed by the poller once their ICE thread has exited. */
+    private val closing = ConcurrentLinkedQueue<Relay>()
+    private var pollerThread: Thread? = null
+
+    val isEnabled: Boolean
+        get() = SharedMemoryRing.isSupported() && System.getProperty("essential.sps.quic.shared_memory", "false").toBoolean()
+
+    /**
+     * Starts forwarding all datagrams received from the [iceSocket] to the connector via the given [transport] and
+     * vice versa.
+     *
+     * The [iceSocket] must be connected to its remote address.
+     * If it is closed, the relay will terminate and the transport will be closed as well, and vice versa.
+     */
+    fun start(name: String, iceSocket: DatagramSocket, transport: SharedMemoryTransport, logOnce: LogOnce): Relay {
+        val relay = Relay(name, iceSocket, transport, logOnce)
+        val thread = Thread({ relay.receiveFromIce() }, "$name ice→quic")
+        thread.isDaemon = true
+        relay.iceThread = thread
+
+        synchronized(this) {
+            active.add(relay)
+            val poller = pollerThread
+            if (poller == null) {
+                pollerThread = Thread(::runPoller, "SPS QUIC Shared Memory Relay").apply {
+                    isDaemon = true
+                    start()
+                }
+            } else {
+                LockSupport.unpark(poller)
+            }
+        }
+
+        thread.start()
+
+        return relay
+    }
+
+    private fun runPoller() {
+        val buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE)
+        val packet = DatagramPacket(buffer.array(), 0)
+        val backoff = SharedMemoryRing.Backoff()
+        while (true) {
+            // The transport is unmapped when closed, so it may only be closed once neither thread can access it
+            closing.removeIf { relay ->
+                if (relay.iceThread.isAlive) return@removeIf false
+                IOUtils.closeQuietly(relay.transport)
+                true
+            }
+            if (active.isEmpty()) {
+                if (closing.isEmpty()) {
+                    // Nothing to poll, no need to wake up periodically until something is started
+                    LockSupport.park()
+                } else {
+                    // Waiting for ICE threads to exit
+                    LockSupport.parkNanos(CLOSING_POLL_NANOS)
+                }
+                continue
+            }
+            var busy = false
+            for (relay in active) {
+                busy = busy or relay.sendToIce(buffer, packet)
+            }
+            if (busy) {
+                backoff.reset()
+            } else {
+                backoff.idle()
+            }
+        }
+    }
+
+    /**
+     * A single relay between an ICE socket and a shared memory transport.
+     *
+     * The packet and byte counters are each only written by a single thread, so they can be read from anywhere
+     * without synchronization but may be slightly out of date.
+     */
+    class Relay internal constructor(
+        private val name: String,
+        private val iceSocket: DatagramSocket,
+        internal val transport: SharedMemoryTransport,
+        private val logOnce: LogOnce,
+    ) : Closeable {
+        private val closed = AtomicBoolean()
+
+        internal lateinit var iceThread: Thread
+
+        private val toIceKey = "$name quic→ice"
+        private val fromIceKey = "$name ice→quic"
+
+        @Volatile
+        var packetsToIce: Long = 0
+            private set
+        @Volatile
+        var bytesToIce: Long = 0
+            private set
+        @Volatile
+        var packetsFromIce: Long = 0
+            private set
+        @Volatile
+        var bytesFromIce: Long = 0
+            private set
+        /** Datagrams received from ICE which were dropped because the ring to the connector was full. */
+        @Volatile
+        var droppedFromIce: Long = 0
+            private set
+
+        /**
+         * Called on the poller thread, forwards up to one batch of datagrams from the connector.
+         * @return whether any datagrams were forwarded
+         */
+        internal fun sendToIce(buffer: ByteBuffer, packet: DatagramPacket): Boolean {
+            if (closed.get()) {
+                return false
+            }
+            val ring = transport.fromConnector
+            var count = 0
+            try {
+                while (count < MAX_DATAGRAMS_PER_BATCH) {
+                    buffer.clear()
+                    val length = ring.poll(buffer)
+                    if (length < 0) {
+                        break
+                    }
+                    if (packetsToIce == 0L) {
+                        logOnce.log(toIceKey, length)
+                    }
+                    packet.setData(buffer.array(), 0, length)
+                    packet.socketAddress = iceSocket.remoteSocketAddress
+                    iceSocket.send(packet)
+                    packetsToIce++
+                    bytesToIce += length
+                    count++
+                }
+            } catch (e: IOException) {
+                handleException(toIceKey, e)
+            }
+            return count > 0
+        }
+
+        /** Runs on a dedicated thread until either side is closed. */
+        internal fun receiveFromIce() {
+            val buf = ByteArray(MAX_DATAGRAM_SIZE)
+            val packet = DatagramPacket(buf, buf.size)
+            val buffer = ByteBuffer.wrap(buf)
+            val ring = transport.toConnector
+            try {
+                while (!closed.get()) {
+                    packet.setData(buf, 0, buf.size)
+                    iceSocket.receive(packet)
+                    val length = packet.length
+                    if (packetsFromIce == 0L) {
+                        logOnce.log(fromIceKey, length)
+                    }
+                    buffer.clear().limit(length)
+                    if (!ring.offer(buffer)) {
+                        droppedFromIce++
+                    }
+                    packetsFromIce++
+                    bytesFromIce += length
+                }
+            } catch (e: IOException) {
+                handleException(fromIceKey, e)
+            }
+        }
+
+        private fun handleException(direction: String, e: IOException) {
+            logOnce.log("$direction exception", e)
+            if (!closed.get() && !iceSocket.isClosed) {
+                e.printStackTrace()
+            }
+            close()
+        }
+
+        override fun close() {
+            if (!closed.compareAndSet(false, true)) {
+                return
+            }
+            LOGGER.debug("$name relay closed, to ice: $packetsToIce packets / $bytesToIce bytes, " +
+                "from ice: $packetsFromIce packets / $bytesFromIce bytes ($droppedFromIce dropped)")
+            active.remove(this)
+            iceSocket.close()
+            closing.add(this)
+            synchronized(SharedMemoryRelay) {
+                pollerThread?.let(LockSupport::unpark)
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@ import kotlinx.serialization.json.Json
 import org.apache.logging.log4j.LogManager
 import java.io.Closeable
 import java.nio.file.Paths
+import kotlin.concurrent.thread
 import kotlin.coroutines.CoroutineContext
 import kotlin.reflect.full.IllegalCallableAccessException
 
@@ -52,7 +53,8 @@ class ForkedJvm(main: String, classpath: String? = null, jvmArgs: List<String> =
             redirectInput(ProcessBuilder.Redirect.PIPE)
         }.start()
 
-        Multithreading.scheduledPool.execute {
+        // Lives as long as the process, so it gets its own thread rather than permanently occupying a pooled one
+        thread(name = "Essential ForkedJvm stderr", isDaemon = true) {
             val logger = LogManager.getLogger(main)
             val reader = process.errorStream.bufferedReader()
             while (true) {
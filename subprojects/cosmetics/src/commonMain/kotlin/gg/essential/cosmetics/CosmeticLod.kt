@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.cosmetics
+
+import kotlin.math.ceil
+import kotlin.math.max
+
+/** Level of detail at which the cosmetics of a single player are updated and rendered. */
+enum class CosmeticLod(
+    /** Animations (and the events they emit) are only updated once every this many frames. */
+    val updateInterval: Int,
+    /** Whether particle events are spawned. Sounds are unaffected. */
+    val particles: Boolean,
+    /** Models whose largest cube edge (in model pixels) is below this size are not rendered. */
+    val minModelSize: Float,
+    /** Whether any cosmetics are rendered at all. */
+    val visible: Boolean,
+) {
+    Full(1, true, 0f, true),
+    Reduced(2, true, 0f, true),
+    Low(4, false, 3f, true),
+    Hidden(8, false, Float.POSITIVE_INFINITY, false),
+    ;
+
+    fun degrade(levels: Int): CosmeticLod = values()[(ordinal + levels).coerceIn(0, Hidden.ordinal)]
+}
+
+/**
+ * Decides the [CosmeticLod] of every player in the world.
+ *
+ * This is a pure function of the players' distances to the camera, their count, the time spent on cosmetics during
+ * recent frames and the result of the previous evaluation, so it can be evaluated for synthetic player lists as well.
+ */
+data class CosmeticLodPolicy(
+    /** Distance (in blocks) from which players are rendered at [CosmeticLod.Reduced]. */
+    val reducedDistance: Double = 16.0,
+    /** Distance (in blocks) from which players are rendered at [CosmeticLod.Low]. */
+    val lowDistance: Double = 32.0,
+    /** Distance (in blocks) from which cosmetics are no longer rendered at all. */
+    val hiddenDistance: Double = 64.0,
+    /** Only this many players (the ones closest to the camera) may be rendered at [CosmeticLod.Full]. */
+    val maxFullPlayers: Int = 16,
+    /**
+     * Time (in nanoseconds) which may be spent on cosmetics each frame.
+     * If more than that is spent, the farthest players are degraded by additional levels.
+     */
+    val frameBudgetNanos: Long = 4_000_000,
+    /**
+     * Fraction of [frameBudgetNanos] below which degraded players are restored again, one level per evaluation.
+     * Between this and the full budget, the current degradation is kept, so restoring a player (which makes the frame
+     * more expensive again) does not immediately push us back over budget.
+     */
+    val recoverFraction: Double = 0.75,
+) {
+    fun forDistance(distance: Double): CosmeticLod = when {
+        distance >= hiddenDistance -> CosmeticLod.Hidden
+        distance >= lowDistance -> CosmeticLod.Low
+        distance >= reducedDistance -> CosmeticLod.Reduced
+        else -> CosmeticLod.Full
+    }
+
+    /**
+     * Computes by how many levels (in total) the farthest players need to be degraded to stay within budget.
+     *
+     * Should only be called every few frames, so the effect of the previous adjustment has time to show in
+     * [elapsedNanos].
+     *
+     * @param playerCount the number of players
+     * @param elapsedNanos time spent on cosmetics per frame, ideally smoothed over a few frames
+     * @param budgetDegradation the result of the previous call
+     */
+    fun adjustBudgetDegradation(playerCount: Int, elapsedNanos: Long, budgetDegradation: Int): Int {
+        val degradation = when {
+            // Assuming every player is about equally expensive, shed the fraction of players by which we are over
+            // budget (but at least one)
+            elapsedNanos > frameBudgetNanos -> {
+                val overBudget = (elapsedNanos - frameBudgetNanos).toDouble() / elapsedNanos
+                budgetDegradation + max(1, ceil(playerCount * overBudget).toInt())
+            }
+            elapsedNanos < frameBudgetNanos * recoverFraction -> budgetDegradation - 1
+            else -> budgetDegradation
+        }
+        return degradation.coerceIn(0, playerCount * CosmeticLod.Hidden.ordinal)
+    }
+
+    /**
+     * Computes the level of detail for each player.
+     *
+     * @param distances the distance of each player to the camera
+     * @param budgetDegradation total number of levels by which to degrade the farthest players, see
+     * [adjustBudgetDegradation]
+     * @return the level of detail of each player, in the same order as [distances]
+     */
+    fun assign(distances: DoubleArray, budgetDegradation: Int = 0): Array<CosmeticLod> {
+        val count = distances.size
+        val byDistance = distances.indices.sortedBy { distances[it] }
+        val levels = Array(count) { forDistance(distances[it]) }
+
+        // Only the closest few players may keep full detail
+        for (rank in maxFullPlayers until count) {
+            val index = byDistance[rank]
+            if (levels[index] == CosmeticLod.Full) {
+                levels[index] = CosmeticLod.Reduced
+            }
+        }
+
+        // Spread the degradation over all players, the farthest ones receiving the additional levels first
+        if (budgetDegradation > 0) {
+            for (rank in 0 until count) {
+                val fromFarthest = count - 1 - rank
+                val levelsForPlayer = budgetDegradation / count + if (fromFarthest < budgetDegradation % count) 1 else 0
+                val index = byDistance[rank]
+                levels[index] = levels[index].degrade(levelsForPlayer)
+            }
+        }
+
+        return levels
+    }
+}
@@ -193,9 +193,9 @@ class CosmeticsState(
     }.let { masks -> SkinMask.merge(masks) }
 
     /**
-     * Set of armor slot ids that currently have cosmetics occupying
+     * For each cosmetic, the set of armor slot ids which it occupies
      */
-    val partsEquipped: Set<Int> = bedrockModels.values.flatMap { model ->
+    private val armorSlotsByCosmetic: Map<CosmeticId, Set<Int>> = bedrockModels.values.associate { model ->
         val rootBone = rootBones.getValue(model.cosmetic.id)
         model.propagateVisibilityToRootBone(
             sides[model.cosmetic.id],
@@ -203,9 +203,29 @@ class CosmeticsState(
             hiddenBones[model.cosmetic.id] ?: emptySet(),
             EnumPart.values().toSet(),
         )
-        model.getBones(rootBone).filter { it.containsVisibleBoxes() }
+        model.cosmetic.id to model.getBones(rootBone).filter { it.containsVisibleBoxes() }
             .mapNotNull { EnumPart.fromBoneName(it.boxName) }
-    }.flatMap { it.armorSlotIds }.toSet()
+            .flatMap { it.armorSlotIds }.toSet()
+    }
+
+    /**
+     * Set of armor slot ids that currently have cosmetics occupying
+     */
+    val partsEquipped: Set<Int> = armorSlotsByCosmetic.values.flatten().toSet()
+
+    /**
+     * Cosmetics which do not affect how the player itself is rendered (no skin mask, no covered skin layers and no
+     * occupied armor slots), and may therefore be skipped at a reduced [CosmeticLod] without leaving holes behind.
+     */
+    val independentCosmetics: Set<CosmeticId> = bedrockModels.values
+        .filter { model ->
+            val cosmetic = model.cosmetic
+            model.skinMasks.isEmpty()
+                && armorSlotsByCosmetic[cosmetic.id].isNullOrEmpty()
+                && cosmetic.type.skinLayers.values.all { it }
+                && cosmetic.skinLayers.values.all { it }
+        }
+        .mapTo(mutableSetOf()) { it.cosmetic.id }
 
     fun getPositionAdjustment(cosmetic: Cosmetic) = positionAdjustments[cosmetic.id] ?: Vector3()
 
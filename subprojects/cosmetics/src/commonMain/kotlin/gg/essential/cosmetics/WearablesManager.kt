@@ -21,6 +21,7 @@ import gg.essential.model.backend.PlayerPose
 import gg.essential.model.backend.RenderBackend
 import gg.essential.model.backend.atlas.TextureAtlas
 import gg.essential.model.molang.MolangQueryEntity
+import gg.essential.model.util.ResourceCleaner
 import gg.essential.model.util.UMatrixStack
 import gg.essential.network.cosmetics.Cosmetic
 
@@ -36,11 +37,32 @@ class WearablesManager(
     var models: Map<Cosmetic, ModelInstance> = emptyMap()
         private set
 
+    /** The shared atlas, if all our translucent textures could be placed in it. */
     private var translucentTextureAtlas: TextureAtlas? = null
+    /**
+     * Textures for which we hold a reference in the shared atlas.
+     * Separate object, so they can still be released once this instance has been garbage collected.
+     */
+    private val atlasTextures = mutableListOf<RenderBackend.Texture>()
+    /** Whether [releaseSharedResources] was called since we last acquired our [atlasTextures]. */
+    private var atlasReleased = false
+
+    init {
+        val renderBackend = renderBackend
+        val atlasTextures = atlasTextures
+        resourceCleaner.register(this) { sharedAtlases[renderBackend]?.let { atlas -> atlasTextures.forEach(atlas::release) } }
+    }
+
+    /**
+     * Level of detail at which the cosmetics of this entity are currently updated and rendered.
+     * @see CosmeticLodPolicy
+     */
+    var lod: CosmeticLod = CosmeticLod.Full
+
+    private var framesSinceUpdate = 0
 
     fun updateState(newState: CosmeticsState) {
         val oldModels = models
-        val oldTextures = oldModels.values.filter { it.model.translucent }.mapNotNull { it.model.texture }.distinct()
 
         val newModels =
             newState.bedrockModels
@@ -58,13 +80,8 @@ class WearablesManager(
 
         // If there's more than one translucent model, we need to render them all in a single (sorted) pass
         val newTextures = newModels.values.filter { it.model.translucent }.mapNotNull { it.model.texture }.distinct()
-        if (oldTextures != newTextures) {
-            translucentTextureAtlas?.close()
-            translucentTextureAtlas = null
-        }
-        if (translucentTextureAtlas == null && newTextures.size > 1) {
-            translucentTextureAtlas = TextureAtlas.create(renderBackend, "cosmetics-${atlasCounter++}", newTextures)
-        }
+        resourceCleaner.runCleanups()
+        updateAtlasTextures(if (newTextures.size > 1) newTextures else emptyList())
 
         for ((cosmetic, model) in models.entries) {
             if (newModels[cosmetic] != model) {
@@ -75,12 +92,55 @@ class WearablesManager(
         models = newModels
     }
 
+    /**
+     * Points our references in the shared atlas at [wantedTextures].
+     * Acquires the new textures before releasing the old ones, so ones we keep are not evicted in between.
+     */
+    private fun updateAtlasTextures(wantedTextures: List<RenderBackend.Texture>) {
+        atlasReleased = false
+        if (wantedTextures == atlasTextures) return
+        if (atlasTextures.isEmpty() && wantedTextures.isEmpty()) return
+
+        val atlas = sharedAtlas(renderBackend)
+        val oldAtlasTextures = atlasTextures.toList()
+        atlasTextures.clear()
+        translucentTextureAtlas = null
+        for (texture in wantedTextures) {
+            if (!atlas.acquire(texture)) break
+            atlasTextures.add(texture)
+        }
+        if (atlasTextures.size == wantedTextures.size) {
+            translucentTextureAtlas = atlas
+        } else {
+            atlasTextures.forEach(atlas::release)
+            atlasTextures.clear()
+        }
+        oldAtlasTextures.forEach(atlas::release)
+    }
+
+    /**
+     * Releases our references to textures in the shared atlas, e.g. once the entity is no longer in the world.
+     * Should it be rendered again afterwards, they are re-acquired.
+     */
+    fun releaseSharedResources() {
+        val atlas = sharedAtlases[renderBackend]
+        if (atlas != null) {
+            atlasTextures.forEach(atlas::release)
+        }
+        atlasTextures.clear()
+        translucentTextureAtlas = null
+        atlasReleased = true
+    }
+
     fun resetModel(slot: CosmeticSlot) {
         updateState(state.copyWithout(slot))
     }
 
     /** @see ModelInstance.update */
     fun update() {
+        if (++framesSinceUpdate < lod.updateInterval) return
+        framesSinceUpdate = 0
+
         for ((_, model) in models) {
             model.update()
         }
@@ -100,10 +160,18 @@ class WearablesManager(
         skin: RenderBackend.Texture,
         parts: Set<EnumPart> = EnumPart.values().toSet(),
     ) {
+        if (atlasReleased) {
+            val textures = models.values.filter { it.model.translucent }.mapNotNull { it.model.texture }.distinct()
+            updateAtlasTextures(if (textures.size > 1) textures else emptyList())
+        }
+
         for ((_, model) in models) {
             if (model.model.translucent && translucentTextureAtlas != null) {
                 continue // will do these later in a single final pass
             }
+            if (isCulled(model)) {
+                continue
+            }
             render(matrixStack, vertexConsumerProvider, model, pose, skin, parts)
         }
 
@@ -115,7 +183,7 @@ class WearablesManager(
                     block(atlas.offsetVertexConsumer(texture, vertexConsumer))
                 }
                 for ((_, model) in models) {
-                    if (model.model.translucent) {
+                    if (model.model.translucent && !isCulled(model)) {
                         render(matrixStack, atlasVertexConsumerProvider, model, pose, skin, parts)
                     }
                 }
@@ -123,6 +191,13 @@ class WearablesManager(
         }
     }
 
+    /**
+     * Whether the given model is too small to be rendered at the current [lod].
+     * Only applies to models which do not otherwise affect the player, see [CosmeticsState.independentCosmetics].
+     */
+    private fun isCulled(model: ModelInstance): Boolean =
+        model.model.maxCubeSize < lod.minModelSize && model.cosmetic.id in state.independentCosmetics
+
     fun render(
         matrixStack: UMatrixStack,
         vertexConsumerProvider: RenderBackend.VertexConsumerProvider,
@@ -159,6 +234,10 @@ class WearablesManager(
     }
 
     companion object {
-        private var atlasCounter = 0
+        private val resourceCleaner = ResourceCleaner<WearablesManager>()
+        private val sharedAtlases = mutableMapOf<RenderBackend, TextureAtlas>()
+
+        private fun sharedAtlas(renderBackend: RenderBackend): TextureAtlas =
+            sharedAtlases.getOrPut(renderBackend) { TextureAtlas(renderBackend, "cosmetics-${sharedAtlases.size}") }
     }
 }
\ No newline at end of file
@@ -25,6 +25,9 @@ import kotlin.math.min
  * Pixels which are black in the mask get removed from the skin, pixels which are white in the mask are unaffected.
  */
 class SkinMask(val parts: Map<EnumPart, Mask>) {
+    /** Content-based, so masks which were computed separately but are equal can share the same masked skin. */
+    private val hashCode = parts.hashCode()
+
     fun apply(skin: Bitmap): Bitmap {
         return skin.mutableCopy().apply { applyTo(this) }
     }
@@ -57,6 +60,14 @@ class SkinMask(val parts: Map<EnumPart, Mask>) {
         result
     })
 
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is SkinMask) return false
+        return hashCode == other.hashCode && parts == other.parts
+    }
+
+    override fun hashCode(): Int = hashCode
+
     private fun MutableMask.copyFrom(source: Mask, box: Box, offX: Int, offY: Int) {
         val minX = max(box.x + offX, box.x)
         val maxX = min(box.x + box.width + offX, box.x + box.width)
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model
+
+import gg.essential.model.light.Light
+import gg.essential.model.util.Color
+import gg.essential.model.util.UMatrixStack
+import gg.essential.model.util.UVertexConsumer
+
+/**
+ * The vertices of a [Bone] subtree which is in its rest pose, pre-transformed into the coordinate space of the parent of
+ * that subtree, so they can be replayed without walking the tree or doing any of its matrix math.
+ *
+ * See [Bone.render].
+ */
+internal class BakedMesh private constructor(
+    /** The model scale this mesh was baked with. */
+    val scale: Float,
+    private val data: FloatArray,
+    private val size: Int,
+) {
+    fun render(matrixStack: UMatrixStack, renderer: UVertexConsumer, verticalUVOffset: Float) {
+        val data = data
+        var i = 0
+        while (i < size) {
+            renderer.pos(matrixStack, data[i].toDouble(), data[i + 1].toDouble(), data[i + 2].toDouble())
+            renderer.tex(data[i + 3].toDouble(), (data[i + 4] + verticalUVOffset).toDouble())
+            renderer.norm(matrixStack, data[i + 5], data[i + 6], data[i + 7])
+            renderer.endVertex()
+            i += STRIDE
+        }
+    }
+
+    /**
+     * Records vertices as they are emitted by [Bone.render] (with a UV offset of 0), applying the matrix stack to them
+     * the same way the real vertex consumer would.
+     */
+    class Baker(private val scale: Float) : UVertexConsumer {
+        private var data = FloatArray(STRIDE * 64)
+        private var size = 0
+
+        override fun pos(stack: UMatrixStack, x: Double, y: Double, z: Double): UVertexConsumer {
+            val m = stack.peek().model
+            val fx = x.toFloat()
+            val fy = y.toFloat()
+            val fz = z.toFloat()
+            ensureCapacity()
+            data[size] = fx * m.m00 + fy * m.m01 + fz * m.m02 + m.m03
+            data[size + 1] = fx * m.m10 + fy * m.m11 + fz * m.m12 + m.m13
+            data[size + 2] = fx * m.m20 + fy * m.m21 + fz * m.m22 + m.m23
+            return this
+        }
+
+        override fun tex(u: Double, v: Double): UVertexConsumer {
+            data[size + 3] = u.toFloat()
+            data[size + 4] = v.toFloat()
+            return this
+        }
+
+        override fun norm(stack: UMatrixStack, x: Float, y: Float, z: Float): UVertexConsumer {
+            val m = stack.peek().normal
+            data[size + 5] = x * m.m00 + y * m.m01 + z * m.m02
+            data[size + 6] = x * m.m10 + y * m.m11 + z * m.m12
+            data[size + 7] = x * m.m20 + y * m.m21 + z * m.m22
+            return this
+        }
+
+        override fun color(color: Color): UVertexConsumer = this
+
+        override fun light(light: Light): UVertexConsumer = this
+
+        override fun endVertex(): UVertexConsumer {
+            size += STRIDE
+            return this
+        }
+
+        private fun ensureCapacity() {
+            if (size + STRIDE > data.size) {
+                data = data.copyOf(data.size * 2)
+            }
+        }
+
+        fun build() = BakedMesh(scale, data.copyOf(size), size)
+    }
+
+    private companion object {
+        /** x, y, z, u, v, nx, ny, nz */
+        const val STRIDE = 8
+    }
+}
@@ -61,6 +61,21 @@ class BedrockModel(
     val isContainsSideOption: Boolean
         get() = sideOptions.isNotEmpty()
 
+    /** Length of the longest edge of any cube in this model. Used to skip small models at a distance. */
+    val maxCubeSize: Float by lazy {
+        fun Bone.maxCubeSize(): Float {
+            var size = 0f
+            for (cube in cubeList) {
+                size = maxOf(size, cube.posX2 - cube.posX1, cube.posY2 - cube.posY1, cube.posZ2 - cube.posZ1)
+            }
+            for (child in childModels) {
+                size = maxOf(size, child.maxCubeSize())
+            }
+            return size
+        }
+        rootBone.maxCubeSize()
+    }
+
     init {
         val diagnostics = mutableListOf<Diagnostic>()
 
@@ -375,6 +390,9 @@ class BedrockModel(
             metadata.hiddenBones,
             metadata.parts,
         )
+        // Subtrees which are neither posed nor animated this frame will be replayed from their cached vertices, which
+        // also means they are cheap to emit a second time for the emissive texture
+        rootBone.updateStatic()
 
         vertexConsumerProvider.provide(textureLocation, false) { vertexConsumer ->
             rootBone.render(matrixStack, vertexConsumer, metadata.light, metadata.scale, offset)
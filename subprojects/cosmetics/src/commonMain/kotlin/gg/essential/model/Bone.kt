@@ -76,6 +76,13 @@ class Bone(
     private var isVisible = true // actual visibility for this specific bone, set in propagateVisibility
     private var fullyInvisible = false // propagateVisibility has determined that we can skip this entire tree
 
+    /** Whether this is one of the player model bones, which are posed anew every frame. */
+    private val isPosed = EnumPart.fromBoneName(boxName) != null
+    /** Whether this entire tree is in its rest pose, set in [updateStatic]. */
+    private var isStatic = false
+    /** Cached vertices of this tree while it is [isStatic]. Reset whenever visibility in this tree changes. */
+    private var bakedMesh: BakedMesh? = null
+
     /** Whether an animation targeting this bone will have an effect on the player pose. */
     var affectsPose = false // initialized by ModelParser
     /** Which parts of the player pose will be affected by an animation targeting this bone. */
@@ -96,20 +103,46 @@ class Bone(
         childModels.add(child)
     }
 
-    fun propagateVisibility(parentVisible: Boolean, side: Side?) {
+    /** Returns whether the visibility of this bone or any of its children has changed. */
+    fun propagateVisibility(parentVisible: Boolean, side: Side?): Boolean {
         if (this.side != null && side != null && this.side !== side) {
-            isVisible = false
-            fullyInvisible = true
-            return
+            return setVisibility(isVisible = false, fullyInvisible = true, childChanged = false)
         }
         val isVisible = if (visible == null) parentVisible else visible!!
         var fullyInvisible = !isVisible
+        var childChanged = false
         for (child in childModels) {
-            child.propagateVisibility(isVisible, side)
+            childChanged = child.propagateVisibility(isVisible, side) or childChanged
             fullyInvisible = fullyInvisible and child.fullyInvisible
         }
+        return setVisibility(isVisible, fullyInvisible, childChanged)
+    }
+
+    private fun setVisibility(isVisible: Boolean, fullyInvisible: Boolean, childChanged: Boolean): Boolean {
+        val changed = childChanged || isVisible != this.isVisible || fullyInvisible != this.fullyInvisible
         this.isVisible = isVisible
         this.fullyInvisible = fullyInvisible
+        if (changed) {
+            bakedMesh = null
+        }
+        return changed
+    }
+
+    /**
+     * Determines for this bone and all its children whether their tree is in its rest pose, i.e. neither posed nor
+     * animated, such that its vertices can be cached (see [render]).
+     * Must be called after animations and the pose have been applied, and before [render].
+     */
+    fun updateStatic(): Boolean {
+        var isStatic = !isPosed && !gimbal && extra == null && childScale == 1f
+            && animOffsetX == 0f && animOffsetY == 0f && animOffsetZ == 0f
+            && animRotX == 0f && animRotY == 0f && animRotZ == 0f
+            && animScaleX == 1f && animScaleY == 1f && animScaleZ == 1f
+        for (child in childModels) {
+            isStatic = child.updateStatic() and isStatic
+        }
+        this.isStatic = isStatic
+        return isStatic
     }
 
     fun resetAnimationOffsets(recursive: Boolean) {
@@ -137,42 +170,61 @@ class Bone(
         scale: Float,
         verticalUVOffset: Float
     ) {
-        if (!isHidden && showModel && !fullyInvisible) {
-            matrixStack.push()
-            matrixStack.scale(childScale, childScale, childScale)
-            val translateX = pivotX * scale + animOffsetX * scale
-            val translateY = pivotY * scale - animOffsetY * scale
-            val translateZ = pivotZ * scale + animOffsetZ * scale
-            matrixStack.translate(translateX, translateY, translateZ)
-            if (gimbal) {
-                matrixStack.rotate(parentRotation.conjugate())
-            }
-            matrixStack.rotate(rotateAngleZ + animRotZ, 0.0f, 0.0f, 1.0f, false)
-            matrixStack.rotate(rotateAngleY + animRotY, 0.0f, 1.0f, 0.0f, false)
-            matrixStack.rotate(rotateAngleX + animRotX, 1.0f, 0.0f, 0.0f, false)
-            extra?.let {
-                matrixStack.peek().model.timesSelf(it.toMutable().apply {
-                    m03 *= scale
-                    m13 *= scale
-                    m23 *= scale
-                })
-            }
-            matrixStack.scale(animScaleX, animScaleY, animScaleZ)
-            matrixStack.translate(
-                -pivotX * scale - userOffsetX * scale,
-                -pivotY * scale - userOffsetY * scale,
-                -pivotZ * scale - userOffsetZ * scale
-            )
-            if (isVisible) {
-                for (cube in cubeList) {
-                    cube.render(matrixStack, renderer, light, scale, verticalUVOffset)
-                }
-            }
-            for (childModel in childModels) {
-                childModel.render(matrixStack, renderer, light, scale, verticalUVOffset)
+        if (isHidden || !showModel || fullyInvisible) {
+            return
+        }
+        if (isStatic) {
+            val bakedMesh = bakedMesh?.takeIf { it.scale == scale }
+                ?: BakedMesh.Baker(scale).also { renderTransformed(UMatrixStack(), it, light, scale, 0f) }.build()
+            this.bakedMesh = bakedMesh
+            bakedMesh.render(matrixStack, renderer, verticalUVOffset)
+        } else {
+            renderTransformed(matrixStack, renderer, light, scale, verticalUVOffset)
+        }
+    }
+
+    private fun renderTransformed(
+        matrixStack: UMatrixStack,
+        renderer: UVertexConsumer,
+        light: Int,
+        scale: Float,
+        verticalUVOffset: Float
+    ) {
+        matrixStack.push()
+        matrixStack.scale(childScale, childScale, childScale)
+        val translateX = pivotX * scale + animOffsetX * scale
+        val translateY = pivotY * scale - animOffsetY * scale
+        val translateZ = pivotZ * scale + animOffsetZ * scale
+        matrixStack.translate(translateX, translateY, translateZ)
+        if (gimbal) {
+            matrixStack.rotate(parentRotation.conjugate())
+        }
+        matrixStack.rotate(rotateAngleZ + animRotZ, 0.0f, 0.0f, 1.0f, false)
+        matrixStack.rotate(rotateAngleY + animRotY, 0.0f, 1.0f, 0.0f, false)
+        matrixStack.rotate(rotateAngleX + animRotX, 1.0f, 0.0f, 0.0f, false)
+        extra?.let {
+            matrixStack.peek().model.timesSelf(it.toMutable().apply {
+                m03 *= scale
+                m13 *= scale
+                m23 *= scale
+            })
+        }
+        matrixStack.scale(animScaleX, animScaleY, animScaleZ)
+        matrixStack.translate(
+            -pivotX * scale - userOffsetX * scale,
+            -pivotY * scale - userOffsetY * scale,
+            -pivotZ * scale - userOffsetZ * scale
+        )
+        // Index-based loops, so we don't allocate iterators in the per-frame render loop
+        if (isVisible) {
+            for (i in cubeList.indices) {
+                cubeList[i].render(matrixStack, renderer, light, scale, verticalUVOffset)
             }
-            matrixStack.pop()
         }
+        for (i in childModels.indices) {
+            childModels[i].render(matrixStack, renderer, light, scale, verticalUVOffset)
+        }
+        matrixStack.pop()
     }
 
     fun setTextureSize(p_setTextureSize_1_: Int, p_setTextureSize_2_: Int) {
@@ -164,8 +164,8 @@ class Cube {
         scale: Float,
         verticalUVOffset: Float
     ) {
-        for (texturedquad in quadList) {
-            texturedquad.draw(matrixStack, renderer, light, scale, verticalUVOffset)
+        for (i in quadList.indices) {
+            quadList[i].draw(matrixStack, renderer, light, scale, verticalUVOffset)
         }
     }
 
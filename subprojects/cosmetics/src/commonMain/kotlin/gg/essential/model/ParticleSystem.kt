@@ -11,14 +11,12 @@
  */
 package gg.essential.model
 
-import dev.folomeev.kotgl.matrix.vectors.Vec2
 import dev.folomeev.kotgl.matrix.vectors.Vec3
 import dev.folomeev.kotgl.matrix.vectors.dot
 import dev.folomeev.kotgl.matrix.vectors.mutables.cross
 import dev.folomeev.kotgl.matrix.vectors.mutables.crossSelf
-import dev.folomeev.kotgl.matrix.vectors.mutables.div
+import dev.folomeev.kotgl.matrix.vectors.mutables.MutableVec3
 import dev.folomeev.kotgl.matrix.vectors.mutables.minus
-import dev.folomeev.kotgl.matrix.vectors.mutables.mutableVec2
 import dev.folomeev.kotgl.matrix.vectors.mutables.mutableVec3
 import dev.folomeev.kotgl.matrix.vectors.mutables.normalize
 import dev.folomeev.kotgl.matrix.vectors.mutables.normalizeSelf
@@ -29,9 +27,7 @@ import dev.folomeev.kotgl.matrix.vectors.mutables.plusSelf
 import dev.folomeev.kotgl.matrix.vectors.mutables.set
 import dev.folomeev.kotgl.matrix.vectors.mutables.times
 import dev.folomeev.kotgl.matrix.vectors.mutables.timesSelf
-import dev.folomeev.kotgl.matrix.vectors.mutables.toMutable
 import dev.folomeev.kotgl.matrix.vectors.sqrLength
-import dev.folomeev.kotgl.matrix.vectors.vec2
 import dev.folomeev.kotgl.matrix.vectors.vec3
 import dev.folomeev.kotgl.matrix.vectors.vecUnitX
 import dev.folomeev.kotgl.matrix.vectors.vecUnitY
@@ -43,14 +39,15 @@ import gg.essential.model.file.ParticleEffectComponents.ParticleAppearanceBillbo
 import gg.essential.model.file.ParticleEffectComponents.ParticleAppearanceBillboard.Direction.FromVelocity
 import gg.essential.model.file.ParticleEffectComponents.ParticleAppearanceBillboard.FacingCameraMode.*
 import gg.essential.model.file.ParticlesFile
+import gg.essential.model.molang.FixedVariables
 import gg.essential.model.molang.MolangContext
-import gg.essential.model.molang.MolangExpression
 import gg.essential.model.molang.MolangQuery
 import gg.essential.model.util.Color
 import gg.essential.model.light.Light
 import gg.essential.model.light.LightProvider
 import gg.essential.model.molang.MolangQueryEntity
 import gg.essential.model.molang.MolangQueryTime
+import gg.essential.model.molang.VariableSlot
 import gg.essential.model.molang.Variables
 import gg.essential.model.molang.VariablesMap
 import gg.essential.model.util.Quaternion
@@ -94,7 +91,14 @@ class ParticleSystem(
 ) {
     private val universes = mutableMapOf<MolangQueryTime, Universe>()
 
-    private val billboardRenderPasses = mutableMapOf<ParticleEffect.RenderPass, MutableSet<Particle>>()
+    private val billboardRenderPasses = mutableMapOf<ParticleEffect.RenderPass, RenderPassBucket>()
+
+    /** Simulation state of all live particles of this system. */
+    private val particleStore = ParticleStore()
+
+    /** Re-used across frames to sort particles of translucent render passes without allocating a new list each time. */
+    private val sortBuffer = mutableListOf<Particle>()
+    private val sortByDistance = Comparator<Particle> { a, b -> b.distance.compareTo(a.distance) }
 
     private inner class Universe(
         val timeSource: MolangQueryTime,
@@ -111,7 +115,7 @@ class ParticleSystem(
             val renderPass = effect.renderPass
             if (renderPass != null) {
                 if (effect.components.particleAppearanceBillboard != null) {
-                    billboardRenderPasses.getOrPut(renderPass, ::mutableSetOf).add(particle)
+                    billboardRenderPasses.getOrPut(renderPass, ::RenderPassBucket).add(particle)
                 }
             }
         }
@@ -123,18 +127,52 @@ class ParticleSystem(
             val renderPass = effect.renderPass
             if (renderPass != null) {
                 if (effect.components.particleAppearanceBillboard != null) {
-                    val renderPassSet = billboardRenderPasses.getValue(renderPass)
-                    renderPassSet.remove(particle)
-                    if (renderPassSet.isEmpty()) {
+                    val bucket = billboardRenderPasses.getValue(renderPass)
+                    bucket.remove(particle)
+                    if (bucket.isEmpty()) {
                         billboardRenderPasses.remove(renderPass)
                     }
                 }
             }
 
+            particle.release()
+
             return particle
         }
     }
 
+    /**
+     * The particles of a single billboard render pass.
+     * Each particle knows its own index in here, so it can be removed in constant time by moving the last particle
+     * into its place (which is fine because order only matters for passes which need sorting, and those are sorted
+     * each frame anyway).
+     */
+    private class RenderPassBucket {
+        private val particles = ArrayList<Particle>()
+
+        val size: Int
+            get() = particles.size
+
+        operator fun get(index: Int): Particle = particles[index]
+
+        fun isEmpty(): Boolean = particles.isEmpty()
+
+        fun add(particle: Particle) {
+            particle.bucketIndex = particles.size
+            particles.add(particle)
+        }
+
+        fun remove(particle: Particle) {
+            val index = particle.bucketIndex
+            val last = particles.removeAt(particles.lastIndex)
+            if (last !== particle) {
+                particles[index] = last
+                last.bucketIndex = index
+            }
+            particle.bucketIndex = -1
+        }
+    }
+
     fun spawn(event: ModelAnimationState.ParticleEvent) {
         val universe = universes.getOrPut(event.timeSource) { Universe(event.timeSource) }
         val emitter = Emitter(
@@ -253,17 +291,21 @@ class ParticleSystem(
         for ((renderPass, particles) in billboardRenderPasses.entries.sortedBy { it.key.material.needsSorting }) {
             particleVertexConsumerProvider.provide(renderPass) { vertexConsumer ->
                 if (renderPass.material.needsSorting) {
-                    for (particle in particles) {
+                    val sorted = sortBuffer
+                    for (i in 0 until particles.size) {
+                        val particle = particles[i]
                         particle.prepareBillboard(cameraPos, cameraRot)
-
-                        val billboardNormal = mutableVec3(0f, 0f, -1f).rotateSelfBy(particle.billboardRotation)
-                        particle.distance = cameraPos.minus(particle.billboardPosition).dot(billboardNormal)
+                        particle.updateDistance(cameraPos)
+                        sorted.add(particle)
                     }
-                    for (particle in particles.sortedByDescending { it.distance }) {
-                        particle.renderBillboard(matrixStack, vertexConsumer, cameraFacing, cameraUuid, cameraFirstPerson)
+                    sorted.sortWith(sortByDistance)
+                    for (i in sorted.indices) {
+                        sorted[i].renderBillboard(matrixStack, vertexConsumer, cameraFacing, cameraUuid, cameraFirstPerson)
                     }
+                    sorted.clear()
                 } else {
-                    for (particle in particles) {
+                    for (i in 0 until particles.size) {
+                        val particle = particles[i]
                         particle.prepareBillboard(cameraPos, cameraRot)
                         particle.renderBillboard(matrixStack, vertexConsumer, cameraFacing, cameraUuid, cameraFirstPerson)
                     }
@@ -551,8 +593,17 @@ class ParticleSystem(
         val localSpace: Locator?,
     ) {
         private val components = emitter.effect.components
+        private val store = emitter.system.particleStore
+
+        /** Index of the state of this particle in [store]. `-1` once the particle has been [released][release]. */
+        private var slot = store.allocate()
+
+        /** Index of this particle in its [RenderPassBucket], `-1` if it is not in any. */
+        var bucketIndex = -1
+
         val curveVariables = CurveVariables({ molang }, emitter.effect.curves)
         private val variables = VariablesMap()
+            .fallbackBackTo(StateVariables())
             .fallbackBackTo(curveVariables)
             .fallbackBackTo(emitter.molang.variables)
         private val molang: MolangContext = MolangContext(MolangQuery.Empty, variables)
@@ -561,8 +612,16 @@ class ParticleSystem(
         private var firedExpirationEvents = false
         private var nextTimelineEvent: Map.Entry<Float, List<String>>? = null
 
-        private var age: Float by variables.getOrPut("particle_age", 0f)
-        private var lifetime: Float by variables.getOrPut("particle_lifetime", 0f)
+        private var age: Float
+            get() = store.age[slot]
+            set(value) { store.age[slot] = value }
+        private var lifetime: Float
+            get() = store.lifetime[slot]
+            set(value) { store.lifetime[slot] = value }
+
+        /** Global position and velocity at the time this particle was released, for any locators still referencing it. */
+        private var releasedPosition: Vec3 = vecZero()
+        private var releasedVelocity: Vec3 = vecZero()
 
         init {
             for (i in 1..4) {
@@ -574,32 +633,53 @@ class ParticleSystem(
             nextTimelineEvent = components.particleLifetimeEvents.timeline.lowestEntry()
         }
 
-        /** Position of this particle. In local space if [localSpace] is given, otherwise in global space. */
-        val position = mutableVec3()
-        /** Velocity of this particle. In local space if [localSpace] is given, otherwise in global space. */
-        val velocity = mutableVec3()
-        /** Direction of this particle. In local space if [localSpace] is given, otherwise in global space. */
-        val direction = mutableVec3()
+        // Position, velocity and direction of this particle are stored in [store].
+        // In local space if [localSpace] is given, otherwise in global space.
 
         /** Position of this particle in global space. */
         val globalPosition: Vec3
-            get() = if (localSpace != null) position.rotateBy(localSpace.rotation).plusSelf(localSpace.position) else position
+            get() = when {
+                slot < 0 -> releasedPosition
+                localSpace != null -> store.position(slot).rotateSelfBy(localSpace.rotation).plusSelf(localSpace.position)
+                else -> store.position(slot)
+            }
         /** Velocity of this particle in global space. */
         val globalVelocity: Vec3
-            get() = if (localSpace != null) velocity.rotateBy(localSpace.rotation) else velocity
+            get() = when {
+                slot < 0 -> releasedVelocity
+                localSpace != null -> store.velocity(slot).rotateSelfBy(localSpace.rotation)
+                else -> store.velocity(slot)
+            }
 
         /** Rotation of the emitter when this particle was emitted. Undefined when [localSpace] is given. */
         val emitterRotationOnEmit = emitter.rotation
 
-        var rotationAngle = components.particleInitialSpin?.rotation?.eval(molang) ?: 0f
-        var rotationRate = components.particleInitialSpin?.rotationRate?.eval(molang) ?: 0f
+        private var rotationAngle: Float
+            get() = store.rotationAngle[slot]
+            set(value) { store.rotationAngle[slot] = value }
+        private var rotationRate: Float
+            get() = store.rotationRate[slot]
+            set(value) { store.rotationRate[slot] = value }
+
+        init {
+            rotationAngle = components.particleInitialSpin?.rotation?.eval(molang) ?: 0f
+            rotationRate = components.particleInitialSpin?.rotationRate?.eval(molang) ?: 0f
+        }
 
-        /** Stores the global position of the billboard (if any) of this particle. Valid only during rendering.*/
-        var billboardPosition = vec3()
-        /** Stores the global rotation of the billboard (if any) of this particle. Valid only during rendering. */
-        var billboardRotation = Quaternion.Identity
         /** Temporary value used for sorting because Kotlin doesn't seem to have a `sort_by_cached_key`. */
-        var distance: Float = 0f
+        val distance: Float
+            get() = store.distance[slot]
+
+        /**
+         * Returns the state of this particle to the [store].
+         * Must be called exactly once, when the particle is removed from the system.
+         */
+        fun release() {
+            releasedPosition = globalPosition
+            releasedVelocity = globalVelocity
+            store.release(slot)
+            slot = -1
+        }
 
         fun emit(inheritVelocity: Boolean) {
             var pos: Vec3 = vecZero()
@@ -709,13 +789,16 @@ class ParticleSystem(
                 pos = pos.plus(emitter.locatorOffset)
             }
 
-            position.set(pos)
-            direction.set(dir).normalizeSelf()
-            velocity.set(direction).timesSelf(components.particleInitialSpeed.eval(molang))
+            val direction = dir.normalize()
+            val velocity = direction.times(components.particleInitialSpeed.eval(molang))
 
             if (inheritVelocity || components.emitterLocalSpace?.velocity == true) {
                 velocity.plusSelf(emitter.velocity)
             }
+
+            store.setPosition(slot, pos)
+            store.setDirection(slot, direction)
+            store.setVelocity(slot, velocity)
         }
 
         fun update(dt: Float): Boolean {
@@ -752,18 +835,21 @@ class ParticleSystem(
             }
 
             components.particleMotionParametric?.let { config ->
-                position.set(config.relativePosition.eval(molang))
+                store.setPosition(slot, config.relativePosition.eval(molang))
                 rotationAngle = config.rotation.eval(molang)
                 if (config.direction != null) {
-                    direction.set(config.direction.eval(molang))
-                    velocity.set(vecZero())
+                    store.setDirection(slot, config.direction.eval(molang))
+                    store.setVelocity(slot, vecZero())
                 }
             }
 
             components.particleMotionDynamic?.let { config ->
-                val linearAcceleration = config.linearAcceleration.eval(molang).toMutable()
-                linearAcceleration.plusScaledSelf(-config.linearDragCoefficient.eval(molang), velocity)
-                if (!move(dt, linearAcceleration)) {
+                val linearAcceleration = config.linearAcceleration.eval(molang)
+                val drag = config.linearDragCoefficient.eval(molang)
+                val ax = linearAcceleration.x - drag * store.velocityX[slot]
+                val ay = linearAcceleration.y - drag * store.velocityY[slot]
+                val az = linearAcceleration.z - drag * store.velocityZ[slot]
+                if (!move(dt, ax, ay, az)) {
                     return false
                 }
 
@@ -779,9 +865,15 @@ class ParticleSystem(
 
             components.particleAppearanceBillboard?.let { config ->
                 if (config.direction is FromVelocity) {
-                    val lengthSqr = velocity.sqrLength()
-                    if (lengthSqr > config.direction.minSpeedThresholdSqr) {
-                        direction.set(velocity)
+                    val store = store
+                    val i = slot
+                    val vx = store.velocityX[i]
+                    val vy = store.velocityY[i]
+                    val vz = store.velocityZ[i]
+                    if (vx * vx + vy * vy + vz * vz > config.direction.minSpeedThresholdSqr) {
+                        store.directionX[i] = vx
+                        store.directionY[i] = vy
+                        store.directionZ[i] = vz
                     }
                 }
             }
@@ -802,26 +894,37 @@ class ParticleSystem(
         }
 
         /**
-         * Moves the particle assuming constant [acceleration] over [dt] time.
+         * Moves the particle assuming constant acceleration ([ax], [ay], [az]) over [dt] time.
          * May be invoked recursively in case of collisions. If so, [iteration] will be incremented by one each time.
          * Applies contact friction if [sliding] is `true` (it is for one of the recursive calls).
          */
-        private fun move(dt: Float, acceleration: Vec3, iteration: Int = 0, sliding: Boolean = false): Boolean {
-            val offset = mutableVec3(velocity)
-            offset.plusScaledSelf(0.5f * dt, acceleration)
-            offset.timesSelf(dt)
+        private fun move(dt: Float, ax: Float, ay: Float, az: Float, iteration: Int = 0, sliding: Boolean = false): Boolean {
+            val store = store
+            val i = slot
+            val offsetX = (store.velocityX[i] + 0.5f * dt * ax) * dt
+            val offsetY = (store.velocityY[i] + 0.5f * dt * ay) * dt
+            val offsetZ = (store.velocityZ[i] + 0.5f * dt * az) * dt
 
             val config = components.particleMotionCollision
             if (config == null) {
-                position.plusSelf(offset)
-                velocity.plusScaledSelf(dt, acceleration)
+                store.positionX[i] += offsetX
+                store.positionY[i] += offsetY
+                store.positionZ[i] += offsetZ
+                store.velocityX[i] += dt * ax
+                store.velocityY[i] += dt * ay
+                store.velocityZ[i] += dt * az
                 return true
             }
 
-            val collision = emitter.system.collisionProvider.query(position, config.collisionRadius, offset)
+            val offset = vec3(offsetX, offsetY, offsetZ)
+            val collision = emitter.system.collisionProvider.query(store.position(i), config.collisionRadius, offset)
             if (collision == null) {
-                position.plusSelf(offset)
-                velocity.plusScaledSelf(dt, acceleration)
+                store.positionX[i] += offsetX
+                store.positionY[i] += offsetY
+                store.positionZ[i] += offsetZ
+                store.velocityX[i] += dt * ax
+                store.velocityY[i] += dt * ay
+                store.velocityZ[i] += dt * az
                 if (sliding) {
                     // TODO unclear how this value should be input into this calculation, bedrocks docs give its unit as
                     //      blocks/sec but that's a speed.. idk what to do with that. I would have expected an
@@ -829,31 +932,34 @@ class ParticleSystem(
                     //      or when does it turn from zero length to a prolonged contact?).
                     //      For now I'm going to implement it as an acceleration applied for the duration the particle
                     //      is `sliding` (that is, it bounces of the same wall more than once within dt).
+                    val velocity = store.velocity(i)
                     val speedSqr = velocity.sqrLength()
                     if (speedSqr > 0.0000001f) {
                         val orgSpeed = sqrt(speedSqr)
                         val modifiedSpeed = (orgSpeed - config.collisionDrag * dt).coerceAtLeast(0f)
                         if (modifiedSpeed > 0.0001f) {
                             velocity.timesSelf(modifiedSpeed / orgSpeed)
+                            store.setVelocity(i, velocity)
                         } else {
-                            velocity.set(vecZero())
+                            store.setVelocity(i, vecZero())
                         }
                     } else {
-                        velocity.set(vecZero())
+                        store.setVelocity(i, vecZero())
                     }
                 }
                 return true
             }
 
             val (maxOffset, surfaceNormal) = collision
+            val acceleration = vec3(ax, ay, az)
 
             // If this is the third wall we've hit during this time-step, it's about time to give up and settle
             // with whatever safe position we've got, otherwise we could be doing this all day.
             // Same if the particle will die on contact, we'll want the death position correct and no more movement
             // afterwards.
             if (iteration >= 3 || config.expireOnContact) {
-                position.plusSelf(maxOffset)
-                velocity.plusScaledSelf(dt, acceleration)
+                store.setPosition(i, store.position(i).plusSelf(maxOffset))
+                store.setVelocity(i, store.velocity(i).apply { plusScaledSelf(dt, acceleration) })
                 return !config.expireOnContact
             }
 
@@ -864,16 +970,16 @@ class ParticleSystem(
             val preDt = sqrt(maxOffset.sqrLength() / offset.sqrLength()).coerceIn(0f, 1f) * dt
 
             // Compute state right before and right after the collision
-            val velocityBeforeHit = velocity.plusScaled(preDt, acceleration)
+            val velocityBeforeHit = store.velocity(i).apply { plusScaledSelf(preDt, acceleration) }
             val velocityAfterHit = reflect(velocityBeforeHit, surfaceNormal)
             velocityAfterHit.plusScaledSelf(
                 (config.coefficientOfRestitution - 1) * velocityAfterHit.dot(surfaceNormal),
                 surfaceNormal
             )
-            val positionAtHit = position.plus(maxOffset)
+            val positionAtHit = store.position(i).plusSelf(maxOffset)
 
-            position.set(positionAtHit)
-            velocity.set(velocityAfterHit)
+            store.setPosition(i, positionAtHit)
+            store.setVelocity(i, velocityAfterHit)
 
             // Continue simulation after the collision
             val postDt = dt - preDt
@@ -902,13 +1008,13 @@ class ParticleSystem(
             // of bounces.
             if (positionPostBounce.dot(surfaceNormal) > positionAtHit.dot(surfaceNormal)) {
                 // We will make it await from this surface, we could still hit another surface though, enter recursion
-                return move(postDt, acceleration, iteration + 1, sliding)
+                return move(postDt, ax, ay, az, iteration + 1, sliding)
             }
 
             // We will likely hit the same surface again within the same time step, meaning our bounces at this point
             // are rather tiny, so we'll assume them to be negligible and instead simulate a slide along the surface.
             val accelerationInPlane = acceleration.plusScaled(-acceleration.dot(surfaceNormal), surfaceNormal)
-            return move(postDt, accelerationInPlane, iteration + 1, true)
+            return move(postDt, accelerationInPlane.x, accelerationInPlane.y, accelerationInPlane.z, iteration + 1, true)
         }
 
         /**
@@ -922,7 +1028,7 @@ class ParticleSystem(
 
             fun computeDirection(): Vec3 {
                 val localDirection = when (val config = appearance.direction) {
-                    is FromVelocity -> direction
+                    is FromVelocity -> store.direction(slot)
                     is Custom -> config.direction.eval(molang)
                 }
                 return if (localSpace != null) {
@@ -960,8 +1066,28 @@ class ParticleSystem(
                 rot *= Quaternion.fromAxisAngle(vecUnitZ(), -rotationAngle / 180 * PI.toFloat())
             }
 
-            billboardPosition = position
-            billboardRotation = rot
+            store.setBillboard(slot, position, rot)
+        }
+
+        /**
+         * Updates [distance] to the distance of the billboard from the camera along its normal.
+         * Must be called after [prepareBillboard].
+         */
+        fun updateDistance(cameraPos: Vec3) {
+            val store = store
+            val i = slot
+            val dx = cameraPos.x - store.billboardX[i]
+            val dy = cameraPos.y - store.billboardY[i]
+            val dz = cameraPos.z - store.billboardZ[i]
+            // The billboard faces along its local -Z axis
+            val qx = store.billboardRotX[i]
+            val qy = store.billboardRotY[i]
+            val qz = store.billboardRotZ[i]
+            val qw = store.billboardRotW[i]
+            val nx = -2 * (qx * qz + qy * qw)
+            val ny = -2 * (qy * qz - qx * qw)
+            val nz = -1 + 2 * (qx * qx + qy * qy)
+            store.distance[i] = dx * nx + dy * ny + dz * nz
         }
 
         /**
@@ -986,25 +1112,42 @@ class ParticleSystem(
 
             components.particleInitialization?.perRenderExpression?.eval(molang)
 
-            val position = billboardPosition
-            val rotation = billboardRotation
-            val (sizeX, sizeY) = appearance.size.eval(molang)
-            val textureSize = vec2(appearance.uv.textureWidth.toFloat(), appearance.uv.textureHeight.toFloat())
+            val store = store
+            val i = slot
+            val x = store.billboardX[i].toDouble()
+            val y = store.billboardY[i].toDouble()
+            val z = store.billboardZ[i].toDouble()
+
+            // Columns of the rotation matrix of the billboard, i.e. its local X (right) and Y (up) axes in global space
+            val qx = store.billboardRotX[i]
+            val qy = store.billboardRotY[i]
+            val qz = store.billboardRotZ[i]
+            val qw = store.billboardRotW[i]
+            val rightX = 1 - 2 * (qy * qy + qz * qz)
+            val rightY = 2 * (qx * qy + qz * qw)
+            val rightZ = 2 * (qx * qz - qy * qw)
+            val upX = 2 * (qx * qy - qz * qw)
+            val upY = 1 - 2 * (qx * qx + qz * qz)
+            val upZ = 2 * (qy * qz + qx * qw)
+
+            val sizeX = appearance.size.first.eval(molang)
+            val sizeY = appearance.size.second.eval(molang)
+            val textureWidth = appearance.uv.textureWidth.toFloat()
+            val textureHeight = appearance.uv.textureHeight.toFloat()
             val color = components.particleAppearanceTinting?.color?.eval(molang)?.let(Color::fromVec) ?: Color.WHITE
             val light = if (components.particleAppearanceLighting != null) {
-                emitter.system.lightProvider.query(position)
+                emitter.system.lightProvider.query(vec3(x.toFloat(), y.toFloat(), z.toFloat()))
             } else {
                 Light.MAX_VALUE
             }
 
-            var minUV: Vec2
-            var maxUV: Vec2
+            var minU: Float
+            var minV: Float
+            var maxU: Float
+            var maxV: Float
 
             val flipbook = appearance.uv.flipbook
             if (flipbook != null) {
-                val base = flipbook.base.eval(molang)
-                val size = flipbook.size.toVec2()
-                val step = flipbook.step.toVec2()
                 val maxFrame = flipbook.maxFrame.eval(molang).toInt()
                 val timePerFrame = if (flipbook.stretchToLifetime) {
                     lifetime / maxFrame
@@ -1018,23 +1161,27 @@ class ParticleSystem(
                         frame.coerceAtMost(maxFrame)
                     }
                 }
-                minUV = base.plusScaled(frame.toFloat(), step)
-                maxUV = minUV.plus(size)
+                minU = flipbook.base.first.eval(molang) + frame * flipbook.step.first
+                minV = flipbook.base.second.eval(molang) + frame * flipbook.step.second
+                maxU = minU + flipbook.size.first
+                maxV = minV + flipbook.size.second
             } else {
-                val base = appearance.uv.uv?.eval(molang) ?: vecZero()
-                val size = appearance.uv.uvSize?.eval(molang) ?: textureSize
-                minUV = base
-                maxUV = minUV.plus(size)
+                val uv = appearance.uv.uv
+                val uvSize = appearance.uv.uvSize
+                minU = uv?.first?.eval(molang) ?: 0f
+                minV = uv?.second?.eval(molang) ?: 0f
+                maxU = minU + (uvSize?.first?.eval(molang) ?: textureWidth)
+                maxV = minV + (uvSize?.second?.eval(molang) ?: textureHeight)
             }
 
-            minUV = minUV.div(textureSize)
-            maxUV = maxUV.div(textureSize)
+            minU /= textureWidth
+            minV /= textureHeight
+            maxU /= textureWidth
+            maxV /= textureHeight
 
-            fun emitPoint(x: Float, y: Float, u: Float, v: Float) {
-                val pos = mutableVec3(x, y, 0f)
-                pos.rotateSelfBy(rotation)
+            fun emitPoint(sx: Float, sy: Float, u: Float, v: Float) {
                 vertexConsumer
-                    .pos(matrixStack, position.x + pos.x.toDouble(), position.y + pos.y.toDouble(), position.z + pos.z.toDouble())
+                    .pos(matrixStack, x + (rightX * sx + upX * sy), y + (rightY * sx + upY * sy), z + (rightZ * sx + upZ * sy))
                     .tex(u.toDouble(), v.toDouble())
                     .color(color)
                     .light(light)
@@ -1045,22 +1192,49 @@ class ParticleSystem(
             val flip = if (emitter.effect.material.backfaceCulling) {
                 false
             } else {
-                val billboardNormal = mutableVec3(0f, 0f, -1f).rotateSelfBy(rotation)
-                cameraFacing.dot(billboardNormal) > 0
+                // Billboard normal is the local -Z axis
+                val normalX = -2 * (qx * qz + qy * qw)
+                val normalY = -2 * (qy * qz - qx * qw)
+                val normalZ = -1 + 2 * (qx * qx + qy * qy)
+                cameraFacing.x * normalX + cameraFacing.y * normalY + cameraFacing.z * normalZ > 0
             }
             if (!flip) {
-                emitPoint(-sizeX, -sizeY, maxUV.x, maxUV.y)
-                emitPoint(-sizeX, +sizeY, maxUV.x, minUV.y)
-                emitPoint(+sizeX, +sizeY, minUV.x, minUV.y)
-                emitPoint(+sizeX, -sizeY, minUV.x, maxUV.y)
+                emitPoint(-sizeX, -sizeY, maxU, maxV)
+                emitPoint(-sizeX, +sizeY, maxU, minV)
+                emitPoint(+sizeX, +sizeY, minU, minV)
+                emitPoint(+sizeX, -sizeY, minU, maxV)
             } else {
-                emitPoint(+sizeX, -sizeY, minUV.x, maxUV.y)
-                emitPoint(+sizeX, +sizeY, minUV.x, minUV.y)
-                emitPoint(-sizeX, +sizeY, maxUV.x, minUV.y)
-                emitPoint(-sizeX, -sizeY, maxUV.x, maxUV.y)
+                emitPoint(+sizeX, -sizeY, minU, maxV)
+                emitPoint(+sizeX, +sizeY, minU, minV)
+                emitPoint(-sizeX, +sizeY, maxU, minV)
+                emitPoint(-sizeX, -sizeY, maxU, maxV)
             }
         }
 
+        private inner class StateVariables : FixedVariables {
+            private val ageVariable = object : Variables.Variable {
+                override fun get(): Float = age
+                override fun set(value: Float) { age = value }
+            }
+            private val lifetimeVariable = object : Variables.Variable {
+                override fun get(): Float = lifetime
+                override fun set(value: Float) { lifetime = value }
+            }
+
+            override fun getOrNull(name: String): Variables.Variable? = when (name) {
+                AGE.name -> ageVariable
+                LIFETIME.name -> lifetimeVariable
+                else -> null
+            }
+
+            override fun getOrNull(slot: VariableSlot): Variables.Variable? = when {
+                slot === AGE -> ageVariable
+                slot === LIFETIME -> lifetimeVariable
+                else -> null
+            }
+
+        }
+
         class LocatorFor(val particle: Particle) : Locator {
             override val parent: Locator?
                 get() = particle.localSpace
@@ -1073,6 +1247,11 @@ class ParticleSystem(
             override val velocity: Vec3
                 get() = particle.globalVelocity
         }
+
+        companion object {
+            private val AGE = VariableSlot.of("particle_age")
+            private val LIFETIME = VariableSlot.of("particle_lifetime")
+        }
     }
 
     interface Locator {
@@ -1109,15 +1288,10 @@ class ParticleSystem(
 private fun reflect(vec: Vec3, norm: Vec3) =
     vec.plusScaled(-2 * vec.dot(norm), norm)
 
-private fun Pair<Float, Float>.toVec2() = mutableVec2(first, second)
-
-private fun Pair<MolangExpression, MolangExpression>.eval(context: MolangContext) =
-    mutableVec2(first.eval(context), second.eval(context))
-
 private class CurveVariables(
     private val context: () -> MolangContext,
     private val curves: Map<String, ParticlesFile.Curve>,
-) : Variables {
+) : FixedVariables {
     private var frame = 0
 
     private val variables = mutableMapOf<String, Variable?>()
@@ -1131,9 +1305,6 @@ private class CurveVariables(
             curves["variable.$name"]?.let { Variable(it) }
         }
 
-    override fun getOrPut(name: String, initialValue: Float): Variables.Variable =
-        getOrNull(name) ?: throw UnsupportedOperationException("$this does not support unknown variables")
-
     private inner class Variable(val curve: ParticlesFile.Curve) : Variables.Variable {
         private var cachedFrame = -1
         private var cachedValue: Float = 0f
@@ -1199,3 +1370,137 @@ private fun ParticlesFile.Curve.eval(context: MolangContext): Float {
     }
 }
 
+/**
+ * Structure-of-arrays storage for the simulation state of all particles of a [ParticleSystem].
+ *
+ * Each particle is assigned a slot for its lifetime, slots of dead particles are re-used for new ones. The arrays are
+ * replaced whenever the store needs to grow, so they must be re-read (rather than cached in a local) after anything
+ * which may spawn new particles.
+ */
+private class ParticleStore {
+    var positionX = FloatArray(INITIAL_CAPACITY)
+    var positionY = FloatArray(INITIAL_CAPACITY)
+    var positionZ = FloatArray(INITIAL_CAPACITY)
+    var velocityX = FloatArray(INITIAL_CAPACITY)
+    var velocityY = FloatArray(INITIAL_CAPACITY)
+    var velocityZ = FloatArray(INITIAL_CAPACITY)
+    var directionX = FloatArray(INITIAL_CAPACITY)
+    var directionY = FloatArray(INITIAL_CAPACITY)
+    var directionZ = FloatArray(INITIAL_CAPACITY)
+    var age = FloatArray(INITIAL_CAPACITY)
+    var lifetime = FloatArray(INITIAL_CAPACITY)
+    var rotationAngle = FloatArray(INITIAL_CAPACITY)
+    var rotationRate = FloatArray(INITIAL_CAPACITY)
+
+    // Billboard state, only valid during rendering
+    var billboardX = FloatArray(INITIAL_CAPACITY)
+    var billboardY = FloatArray(INITIAL_CAPACITY)
+    var billboardZ = FloatArray(INITIAL_CAPACITY)
+    var billboardRotX = FloatArray(INITIAL_CAPACITY)
+    var billboardRotY = FloatArray(INITIAL_CAPACITY)
+    var billboardRotZ = FloatArray(INITIAL_CAPACITY)
+    var billboardRotW = FloatArray(INITIAL_CAPACITY)
+    var distance = FloatArray(INITIAL_CAPACITY)
+
+    /** Number of slots which have ever been handed out. */
+    private var used = 0
+    private var freeSlots = IntArray(INITIAL_CAPACITY)
+    private var freeCount = 0
+
+    fun allocate(): Int {
+        val slot = if (freeCount > 0) {
+            freeSlots[--freeCount]
+        } else {
+            if (used == positionX.size) {
+                grow(used * 2)
+            }
+            used++
+        }
+        positionX[slot] = 0f
+        positionY[slot] = 0f
+        positionZ[slot] = 0f
+        velocityX[slot] = 0f
+        velocityY[slot] = 0f
+        velocityZ[slot] = 0f
+        directionX[slot] = 0f
+        directionY[slot] = 0f
+        directionZ[slot] = 0f
+        age[slot] = 0f
+        lifetime[slot] = 0f
+        rotationAngle[slot] = 0f
+        rotationRate[slot] = 0f
+        return slot
+    }
+
+    fun release(slot: Int) {
+        if (freeCount == freeSlots.size) {
+            freeSlots = freeSlots.copyOf(freeCount * 2)
+        }
+        freeSlots[freeCount++] = slot
+        if (freeCount == used) {
+            // Everything is dead, start handing out slots from the beginning again to keep live ones close together
+            freeCount = 0
+            used = 0
+        }
+    }
+
+    private fun grow(capacity: Int) {
+        positionX = positionX.copyOf(capacity)
+        positionY = positionY.copyOf(capacity)
+        positionZ = positionZ.copyOf(capacity)
+        velocityX = velocityX.copyOf(capacity)
+        velocityY = velocityY.copyOf(capacity)
+        velocityZ = velocityZ.copyOf(capacity)
+        directionX = directionX.copyOf(capacity)
+        directionY = directionY.copyOf(capacity)
+        directionZ = directionZ.copyOf(capacity)
+        age = age.copyOf(capacity)
+        lifetime = lifetime.copyOf(capacity)
+        rotationAngle = rotationAngle.copyOf(capacity)
+        rotationRate = rotationRate.copyOf(capacity)
+        billboardX = billboardX.copyOf(capacity)
+        billboardY = billboardY.copyOf(capacity)
+        billboardZ = billboardZ.copyOf(capacity)
+        billboardRotX = billboardRotX.copyOf(capacity)
+        billboardRotY = billboardRotY.copyOf(capacity)
+        billboardRotZ = billboardRotZ.copyOf(capacity)
+        billboardRotW = billboardRotW.copyOf(capacity)
+        distance = distance.copyOf(capacity)
+    }
+
+    fun position(slot: Int): MutableVec3 = mutableVec3(positionX[slot], positionY[slot], positionZ[slot])
+    fun velocity(slot: Int): MutableVec3 = mutableVec3(velocityX[slot], velocityY[slot], velocityZ[slot])
+    fun direction(slot: Int): MutableVec3 = mutableVec3(directionX[slot], directionY[slot], directionZ[slot])
+
+    fun setPosition(slot: Int, vec: Vec3) {
+        positionX[slot] = vec.x
+        positionY[slot] = vec.y
+        positionZ[slot] = vec.z
+    }
+
+    fun setVelocity(slot: Int, vec: Vec3) {
+        velocityX[slot] = vec.x
+        velocityY[slot] = vec.y
+        velocityZ[slot] = vec.z
+    }
+
+    fun setDirection(slot: Int, vec: Vec3) {
+        directionX[slot] = vec.x
+        directionY[slot] = vec.y
+        directionZ[slot] = vec.z
+    }
+
+    fun setBillboard(slot: Int, position: Vec3, rotation: Quaternion) {
+        billboardX[slot] = position.x
+        billboardY[slot] = position.y
+        billboardZ[slot] = position.z
+        billboardRotX[slot] = rotation.x
+        billboardRotY[slot] = rotation.y
+        billboardRotZ[slot] = rotation.z
+        billboardRotW[slot] = rotation.w
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+    }
+}
@@ -13,209 +13,292 @@ package gg.essential.model.backend.atlas
 
 import gg.essential.model.backend.RenderBackend
 import gg.essential.model.backend.RenderBackend.Texture
-import gg.essential.model.util.ResourceCleaner
 import gg.essential.model.util.UVertexConsumer
-import java.util.*
-import kotlin.math.abs
+import gg.essential.util.WorkerPool
+import java.util.concurrent.CompletableFuture
 import kotlin.math.max
 import kotlin.math.min
 
-class TextureAtlas private constructor(
+/**
+ * A texture atlas into which individual textures can be inserted and from which they can be removed again.
+ *
+ * Textures are reference counted, so a texture which is used by multiple players only takes up space once.
+ * Space freed by removed textures is re-used for new ones. Once the free space becomes too fragmented, a more compact
+ * layout is computed in the background and applied on the next insertion. Only if a new texture does not fit into the
+ * free space at all is the atlas grown and re-packed immediately.
+ *
+ * Must only be used from the render thread.
+ */
+class TextureAtlas(
     private val renderBackend: RenderBackend,
-    val atlasTexture: Texture,
-    private val textures: Map<Texture, Entry>
+    private val name: String,
+    private val maxAtlasSize: Int = 4096,
+    /** See [fragmentation]. */
+    private val fragmentationThreshold: Float = 0.5f,
 ) : AutoCloseable {
+    var atlasWidth = INITIAL_SIZE
+        private set
+    var atlasHeight = INITIAL_SIZE
+        private set
+    var atlasTexture: Texture = renderBackend.createTexture("atlas/$name", atlasWidth, atlasHeight)
+        private set
+    private var generation = 0
 
-    init {
-        val renderBackend = renderBackend
-        val atlasTexture = atlasTexture
-        resourceCleaner.register(this) { renderBackend.deleteTexture(atlasTexture) }
-        resourceCleaner.runCleanups()
-    }
+    private val entries = mutableMapOf<Texture, Entry>()
+    private val freeRects = mutableListOf(XYWH(0, 0, atlasWidth, atlasHeight))
+
+    /** Area currently taken up by textures. */
+    var usedArea = 0
+        private set
+
+    private var pendingRepack: CompletableFuture<Packing?>? = null
+    private var pendingRepackTextures: Set<Texture> = emptySet()
+
+    /**
+     * How fragmented the free space of the atlas is, from `0` (all free space is in a single rect) to almost `1` (free
+     * space is spread over many small rects).
+     */
+    val fragmentation: Float
+        get() {
+            val freeArea = atlasWidth * atlasHeight - usedArea
+            if (freeArea == 0) return 0f
+            val largestFreeRect = freeRects.maxOfOrNull { it.w * it.h } ?: 0
+            return 1f - largestFreeRect.toFloat() / freeArea.toFloat()
+        }
 
     override fun close() {
         renderBackend.deleteTexture(atlasTexture)
     }
 
-    fun offsetVertexConsumer(texture: Texture, vertexConsumer: UVertexConsumer): UVertexConsumer {
-        val entry = textures.getValue(texture)
-        return object : UVertexConsumer by vertexConsumer {
-            override fun tex(u: Double, v: Double): UVertexConsumer {
-                vertexConsumer.tex(u * entry.uScale + entry.uOffset, v * entry.vScale + entry.vOffset)
-                return this
-            }
+    /**
+     * Adds a reference to the given texture, inserting it into the atlas if it is not yet in there.
+     * Returns `false` (without adding a reference) if the texture does not fit even into an atlas of maximum size.
+     */
+    fun acquire(texture: Texture): Boolean {
+        applyPendingRepack()
+
+        val existingEntry = entries[texture]
+        if (existingEntry != null) {
+            existingEntry.refCount++
+            return true
+        }
+
+        val rect = allocate(freeRects, texture.width, texture.height)
+        if (rect != null) {
+            renderBackend.blitTexture(atlasTexture, listOf(RenderBackend.BlitOp(texture, 0, 0, rect.x, rect.y, rect.w, rect.h)))
+            entries[texture] = Entry(rect.x, rect.y, rect.w, rect.h)
+            usedArea += rect.w * rect.h
+        } else {
+            // No free space left, need to grow the atlas right now
+            val packing = pack(sortForPacking(entries.keys + texture), maxAtlasSize) ?: return false
+            apply(packing)
         }
+
+        entries.getValue(texture).refCount++
+        return true
     }
 
-    private class Entry(val uScale: Double, val vScale: Double, val uOffset: Double, val vOffset: Double)
+    /** Removes a reference to the given texture. Once there are no more references, its space is freed. */
+    fun release(texture: Texture) {
+        val entry = entries[texture] ?: return
+        if (--entry.refCount > 0) return
 
-    companion object {
-        private val resourceCleaner = ResourceCleaner<TextureAtlas>()
-
-        fun create(renderBackend: RenderBackend, name: String, textures: Collection<Texture>): TextureAtlas? {
-            val toBePlaced = textures.map { it to WH(it.width, it.height) }
-
-            val sorted = toBePlaced.sortedByDescending { (_, size) -> with(size) { w * h * max(w, h) / min(w, h) } }
-            val packing = pack(sorted.map { it.first }, 4096) ?: return null
-
-            val atlasTexture = renderBackend.createTexture("atlas/$name", packing.atlasWidth, packing.atlasHeight)
-            renderBackend.blitTexture(atlasTexture, packing.textures.map { (texture, x, y, w, h, flipped) ->
-                // TODO implement flipping, somehow
-                RenderBackend.BlitOp(texture, 0, 0, x, y, w, h)
-            })
-            val texturesMap = packing.textures.associate { (texture, x, y, w, h, flipped) ->
-                // TODO implement flipping
-                texture to Entry(
-                    w.toDouble() / packing.atlasWidth.toDouble(),
-                    h.toDouble() / packing.atlasHeight.toDouble(),
-                    x.toDouble() / packing.atlasWidth.toDouble(),
-                    y.toDouble() / packing.atlasHeight.toDouble(),
-                )
-            }
-            return TextureAtlas(renderBackend, atlasTexture, texturesMap)
+        entries.remove(texture)
+        usedArea -= entry.w * entry.h
+        free(freeRects, XYWH(entry.x, entry.y, entry.w, entry.h))
+
+        if (entries.isEmpty()) {
+            freeRects.clear()
+            freeRects.add(XYWH(0, 0, atlasWidth, atlasHeight))
+        } else if (pendingRepack == null && fragmentation > fragmentationThreshold) {
+            val textures = sortForPacking(entries.keys)
+            pendingRepackTextures = entries.keys.toSet()
+            pendingRepack = CompletableFuture.supplyAsync({ pack(textures, maxAtlasSize) }, repackPool)
         }
     }
-}
 
-private data class WH(val w: Int, val h: Int)
-private data class XYWH(val x: Int, val y: Int, val w: Int, val h: Int)
-private class Packing(
-    val atlasWidth: Int,
-    val atlasHeight: Int,
-    val textures: List<Entry>,
-)
-private data class Entry(val texture: Texture, val x: Int, val y: Int, val w: Int, val h: Int, val flipped: Boolean)
+    private fun applyPendingRepack() {
+        val future = pendingRepack ?: return
+        if (!future.isDone) return
+        pendingRepack = null
 
-// Packing algorithm very much based on https://github.com/TeamHypersomnia/rectpack2D#algorithm
-private fun pack(textures: Iterable<Texture>, maxAtlasSize: Int): Packing? {
-    val discardStep = 16
-    val initialSize = 512
+        val packing = try {
+            future.get()
+        } catch (e: Exception) {
+            null
+        }
+        // If textures were added or removed in the meantime, the packing is outdated and we'll just try again later
+        if (packing != null && pendingRepackTextures == entries.keys) {
+            apply(packing)
+        }
+        pendingRepackTextures = emptySet()
+    }
 
-    var bestPacking: Packing? = packWithSize(textures, initialSize, initialSize)
+    private fun apply(packing: Packing) {
+        if (packing.atlasWidth != atlasWidth || packing.atlasHeight != atlasHeight) {
+            renderBackend.deleteTexture(atlasTexture)
+            atlasWidth = packing.atlasWidth
+            atlasHeight = packing.atlasHeight
+            atlasTexture = renderBackend.createTexture("atlas/$name-${++generation}", atlasWidth, atlasHeight)
+        }
+        renderBackend.blitTexture(atlasTexture, packing.textures.map { (texture, x, y, w, h, flipped) ->
+            // TODO implement flipping, somehow
+            RenderBackend.BlitOp(texture, 0, 0, x, y, w, h)
+        })
 
-    var squareSize = initialSize
-    while (bestPacking == null) {
-        squareSize *= 2
-        if (squareSize > maxAtlasSize) {
-            return null
+        usedArea = 0
+        for ((texture, x, y, w, h) in packing.textures) {
+            val entry = entries[texture]
+            if (entry != null) {
+                entry.x = x
+                entry.y = y
+            } else {
+                entries[texture] = Entry(x, y, w, h)
+            }
+            usedArea += w * h
         }
-        bestPacking = packWithSize(textures, squareSize, squareSize)
+        freeRects.clear()
+        freeRects.addAll(packing.freeRects)
     }
 
-    var step = -squareSize / 2
-    if (squareSize > initialSize) step /= 2
-    while (abs(step) >= discardStep) {
-        squareSize += step
-        val packing = packWithSize(textures, squareSize, squareSize)
-        step = if (packing == null) {
-            abs(step / 2)
-        } else {
-            -abs(step / 2)
+    fun offsetVertexConsumer(texture: Texture, vertexConsumer: UVertexConsumer): UVertexConsumer {
+        val entry = entries.getValue(texture)
+        // TODO implement flipping
+        val uScale = entry.w.toDouble() / atlasWidth.toDouble()
+        val vScale = entry.h.toDouble() / atlasHeight.toDouble()
+        val uOffset = entry.x.toDouble() / atlasWidth.toDouble()
+        val vOffset = entry.y.toDouble() / atlasHeight.toDouble()
+        return object : UVertexConsumer by vertexConsumer {
+            override fun tex(u: Double, v: Double): UVertexConsumer {
+                vertexConsumer.tex(u * uScale + uOffset, v * vScale + vOffset)
+                return this
+            }
         }
-        bestPacking = packing ?: bestPacking
     }
 
-    bestPacking!!
-    var width = bestPacking.atlasWidth
-    var height = bestPacking.atlasHeight
-
-    step = -width / 2
-    while (abs(step) >= discardStep) {
-        width += step
-        val packing = packWithSize(textures, width, height)
-        step = if (packing == null) {
-            abs(step / 2)
-        } else {
-            -abs(step / 2)
-        }
-        bestPacking = packing ?: bestPacking
+    private class Entry(var x: Int, var y: Int, val w: Int, val h: Int) {
+        var refCount = 0
     }
 
-    bestPacking!!
-    width = bestPacking.atlasWidth
-    height = bestPacking.atlasHeight
+    companion object {
+        private const val INITIAL_SIZE = 512
 
-    step = -height / 2
-    while (abs(step) >= discardStep) {
-        height += step
-        val packing = packWithSize(textures, width, height)
-        step = if (packing == null) {
-            abs(step / 2)
-        } else {
-            -abs(step / 2)
-        }
-        bestPacking = packing ?: bestPacking
+        private val repackPool = WorkerPool("Texture Atlas Repacker", 1)
+
+        internal fun sortForPacking(textures: Collection<Texture>): List<Texture> =
+            textures.sortedByDescending { with(it) { width * height * max(width, height) / min(width, height) } }
     }
+}
+
+internal data class XYWH(val x: Int, val y: Int, val w: Int, val h: Int)
+internal class Packing(
+    val atlasWidth: Int,
+    val atlasHeight: Int,
+    val textures: List<Placement>,
+    val freeRects: List<XYWH>,
+)
+internal data class Placement(val texture: Texture, val x: Int, val y: Int, val w: Int, val h: Int, val flipped: Boolean)
 
-    return bestPacking
+/**
+ * Packs the given textures into the smallest square power-of-two atlas they fit into.
+ *
+ * Unlike a tight fit, this leaves some room for textures to be added later without having to re-pack.
+ */
+internal fun pack(textures: List<Texture>, maxAtlasSize: Int): Packing? {
+    var size = 512
+    while (size <= maxAtlasSize) {
+        packWithSize(textures, size, size)?.let { return it }
+        size *= 2
+    }
+    return null
 }
 
+// Packing algorithm very much based on https://github.com/TeamHypersomnia/rectpack2D#algorithm
 private fun packWithSize(textures: Iterable<Texture>, atlasWidth: Int, atlasHeight: Int): Packing? {
-    val packedTextures = mutableListOf<Entry>()
+    val packedTextures = mutableListOf<Placement>()
     val freeRects = mutableListOf(XYWH(0, 0, atlasWidth, atlasHeight))
-    textures@for (texture in textures) {
-        // Search backwards through all free rects, so we try smaller ones first
-        for (i in freeRects.lastIndex downTo 0) {
-            val freeRect = freeRects[i]
+    for (texture in textures) {
+        val rect = allocate(freeRects, texture.width, texture.height)
+            ?: return null // No fitting free space found, give up
+        packedTextures.add(Placement(texture, rect.x, rect.y, rect.w, rect.h, false))
+        /* TODO implement flipping by trying allocate(freeRects, texture.height, texture.width) */
+    }
+    return Packing(atlasWidth, atlasHeight, packedTextures, freeRects)
+}
 
-            fun place(textureW: Int, textureH: Int, flipped: Boolean): Boolean {
-                val remainingW = freeRect.w - textureW
-                val remainingH = freeRect.h - textureH
+/** Finds space for a texture of the given size in [freeRects], updating them accordingly. */
+internal fun allocate(freeRects: MutableList<XYWH>, textureW: Int, textureH: Int): XYWH? {
+    // Search backwards through all free rects, so we try smaller ones first
+    for (i in freeRects.lastIndex downTo 0) {
+        val freeRect = freeRects[i]
 
-                if (remainingW < 0 || remainingH < 0) {
-                    return false // doesn't fit, try next one
-                }
+        val remainingW = freeRect.w - textureW
+        val remainingH = freeRect.h - textureH
 
-                // Texture fits into this free rect, place it
-                packedTextures.add(Entry(texture, freeRect.x, freeRect.y, textureW, textureH, flipped))
-
-                // Fits, remove the free rect
-                // (by swapping with the last one so we don't need to shift the entire array)
-                freeRects[i] = freeRects.last()
-                freeRects.removeLast()
-
-                when {
-                    // Texture fills entire freeRect, nothing remains
-                    remainingW == 0 && remainingH == 0 -> {}
-                    // Texture fill entire width, add remaining height as new free rect
-                    remainingW == 0 ->
-                        freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, freeRect.w, remainingH))
-                    // Texture fill entire height, add remaining width as new free rect
-                    remainingH == 0 ->
-                        freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, freeRect.h))
-                    // Texture fills neither width nor height, add remaining space as two free rects
-                    else -> {
-                        // Prefer one tiny and one huge free rect, assumption being that less space is wasted that way.
-                        // Insert tiny one last so it is tried first for subsequent loops
-                        if (remainingW > remainingH) {
-                            // Large rect to the right of the texture
-                            freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, freeRect.h))
-                            // Small rect directly below the texture
-                            freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, textureW, remainingH))
-                        } else {
-                            // Large rect below the texture
-                            freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, freeRect.w, remainingH))
-                            // Small rect directly to the right of the texture
-                            freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, textureH))
-                        }
-                    }
-                }
+        if (remainingW < 0 || remainingH < 0) {
+            continue // doesn't fit, try next one
+        }
 
-                return true
-            }
+        // Fits, remove the free rect
+        // (by swapping with the last one so we don't need to shift the entire array)
+        freeRects[i] = freeRects.last()
+        freeRects.removeLast()
 
-            if (place(texture.width, texture.height, false)) {
-                continue@textures
-            }
-            /* TODO implement
-            if (place(texture.height, texture.width, true)) {
-                continue@textures
+        when {
+            // Texture fills entire freeRect, nothing remains
+            remainingW == 0 && remainingH == 0 -> {}
+            // Texture fill entire width, add remaining height as new free rect
+            remainingW == 0 ->
+                freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, freeRect.w, remainingH))
+            // Texture fill entire height, add remaining width as new free rect
+            remainingH == 0 ->
+                freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, freeRect.h))
+            // Texture fills neither width nor height, add remaining space as two free rects
+            else -> {
+                // Prefer one tiny and one huge free rect, assumption being that less space is wasted that way.
+                // Insert tiny one last so it is tried first for subsequent loops
+                if (remainingW > remainingH) {
+                    // Large rect to the right of the texture
+                    freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, freeRect.h))
+                    // Small rect directly below the texture
+                    freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, textureW, remainingH))
+                } else {
+                    // Large rect below the texture
+                    freeRects.add(XYWH(freeRect.x, freeRect.y + textureH, freeRect.w, remainingH))
+                    // Small rect directly to the right of the texture
+                    freeRects.add(XYWH(freeRect.x + textureW, freeRect.y, remainingW, textureH))
+                }
             }
-             */
         }
 
-        // No fitting free space found, give up
-        return null
+        // Texture fits into this free rect, place it
+        return XYWH(freeRect.x, freeRect.y, textureW, textureH)
+    }
+    return null
+}
+
+/** Returns the given rect to [freeRects], merging it with free neighbours which share an entire edge. */
+internal fun free(freeRects: MutableList<XYWH>, rect: XYWH) {
+    var merged = rect
+    search@ while (true) {
+        for (i in freeRects.indices) {
+            val other = freeRects[i]
+            merged = when {
+                other.y == merged.y && other.h == merged.h && other.x + other.w == merged.x ->
+                    XYWH(other.x, merged.y, other.w + merged.w, merged.h)
+                other.y == merged.y && other.h == merged.h && merged.x + merged.w == other.x ->
+                    XYWH(merged.x, merged.y, merged.w + other.w, merged.h)
+                other.x == merged.x && other.w == merged.w && other.y + other.h == merged.y ->
+                    XYWH(merged.x, other.y, merged.w, other.h + merged.h)
+                other.x == merged.x && other.w == merged.w && merged.y + merged.h == other.y ->
+                    XYWH(merged.x, merged.y, merged.w, merged.h + other.h)
+                else -> continue
+            }
+            freeRects[i] = freeRects.last()
+            freeRects.removeLast()
+            continue@search
+        }
+        break
     }
-    return Packing(atlasWidth, atlasHeight, packedTextures)
+    freeRects.add(merged)
 }
@@ -13,13 +13,19 @@ package gg.essential.model.molang
 
 import gg.essential.model.ParticleSystem
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.random.Random
 import kotlin.reflect.KProperty
 
 class MolangContext(
     val query: MolangQuery,
     val variables: Variables = VariablesMap(),
-)
+) {
+    /** Set by [ReturnExpr] to unwind the enclosing [ComplexExpr]. */
+    internal var returning: Boolean = false
+    internal var returnValue: Float = 0f
+}
 
 interface MolangQuery {
     object Empty : MolangQuery
@@ -59,12 +65,22 @@ interface Variables {
     /** Returns the variable with the given name. Initializing it with [initialValue] if it does not yet exist. */
     fun getOrPut(name: String, initialValue: Float = 0f): Variable
 
+    /** Same as [getOrNull] but with a pre-resolved [slot], which implementations may look up without hashing the name. */
+    fun getOrNull(slot: VariableSlot): Variable? = getOrNull(slot.name)
+
+    /** Same as [getOrPut] but with a pre-resolved [slot], which implementations may look up without hashing the name. */
+    fun getOrPut(slot: VariableSlot, initialValue: Float = 0f): Variable = getOrPut(slot.name, initialValue)
+
     /** Returns the value of the variable with the given name or 0 if no such variable exists. */
     operator fun get(name: String): Float = getOrNull(name)?.get() ?: 0f
 
     /** Sets the value of the variable with the given name. Creates the variable if it does not yet exist. */
     operator fun set(name: String, value: Float) = getOrPut(name).set(value)
 
+    operator fun get(slot: VariableSlot): Float = getOrNull(slot)?.get() ?: 0f
+
+    operator fun set(slot: VariableSlot, value: Float) = getOrPut(slot).set(value)
+
     /**
      * Returns a new [Variables] instance that contains the variables of `this` instance and the [fallback] instance.
      * When both instances contain a variable, the one in `this` instance is returned.
@@ -81,25 +97,88 @@ interface Variables {
     }
 }
 
+/**
+ * A variable name resolved to a small, globally unique index.
+ * Variable names in molang expressions are resolved once when they are parsed, so evaluation does not need to hash
+ * (or even look at) the name.
+ */
+class VariableSlot private constructor(val name: String, val index: Int) {
+    override fun toString(): String = "variable.$name"
+
+    companion object {
+        private val slots = ConcurrentHashMap<String, VariableSlot>()
+        private val nextIndex = AtomicInteger()
+
+        /** Returns the slot for the given variable name, allocating one if necessary. */
+        fun of(name: String): VariableSlot =
+            slots[name] ?: slots.computeIfAbsent(name) { VariableSlot(it, nextIndex.getAndIncrement()) }
+
+        /** Returns the slot for the given variable name, or null if no variable with this name has ever been used. */
+        fun find(name: String): VariableSlot? = slots[name]
+    }
+}
+
 class VariablesMap : Variables {
-    private val map = mutableMapOf<String, Variable>()
+    // Most contexts only hold a handful of variables, so a linear scan over the slot indices beats any kind of hashing
+    private var indices = IntArray(4)
+    private var values = arrayOfNulls<Variable>(4)
+    private var size = 0
 
     override fun getOrNull(name: String): Variables.Variable? =
-        map[name]
+        VariableSlot.find(name)?.let { getOrNull(it) }
 
     override fun getOrPut(name: String, initialValue: Float): Variables.Variable =
-        map.getOrPut(name) { Variable(initialValue) }
+        getOrPut(VariableSlot.of(name), initialValue)
+
+    override fun getOrNull(slot: VariableSlot): Variables.Variable? {
+        val index = slot.index
+        val indices = indices
+        for (i in 0 until size) {
+            if (indices[i] == index) {
+                return values[i]
+            }
+        }
+        return null
+    }
 
-    private class Variable(var field: Float) : Variables.Variable {
-        override fun get(): Float = field
-        override fun set(value: Float) { field = value }
+    override fun getOrPut(slot: VariableSlot, initialValue: Float): Variables.Variable {
+        getOrNull(slot)?.let { return it }
+        if (size == indices.size) {
+            indices = indices.copyOf(size * 2)
+            values = values.copyOf(size * 2)
+        }
+        val variable = SimpleVariable(initialValue)
+        indices[size] = slot.index
+        values[size] = variable
+        size++
+        return variable
     }
 }
 
+/**
+ * A fixed set of variables, to which no new ones can be added.
+ *
+ * Meant to be used as a fallback behind a [VariablesMap] (see [Variables.fallbackBackTo]), which is where new variables
+ * are created. Calling [getOrPut] on it directly for an unknown variable is a bug and throws.
+ */
+interface FixedVariables : Variables {
+    override fun getOrPut(name: String, initialValue: Float): Variables.Variable =
+        getOrNull(name) ?: throw UnsupportedOperationException("$this does not support unknown variables")
+}
+
+private class SimpleVariable(var field: Float) : Variables.Variable {
+    override fun get(): Float = field
+    override fun set(value: Float) { field = value }
+}
+
 private class VariablesWithFallback(val primary: Variables, val fallback: Variables) : Variables {
     override fun getOrNull(name: String): Variables.Variable? = primary.getOrNull(name) ?: fallback.getOrNull(name)
 
     override fun getOrPut(name: String, initialValue: Float): Variables.Variable =
         getOrNull(name) ?: primary.getOrPut(name, initialValue)
-}
 
+    override fun getOrNull(slot: VariableSlot): Variables.Variable? = primary.getOrNull(slot) ?: fallback.getOrNull(slot)
+
+    override fun getOrPut(slot: VariableSlot, initialValue: Float): Variables.Variable =
+        getOrNull(slot) ?: primary.getOrPut(slot, initialValue)
+}
@@ -105,12 +105,17 @@ data class RandomExpr(val low: MolangExpression, val high: MolangExpression) : M
     }
 }
 
-data class QueryExpr(val f: MolangQuery.() -> Float) : MolangExpression {
-    override fun eval(context: MolangContext): Float = context.query.run(f)
+data class QueryExpr(val f: QueryFunction) : MolangExpression {
+    override fun eval(context: MolangContext): Float = f.eval(context.query)
+
+    /** Unlike a `MolangQuery.() -> Float` lambda, this doesn't box the result. */
+    fun interface QueryFunction {
+        fun eval(query: MolangQuery): Float
+    }
 
     companion object {
         inline operator fun <reified T : MolangQuery> invoke(crossinline f: T.() -> Float) =
-            QueryExpr { (this as? T)?.let(f) ?: 0f }
+            QueryExpr(QueryFunction { query -> if (query is T) query.f() else 0f })
     }
 }
 
@@ -118,13 +123,23 @@ data class ComparisonExpr(val left: MolangExpression, val right: MolangExpressio
     override fun eval(context: MolangContext): Float =
         if (op.check(left.eval(context), right.eval(context))) 1f else 0f
 
-    enum class Op(val check: (a: Float, b: Float) -> Boolean) {
-        Equal({ a, b -> a == b }),
-        NotEqual({ a, b -> a != b }),
-        LessThan({ a, b -> a < b }),
-        LessThanOrEqual({ a, b -> a <= b }),
-        GreaterThan({ a, b -> a > b }),
-        GreaterThanOrEqual({ a, b -> a >= b }),
+    enum class Op {
+        Equal,
+        NotEqual,
+        LessThan,
+        LessThanOrEqual,
+        GreaterThan,
+        GreaterThanOrEqual;
+
+        // A `when` rather than a lambda per constant, so the floats do not get boxed
+        fun check(a: Float, b: Float): Boolean = when (this) {
+            Equal -> a == b
+            NotEqual -> a != b
+            LessThan -> a < b
+            LessThanOrEqual -> a <= b
+            GreaterThan -> a > b
+            GreaterThanOrEqual -> a >= b
+        }
     }
 }
 
@@ -149,9 +164,11 @@ data class TernaryExpr(
 }
 
 data class VariableExpr(val key: String) : MolangExpression, MolangVariable {
-    override fun eval(context: MolangContext): Float = context.variables[key]
+    private val slot = VariableSlot.of(key)
+
+    override fun eval(context: MolangContext): Float = context.variables[slot]
     override fun assign(context: MolangContext, value: Float) {
-        context.variables[key] = value
+        context.variables[slot] = value
     }
 }
 
@@ -166,33 +183,42 @@ data class StatementsExpr(val statements: List<MolangExpression>, val result: Mo
     override fun eval(context: MolangContext): Float {
         for (statement in statements) {
             statement.eval(context)
+            if (context.returning) {
+                return 0f
+            }
         }
         return result.eval(context)
     }
 }
 
+/**
+ * Stores the value in the context and flags it as [returning][MolangContext.returning], which makes all enclosing
+ * [StatementsExpr] skip their remaining statements until the flag is picked up by the surrounding [ComplexExpr].
+ */
 data class ReturnExpr(val inner: MolangExpression) : MolangExpression {
     override fun eval(context: MolangContext): Float {
-        throw Return(inner.eval(context))
+        context.returnValue = inner.eval(context)
+        context.returning = true
+        return 0f
     }
-
-    internal class Return(val value: Float) : Throwable()
 }
 
 data class ComplexExpr(val inner: MolangExpression) : MolangExpression {
     override fun eval(context: MolangContext): Float {
-        return try {
-            inner.eval(context)
-        } catch (e: ReturnExpr.Return) {
-            e.value
+        context.returning = false
+        val value = inner.eval(context)
+        if (context.returning) {
+            context.returning = false
+            return context.returnValue
         }
+        return value
     }
 }
 
 private fun Float.toRadians() = this / 180 * PI.toFloat()
 
 private class Parser(str: String) {
-    /** How many return expressions there are. Need to wrap the entire expression in a try-catch if any remain. */
+    /** How many return expressions there are. Need to wrap the entire expression in a [ComplexExpr] if any remain. */
     private var returns: Int = 0
 
     val str = str.lowercase()
@@ -406,12 +432,12 @@ private class Parser(str: String) {
         }
 
         // If there's still a `return` expression somewhere in this molang expression, we need to wrap the entire thing
-        // in a try-catch to handle it.
+        // in a ComplexExpr to handle it.
         if (returns > 0) {
             expr = ComplexExpr(expr)
         }
 
-        return expr
+        return expr.fold()
     }
 
     fun fullyParseMolang(): MolangExpression {
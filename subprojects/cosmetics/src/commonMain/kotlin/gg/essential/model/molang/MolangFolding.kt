@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model.molang
+
+/** Context used to evaluate constant sub-expressions. These by definition never access the query or variables. */
+private val CONSTANT_CONTEXT = MolangContext(MolangQuery.Empty)
+
+/**
+ * Returns an equivalent expression with all constant sub-expressions evaluated ahead of time and trivial operations
+ * (adding zero, multiplying by one, double negation, ternaries with constant conditions) removed.
+ *
+ * Expressions with side effects or non-deterministic results (variables, queries, assignments, random numbers,
+ * `return`) are never folded themselves, but their operands are.
+ */
+internal fun MolangExpression.fold(): MolangExpression = when (this) {
+    is LiteralExpr, is QueryExpr, is VariableExpr -> this
+
+    is NegExpr -> when (val inner = inner.fold()) {
+        is NegExpr -> inner.inner
+        else -> NegExpr(inner).constantOrSelf(inner)
+    }
+    is InvExpr -> inner.fold().let { InvExpr(it).constantOrSelf(it) }
+    is AddExpr -> {
+        val left = left.fold()
+        val right = right.fold()
+        when {
+            left.isLiteral(0f) -> right
+            right.isLiteral(0f) -> left
+            else -> AddExpr(left, right).constantOrSelf(left, right)
+        }
+    }
+    is MulExpr -> {
+        val left = left.fold()
+        val right = right.fold()
+        when {
+            left.isLiteral(1f) -> right
+            right.isLiteral(1f) -> left
+            else -> MulExpr(left, right).constantOrSelf(left, right)
+        }
+    }
+    is SinExpr -> inner.fold().let { SinExpr(it).constantOrSelf(it) }
+    is CosExpr -> inner.fold().let { CosExpr(it).constantOrSelf(it) }
+    is FloorExpr -> inner.fold().let { FloorExpr(it).constantOrSelf(it) }
+    is CeilExpr -> inner.fold().let { CeilExpr(it).constantOrSelf(it) }
+    is RoundExpr -> inner.fold().let { RoundExpr(it).constantOrSelf(it) }
+    is TruncExpr -> inner.fold().let { TruncExpr(it).constantOrSelf(it) }
+    is AbsExpr -> inner.fold().let { AbsExpr(it).constantOrSelf(it) }
+    is ClampExpr -> {
+        val value = value.fold()
+        val min = min.fold()
+        val max = max.fold()
+        ClampExpr(value, min, max).constantOrSelf(value, min, max)
+    }
+    is ComparisonExpr -> {
+        val left = left.fold()
+        val right = right.fold()
+        ComparisonExpr(left, right, op).constantOrSelf(left, right)
+    }
+    is LogicalOrExpr -> {
+        val left = left.fold()
+        val right = right.fold()
+        LogicalOrExpr(left, right).constantOrSelf(left, right)
+    }
+    is LogicalAndExpr -> {
+        val left = left.fold()
+        val right = right.fold()
+        LogicalAndExpr(left, right).constantOrSelf(left, right)
+    }
+    is TernaryExpr -> {
+        val condition = condition.fold()
+        if (condition is LiteralExpr) {
+            (if (condition.value != 0f) trueCase else falseCase).fold()
+        } else {
+            TernaryExpr(condition, trueCase.fold(), falseCase.fold())
+        }
+    }
+
+    is RandomExpr -> RandomExpr(low.fold(), high.fold())
+    is AssignmentExpr -> AssignmentExpr(variable, inner.fold())
+    // Literal statements have no effect, so they can be dropped entirely
+    is StatementsExpr -> StatementsExpr(statements.map { it.fold() }.filter { it !is LiteralExpr }, result.fold())
+    is ReturnExpr -> ReturnExpr(inner.fold())
+    is ComplexExpr -> ComplexExpr(inner.fold())
+
+    else -> this
+}
+
+private fun MolangExpression.isLiteral(value: Float) = this is LiteralExpr && this.value == value
+
+private fun MolangExpression.constantOrSelf(vararg operands: MolangExpression): MolangExpression {
+    if (operands.any { it !is LiteralExpr }) {
+        return this
+    }
+    return try {
+        LiteralExpr(eval(CONSTANT_CONTEXT))
+    } catch (e: IllegalArgumentException) {
+        this // e.g. clamp with min > max, leave it to fail at runtime like it used to
+    }
+}
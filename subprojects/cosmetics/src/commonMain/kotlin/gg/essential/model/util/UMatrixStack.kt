@@ -15,7 +15,6 @@ import dev.folomeev.kotgl.matrix.matrices.Mat3
 import dev.folomeev.kotgl.matrix.matrices.Mat4
 import dev.folomeev.kotgl.matrix.matrices.identityMat3
 import dev.folomeev.kotgl.matrix.matrices.identityMat4
-import dev.folomeev.kotgl.matrix.matrices.mat3
 import dev.folomeev.kotgl.matrix.matrices.mutables.MutableMat3
 import dev.folomeev.kotgl.matrix.matrices.mutables.MutableMat4
 import dev.folomeev.kotgl.matrix.matrices.mutables.timesSelf
@@ -27,6 +26,14 @@ import kotlin.math.cos
 import kotlin.math.sin
 import kotlin.math.sqrt
 
+/**
+ * A stack of model and normal matrices.
+ *
+ * This is used in the per-bone, per-player cosmetic render loop, so none of its operations allocate once the stack has
+ * reached its maximum depth: popped entries are kept around and re-used by [push], and all transformations are applied
+ * to the top entry in place.
+ * As a consequence, the [Entry] returned by [peek] must not be held on to across a [pop].
+ */
 class UMatrixStack(
     private val stack: MutableList<Entry>,
 ) {
@@ -35,18 +42,17 @@ class UMatrixStack(
         normal: Mat3 = identityMat3(),
     ) : this(mutableListOf(Entry(model.toMutable(), normal.toMutable())))
 
+    /** Index of the current top entry in [stack]. Entries above it are unused and only kept for re-use by [push]. */
+    private var top = stack.size - 1
+
     fun translate(x: Float, y: Float, z: Float) {
         if (x == 0f && y == 0f && z == 0f) return
-        stack.last().run {
-            // kotgl's builtin translate functions put the translation in the wrong place (last row
-            // instead of column)
-            model.timesSelf(
-                identityMat4().toMutable().apply {
-                    m03 = x
-                    m13 = y
-                    m23 = z
-                }
-            )
+        // Equivalent to multiplying with a translation matrix from the right, which only affects the last column
+        with(stack[top].model) {
+            m03 += m00 * x + m01 * y + m02 * z
+            m13 += m10 * x + m11 * y + m12 * z
+            m23 += m20 * x + m21 * y + m22 * z
+            m33 += m30 * x + m31 * y + m32 * z
         }
     }
 
@@ -58,64 +64,80 @@ class UMatrixStack(
 
     fun scale(x: Float, y: Float, z: Float) {
         if (x == 1f && y == 1f && z == 1f) return
-        return stack.last().run {
-            // kotgl's builtin scale functions also scale the translate values
-            model.timesSelf(
-                identityMat4().toMutable().apply {
-                    m00 = x
-                    m11 = y
-                    m22 = z
-                }
-            )
+        val entry = stack[top]
+        // Equivalent to multiplying with a scale matrix from the right, which simply scales each of the first three
+        // columns (and unlike kotgl's builtin scale functions, does not scale the translation)
+        with(entry.model) {
+            m00 *= x; m10 *= x; m20 *= x; m30 *= x
+            m01 *= y; m11 *= y; m21 *= y; m31 *= y
+            m02 *= z; m12 *= z; m22 *= z; m32 *= z
+        }
+        with(entry.normal) {
             if (x == y && y == z) {
                 if (x < 0f) {
-                    normal.timesSelf(-1f)
+                    m00 = -m00; m01 = -m01; m02 = -m02
+                    m10 = -m10; m11 = -m11; m12 = -m12
+                    m20 = -m20; m21 = -m21; m22 = -m22
                 }
             } else {
                 val ix = 1f / x
                 val iy = 1f / y
                 val iz = 1f / z
                 val rt = cbrt(ix * iy * iz)
-                normal.timesSelf(
-                    identityMat3().toMutable().apply {
-                        m00 = rt * ix
-                        m11 = rt * iy
-                        m22 = rt * iz
-                    }
-                )
+                val sx = rt * ix
+                val sy = rt * iy
+                val sz = rt * iz
+                m00 *= sx; m10 *= sx; m20 *= sx
+                m01 *= sy; m11 *= sy; m21 *= sy
+                m02 *= sz; m12 *= sz; m22 *= sz
             }
         }
     }
 
     fun rotate(angle: Float, x: Float, y: Float, z: Float, degrees: Boolean) {
         if (angle == 0f) return
-        stack.last().run {
-            val angleRadians = if (degrees) (angle / 180 * PI).toFloat() else angle
-            val c = cos(angleRadians)
-            val s = sin(angleRadians)
-            val oneMinusC = 1 - c
-            val xx = x * x
-            val xy = x * y
-            val xz = x * z
-            val yy = y * y
-            val yz = y * z
-            val zz = z * z
-            val xs = x * s
-            val ys = y * s
-            val zs = z * s
-            val rotation = mat3(
-                xx * oneMinusC + c,
-                xy * oneMinusC - zs,
-                xz * oneMinusC + ys,
-                xy * oneMinusC + zs,
-                yy * oneMinusC + c,
-                yz * oneMinusC - xs,
-                xz * oneMinusC - ys,
-                yz * oneMinusC + xs,
-                zz * oneMinusC + c,
-            )
-            model.timesSelf(rotation.toMat4())
-            normal.timesSelf(rotation)
+        val angleRadians = if (degrees) (angle / 180 * PI).toFloat() else angle
+        val c = cos(angleRadians)
+        val s = sin(angleRadians)
+        val oneMinusC = 1 - c
+        val xx = x * x
+        val xy = x * y
+        val xz = x * z
+        val yy = y * y
+        val yz = y * z
+        val zz = z * z
+        val xs = x * s
+        val ys = y * s
+        val zs = z * s
+        val r00 = xx * oneMinusC + c
+        val r01 = xy * oneMinusC - zs
+        val r02 = xz * oneMinusC + ys
+        val r10 = xy * oneMinusC + zs
+        val r11 = yy * oneMinusC + c
+        val r12 = yz * oneMinusC - xs
+        val r20 = xz * oneMinusC - ys
+        val r21 = yz * oneMinusC + xs
+        val r22 = zz * oneMinusC + c
+
+        // Multiplying with the rotation matrix from the right only mixes the first three columns, row by row
+        val entry = stack[top]
+        with(entry.model) {
+            var a = m00; var b = m01; var d = m02
+            m00 = a * r00 + b * r10 + d * r20; m01 = a * r01 + b * r11 + d * r21; m02 = a * r02 + b * r12 + d * r22
+            a = m10; b = m11; d = m12
+            m10 = a * r00 + b * r10 + d * r20; m11 = a * r01 + b * r11 + d * r21; m12 = a * r02 + b * r12 + d * r22
+            a = m20; b = m21; d = m22
+            m20 = a * r00 + b * r10 + d * r20; m21 = a * r01 + b * r11 + d * r21; m22 = a * r02 + b * r12 + d * r22
+            a = m30; b = m31; d = m32
+            m30 = a * r00 + b * r10 + d * r20; m31 = a * r01 + b * r11 + d * r21; m32 = a * r02 + b * r12 + d * r22
+        }
+        with(entry.normal) {
+            var a = m00; var b = m01; var d = m02
+            m00 = a * r00 + b * r10 + d * r20; m01 = a * r01 + b * r11 + d * r21; m02 = a * r02 + b * r12 + d * r22
+            a = m10; b = m11; d = m12
+            m10 = a * r00 + b * r10 + d * r20; m11 = a * r01 + b * r11 + d * r21; m12 = a * r02 + b * r12 + d * r22
+            a = m20; b = m21; d = m22
+            m20 = a * r00 + b * r10 + d * r20; m21 = a * r01 + b * r11 + d * r21; m22 = a * r02 + b * r12 + d * r22
         }
     }
 
@@ -125,25 +147,48 @@ class UMatrixStack(
     }
 
     fun multiply(other: UMatrixStack) {
-        val thisEntry = this.stack.last()
-        val otherEntry = other.stack.last()
+        val thisEntry = this.stack[top]
+        val otherEntry = other.stack[other.top]
         thisEntry.model.timesSelf(otherEntry.model)
         thisEntry.normal.timesSelf(otherEntry.normal)
     }
 
-    fun fork() = UMatrixStack(mutableListOf(stack.last().deepCopy()))
+    fun fork() = UMatrixStack(mutableListOf(stack[top].deepCopy()))
 
     fun push() {
-        stack.add(stack.last().deepCopy())
+        val current = stack[top]
+        top++
+        if (top < stack.size) {
+            stack[top].set(current)
+        } else {
+            stack.add(current.deepCopy())
+        }
     }
 
     fun pop() {
-        stack.removeLast()
+        top--
     }
 
-    fun peek(): Entry = stack.last()
+    fun peek(): Entry = stack[top]
 
     data class Entry(val model: MutableMat4, val normal: MutableMat3) {
         fun deepCopy() = Entry(model.copyOf(), normal.copyOf())
+
+        /** Copies the matrices of the given entry into this one. */
+        internal fun set(other: Entry) {
+            val m = other.model
+            with(model) {
+                m00 = m.m00; m01 = m.m01; m02 = m.m02; m03 = m.m03
+                m10 = m.m10; m11 = m.m11; m12 = m.m12; m13 = m.m13
+                m20 = m.m20; m21 = m.m21; m22 = m.m22; m23 = m.m23
+                m30 = m.m30; m31 = m.m31; m32 = m.m32; m33 = m.m33
+            }
+            val n = other.normal
+            with(normal) {
+                m00 = n.m00; m01 = n.m01; m02 = n.m02
+                m10 = n.m10; m11 = n.m11; m12 = n.m12
+                m20 = n.m20; m21 = n.m21; m22 = n.m22
+            }
+        }
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.cosmetics
+
+import gg.essential.cosmetics.CosmeticLod.Full
+import gg.essential.cosmetics.CosmeticLod.Hidden
+import gg.essential.cosmetics.CosmeticLod.Low
+import gg.essential.cosmetics.CosmeticLod.Reduced
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class CosmeticLodPolicyTest {
+    private val policy = CosmeticLodPolicy(
+        reducedDistance = 10.0,
+        lowDistance = 20.0,
+        hiddenDistance = 40.0,
+        maxFullPlayers = 3,
+        frameBudgetNanos = 1000,
+        recoverFraction = 0.5,
+    )
+
+    @Test
+    fun testDistanceBands() {
+        val distances = doubleArrayOf(0.0, 9.9, 10.0, 19.9, 20.0, 39.9, 40.0, 1000.0)
+        // Only three players, so none are affected by the cap
+        assertEquals(listOf(Full, Full), policy.assign(distances.copyOfRange(0, 2)).toList())
+        assertEquals(
+            listOf(Full, Full, Reduced, Reduced, Low, Low, Hidden, Hidden),
+            policy.copy(maxFullPlayers = Int.MAX_VALUE).assign(distances).toList(),
+        )
+    }
+
+    @Test
+    fun testMaxFullPlayers() {
+        // Deliberately unsorted, to check that the closest ones keep full detail
+        val distances = doubleArrayOf(5.0, 1.0, 4.0, 2.0, 3.0, 25.0)
+        assertEquals(
+            listOf(Reduced, Full, Reduced, Full, Full, Low),
+            policy.assign(distances).toList(),
+        )
+    }
+
+    @Test
+    fun testNoPlayers() {
+        assertEquals(0, policy.assign(doubleArrayOf()).size)
+        assertEquals(0, policy.adjustBudgetDegradation(0, 5000, 0))
+    }
+
+    @Test
+    fun testDegradationWithinBudget() {
+        assertEquals(0, policy.adjustBudgetDegradation(10, 0, 0))
+        assertEquals(0, policy.adjustBudgetDegradation(10, 1000, 0))
+    }
+
+    @Test
+    fun testDegradationOverBudget() {
+        // 25% over budget of 10 players, so 2.5 (rounded up) players need to go
+        assertEquals(3, policy.adjustBudgetDegradation(10, 1333, 0))
+        // Adds to previous degradation
+        assertEquals(5, policy.adjustBudgetDegradation(10, 1333, 2))
+        // At least one, even if only marginally over budget
+        assertEquals(1, policy.adjustBudgetDegradation(10, 1001, 0))
+        // Never more than hiding everyone
+        assertEquals(30, policy.adjustBudgetDegradation(10, 1_000_000, 29))
+    }
+
+    @Test
+    fun testDegradationHysteresis() {
+        // Between the recover threshold and the budget, nothing changes
+        assertEquals(4, policy.adjustBudgetDegradation(10, 999, 4))
+        assertEquals(4, policy.adjustBudgetDegradation(10, 500, 4))
+        // Below it, players are restored one at a time
+        assertEquals(3, policy.adjustBudgetDegradation(10, 499, 4))
+        assertEquals(0, policy.adjustBudgetDegradation(10, 0, 0))
+    }
+
+    @Test
+    fun testDegradationIsStable() {
+        // Degrading players makes them cheaper; as long as that stays within budget, they must not be restored
+        var degradation = policy.adjustBudgetDegradation(4, 1500, 0)
+        repeat(10) {
+            degradation = policy.adjustBudgetDegradation(4, 800, degradation)
+        }
+        assertEquals(2, degradation)
+    }
+
+    @Test
+    fun testDegradationAffectsFarthestFirst() {
+        val policy = policy.copy(maxFullPlayers = Int.MAX_VALUE)
+        val distances = doubleArrayOf(3.0, 0.0, 2.0, 1.0)
+        assertEquals(listOf(Reduced, Full, Full, Full), policy.assign(distances, 1).toList())
+        assertEquals(listOf(Reduced, Full, Reduced, Reduced), policy.assign(distances, 3).toList())
+        assertEquals(listOf(Low, Reduced, Low, Reduced), policy.assign(distances, 6).toList())
+        assertEquals(listOf(Hidden, Hidden, Hidden, Hidden), policy.assign(distances, 12).toList())
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.cosmetics.skinmask
+
+import gg.essential.model.util.Color
+import gg.essential.util.image.bitmap.Bitmap
+import gg.essential.util.image.bitmap.MutableBitmap
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+
+class SkinMaskTest {
+    /** A 64x64 skin where every pixel has a distinct, opaque color. */
+    private fun syntheticSkin(): MutableBitmap {
+        val skin = Bitmap.ofSize(64, 64)
+        for (y in 0 until 64) {
+            for (x in 0 until 64) {
+                skin[x, y] = Color(((x + 1).toUInt() shl 24) or ((y + 1).toUInt() shl 16) or 0xffu)
+            }
+        }
+        return skin
+    }
+
+    /** A 64x64 mask image which is white except for the pixels for which [isBlack] returns `true`. */
+    private fun maskImage(isBlack: (x: Int, y: Int) -> Boolean): Bitmap {
+        val image = Bitmap.ofSize(64, 64)
+        for (y in 0 until 64) {
+            for (x in 0 until 64) {
+                image[x, y] = if (isBlack(x, y)) Color.BLACK else Color.WHITE
+            }
+        }
+        return image
+    }
+
+    /** Whether the given pixel belongs to any of the skin parts which a mask can apply to. */
+    private fun isInAnyPart(x: Int, y: Int): Boolean =
+        // The only region of a 64x64 skin which is not covered by any part is the one right of the right arm
+        !(x >= 56 && y in 16 until 48)
+
+    private fun assertMasked(skin: Bitmap, masked: Bitmap, isBlack: (x: Int, y: Int) -> Boolean) {
+        for (y in 0 until 64) {
+            for (x in 0 until 64) {
+                val expected = if (isBlack(x, y) && isInAnyPart(x, y)) Color(0u) else skin[x, y]
+                assertEquals(expected, masked[x, y], "pixel at $x, $y")
+            }
+        }
+    }
+
+    @Test
+    fun testEmptyMask() {
+        val skin = syntheticSkin()
+        val mask = SkinMask.read(maskImage { _, _ -> false })
+        assertEquals(emptyMap(), mask.parts)
+        assertMasked(skin, mask.apply(skin)) { _, _ -> false }
+    }
+
+    @Test
+    fun testFullMask() {
+        val skin = syntheticSkin()
+        val mask = SkinMask.read(maskImage { _, _ -> true })
+        assertMasked(skin, mask.apply(skin)) { _, _ -> true }
+    }
+
+    @Test
+    fun testPartialMask() {
+        val skin = syntheticSkin()
+        // Checkerboard on the head, a block on the body, the whole right leg and some pixels outside of any part
+        val isBlack = { x: Int, y: Int ->
+            (y < 16 && (x + y) % 2 == 0) ||
+                (x in 20 until 28 && y in 20 until 32) ||
+                (x < 16 && y in 16 until 48) ||
+                (x >= 56 && y in 20 until 24)
+        }
+        val mask = SkinMask.read(maskImage(isBlack))
+        val masked = mask.apply(skin)
+        assertMasked(skin, masked, isBlack)
+
+        // apply must not modify the original
+        assertMasked(syntheticSkin(), skin) { _, _ -> false }
+    }
+
+    @Test
+    fun testApplyToInPlace() {
+        val isBlack = { x: Int, y: Int -> x % 3 == 0 && y % 5 != 0 }
+        val skin = syntheticSkin()
+        SkinMask.read(maskImage(isBlack)).applyTo(skin)
+        assertMasked(syntheticSkin(), skin, isBlack)
+    }
+
+    @Test
+    fun testRandomMasks() {
+        for (seed in 0 until 20) {
+            val random = Random(seed)
+            val black = Array(64) { BooleanArray(64) { random.nextInt(4) == 0 } }
+            val isBlack = { x: Int, y: Int -> black[y][x] }
+            val skin = syntheticSkin()
+            assertMasked(skin, SkinMask.read(maskImage(isBlack)).apply(skin), isBlack)
+        }
+    }
+
+    @Test
+    fun testMerge() {
+        val isBlackA = { x: Int, y: Int -> x < 32 && y < 16 }
+        val isBlackB = { x: Int, y: Int -> x in 16 until 40 && y in 16 until 48 }
+        val merged = SkinMask.merge(listOf(SkinMask.read(maskImage(isBlackA)), SkinMask.read(maskImage(isBlackB))))
+        val skin = syntheticSkin()
+        assertMasked(skin, merged.apply(skin)) { x, y -> isBlackA(x, y) || isBlackB(x, y) }
+    }
+
+    @Test
+    fun testEquality() {
+        val isBlack = { x: Int, y: Int -> y < 8 && x < 8 }
+        val a = SkinMask.read(maskImage(isBlack))
+        val b = SkinMask.read(maskImage(isBlack))
+        val c = SkinMask.read(maskImage { x, y -> isBlack(x, y) || (x == 20 && y == 20) })
+        assertEquals(a, b)
+        assertEquals(a.hashCode(), b.hashCode())
+        assertNotEquals(a, c)
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model.backend.atlas
+
+import gg.essential.model.backend.RenderBackend
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+class TextureAtlasPackingTest {
+    private class FakeTexture(override val width: Int, override val height: Int) : RenderBackend.Texture
+
+    private fun randomTextures(random: Random, count: Int): List<RenderBackend.Texture> =
+        List(count) {
+            // Mostly small textures with the occasional large one, similar to real cosmetics
+            val maxSize = if (random.nextInt(10) == 0) 256 else 64
+            FakeTexture(random.nextInt(1, maxSize + 1), random.nextInt(1, maxSize + 1))
+        }
+
+    /** Checks that [used] and [freeRects] exactly partition the [width]x[height] atlas. */
+    private fun assertPartition(width: Int, height: Int, used: List<XYWH>, freeRects: List<XYWH>) {
+        val all = used + freeRects
+        for (rect in all) {
+            assertTrue(rect.w > 0 && rect.h > 0, "$rect is empty")
+            assertTrue(rect.x >= 0 && rect.y >= 0 && rect.x + rect.w <= width && rect.y + rect.h <= height, "$rect out of bounds")
+        }
+        for (i in all.indices) {
+            for (j in i + 1 until all.size) {
+                val a = all[i]
+                val b = all[j]
+                if (a.x < b.x + b.w && b.x < a.x + a.w && a.y < b.y + b.h && b.y < a.y + a.h) {
+                    fail("$a overlaps $b")
+                }
+            }
+        }
+        assertEquals(width.toLong() * height, all.sumOf { it.w.toLong() * it.h })
+    }
+
+    private fun efficiency(packing: Packing): Double =
+        packing.textures.sumOf { it.w * it.h }.toDouble() / (packing.atlasWidth * packing.atlasHeight)
+
+    @Test
+    fun testPackRandomTextures() {
+        for (seed in 0 until 20) {
+            val textures = TextureAtlas.sortForPacking(randomTextures(Random(seed), 300))
+            val packing = pack(textures, 4096)
+
+            assertNotNull(packing, "seed $seed did not fit")
+            assertEquals(textures.toSet(), packing.textures.map { it.texture }.toSet())
+            for ((texture, _, _, w, h) in packing.textures) {
+                assertEquals(texture.width, w)
+                assertEquals(texture.height, h)
+            }
+            assertPartition(
+                packing.atlasWidth,
+                packing.atlasHeight,
+                packing.textures.map { XYWH(it.x, it.y, it.w, it.h) },
+                packing.freeRects,
+            )
+
+            // The atlas may only have been grown past the minimum size if the textures would have filled at least
+            // half of the next smaller one, i.e. it is at most 8 times larger than their total area
+            if (packing.atlasWidth > 512) {
+                assertTrue(efficiency(packing) * 4 >= 0.5, "seed $seed: only ${efficiency(packing)} of ${packing.atlasWidth}")
+            }
+        }
+    }
+
+    @Test
+    fun testPackUniformTexturesWithoutWaste() {
+        for ((w, h) in listOf(32 to 32, 64 to 32, 16 to 128, 256 to 256)) {
+            val textures = List(512 / w * (512 / h)) { FakeTexture(w, h) }
+            val packing = pack(TextureAtlas.sortForPacking(textures), 4096)
+
+            assertNotNull(packing, "${w}x$h did not fit")
+            assertEquals(512, packing.atlasWidth, "${w}x$h")
+            assertEquals(1.0, efficiency(packing), "${w}x$h")
+            assertTrue(packing.freeRects.isEmpty(), "${w}x$h")
+        }
+    }
+
+    @Test
+    fun testAllocateAndFreeRandomTextures() {
+        val size = 1024
+        for (seed in 0 until 20) {
+            val random = Random(seed)
+            val freeRects = mutableListOf(XYWH(0, 0, size, size))
+            val used = mutableListOf<XYWH>()
+
+            repeat(2000) {
+                if (used.isNotEmpty() && random.nextInt(3) == 0) {
+                    free(freeRects, used.removeAt(random.nextInt(used.size)))
+                } else {
+                    val texture = randomTextures(random, 1).single()
+                    val rect = allocate(freeRects, texture.width, texture.height)
+                    if (rect != null) {
+                        assertEquals(texture.width, rect.w)
+                        assertEquals(texture.height, rect.h)
+                        used.add(rect)
+                    } else {
+                        // Allocation may only fail if there is no single free rect large enough
+                        assertTrue(freeRects.none { it.w >= texture.width && it.h >= texture.height })
+                    }
+                }
+            }
+            assertPartition(size, size, used, freeRects)
+
+            // Once everything is freed, all space must be available again (even if not necessarily as a single rect)
+            used.forEach { free(freeRects, it) }
+            assertPartition(size, size, emptyList(), freeRects)
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model.molang
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class MolangExpressionTest {
+    private fun MolangExpression.eval(vararg variables: Pair<String, Float>): Float {
+        val context = MolangContext(MolangQuery.Empty)
+        for ((name, value) in variables) {
+            context.variables[name] = value
+        }
+        return eval(context)
+    }
+
+    @Test
+    fun testTrailingReturn() {
+        val expr = "variable.a = 2; variable.b = variable.a * 3; return variable.b + 1".parseMolangExpression()
+        assertEquals(7f, expr.eval())
+    }
+
+    @Test
+    fun testReturnInsideConditional() {
+        val expr = "variable.x > 1 ? ({ return 5; }) : 0; return 7".parseMolangExpression()
+        assertEquals(5f, expr.eval("x" to 2f))
+        assertEquals(7f, expr.eval("x" to 0f))
+    }
+
+    @Test
+    fun testReturnInsideNestedConditionals() {
+        val expr = ("variable.x > 1 ? ({ variable.x > 2 ? ({ return 3; }) : 0; variable.y = 1; return 2; }) : 0;" +
+            "variable.y = 5; return variable.y").parseMolangExpression()
+        assertEquals(3f, expr.eval("x" to 3f))
+        assertEquals(2f, expr.eval("x" to 2f))
+        assertEquals(5f, expr.eval("x" to 0f))
+    }
+
+    @Test
+    fun testReturnSkipsRemainingStatements() {
+        val expr = "variable.x > 1 ? ({ return 1; variable.y = 2; }) : 0; variable.y = 3; return 0".parseMolangExpression()
+        val context = MolangContext(MolangQuery.Empty)
+        context.variables["x"] = 2f
+        assertEquals(1f, expr.eval(context))
+        assertEquals(0f, context.variables["y"], "statements after the return must not run")
+    }
+
+    @Test
+    fun testReturnStateIsResetBetweenEvaluations() {
+        val expr = "variable.x > 1 ? ({ return 5; }) : 0; return 7".parseMolangExpression()
+        val context = MolangContext(MolangQuery.Empty)
+        context.variables["x"] = 2f
+        assertEquals(5f, expr.eval(context))
+        context.variables["x"] = 0f
+        assertEquals(7f, expr.eval(context))
+        // A plain expression evaluated in the same context must not pick up the earlier return either
+        assertEquals(3f, "1 + 2".parseMolangExpression().eval(context))
+    }
+
+    @Test
+    fun testSlotResolvedVariablesMatchNames() {
+        val context = MolangContext(MolangQuery.Empty)
+        "variable.slot_test_a = 4; variable.slot_test_b = variable.slot_test_a + 1".parseMolangExpression().eval(context)
+        // Written through slots, read by name
+        assertEquals(4f, context.variables["slot_test_a"])
+        assertEquals(5f, context.variables["slot_test_b"])
+
+        // Written by name, read through slots
+        context.variables["slot_test_c"] = 10f
+        assertEquals(15f, "variable.slot_test_b + variable.slot_test_c".parseMolangExpression().eval(context))
+
+        assertSame(context.variables.getOrNull("slot_test_a"), context.variables.getOrNull(VariableSlot.of("slot_test_a")))
+        assertNull(context.variables.getOrNull("slot_test_never_used"))
+        assertEquals(0f, "variable.slot_test_unset".parseMolangExpression().eval(context))
+    }
+
+    @Test
+    fun testVariablesMapGrows() {
+        val variables = VariablesMap()
+        val context = MolangContext(MolangQuery.Empty, variables)
+        for (i in 0 until 20) {
+            AssignmentExpr(VariableExpr("grow_test_$i"), LiteralExpr(i.toFloat())).eval(context)
+        }
+        for (i in 0 until 20) {
+            assertEquals(i.toFloat(), VariableExpr("grow_test_$i").eval(context))
+            assertEquals(i.toFloat(), variables["grow_test_$i"])
+        }
+    }
+
+    @Test
+    fun testSlotResolvedVariablesWithFallback() {
+        val fallback = VariablesMap()
+        fallback["fallback_test_shared"] = 1f
+        fallback["fallback_test_only_fallback"] = 2f
+        val primary = VariablesMap()
+        primary["fallback_test_shared"] = 3f
+        val context = MolangContext(MolangQuery.Empty, primary.fallbackBackTo(fallback))
+
+        assertEquals(3f, VariableExpr("fallback_test_shared").eval(context))
+        assertEquals(2f, VariableExpr("fallback_test_only_fallback").eval(context))
+
+        // Existing variables are written where they live, new ones are created in the primary map only
+        "variable.fallback_test_only_fallback = 4; variable.fallback_test_new = 5".parseMolangExpression().eval(context)
+        assertEquals(4f, fallback["fallback_test_only_fallback"])
+        assertEquals(5f, primary["fallback_test_new"])
+        assertNull(fallback.getOrNull("fallback_test_new"))
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model.molang
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class MolangFoldingTest {
+    private val x = VariableExpr("folding_test_x")
+    private val y = VariableExpr("folding_test_y")
+
+    private fun lit(value: Float) = LiteralExpr(value)
+
+    private fun context(x: Float, y: Float) = MolangContext(MolangQuery.Empty).apply {
+        variables["folding_test_x"] = x
+        variables["folding_test_y"] = y
+    }
+
+    /** Evaluates both the given and the folded expression for a few inputs and checks that they always agree. */
+    private fun assertFoldingPreservesResult(expr: MolangExpression) {
+        val folded = expr.fold()
+        for ((x, y) in listOf(1f to 2f, 2.5f to -3f, -7f to 0.5f, 0f to 4f, 90f to 45f)) {
+            val expected = context(x, y).let { expr.eval(it) to it.variables["folding_test_y"] }
+            val actual = context(x, y).let { folded.eval(it) to it.variables["folding_test_y"] }
+            assertEquals(expected, actual, "$expr folded to $folded, x=$x, y=$y")
+        }
+    }
+
+    @Test
+    fun testConstantsAreEvaluated() {
+        assertEquals(lit(3f), AddExpr(lit(1f), lit(2f)).fold())
+        assertEquals(lit(-6f), MulExpr(lit(2f), NegExpr(lit(3f))).fold())
+        assertEquals(lit(1f), ComparisonExpr(lit(1f), lit(2f), ComparisonExpr.Op.LessThan).fold())
+        assertEquals(lit(0f), LogicalAndExpr(lit(1f), lit(0f)).fold())
+        assertEquals(lit(2f), ClampExpr(lit(5f), lit(0f), lit(2f)).fold())
+        assertTrue(SinExpr(AddExpr(lit(45f), lit(45f))).fold() is LiteralExpr)
+    }
+
+    @Test
+    fun testTrivialOperationsAreRemoved() {
+        assertEquals(x, AddExpr(lit(0f), x).fold())
+        assertEquals(x, AddExpr(x, lit(0f)).fold())
+        assertEquals(x, MulExpr(lit(1f), x).fold())
+        assertEquals(x, MulExpr(x, AddExpr(lit(0.5f), lit(0.5f))).fold())
+        assertEquals(x, NegExpr(NegExpr(x)).fold())
+        assertEquals(x, TernaryExpr(lit(1f), x, y).fold())
+        assertEquals(y, TernaryExpr(MulExpr(lit(2f), lit(0f)), x, y).fold())
+        assertEquals(
+            StatementsExpr(listOf(AssignmentExpr(y, x)), x),
+            StatementsExpr(listOf(lit(1f), AssignmentExpr(y, AddExpr(x, lit(0f))), lit(2f)), x).fold(),
+        )
+    }
+
+    @Test
+    fun testNonDeterministicExpressionsAreKept() {
+        assertTrue(RandomExpr(lit(0f), lit(1f)).fold() is RandomExpr)
+        assertEquals(RandomExpr(lit(0f), lit(2f)), RandomExpr(lit(0f), AddExpr(lit(1f), lit(1f))).fold())
+        assertEquals(AddExpr(x, lit(3f)), AddExpr(x, AddExpr(lit(1f), lit(2f))).fold())
+        // min > max must still fail at runtime rather than while folding
+        assertTrue(ClampExpr(lit(1f), lit(2f), lit(0f)).fold() is ClampExpr)
+    }
+
+    @Test
+    fun testFoldedEvaluationMatchesUnfolded() {
+        val expressions = listOf(
+            AddExpr(AddExpr(lit(0f), x), MulExpr(lit(1f), y)),
+            MulExpr(NegExpr(NegExpr(x)), InvExpr(AddExpr(lit(1f), lit(1f)))),
+            ClampExpr(x, NegExpr(lit(2f)), MulExpr(lit(2f), lit(2f))),
+            TernaryExpr(ComparisonExpr(x, lit(0f), ComparisonExpr.Op.GreaterThan), CosExpr(x), SinExpr(lit(30f))),
+            TernaryExpr(LogicalOrExpr(lit(0f), lit(0f)), x, AbsExpr(y)),
+            LogicalAndExpr(ComparisonExpr(x, y, ComparisonExpr.Op.NotEqual), ComparisonExpr(lit(1f), lit(1f), ComparisonExpr.Op.Equal)),
+            FloorExpr(AddExpr(x, CeilExpr(lit(0.5f)))),
+            RoundExpr(MulExpr(TruncExpr(lit(2.7f)), x)),
+            StatementsExpr(listOf(lit(0f), AssignmentExpr(y, AddExpr(x, lit(0f))), lit(1f)), MulExpr(y, lit(1f))),
+            ComplexExpr(StatementsExpr(listOf(
+                TernaryExpr(ComparisonExpr(x, lit(0f), ComparisonExpr.Op.LessThan), StatementsExpr(listOf(ReturnExpr(AddExpr(lit(1f), lit(1f))))), lit(0f)),
+                AssignmentExpr(y, MulExpr(x, AddExpr(lit(1f), lit(1f)))),
+            ), y)),
+        )
+        for (expr in expressions) {
+            assertFoldingPreservesResult(expr)
+        }
+    }
+
+    @Test
+    fun testParsedExpressionsAreFolded() {
+        assertEquals(lit(7f), "1 + 2 * 3".parseMolangExpression())
+        assertEquals(AddExpr(VariableExpr("a"), lit(2f)), "variable.a + (1 + 1) * 1".parseMolangExpression())
+    }
+}
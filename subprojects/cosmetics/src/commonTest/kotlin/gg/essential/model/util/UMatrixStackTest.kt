@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.model.util
+
+import dev.folomeev.kotgl.matrix.matrices.Mat3
+import dev.folomeev.kotgl.matrix.matrices.Mat4
+import dev.folomeev.kotgl.matrix.matrices.identityMat3
+import dev.folomeev.kotgl.matrix.matrices.identityMat4
+import dev.folomeev.kotgl.matrix.matrices.mat3
+import dev.folomeev.kotgl.matrix.matrices.mutables.MutableMat3
+import dev.folomeev.kotgl.matrix.matrices.mutables.MutableMat4
+import dev.folomeev.kotgl.matrix.matrices.mutables.timesSelf
+import dev.folomeev.kotgl.matrix.matrices.mutables.toMutable
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.sin
+import kotlin.math.sqrt
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.fail
+
+/**
+ * Checks the in-place transformations of [UMatrixStack] against the straightforward implementation it replaced, which
+ * built a matrix for each transformation and multiplied it into the top of the stack.
+ */
+class UMatrixStackTest {
+    /** The previous, multiply-based implementation. */
+    private class ReferenceStack {
+        private val stack = mutableListOf(Pair(identityMat4().toMutable(), identityMat3().toMutable()))
+        val model: MutableMat4 get() = stack.last().first
+        val normal: MutableMat3 get() = stack.last().second
+
+        fun translate(x: Float, y: Float, z: Float) {
+            model.timesSelf(identityMat4().toMutable().apply { m03 = x; m13 = y; m23 = z })
+        }
+
+        fun scale(x: Float, y: Float, z: Float) {
+            model.timesSelf(identityMat4().toMutable().apply { m00 = x; m11 = y; m22 = z })
+            if (x == y && y == z) {
+                if (x < 0f) {
+                    normal.timesSelf(-1f)
+                }
+            } else {
+                val ix = 1f / x
+                val iy = 1f / y
+                val iz = 1f / z
+                val rt = cbrt(ix * iy * iz)
+                normal.timesSelf(identityMat3().toMutable().apply { m00 = rt * ix; m11 = rt * iy; m22 = rt * iz })
+            }
+        }
+
+        fun rotate(angle: Float, x: Float, y: Float, z: Float, degrees: Boolean) {
+            val angleRadians = if (degrees) (angle / 180 * PI).toFloat() else angle
+            val c = cos(angleRadians)
+            val s = sin(angleRadians)
+            val oneMinusC = 1 - c
+            val rotation = mat3(
+                x * x * oneMinusC + c, x * y * oneMinusC - z * s, x * z * oneMinusC + y * s,
+                x * y * oneMinusC + z * s, y * y * oneMinusC + c, y * z * oneMinusC - x * s,
+                x * z * oneMinusC - y * s, y * z * oneMinusC + x * s, z * z * oneMinusC + c,
+            )
+            model.timesSelf(rotation.toMat4())
+            normal.timesSelf(rotation)
+        }
+
+        fun push() {
+            stack.add(Pair(model.copyOf(), normal.copyOf()))
+        }
+
+        fun pop() {
+            stack.removeLast()
+        }
+    }
+
+    private fun Mat4.elements() = listOf(
+        m00, m01, m02, m03,
+        m10, m11, m12, m13,
+        m20, m21, m22, m23,
+        m30, m31, m32, m33,
+    )
+
+    private fun Mat3.elements() = listOf(
+        m00, m01, m02,
+        m10, m11, m12,
+        m20, m21, m22,
+    )
+
+    private fun assertClose(expected: List<Float>, actual: List<Float>, what: String) {
+        // Rounding errors scale with the magnitude of the whole matrix, not just the individual element
+        val tolerance = 1e-4f * max(1f, expected.maxOf { abs(it) })
+        for (i in expected.indices) {
+            val e = expected[i]
+            val a = actual[i]
+            if (abs(e - a) > tolerance) {
+                fail("$what differs at index $i: expected $expected but was $actual")
+            }
+        }
+    }
+
+    private fun assertMatches(expected: ReferenceStack, actual: UMatrixStack) {
+        val entry = actual.peek()
+        assertClose(expected.model.elements(), entry.model.elements(), "model")
+        assertClose(expected.normal.elements(), entry.normal.elements(), "normal")
+    }
+
+    /** Applies the same transformation to both stacks and checks that they still agree. */
+    private inner class Both {
+        val reference = ReferenceStack()
+        val stack = UMatrixStack()
+
+        fun translate(x: Float, y: Float, z: Float) {
+            reference.translate(x, y, z)
+            stack.translate(x, y, z)
+            assertMatches(reference, stack)
+        }
+
+        fun scale(x: Float, y: Float, z: Float) {
+            reference.scale(x, y, z)
+            stack.scale(x, y, z)
+            assertMatches(reference, stack)
+        }
+
+        fun rotate(angle: Float, x: Float, y: Float, z: Float, degrees: Boolean = true) {
+            reference.rotate(angle, x, y, z, degrees)
+            stack.rotate(angle, x, y, z, degrees)
+            assertMatches(reference, stack)
+        }
+
+        fun push() {
+            reference.push()
+            stack.push()
+            assertMatches(reference, stack)
+        }
+
+        fun pop() {
+            reference.pop()
+            stack.pop()
+            assertMatches(reference, stack)
+        }
+    }
+
+    @Test
+    fun testTranslation() {
+        with(Both()) {
+            translate(1f, 2f, 3f)
+            translate(-0.5f, 0f, 10f)
+            rotate(90f, 0f, 1f, 0f)
+            translate(1f, 2f, 3f)
+        }
+    }
+
+    @Test
+    fun testRotation() {
+        with(Both()) {
+            rotate(90f, 1f, 0f, 0f)
+            rotate(45f, 0f, 1f, 0f)
+            rotate(-30f, 0f, 0f, 1f)
+            val n = 1 / sqrt(3f)
+            rotate(123f, n, n, n)
+            rotate(1.5f, 0f, 1f, 0f, degrees = false)
+        }
+    }
+
+    @Test
+    fun testQuaternionRotation() {
+        val reference = ReferenceStack()
+        val stack = UMatrixStack()
+        val n = 1 / sqrt(2f)
+        val angle = 1f
+        stack.rotate(Quaternion(n * sin(angle / 2), 0f, n * sin(angle / 2), cos(angle / 2)))
+        reference.rotate(angle, n, 0f, n, degrees = false)
+        assertMatches(reference, stack)
+    }
+
+    @Test
+    fun testNonUniformScale() {
+        with(Both()) {
+            translate(1f, 2f, 3f)
+            scale(2f, 2f, 2f)
+            scale(-1f, -1f, -1f)
+            scale(1f, 2f, 3f)
+            rotate(30f, 0f, 1f, 0f)
+            scale(0.5f, -4f, 1.5f)
+            translate(1f, 1f, 1f)
+        }
+    }
+
+    @Test
+    fun testPushPopReuse() {
+        with(Both()) {
+            translate(1f, 2f, 3f)
+            push()
+            rotate(90f, 0f, 1f, 0f)
+            scale(1f, 2f, 3f)
+            push()
+            translate(5f, 5f, 5f)
+            pop()
+            pop()
+            // The entries popped above are re-used now, they must not leak any of their previous state
+            push()
+            assertEquals(identityMat3().elements(), stack.peek().normal.elements())
+            push()
+            scale(2f, 1f, 1f)
+            pop()
+            translate(0f, 1f, 0f)
+            pop()
+        }
+    }
+
+    @Test
+    fun testRandomSequences() {
+        for (seed in 0 until 50) {
+            val random = Random(seed)
+            fun nextFloat() = random.nextFloat() * 4 - 2
+            fun nextScale() = (random.nextFloat() + 0.5f) * if (random.nextBoolean()) 1 else -1
+            with(Both()) {
+                var depth = 0
+                repeat(40) {
+                    when (random.nextInt(6)) {
+                        0 -> translate(nextFloat(), nextFloat(), nextFloat())
+                        1 -> rotate(random.nextFloat() * 360, 0f, 1f, 0f)
+                        2 -> {
+                            val s = nextScale()
+                            if (random.nextBoolean()) scale(s, s, s) else scale(s, nextScale(), nextScale())
+                        }
+                        3 -> {
+                            val x = nextFloat()
+                            val y = nextFloat()
+                            val z = nextFloat()
+                            val length = sqrt(x * x + y * y + z * z)
+                            if (length > 0.1f) rotate(random.nextFloat() * 360, x / length, y / length, z / length)
+                        }
+                        4 -> if (depth < 8) {
+                            push()
+                            depth++
+                        }
+                        5 -> if (depth > 0) {
+                            pop()
+                            depth--
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.ice.bench
+
+import gg.essential.ice.CandidateManager
+import gg.essential.ice.IceAgent
+import gg.essential.ice.RemoteCandidateImpl
+import gg.essential.ice.stun.StunManager
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import org.slf4j.helpers.NOPLogger
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import kotlin.system.exitProcess
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Loopback benchmark for the ICE data path.
+ *
+ * Sets up two [IceAgent]s in the same process which connect to each other via loopback host candidates, with
+ * signalling done by directly handing candidates and credentials to the other agent (no STUN/TURN servers involved),
+ * and then measures:
+ *  - throughput of a bulk transfer (and how many packets were lost on the way)
+ *  - round-trip latency of small packets
+ *  - bytes allocated and CPU time spent per MB transferred
+ *
+ * Run via `./gradlew :ice-bench:run --args="packets=100000 size=1200"`. Supported arguments (all optional):
+ *  - `packets`: amount of packets to send for the throughput test
+ *  - `size`: size of each of those packets in bytes
+ *  - `pings`: amount of round-trips for the latency test
+ *  - `min-mbps`: if given, exits with a non-zero status code if throughput is lower, so it can be used to catch
+ *    regressions in CI
+ */
+fun main(args: Array<String>) {
+    val options = args.associate { arg ->
+        val (key, value) = arg.split('=', limit = 2).takeIf { it.size == 2 }
+            ?: throw IllegalArgumentException("Expected argument in the form key=value but got: $arg")
+        key to value
+    }
+    val packets = options["packets"]?.toInt() ?: 100_000
+    val size = options["size"]?.toInt() ?: 1200
+    val pings = options["pings"]?.toInt() ?: 1000
+    val minMbps = options["min-mbps"]?.toDouble()
+
+    val result = runBlocking { IceBench().use { it.run(packets, size, pings) } }
+    println(result)
+
+    if (minMbps != null && result.mbps < minMbps) {
+        println("Throughput of %.1f Mbit/s is below the required %.1f Mbit/s".format(result.mbps, minMbps))
+        exitProcess(1)
+    }
+}
+
+private class IceBench : AutoCloseable {
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private val mainThread = Dispatchers.Default.limitedParallelism(1)
+    private val scope = CoroutineScope(SupervisorJob() + mainThread)
+    private val logger = NOPLogger.NOP_LOGGER
+
+    private val stunManager = StunManager(scope)
+    private val candidateManager = CandidateManager(logger, scope, stunManager, emptyList(), emptyList(), includeLoopback = true)
+
+    private val controllingCreds = Pair("bench-controlling", "controlling-password".encodeToByteArray())
+    private val controlledCreds = Pair("bench-controlled", "controlled-password".encodeToByteArray())
+
+    private val controlling = IceAgent(logger, scope, stunManager, candidateManager, true, controllingCreds, CompletableDeferred(controlledCreds))
+    private val controlled = IceAgent(logger, scope, stunManager, candidateManager, false, controlledCreds, CompletableDeferred(controllingCreds))
+
+    init {
+        signal(controlling, controlled)
+        signal(controlled, controlling)
+    }
+
+    /** Local stand-in for the signalling server: forwards all local candidates of [from] as remote candidates to [to]. */
+    private fun signal(from: IceAgent, to: IceAgent) {
+        scope.launch {
+            for (candidate in from.localCandidateChannel) {
+                to.remoteCandidateChannel.send(RemoteCandidateImpl(candidate.type, candidate.address, candidate.priority))
+            }
+        }
+    }
+
+    suspend fun run(packets: Int, size: Int, pings: Int): Result {
+        withTimeout(10.seconds) {
+            controlling.readyForData.await()
+            controlled.readyForData.await()
+        }
+
+        val latencies = measureLatency(pings)
+
+        val cpuBefore = processCpuTime()
+        val allocatedBefore = allocatedBytes()
+        val start = System.nanoTime()
+        val received = measureThroughput(packets, size)
+        val elapsed = System.nanoTime() - start
+        val cpu = processCpuTime() - cpuBefore
+        val allocated = allocatedBytes() - allocatedBefore
+
+        val receivedBytes = received.toLong() * size
+        val mb = receivedBytes / 1_000_000.0
+        return Result(
+            mbps = receivedBytes * 8 / (elapsed / 1_000_000_000.0) / 1_000_000.0,
+            sent = packets,
+            received = received,
+            p50 = latencies.percentile(0.5),
+            p99 = latencies.percentile(0.99),
+            allocatedPerMb = if (mb > 0) allocated / mb else Double.NaN,
+            cpuMsPerMb = if (mb > 0) cpu / 1_000_000.0 / mb else Double.NaN,
+        )
+    }
+
+    /** Sends [pings] small packets one at a time and returns the round-trip time of each in nanoseconds, sorted. */
+    private suspend fun measureLatency(pings: Int): LongArray {
+        val echoJob = scope.launch {
+            for ((_, data) in controlled.inboundDataChannel) {
+                controlled.outboundDataChannel.send(data)
+            }
+        }
+
+        val rtts = LongArray(pings)
+        var done = 0
+        while (done < pings) {
+            val sentAt = System.nanoTime()
+            controlling.outboundDataChannel.send(ByteBuffer.allocate(Long.SIZE_BYTES).putLong(sentAt).array())
+            // Packets may get lost, in which case we simply try again
+            val reply = withTimeoutOrNull(1.seconds) { controlling.inboundDataChannel.receive().second } ?: continue
+            val replySentAt = ByteBuffer.wrap(reply).getLong()
+            if (replySentAt != sentAt) continue // late reply to a previously lost ping
+            rtts[done++] = System.nanoTime() - replySentAt
+        }
+
+        echoJob.cancel()
+        rtts.sort()
+        return rtts
+    }
+
+    /** Sends [packets] packets of [size] bytes as fast as possible and returns how many of them were received. */
+    private suspend fun measureThroughput(packets: Int, size: Int): Int {
+        val done = CompletableDeferred<Unit>()
+        var received = 0
+        val receiveJob = scope.launch {
+            for ((_, data) in controlled.inboundDataChannel) {
+                if (data.size != size) continue // late ping from the latency test
+                if (++received == packets) break
+            }
+            done.complete(Unit)
+        }
+
+        val payload = ByteArray(size)
+        for (i in 0 until packets) {
+            controlling.outboundDataChannel.send(payload.copyOf())
+        }
+
+        // Any packets which haven't arrived shortly after the last one was sent are considered lost
+        withTimeoutOrNull(500.milliseconds) { done.await() }
+        receiveJob.cancel()
+        return received
+    }
+
+    override fun close() {
+        scope.cancel()
+    }
+
+    private fun LongArray.percentile(p: Double): Long =
+        if (isEmpty()) 0 else this[((size - 1) * p).toInt()]
+
+    private fun processCpuTime(): Long =
+        (ManagementFactory.getOperatingSystemMXBean() as? com.sun.management.OperatingSystemMXBean)?.processCpuTime ?: 0
+
+    /** Bytes allocated by all live threads so far. Only an approximation, threads which died in between are missing. */
+    private fun allocatedBytes(): Long {
+        val bean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean ?: return 0
+        return bean.getThreadAllocatedBytes(bean.allThreadIds).sumOf { maxOf(it, 0L) }
+    }
+
+    data class Result(
+        val mbps: Double,
+        val sent: Int,
+        val received: Int,
+        val p50: Long,
+        val p99: Long,
+        val allocatedPerMb: Double,
+        val cpuMsPerMb: Double,
+    ) {
+        override fun toString(): String = buildString {
+            appendLine("Throughput: %.1f Mbit/s (%d of %d packets received)".format(mbps, received, sent))
+            appendLine("Latency:    p50 %.3f ms, p99 %.3f ms".format(p50 / 1_000_000.0, p99 / 1_000_000.0))
+            appendLine("Allocated:  %.0f bytes per MB".format(allocatedPerMb))
+            append("CPU:        %.2f ms per MB".format(cpuMsPerMb))
+        }
+    }
+}
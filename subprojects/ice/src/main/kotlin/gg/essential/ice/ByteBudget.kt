@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.ice
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Byte-based credits for a single queue in a data pipeline.
+ *
+ * A producer acquires credits for each packet before it hands it to the queue, and the consumer releases them once the
+ * packet has left the queue. This way the amount of data buffered in the queue is bounded by [capacity] and a producer
+ * which is faster than its consumer is slowed down (rather than its packets being dropped or buffered indefinitely),
+ * which in turn slows down its own producer, and so on.
+ *
+ * A packet is always admitted into an empty queue, regardless of its size, so oversized packets cannot dead-lock.
+ *
+ * Also tracks the occupancy of the queue, so it can be reported as metrics.
+ */
+class ByteBudget(val name: String, val capacity: Int) {
+    private val queued = AtomicInteger()
+    private val peak = AtomicInteger()
+    private val stalls = AtomicLong()
+
+    /** Signalled whenever credits are released. Conflated so a release between check and suspend is not lost. */
+    private val released = Channel<Unit>(Channel.CONFLATED)
+    /** Serializes waiting producers, so a large packet is not starved by a steady stream of small ones. */
+    private val waiting = Mutex()
+
+    /** Amount of bytes currently queued. */
+    val queuedBytes: Int
+        get() = queued.get()
+
+    /** Highest amount of bytes which has been queued at any one point. */
+    val peakBytes: Int
+        get() = peak.get()
+
+    /** How often a producer had to wait for credits (or was paused, see [forceAcquire]). */
+    val stallCount: Long
+        get() = stalls.get()
+
+    /** Whether the queue is currently above its capacity. Only possible via [forceAcquire]. */
+    val isExhausted: Boolean
+        get() = queued.get() > capacity
+
+    /**
+     * Acquires credits for [bytes] if they are available.
+     * Returns `false` without acquiring anything if the queue is full.
+     */
+    fun tryAcquire(bytes: Int): Boolean {
+        while (true) {
+            val current = queued.get()
+            if (current > 0 && current + bytes > capacity) {
+                return false
+            }
+            if (queued.compareAndSet(current, current + bytes)) {
+                peak.accumulateAndGet(current + bytes) { a, b -> maxOf(a, b) }
+                return true
+            }
+        }
+    }
+
+    /** Acquires credits for [bytes], suspending until enough of them have been released if the queue is full. */
+    suspend fun acquire(bytes: Int) {
+        if (!waiting.isLocked && tryAcquire(bytes)) {
+            return
+        }
+        stalls.incrementAndGet()
+        waiting.withLock {
+            while (!tryAcquire(bytes)) {
+                released.receive()
+            }
+        }
+    }
+
+    /**
+     * Unconditionally acquires credits for [bytes], even if that goes over the [capacity].
+     *
+     * For producers which cannot suspend (e.g. netty handlers); those should instead stop producing (e.g. disable
+     * auto-read) when this returns `false`, and resume once the queue has been drained below its [capacity] again.
+     *
+     * Returns whether the queue is still within its capacity.
+     */
+    fun forceAcquire(bytes: Int): Boolean {
+        val now = queued.addAndGet(bytes)
+        peak.accumulateAndGet(now) { a, b -> maxOf(a, b) }
+        if (now > capacity) {
+            stalls.incrementAndGet()
+            return false
+        }
+        return true
+    }
+
+    /** Releases credits for [bytes] which have left the queue. */
+    fun release(bytes: Int) {
+        queued.addAndGet(-bytes)
+        released.trySend(Unit)
+    }
+
+    override fun toString(): String {
+        return "$name: $queuedBytes/$capacity bytes queued, peak $peakBytes, stalled $stallCount times"
+    }
+}
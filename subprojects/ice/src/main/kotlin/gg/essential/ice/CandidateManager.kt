@@ -31,12 +31,13 @@ import kotlinx.coroutines.flow.launchIn
 import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 import org.slf4j.Logger
-import java.net.DatagramSocket
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.NetworkInterface
+import java.net.StandardProtocolFamily
+import java.nio.channels.DatagramChannel
 import kotlin.time.Duration.Companion.INFINITE
 
 /**
@@ -49,6 +50,8 @@ class CandidateManager(
     private val stunManager: StunManager,
     private val stunServers: List<InetSocketAddress>,
     private val turnServers: List<InetSocketAddress>,
+    /** Whether to also gather loopback host candidates. Only useful for local testing, e.g. the `ice-bench` harness. */
+    private val includeLoopback: Boolean = false,
 ) {
     /**
      * Set to `true` once any of its candidates have been shut down, at which point this CandidateManager should no
@@ -132,7 +135,7 @@ class CandidateManager(
         var nextNormalPreference = MAX_LOCAL_PREFERENCE
         var nextVPNPreference = MAX_LOCAL_PREFERENCE / 2
         for (iface in NetworkInterface.getNetworkInterfaces()) {
-            if (iface.isLoopback) {
+            if (iface.isLoopback && !includeLoopback) {
                 logger.trace("Skipping network interface because it is a loopback interface: {}", iface)
                 continue
             }
@@ -148,7 +151,7 @@ class CandidateManager(
 
             val addresses = unfilteredAddresses.filter { address ->
                 when {
-                    address.isLoopbackAddress -> {
+                    address.isLoopbackAddress && !includeLoopback -> {
                         logger.trace("Skipping address because it is a loopback address: {}", address)
                         false
                     }
@@ -183,12 +186,20 @@ class CandidateManager(
 
             for (address in sortedAddresses) {
                 val socket = try {
-                    DatagramSocket(0, address)
+                    val family = if (address is Inet6Address) StandardProtocolFamily.INET6 else StandardProtocolFamily.INET
+                    DatagramChannel.open(family).apply {
+                        try {
+                            bind(InetSocketAddress(address, 0))
+                        } catch (e: Exception) {
+                            close()
+                            throw e
+                        }
+                    }
                 } catch (e: Exception) {
                     logger.warn("Failed to bind to $address, skipping:", e)
                     continue
                 }
-                val socketAddress = InetSocketAddress(address, socket.localPort)
+                val socketAddress = InetSocketAddress(address, (socket.localAddress as InetSocketAddress).port)
                 val stunSocket = StunSocket(logger, scope, stunManager, socket, socketAddress)
                 val preference = if (isVPN) nextVPNPreference-- else nextNormalPreference--
                 emit(ReusableCandidate(CandidateType.Host, stunSocket, null, null, socketAddress, preference))
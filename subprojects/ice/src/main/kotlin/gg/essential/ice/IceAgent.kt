@@ -27,6 +27,7 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.awaitCancellation
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
@@ -88,9 +89,16 @@ class IceAgent(
     val readyForData = CompletableDeferred<Unit>(parent = job)
     val inboundDataChannel = Channel<Pair<LocalCandidate, ByteArray>>(1000, BufferOverflow.DROP_OLDEST) { pair ->
         logger.warn("IceAgent.inboundDataChannel overflow, dropping packet of {} bytes", pair.second.size)
+        if (IceStats.isEnabled) IceStats.inboundDataDropped.increment()
     }
-    val outboundDataChannel = Channel<ByteArray>(1000, BufferOverflow.DROP_OLDEST) { packet ->
-        logger.warn("IceAgent.outboundDataChannel overflow, dropping packet of {} bytes", packet.size)
+    /** Not dropping on overflow, so senders are slowed down once the socket cannot keep up. */
+    val outboundDataChannel = Channel<ByteArray>(OUTBOUND_DATA_QUEUE_PACKETS)
+    /**
+     * Latency-sensitive data (e.g. voice). Sent ahead of [outboundDataChannel] and not subject to its back-pressure;
+     * drops the oldest packets on overflow instead.
+     */
+    val outboundPriorityDataChannel = Channel<ByteArray>(OUTBOUND_PRIORITY_QUEUE_PACKETS, BufferOverflow.DROP_OLDEST) { packet ->
+        logger.warn("IceAgent.outboundPriorityDataChannel overflow, dropping packet of {} bytes", packet.size)
     }
 
     // The old Ice4J ICE implementation will only try to establish a connection once a candidate has nominated, so when
@@ -153,13 +161,31 @@ class IceAgent(
             coroutineScope.launch { waitForGoodCandidateAndThenNominateIt() }
         }
 
+        coroutineScope.launch {
+            for (packet in outboundPriorityDataChannel) {
+                dispatchDataPacket(packet, priority = true)
+            }
+        }
+
         coroutineScope.launch {
             for (packet in outboundDataChannel) {
-                dispatchDataPacket(packet)
+                dispatchDataPacket(packet, priority = false)
             }
             inboundDataChannel.close()
             job.cancel()
         }
+
+        coroutineScope.launch {
+            try {
+                awaitCancellation()
+            } finally {
+                for (pair in checklist + validList) {
+                    if (pair.statsDelegate.isInitialized()) {
+                        IceStats.release(pair.stats)
+                    }
+                }
+            }
+        }
     }
 
     private fun getLocalCandidate(packet: StunSocket.ReceivedPacket): LocalCandidate? {
@@ -341,6 +367,7 @@ class IceAgent(
             val rtt = request.getRoundTripTime(response)
             logger.trace("Measured RTT of {} to be {}ms", pair, rtt.inWholeMilliseconds)
             pair.rtt = min(pair.rtt ?: INFINITE, rtt)
+            if (IceStats.isEnabled) pair.stats.rtt.record(rtt.inWholeMicroseconds)
         }
     }
 
@@ -407,6 +434,7 @@ class IceAgent(
 
         pair.rtt = min(pair.rtt ?: INFINITE, rtt)
         validPair.rtt = min(validPair.rtt ?: INFINITE, rtt)
+        if (IceStats.isEnabled) validPair.stats.rtt.record(rtt.inWholeMicroseconds)
 
         pair.state = CandidatePair.State.Succeeded
         validPair.state = CandidatePair.State.Succeeded
@@ -546,7 +574,7 @@ class IceAgent(
         }
     }
 
-    private fun dispatchDataPacket(bytes: ByteArray) {
+    private suspend fun dispatchDataPacket(bytes: ByteArray, priority: Boolean) {
         // Note: If this is the controlled client and no final pair has been selected yet, then we must prefer sending
         //       data on the pair we last received data on, because that's the one the controlling client uses.
         //       If we were to send data back on what we think is the best pair, which might be different to what the
@@ -555,7 +583,7 @@ class IceAgent(
         //       therefore drop their port mapping.
         val pair = selectedPair ?: (if (controlling) null else lastReceivedDataPair) ?: getBestValidPair() ?: return
 
-        if (highVolumeLogging) {
+        if (highVolumeLogging && logger.isTraceEnabled) { // checksums are not free, only compute if they are logged
             val checksum = sha256.digest(bytes).toBase64String()
             logger.atTrace()
                 .addKeyValues(pair.local)
@@ -568,11 +596,16 @@ class IceAgent(
                     }
                 }
         }
-        pair.local.sendUnchecked(DatagramPacket(bytes, pair.remote.address))
+        if (IceStats.isEnabled) pair.stats.recordSent(bytes.size)
+        if (priority) {
+            pair.local.sendPriorityData(DatagramPacket(bytes, pair.remote.address))
+        } else {
+            pair.local.sendData(DatagramPacket(bytes, pair.remote.address))
+        }
     }
 
     private suspend fun processPacket(packet: ReceivedPacket) {
-        if (highVolumeLogging) {
+        if (highVolumeLogging && logger.isTraceEnabled) {
             val checksum = sha256.digest(packet.data).toBase64String()
             logger.atTrace()
                 .addKeyValues(packet.candidate)
@@ -588,6 +621,11 @@ class IceAgent(
         if (!controlling && selectedPair == null) {
             lastReceivedDataPair = validList.find { it.local.base == packet.candidate.base && it.remote.address == packet.source }
         }
+        if (IceStats.isEnabled) {
+            val pair = selectedPair?.takeIf { it.local.base == packet.candidate.base && it.remote.address == packet.source }
+                ?: validList.find { it.local.base == packet.candidate.base && it.remote.address == packet.source }
+            pair?.stats?.recordReceived(packet.data.size)
+        }
         inboundDataChannel.send(Pair(packet.candidate, packet.data))
     }
 
@@ -673,6 +711,9 @@ class IceAgent(
         var rtt: Duration? = null
         var extraRttChecks = 0
         var hadTriggeredCheck = false
+        /** Only accessed if [IceStats] are enabled. */
+        val statsDelegate = lazy { IceStats.pair(toString()) }
+        val stats: IceStats.PairStats by statsDelegate
 
         /**
          * Set on the controlled side when this pair is nominated by the controlling agent but we don't yet know whether
@@ -704,6 +745,8 @@ class IceAgent(
 
     companion object {
         private const val MAX_CHECKLIST_SIZE = 100
+        private const val OUTBOUND_DATA_QUEUE_PACKETS = 256
+        private const val OUTBOUND_PRIORITY_QUEUE_PACKETS = 32
         private val LOG_DATA_PACKET_CONTENT = System.getProperty("essential.sps.log_data_packet_content").toBoolean()
         private val RELAY_PENALTY = Integer.getInteger("essential.sps.relay_latency_threshold", 100)
         private val sha256 = MessageDigest.getInstance("SHA-256")
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.ice
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Debug statistics for the ICE data path, see `/essentialdebug ice`.
+ *
+ * Collection is disabled by default (unless the `essential.sps.ice_stats` system property is set) and costs nothing but
+ * a volatile read while disabled.
+ */
+object IceStats {
+    @Volatile
+    var isEnabled: Boolean = System.getProperty("essential.sps.ice_stats", "false").toBoolean()
+
+    private val pairs = ConcurrentHashMap<String, PairStats>()
+    /**
+     * Pairs whose agent has been closed, oldest first, so they can still be inspected after the connection ended.
+     * Capped at [MAX_CLOSED_PAIRS] entries. Guarded by itself.
+     */
+    private val closedPairs = LinkedHashMap<String, PairStats>()
+
+    /** Application data packets dropped because [IceAgent.inboundDataChannel] was full. */
+    val inboundDataDropped = LongAdder()
+    /** Packets dropped because a [gg.essential.ice.stun.StunSocket]'s send queue was full. */
+    val hostSendDropped = LongAdder()
+    /** Time packets spent in a [gg.essential.ice.stun.StunSocket]'s send queue, in microseconds. */
+    val hostSendQueueDelay = Histogram()
+
+    /** Returns the statistics for the given candidate pair, creating them if necessary. */
+    fun pair(name: String): PairStats = pairs.computeIfAbsent(name) { PairStats(it) }
+
+    /** Called by the agent owning the given pair once it is closed, moves the pair to [closedPairs]. */
+    fun release(stats: PairStats) {
+        if (!pairs.remove(stats.name, stats)) {
+            return
+        }
+        synchronized(closedPairs) {
+            closedPairs.remove(stats.name)
+            closedPairs[stats.name] = stats
+            val iter = closedPairs.values.iterator()
+            while (closedPairs.size > MAX_CLOSED_PAIRS) {
+                iter.next()
+                iter.remove()
+            }
+        }
+    }
+
+    fun reset() {
+        inboundDataDropped.reset()
+        hostSendDropped.reset()
+        hostSendQueueDelay.reset()
+        // Not removing the live entries because agents hold on to them
+        pairs.values.forEach { it.reset() }
+        synchronized(closedPairs) { closedPairs.clear() }
+    }
+
+    private fun closedPairsSnapshot(): List<Pair<String, PairStats>> = synchronized(closedPairs) { closedPairs.toList() }
+
+    fun describe(): List<String> = buildList {
+        add("Dropped: ${inboundDataDropped.sum()} inbound, ${hostSendDropped.sum()} on send")
+        add("Send queue delay: $hostSendQueueDelay")
+        for ((name, stats) in pairs.toList().sortedBy { it.first }) {
+            if (stats.isEmpty) continue
+            add("$name: $stats")
+        }
+        for ((name, stats) in closedPairsSnapshot()) {
+            if (stats.isEmpty) continue
+            add("$name (closed): $stats")
+        }
+    }
+
+    fun toJson(): String = buildString {
+        append("{\"inboundDataDropped\":").append(inboundDataDropped.sum())
+        append(",\"hostSendDropped\":").append(hostSendDropped.sum())
+        append(",\"hostSendQueueDelayUs\":")
+        hostSendQueueDelay.appendJson(this)
+        append(",\"pairs\":")
+        appendPairsJson(this, pairs.toList().sortedBy { it.first })
+        append(",\"closedPairs\":")
+        appendPairsJson(this, closedPairsSnapshot())
+        append('}')
+    }
+
+    private fun appendPairsJson(out: StringBuilder, pairs: List<Pair<String, PairStats>>) {
+        out.append('{')
+        var first = true
+        for ((name, stats) in pairs) {
+            if (!first) out.append(',')
+            first = false
+            out.append('"').append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\":")
+            stats.appendJson(out)
+        }
+        out.append('}')
+    }
+
+    class PairStats internal constructor(internal val name: String) {
+        val packetsSent = LongAdder()
+        val bytesSent = LongAdder()
+        val packetsReceived = LongAdder()
+        val bytesReceived = LongAdder()
+        /** Round-trip times measured by connectivity and RTT checks, in microseconds. */
+        val rtt = Histogram()
+
+        internal val isEmpty: Boolean
+            get() = packetsSent.sum() == 0L && packetsReceived.sum() == 0L && rtt.count == 0L
+
+        fun recordSent(bytes: Int) {
+            packetsSent.increment()
+            bytesSent.add(bytes.toLong())
+        }
+
+        fun recordReceived(bytes: Int) {
+            packetsReceived.increment()
+            bytesReceived.add(bytes.toLong())
+        }
+
+        internal fun reset() {
+            packetsSent.reset()
+            bytesSent.reset()
+            packetsReceived.reset()
+            bytesReceived.reset()
+            rtt.reset()
+        }
+
+        internal fun appendJson(out: StringBuilder) {
+            out.append("{\"packetsSent\":").append(packetsSent.sum())
+            out.append(",\"bytesSent\":").append(bytesSent.sum())
+            out.append(",\"packetsReceived\":").append(packetsReceived.sum())
+            out.append(",\"bytesReceived\":").append(bytesReceived.sum())
+            out.append(",\"rttUs\":")
+            rtt.appendJson(out)
+            out.append('}')
+        }
+
+        override fun toString(): String {
+            return "sent ${packetsSent.sum()} packets (${bytesSent.sum()} bytes), " +
+                "received ${packetsReceived.sum()} packets (${bytesReceived.sum()} bytes), RTT $rtt"
+        }
+    }
+
+    /**
+     * Lock-free histogram with power-of-two buckets: bucket `i` counts values in `[2^i, 2^(i+1))`, with zero going into
+     * the first bucket. Percentiles are therefore only accurate to within a factor of two, which is plenty to tell
+     * apart a healthy connection from a congested one.
+     */
+    class Histogram internal constructor() {
+        private val buckets = AtomicLongArray(BUCKETS)
+        private val total = LongAdder()
+        private val sum = LongAdder()
+
+        val count: Long
+            get() = total.sum()
+
+        fun record(value: Long) {
+            val bucket = if (value <= 0) 0 else minOf(63 - java.lang.Long.numberOfLeadingZeros(value), BUCKETS - 1)
+            buckets.incrementAndGet(bucket)
+            total.increment()
+            sum.add(value)
+        }
+
+        /** Returns the (exclusive) upper bound of the bucket containing the given percentile (`0.0..1.0`), or 0 if empty. */
+        fun percentile(p: Double): Long {
+            val count = total.sum()
+            if (count == 0L) return 0
+            val target = maxOf(1, Math.ceil(count * p).toLong())
+            var seen = 0L
+            for (i in 0 until BUCKETS) {
+                seen += buckets.get(i)
+                if (seen >= target) return 1L shl (i + 1)
+            }
+            return Long.MAX_VALUE
+        }
+
+        internal fun reset() {
+            for (i in 0 until BUCKETS) {
+                buckets.set(i, 0)
+            }
+            total.reset()
+            sum.reset()
+        }
+
+        internal fun appendJson(out: StringBuilder) {
+            val count = total.sum()
+            out.append("{\"count\":").append(count)
+            if (count > 0) {
+                out.append(",\"mean\":").append(sum.sum() / count)
+                out.append(",\"p50\":").append(percentile(0.5))
+                out.append(",\"p99\":").append(percentile(0.99))
+            }
+            out.append('}')
+        }
+
+        override fun toString(): String {
+            val count = total.sum()
+            if (count == 0L) return "n/a"
+            return "mean ${sum.sum() / count}us, p50 <${percentile(0.5)}us, p99 <${percentile(0.99)}us ($count samples)"
+        }
+
+        private companion object {
+            const val BUCKETS = 40
+        }
+    }
+
+    private const val MAX_CLOSED_PAIRS = 32
+}
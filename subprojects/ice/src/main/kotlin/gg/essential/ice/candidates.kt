@@ -55,6 +55,18 @@ sealed interface LocalCandidate : Candidate {
     suspend fun send(packet: DatagramPacket): Boolean
     fun sendUnchecked(packet: DatagramPacket)
 
+    /**
+     * Sends the given application data packet via this candidate, suspending while the underlying socket (or relay)
+     * has too much data queued already.
+     */
+    suspend fun sendData(packet: DatagramPacket)
+
+    /**
+     * Sends the given latency-sensitive application data packet (e.g. voice) via this candidate, ahead of any regular
+     * data. Never suspends; drops the oldest packets if too many are queued.
+     */
+    fun sendPriorityData(packet: DatagramPacket)
+
     fun close()
 
     companion object {
@@ -107,6 +119,22 @@ open class LocalCandidateImpl(
         }
     }
 
+    override suspend fun sendData(packet: DatagramPacket) {
+        if (relay != null) {
+            relay.sendChannel.send(packet)
+        } else {
+            socket.sendData(packet)
+        }
+    }
+
+    override fun sendPriorityData(packet: DatagramPacket) {
+        if (relay != null) {
+            relay.prioritySendChannel.trySend(packet)
+        } else {
+            socket.sendPriorityData(packet)
+        }
+    }
+
     override fun close() {
         onClose()
     }
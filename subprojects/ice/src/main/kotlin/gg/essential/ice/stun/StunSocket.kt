@@ -11,7 +11,9 @@
  */
 package gg.essential.ice.stun
 
+import gg.essential.ice.ByteBudget
 import gg.essential.ice.DatagramPacket
+import gg.essential.ice.IceStats
 import gg.essential.ice.toBase64String
 import gg.essential.ice.toHexString
 import gg.essential.slf4j.withKeyValue
@@ -23,23 +25,30 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.job
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.plus
+import kotlinx.coroutines.selects.select
 import kotlinx.coroutines.yield
 import org.slf4j.Logger
 import java.io.IOException
 import java.net.BindException
 import java.net.DatagramPacket
-import java.net.DatagramSocket
 import java.net.InetAddress
 import java.net.InetSocketAddress
 import java.net.NoRouteToHostException
 import java.net.SocketException
+import java.net.StandardSocketOptions
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
 import java.security.MessageDigest
+import kotlin.coroutines.coroutineContext
 import kotlin.time.ComparableTimeMark
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.minutes
@@ -47,14 +56,14 @@ import kotlin.time.Duration.Companion.seconds
 import kotlin.time.TimeSource
 
 /**
- * This class extends a local DatagramSocket with [STUN](https://www.rfc-editor.org/rfc/rfc8489) and
+ * This class extends a local DatagramChannel with [STUN](https://www.rfc-editor.org/rfc/rfc8489) and
  * [TURN](https://www.rfc-editor.org/rfc/rfc8656) functionality.
  */
 class StunSocket(
     parentLogger: Logger,
     parentScope: CoroutineScope, // must have Job and a concurrency-limited "main" dispatcher
     private val manager: StunManager,
-    private val hostSocket: DatagramSocket,
+    private val hostSocket: DatagramChannel,
     val hostAddress: InetSocketAddress,
 ) {
     val scope = parentScope + Job(parentScope.coroutineContext.job)
@@ -79,99 +88,67 @@ class StunSocket(
         }
     }
 
-    private val hostSendChannel: Channel<Pair<DatagramPacket, CompletableDeferred<Boolean>?>> =
-        Channel(1000, BufferOverflow.DROP_OLDEST) { (packet, deferred) ->
+    private val hostSendChannel: Channel<QueuedPacket> =
+        Channel(1000, BufferOverflow.DROP_OLDEST) { (packet, deferred, budgeted) ->
             logger.warn("Failed to send packet of {} bytes to {}: hostSendChannel overflow", packet.length, packet.address)
+            if (IceStats.isEnabled) IceStats.hostSendDropped.increment()
             // On  overflow, we resolve the deferred as successful because overflow is not unrecoverable (just re-try)
             deferred?.complete(true)
+            if (budgeted) hostSendBudget.release(packet.length)
         }
 
+    /**
+     * Latency-sensitive application data (e.g. voice), see [sendPriorityData].
+     * Always sent before anything in [hostSendChannel], and drops its oldest packets rather than building up a delay.
+     */
+    private val hostPrioritySendChannel: Channel<QueuedPacket> =
+        Channel(PRIORITY_SEND_QUEUE_PACKETS, BufferOverflow.DROP_OLDEST) { (packet) ->
+            logger.trace("Dropping priority packet of {} bytes to {}: overflow", packet.length, packet.address)
+            if (IceStats.isEnabled) IceStats.hostSendDropped.increment()
+        }
+
+    /**
+     * Limits the amount of application data queued in [hostSendChannel], see [sendData].
+     * Other packets are not subject to it, so connectivity checks and keep-alives are not held up by data.
+     */
+    val hostSendBudget = ByteBudget("StunSocket.hostSend", HOST_SEND_BUDGET)
+
     private val endpoints = mutableMapOf<InetSocketAddress, Endpoint>()
     private val stunBindings = mutableMapOf<InetSocketAddress, StunBinding>()
     private val relayAllocations = mutableMapOf<InetSocketAddress, RelayAllocation>()
 
     init {
+        hostSocket.configureBlocking(false)
+        SEND_BUFFER_SIZE?.let { hostSocket.setOption(StandardSocketOptions.SO_SNDBUF, it) }
+        RECEIVE_BUFFER_SIZE?.let { hostSocket.setOption(StandardSocketOptions.SO_RCVBUF, it) }
+
         hostSocketScope.launch(Dispatchers.IO, CoroutineStart.UNDISPATCHED) {
             // We want CoroutineStart.ATOMIC so our finally is guaranteed, but that's still experimental, so we'll
             // instead use UNDISPATCHED and yield as soon as we're inside our try-finally.
             hostSocket.use { socket ->
                 yield()
-                val knownUnreachable = mutableSetOf<InetAddress>()
-                for ((packet, deferred) in hostSendChannel) {
-                    if (packet.address in knownUnreachable) {
-                        deferred?.complete(false)
-                        continue // don't even bother trying
-                    }
-                    try {
-                        if (LOG_UDP_PACKET_CONTENT) {
-                            val bytes = packet.data.maybeSliceArray(packet.offset, packet.length)
-                            val checksum = sha256.digest(bytes).toBase64String()
-                            val content = bytes.toBase64String()
-                            logger.atTrace()
-                                .addKeyValue("hostAddress", hostAddress)
-                                .addKeyValue("remoteAddress", packet.socketAddress)
-                                .log("Sending packet of {} bytes with checksum {}: {}", bytes.size, checksum, content)
-                        }
-                        socket.send(packet)
-                    } catch (e: Exception) {
-                        if (e is SocketException && e.message?.startsWith("Network is unreachable:") == true
-                            || e is BindException && e.message == "Cannot assign requested address: no further information"
-                            || e is IOException && e.message == "Network is unreachable (sendto failed)"
-                            || e is NoRouteToHostException) {
-                            logger.trace("Failed to send to {}: {}", packet.socketAddress, e.message)
-                            knownUnreachable.add(packet.address)
-                            deferred?.complete(false)
-                            continue
-                        }
-                        logger.error("Failed to send $packet to ${packet.socketAddress}", e)
-                    } finally {
-                        deferred?.complete(true)
-                    }
+                // Only used to wait for the socket to become writable again when its send buffer is full
+                Selector.open().use { selector ->
+                    socket.register(selector, SelectionKey.OP_WRITE)
+                    sendPackets(socket, selector)
                 }
             }
         }
 
-        val packetsToBeSorted = Channel<ReceivedPacket>(10)
+        val packetsToBeSorted = Channel<List<ReceivedPacket>>(10)
         hostSocketScope.launch(Dispatchers.IO) {
-            val buf = DatagramPacket(ByteArray(1500), 1500)
-            while (coroutineContext.isActive) {
-                try {
-                    hostSocket.receive(buf)
-                } catch (e: Exception) {
-                    if (e is SocketException && e.message?.startsWith("Network dropped connection on reset") == true) {
-                        logger.trace("Ignoring nonsensical exception:", e)
-                        continue
-                    }
-                    if (!hostSocket.isClosed) {
-                        logger.error("Failed to receive:", e)
-                    }
-                    break
-                }
-                val remoteAddress = InetSocketAddress(buf.address, buf.port)
-                val bytes = buf.data.sliceArray(buf.offset until buf.offset + buf.length)
-                if (LOG_UDP_PACKET_CONTENT) {
-                    val checksum = sha256.digest(bytes).toBase64String()
-                    val content = bytes.toBase64String()
-                    logger.atTrace()
-                        .addKeyValue("hostAddress", hostAddress)
-                        .addKeyValue("remoteAddress", remoteAddress)
-                        .log("Received packet of {} bytes with checksum {}: {}", bytes.size, checksum, content)
+            try {
+                Selector.open().use { selector ->
+                    hostSocket.register(selector, SelectionKey.OP_READ)
+                    receivePackets(selector, packetsToBeSorted)
                 }
-                packetsToBeSorted.send(
-                    ReceivedPacket(
-                        this@StunSocket,
-                        null,
-                        TimeSource.Monotonic.markNow(),
-                        remoteAddress,
-                        bytes,
-                    )
-                )
-            }
-            packetsToBeSorted.close()
+            } finally {
+                packetsToBeSorted.close()
+            }
         }
 
         hostSocketScope.launch {
-            for (packet in packetsToBeSorted) {
+            for (batch in packetsToBeSorted) for (packet in batch) {
                 if (StunMessage.looksLikeStun(packet.data)) {
                     val message = manager.messageReceived(logger, packet) ?: continue
                     val relay = relayAllocations[packet.source]
@@ -202,6 +179,105 @@ class StunSocket(
         }
     }
 
+    private suspend fun sendPackets(socket: DatagramChannel, selector: Selector) {
+        val knownUnreachable = mutableSetOf<InetAddress>()
+        while (true) {
+            val (packet, deferred, budgeted, queuedAt) = hostPrioritySendChannel.tryReceive().getOrNull()
+                ?: select<QueuedPacket?> {
+                    // Clauses are biased towards the first one, so priority packets always go first
+                    hostPrioritySendChannel.onReceiveCatching { it.getOrNull() }
+                    hostSendChannel.onReceiveCatching { it.getOrNull() }
+                }
+                ?: break
+            if (budgeted) hostSendBudget.release(packet.length)
+            if (queuedAt != 0L) IceStats.hostSendQueueDelay.record((System.nanoTime() - queuedAt) / 1000)
+            if (packet.address in knownUnreachable) {
+                deferred?.complete(false)
+                continue // don't even bother trying
+            }
+            try {
+                if (LOG_UDP_PACKET_CONTENT) {
+                    val bytes = packet.data.maybeSliceArray(packet.offset, packet.length)
+                    val checksum = sha256.digest(bytes).toBase64String()
+                    val content = bytes.toBase64String()
+                    logger.atTrace()
+                        .addKeyValue("hostAddress", hostAddress)
+                        .addKeyValue("remoteAddress", packet.socketAddress)
+                        .log("Sending packet of {} bytes with checksum {}: {}", bytes.size, checksum, content)
+                }
+                val buf = ByteBuffer.wrap(packet.data, packet.offset, packet.length)
+                while (socket.send(buf, packet.socketAddress) == 0 && socket.isOpen) {
+                    // Send buffer is full, wait for the OS to catch up
+                    selector.select(SELECT_TIMEOUT_MS)
+                    selector.selectedKeys().clear()
+                }
+            } catch (e: Exception) {
+                if (e is SocketException && e.message?.startsWith("Network is unreachable:") == true
+                    || e is BindException && e.message == "Cannot assign requested address: no further information"
+                    || e is IOException && e.message?.startsWith("Network is unreachable") == true
+                    || e is IOException && e.message == "No route to host"
+                    || e is NoRouteToHostException) {
+                    logger.trace("Failed to send to {}: {}", packet.socketAddress, e.message)
+                    knownUnreachable.add(packet.address)
+                    deferred?.complete(false)
+                    continue
+                }
+                if (!socket.isOpen) {
+                    deferred?.complete(false)
+                    break
+                }
+                logger.error("Failed to send $packet to ${packet.socketAddress}", e)
+            } finally {
+                deferred?.complete(true)
+            }
+        }
+    }
+
+    /**
+     * Reads all packets which have arrived on [hostSocket] each time it becomes readable, and passes them on as a single
+     * batch, so bursts of packets only require a single hand-off to the main thread.
+     */
+    private suspend fun receivePackets(selector: Selector, packetsToBeSorted: SendChannel<List<ReceivedPacket>>) {
+        val buf = ByteBuffer.allocateDirect(MAX_PACKET_SIZE)
+        while (coroutineContext.isActive && hostSocket.isOpen) {
+            selector.select(SELECT_TIMEOUT_MS)
+            selector.selectedKeys().clear()
+
+            var batch: MutableList<ReceivedPacket>? = null
+            while (batch == null || batch.size < MAX_BATCH_SIZE) {
+                buf.clear()
+                val remoteAddress = try {
+                    hostSocket.receive(buf) as InetSocketAddress? ?: break
+                } catch (e: Exception) {
+                    if (e is IOException && e.message?.startsWith("Network dropped connection on reset") == true) {
+                        logger.trace("Ignoring nonsensical exception:", e)
+                        continue
+                    }
+                    if (hostSocket.isOpen) {
+                        logger.error("Failed to receive:", e)
+                    }
+                    return
+                }
+                buf.flip()
+                val bytes = ByteArray(buf.remaining())
+                buf.get(bytes)
+                if (LOG_UDP_PACKET_CONTENT) {
+                    val checksum = sha256.digest(bytes).toBase64String()
+                    val content = bytes.toBase64String()
+                    logger.atTrace()
+                        .addKeyValue("hostAddress", hostAddress)
+                        .addKeyValue("remoteAddress", remoteAddress)
+                        .log("Received packet of {} bytes with checksum {}: {}", bytes.size, checksum, content)
+                }
+                val packet = ReceivedPacket(this, null, TimeSource.Monotonic.markNow(), remoteAddress, bytes)
+                batch = (batch ?: ArrayList(4)).apply { add(packet) }
+            }
+            if (batch != null) {
+                packetsToBeSorted.send(batch)
+            }
+        }
+    }
+
     /**
      * Sends the given packet via this socket.
      *
@@ -212,12 +288,29 @@ class StunSocket(
      */
     suspend fun send(packet: DatagramPacket): Boolean {
         val deferred = CompletableDeferred<Boolean>()
-        hostSendChannel.send(packet to deferred)
+        hostSendChannel.send(QueuedPacket(packet, deferred, false))
         return deferred.await()
     }
 
     fun sendUnchecked(packet: DatagramPacket) {
-        hostSendChannel.trySend(packet to null)
+        hostSendChannel.trySend(QueuedPacket(packet, null, false))
+    }
+
+    /**
+     * Sends the given application data packet via this socket, suspending while too much data is already queued (see
+     * [hostSendBudget]), so back-pressure from the socket propagates to the sender.
+     */
+    suspend fun sendData(packet: DatagramPacket) {
+        hostSendBudget.acquire(packet.length)
+        hostSendChannel.send(QueuedPacket(packet, null, true))
+    }
+
+    /**
+     * Sends the given latency-sensitive application data packet via this socket, ahead of any other queued data.
+     * Never suspends; if too many of these are queued, the oldest ones are dropped (they would be stale anyway).
+     */
+    fun sendPriorityData(packet: DatagramPacket) {
+        hostPrioritySendChannel.trySend(QueuedPacket(packet, null, false))
     }
 
     fun getEndpoint(address: InetSocketAddress): Endpoint {
@@ -251,6 +344,15 @@ class StunSocket(
         val data: ByteArray,
     )
 
+    private data class QueuedPacket(
+        val packet: DatagramPacket,
+        val deferred: CompletableDeferred<Boolean>?,
+        /** Whether the packet has acquired credits from [hostSendBudget] which need to be released once it's sent. */
+        val budgeted: Boolean,
+        /** [System.nanoTime] at which the packet was queued, or 0 if [IceStats] were disabled at the time. */
+        val queuedAt: Long = if (IceStats.isEnabled) System.nanoTime() else 0,
+    )
+
     inner class Endpoint(val address: InetSocketAddress) {
         val logger = this@StunSocket.logger.withKeyValue("remoteAddress", address)
 
@@ -323,7 +425,10 @@ class StunSocket(
         val logger = this@StunSocket.logger.withKeyValue("turnServer", endpoint.address)
         val scope = this@StunSocket.scope.let { it + Job(it.coroutineContext.job) }
 
-        val sendChannel = Channel<DatagramPacket>(100, BufferOverflow.DROP_OLDEST)
+        /** Not dropping on overflow, so data senders are slowed down instead, see [LocalCandidate.sendData]. */
+        val sendChannel = Channel<DatagramPacket>(100)
+        /** Latency-sensitive data, see [LocalCandidate.sendPriorityData]. */
+        val prioritySendChannel = Channel<DatagramPacket>(PRIORITY_SEND_QUEUE_PACKETS, BufferOverflow.DROP_OLDEST)
 
         val mappedAddress = CompletableDeferred<InetSocketAddress>(scope.coroutineContext.job)
         val relayedAddress = CompletableDeferred<InetSocketAddress>(scope.coroutineContext.job)
@@ -346,7 +451,13 @@ class StunSocket(
 
             scope.launch {
                 for (packet in sendChannel) {
-                    sendData(packet)
+                    sendData(packet, priority = false)
+                }
+            }
+
+            scope.launch {
+                for (packet in prioritySendChannel) {
+                    sendData(packet, priority = true)
                 }
             }
         }
@@ -494,13 +605,21 @@ class StunSocket(
             //       time elapses, so we don't need to bother refreshing them.
         }
 
-        private fun sendData(packet: DatagramPacket) {
+        private suspend fun sendData(packet: DatagramPacket, priority: Boolean) {
             val destination = InetSocketAddress(packet.address, packet.port)
 
+            suspend fun send(packet: DatagramPacket) {
+                if (priority) {
+                    this@StunSocket.sendPriorityData(packet)
+                } else {
+                    this@StunSocket.sendData(packet)
+                }
+            }
+
             val channelId = channelAddressToId[packet.socketAddress]
             if (channelId != null && channelId in boundChannels) {
-                val data = ChannelData.encode(channelId, packet.data.maybeSliceArray(packet.offset, packet.length))
-                this@StunSocket.sendUnchecked(DatagramPacket(data, endpoint.address))
+                val data = ChannelData.encode(channelId, packet.data, packet.offset, packet.length)
+                send(DatagramPacket(data, endpoint.address))
                 return
             }
 
@@ -510,7 +629,7 @@ class StunSocket(
                 StunAttribute.XorPeerAddress(destination),
                 StunAttribute.Data(packet.data.maybeSliceArray(packet.offset, packet.length)),
             ))
-            this@StunSocket.sendUnchecked(DatagramPacket(msg.encode(), endpoint.address))
+            send(DatagramPacket(msg.encode(), endpoint.address))
         }
 
         internal suspend fun dataPacketReceived(packet: ReceivedPacket): Boolean {
@@ -584,6 +703,16 @@ class StunSocket(
     companion object {
         private val LOG_UDP_PACKET_CONTENT = System.getProperty("essential.sps.log_udp_packet_content").toBoolean()
         private val sha256 = MessageDigest.getInstance("SHA-256")
+        private const val HOST_SEND_BUDGET = 256 * 1024
+        /** Enough for a few hundred milliseconds of voice, anything older than that is not worth sending anymore. */
+        private const val PRIORITY_SEND_QUEUE_PACKETS = 32
+        private const val MAX_PACKET_SIZE = 0xffff
+        /** Maximum amount of packets passed to the main thread at once, so a flood cannot starve other work. */
+        private const val MAX_BATCH_SIZE = 64
+        /** Upper bound on how long the IO threads may take to notice that the socket has been closed. */
+        private const val SELECT_TIMEOUT_MS = 1000L
+        private val SEND_BUFFER_SIZE: Int? = Integer.getInteger("essential.sps.socket_send_buffer")
+        private val RECEIVE_BUFFER_SIZE: Int? = Integer.getInteger("essential.sps.socket_receive_buffer")
 
         private fun ByteArray.maybeSliceArray(offset: Int, length: Int) =
             if (offset == 0 && length == size) this else sliceArray(offset until offset + length)
@@ -73,6 +73,14 @@ public class QuicClientConnector extends QuicConnector {
      * No packets are sent on the transport layer until the application layer connects to the returned port.
      */
     public int[] bindProxy(String host, int icePort) {
+        return bindProxy(host, icePort, null);
+    }
+
+    /**
+     * Same as {@link #bindProxy(String, int)} but if a {@code sharedMemory} transport is given, transport layer packets
+     * are exchanged through it instead of the ice port.
+     */
+    public int[] bindProxy(String host, int icePort, SharedMemoryTransport sharedMemory) {
         EventLoop eventLoop = group.next(); // same thread for both vastly simplifies thread safety
 
         // Bind the channel which acts as our transport layer
@@ -86,10 +94,17 @@ public class QuicClientConnector extends QuicConnector {
 
         udpChannel.pipeline().addLast(quicCodec);
 
+        InetSocketAddress remoteAddress = new InetSocketAddress(host, icePort);
+        if (sharedMemory != null) {
+            // There is no real peer address, so we just use our own one
+            remoteAddress = (InetSocketAddress) udpChannel.localAddress();
+            udpChannel.pipeline().addFirst(new SharedMemoryDatagramHandler(sharedMemory, remoteAddress));
+        }
+
         // Prepare the QUIC channel which we'll be initializing once the application has connected
         QuicChannelBootstrap quicChannelBootstrap = QuicChannel.newBootstrap(udpChannel)
             .streamHandler(new ChannelInboundHandlerAdapter())
-            .remoteAddress(new InetSocketAddress(host, icePort));
+            .remoteAddress(remoteAddress);
 
         // Listen for http clients to connect
         HttpProxyInitializer httpProxy = new HttpProxyInitializer();
@@ -187,6 +202,7 @@ public class QuicClientConnector extends QuicConnector {
                             }
 
                             targetChannel = streamChannelFuture.getNow();
+                            QuicStreamPriorities.apply(streamChannelFuture.getNow(), QuicStreamPriorities.GAME);
 
                             // connection complete, begin reading data from frontend channel
                             if (tcpChannel.isActive()) {
@@ -266,6 +282,7 @@ public class QuicClientConnector extends QuicConnector {
                     }
 
                     targetChannel = streamChannelFuture.getNow();
+                    QuicStreamPriorities.apply(streamChannelFuture.getNow(), QuicStreamPriorities.HTTP);
 
                     // connection complete, begin reading data from frontend channel
                     if (tcpChannel.isActive()) {
@@ -283,7 +300,9 @@ public class QuicClientConnector extends QuicConnector {
 
             String host = in.readUTF();
             int icePort = in.readUnsignedShort();
-            int[] ports = connector.bindProxy(host, icePort);
+            String sharedMemoryPath = in.readUTF(); // empty if the socket should be used
+            SharedMemoryTransport sharedMemory = sharedMemoryPath.isEmpty() ? null : SharedMemoryTransport.open(sharedMemoryPath);
+            int[] ports = connector.bindProxy(host, icePort, sharedMemory);
             out.writeShort(ports[0]); // udp port
             out.writeShort(ports[1]); // tcp port
             out.writeShort(ports[2]); // http port
@@ -70,6 +70,14 @@ public class QuicServerConnector extends QuicConnector {
      * The application layer connection is only opened once the QUIC channel+stream have been connected.
      */
     public int bindProxy(String host, int tcpPort, int httpPort) {
+        return bindProxy(host, tcpPort, httpPort, null);
+    }
+
+    /**
+     * Same as {@link #bindProxy(String, int, int)} but if a {@code sharedMemory} transport is given, transport layer
+     * packets are exchanged through it instead of the returned port.
+     */
+    public int bindProxy(String host, int tcpPort, int httpPort, SharedMemoryTransport sharedMemory) {
         // Bind the channel which acts as our transport layer
         Channel channel = new Bootstrap()
             .group(group)
@@ -79,6 +87,11 @@ public class QuicServerConnector extends QuicConnector {
             .syncUninterruptibly()
             .channel();
 
+        if (sharedMemory != null) {
+            // There is no real peer address, so we just use our own one
+            InetSocketAddress peerAddress = (InetSocketAddress) channel.localAddress();
+            channel.pipeline().addFirst(new SharedMemoryDatagramHandler(sharedMemory, peerAddress));
+        }
         channel.pipeline().addLast(new LogOnceHandler(LogOnce.toForkedJvmDebug(), "transport"));
 
         // Setup a QUIC server on our transport layer channel
@@ -136,11 +149,13 @@ public class QuicServerConnector extends QuicConnector {
                 waitingForInitialStream = false;
 
                 ch.pipeline().addLast(new McProxyFrontendHandler(tcpHost, tcpPort));
+                QuicStreamPriorities.apply(ch, QuicStreamPriorities.GAME);
 
                 // They have connected, end the connect-timeout
                 ch.parent().parent().pipeline().remove(ReadTimeoutHandler.class);
             } else {
                 ch.pipeline().addLast(new TcpProxyFrontendHandler(tcpHost, httpPort));
+                QuicStreamPriorities.apply(ch, QuicStreamPriorities.HTTP);
             }
         }
     }
@@ -206,11 +221,13 @@ public class QuicServerConnector extends QuicConnector {
             DataOutputStream out = new DataOutputStream(stdOut);
             DataInputStream in = new DataInputStream(System.in);
 
-            while (in.read() == 0) {
+            int command;
+            while ((command = in.read()) == 0 || command == 1) {
                 String host = in.readUTF();
                 int tcpPort = in.readUnsignedShort();
                 int httpPort = in.readUnsignedShort();
-                int icePort = connector.bindProxy(host, tcpPort, httpPort);
+                SharedMemoryTransport sharedMemory = command == 1 ? SharedMemoryTransport.open(in.readUTF()) : null;
+                int icePort = connector.bindProxy(host, tcpPort, httpPort, sharedMemory);
                 out.writeShort(icePort);
                 out.flush();
             }
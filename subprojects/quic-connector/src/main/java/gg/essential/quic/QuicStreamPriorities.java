@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic;
+
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamPriority;
+
+/**
+ * Send priorities for the QUIC streams of a single SPS connection.
+ *
+ * The Minecraft connection and each http (resource pack) connection are carried by separate QUIC streams, so loss on
+ * one does not block delivery on the others, but they still share the same congestion window. These priorities make
+ * sure bulk http downloads only use bandwidth which the Minecraft connection leaves unused.
+ *
+ * Priorities are local to each side (they only affect what we send), so both sides need to apply them to their end of
+ * each stream.
+ */
+public class QuicStreamPriorities {
+    /** The Minecraft connection. Most urgent, and sent in order rather than interleaved with other streams. */
+    public static final QuicStreamPriority GAME = new QuicStreamPriority(1, false);
+
+    /** Http connections, e.g. resource pack downloads. Share whatever bandwidth is left between each other. */
+    public static final QuicStreamPriority HTTP = new QuicStreamPriority(5, true);
+
+    public static void apply(QuicStreamChannel channel, QuicStreamPriority priority) {
+        // Failure is not fatal, the stream will simply use the default priority
+        channel.updatePriority(priority);
+    }
+}
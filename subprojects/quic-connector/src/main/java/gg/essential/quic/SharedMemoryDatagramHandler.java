@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replaces the socket of a datagram channel with a {@link SharedMemoryTransport}.
+ * <p>
+ * Must be the first handler in the pipeline. Datagrams written to the channel are put into the shared memory ring
+ * instead of being sent over the socket, and datagrams received via shared memory are fired into the pipeline as if
+ * they were received from {@code peerAddress}.
+ * The underlying socket stays bound (it still provides the local address) but will not see any traffic.
+ */
+public class SharedMemoryDatagramHandler extends ChannelDuplexHandler {
+    private static final int MAX_DATAGRAM_SIZE = 0xffff;
+    private static final int MAX_DATAGRAMS_PER_BATCH = 64;
+
+    private static final List<SharedMemoryDatagramHandler> active = new CopyOnWriteArrayList<>();
+    /** Transports of closed handlers, closed by the poller thread once it is guaranteed to no longer access them. */
+    private static final Queue<SharedMemoryTransport> closing = new ConcurrentLinkedQueue<>();
+    private static Thread pollerThread;
+
+    private final LogOnce logOnce = LogOnce.toForkedJvmDebug();
+    private final SharedMemoryTransport transport;
+    private final InetSocketAddress peerAddress;
+    private ChannelHandlerContext ctx;
+    private volatile boolean closed;
+
+    public SharedMemoryDatagramHandler(SharedMemoryTransport transport, InetSocketAddress peerAddress) {
+        this.transport = transport;
+        this.peerAddress = peerAddress;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        register(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        close();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        close();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof DatagramPacket)) {
+            super.write(ctx, msg, promise);
+            return;
+        }
+        ByteBuf content = ((DatagramPacket) msg).content();
+        if (closed) {
+            content.release();
+            promise.trySuccess();
+            return;
+        }
+        try {
+            // Write is only ever called on the event loop, so that is our single producer thread
+            if (!transport.getFromConnector().offer(content.nioBuffer())) {
+                logOnce.log("shm.dropped", content.readableBytes());
+            }
+        } finally {
+            content.release();
+        }
+        promise.trySuccess();
+    }
+
+    // Only called on the event loop, so once this returns, write will no longer touch the transport
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        active.remove(this);
+        closing.add(transport);
+        synchronized (SharedMemoryDatagramHandler.class) {
+            LockSupport.unpark(pollerThread);
+        }
+    }
+
+    /**
+     * Reads up to one batch of datagrams from shared memory and hands them to the event loop.
+     * Only called from the poller thread.
+     *
+     * @return whether any datagrams were read
+     */
+    private boolean poll(ByteBuffer scratch) {
+        if (closed) {
+            return false;
+        }
+        SharedMemoryRing ring = transport.getToConnector();
+        List<DatagramPacket> batch = null;
+        InetSocketAddress localAddress = (InetSocketAddress) ctx.channel().localAddress();
+        for (int i = 0; i < MAX_DATAGRAMS_PER_BATCH; i++) {
+            scratch.clear();
+            int length = ring.poll(scratch);
+            if (length < 0) {
+                break;
+            }
+            scratch.flip();
+            ByteBuf buf = ctx.alloc().directBuffer(length);
+            buf.writeBytes(scratch);
+            if (batch == null) {
+                batch = new ArrayList<>();
+            }
+            batch.add(new DatagramPacket(buf, localAddress, peerAddress));
+        }
+        if (batch == null) {
+            return false;
+        }
+
+        List<DatagramPacket> packets = batch;
+        ctx.executor().execute(() -> {
+            for (DatagramPacket packet : packets) {
+                ctx.fireChannelRead(packet);
+            }
+            ctx.fireChannelReadComplete();
+        });
+        return true;
+    }
+
+    private static synchronized void register(SharedMemoryDatagramHandler handler) {
+        active.add(handler);
+        if (pollerThread == null) {
+            pollerThread = new Thread(SharedMemoryDatagramHandler::runPoller, "Shared memory poller");
+            pollerThread.setDaemon(true);
+            pollerThread.start();
+        } else {
+            LockSupport.unpark(pollerThread);
+        }
+    }
+
+    private static void runPoller() {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        SharedMemoryRing.Backoff backoff = new SharedMemoryRing.Backoff();
+        while (true) {
+            SharedMemoryTransport transport;
+            while ((transport = closing.poll()) != null) {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (active.isEmpty()) {
+                // Nothing to poll, no need to wake up periodically until something is registered
+                LockSupport.park();
+                continue;
+            }
+            boolean busy = false;
+            for (SharedMemoryDatagramHandler handler : active) {
+                busy |= handler.poll(scratch);
+            }
+            if (busy) {
+                backoff.reset();
+            } else {
+                backoff.idle();
+            }
+        }
+    }
+}
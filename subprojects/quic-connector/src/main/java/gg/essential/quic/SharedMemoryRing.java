@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer single-consumer queue of datagrams in (potentially) shared memory.
+ * <p>
+ * Used to exchange transport layer packets with the forked QUIC connector JVM without going through the loopback
+ * interface. Each ring is written by exactly one thread in one process and read by exactly one thread in the other.
+ * <p>
+ * Layout: the producer's position at {@link #HEAD_OFFSET}, the consumer's position at {@link #TAIL_OFFSET} (each on
+ * their own cache line), followed by the data region. Positions are byte offsets which only ever increase and are
+ * wrapped into the data region by masking with its (power of two) capacity.
+ * Each record is a 4 byte length followed by the payload, padded to 8 bytes. A record never wraps around the end of
+ * the data region; if it does not fit, a {@link #WRAP_MARKER} is written instead and the record starts at the beginning.
+ * <p>
+ * If the ring is full, new datagrams are dropped, same as the kernel would do with a full socket buffer.
+ */
+public final class SharedMemoryRing {
+    private static final int HEAD_OFFSET = 0;
+    private static final int TAIL_OFFSET = 64;
+    private static final int DATA_OFFSET = 128;
+    private static final int RECORD_HEADER_SIZE = 4;
+    private static final int WRAP_MARKER = -1;
+
+    /**
+     * Fences to order the accesses to the shared memory with respect to the position updates. Without these the JIT
+     * is free to publish a new head before the data it covers has been written, which is invisible within a single
+     * JVM but very much visible to the other process.
+     * These are only available via {@code sun.misc.Unsafe} on Java 8, if that fails, shared memory is not supported.
+     */
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle LOAD_FENCE;
+    static {
+        MethodHandle storeFence = null;
+        MethodHandle loadFence = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType type = MethodType.methodType(void.class);
+            storeFence = lookup.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+            loadFence = lookup.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        STORE_FENCE = storeFence;
+        LOAD_FENCE = loadFence;
+    }
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final int mask;
+
+    // Positions owned by this side, and cached copies of the other side's position (only re-read from shared memory
+    // when the cached one is not good enough, so the cache line is not bounced back and forth on every datagram)
+    private long head;
+    private long tail;
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param buffer Memory of exactly {@link #size(int)} bytes holding the ring. Must be zeroed when first used.
+     * @param capacity Capacity of the data region, must be a power of two.
+     */
+    public SharedMemoryRing(ByteBuffer buffer, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (buffer.capacity() != size(capacity)) {
+            throw new IllegalArgumentException("Expected buffer of size " + size(capacity) + " but got " + buffer.capacity());
+        }
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.head = buffer.getLong(HEAD_OFFSET);
+        this.tail = buffer.getLong(TAIL_OFFSET);
+        this.cachedHead = head;
+        this.cachedTail = tail;
+    }
+
+    /** Returns the number of bytes required to hold a ring with the given data capacity. */
+    public static int size(int capacity) {
+        return DATA_OFFSET + capacity;
+    }
+
+    /** Returns whether shared memory rings can be used on this JVM. */
+    public static boolean isSupported() {
+        return STORE_FENCE != null && LOAD_FENCE != null;
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer as a single datagram.
+     * Must only be called from the single producer thread.
+     *
+     * @return {@code true} if the datagram was queued, {@code false} if it was dropped because the ring is full
+     */
+    public boolean offer(ByteBuffer src) {
+        int length = src.remaining();
+        int recordSize = align(RECORD_HEADER_SIZE + length);
+        if (recordSize > capacity / 2) {
+            return false; // would not reliably fit, no matter how long we wait
+        }
+
+        long head = this.head;
+        int index = (int) head & mask;
+        int padding = index + recordSize > capacity ? capacity - index : 0;
+
+        long required = head + padding + recordSize - capacity;
+        if (required > cachedTail) {
+            cachedTail = readPosition(TAIL_OFFSET);
+            if (required > cachedTail) {
+                return false;
+            }
+        }
+
+        if (padding > 0) {
+            buffer.putInt(DATA_OFFSET + index, WRAP_MARKER);
+            head += padding;
+            index = 0;
+        }
+
+        int offset = DATA_OFFSET + index;
+        buffer.putInt(offset, length);
+        view.limit(offset + RECORD_HEADER_SIZE + length).position(offset + RECORD_HEADER_SIZE);
+        view.put(src);
+
+        head += recordSize;
+        writePosition(HEAD_OFFSET, head);
+        this.head = head;
+        return true;
+    }
+
+    /**
+     * Removes the next datagram from the ring and copies it into the given buffer.
+     * Must only be called from the single consumer thread.
+     *
+     * @param dst Buffer to receive the datagram, must have at least 64KiB remaining.
+     * @return the length of the datagram, or {@code -1} if the ring is empty
+     */
+    public int poll(ByteBuffer dst) {
+        long tail = this.tail;
+        if (tail == cachedHead) {
+            cachedHead = readPosition(HEAD_OFFSET);
+            if (tail == cachedHead) {
+                return -1;
+            }
+        }
+
+        int index = (int) tail & mask;
+        int length = buffer.getInt(DATA_OFFSET + index);
+        if (length == WRAP_MARKER) {
+            tail += capacity - index;
+            index = 0;
+            length = buffer.getInt(DATA_OFFSET);
+        }
+
+        int offset = DATA_OFFSET + index + RECORD_HEADER_SIZE;
+        view.limit(offset + length).position(offset);
+        dst.put(view);
+
+        tail += align(RECORD_HEADER_SIZE + length);
+        // The reads above must not be re-ordered after the producer can see that it may overwrite the memory
+        loadFence();
+        buffer.putLong(TAIL_OFFSET, tail);
+        this.tail = tail;
+        return length;
+    }
+
+    /** Returns whether there are no more datagrams in the ring right now. Must only be called by the consumer. */
+    public boolean isEmpty() {
+        return tail == readPosition(HEAD_OFFSET);
+    }
+
+    private long readPosition(int offset) {
+        long value = buffer.getLong(offset);
+        // Any accesses to the data region must happen after we read the position which allows them
+        loadFence();
+        return value;
+    }
+
+    private void writePosition(int offset, long value) {
+        // All writes to the data region must be visible before the new position is
+        storeFence();
+        buffer.putLong(offset, value);
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    private static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    /**
+     * Waiting strategy for a thread polling one or more rings: spins for a bit, then yields, then parks for
+     * increasingly longer periods. There is no way to wake up a thread in another process, so this never parks for
+     * longer than {@link #MAX_PARK_NANOS} to bound the latency after an idle period.
+     */
+    public static final class Backoff {
+        private static final int SPINS = 100;
+        private static final int YIELDS = 10;
+        private static final long MIN_PARK_NANOS = 10_000;
+        private static final long MAX_PARK_NANOS = 1_000_000;
+
+        private int idleRounds;
+        private long parkNanos = MIN_PARK_NANOS;
+
+        /** To be called whenever work was found. */
+        public void reset() {
+            idleRounds = 0;
+            parkNanos = MIN_PARK_NANOS;
+        }
+
+        /** To be called whenever no work was found. */
+        public void idle() {
+            int rounds = idleRounds++;
+            if (rounds < SPINS) {
+                return;
+            }
+            if (rounds < SPINS + YIELDS) {
+                Thread.yield();
+                return;
+            }
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.quic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A memory-mapped file holding two {@link SharedMemoryRing}s, one for datagrams from the game to the QUIC connector
+ * and one for the opposite direction.
+ * <p>
+ * The file is created by the game and its path passed to the connector, which then opens the same file.
+ * <p>
+ * Closing a transport unmaps the file, so it must only be closed once no thread is accessing either ring anymore.
+ * Windows does not allow deleting a file while any process still has it mapped, so if the connector has not yet
+ * closed its side, deletion is retried whenever the next transport is created.
+ */
+public final class SharedMemoryTransport implements Closeable {
+    private static final int MAGIC = 0x45535153; // "ESQS"
+    private static final int HEADER_SIZE = 64;
+
+    /** Capacity of each ring. Enough for a bit more than a second of SPS traffic at full tilt. */
+    public static final int DEFAULT_RING_CAPACITY = 1 << 20;
+
+    /** Files which could not be deleted on close because they were still mapped by the other side. */
+    private static final Set<Path> pendingDeletion = ConcurrentHashMap.newKeySet();
+
+    private final Path path;
+    private final boolean owner;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapping;
+    private final SharedMemoryRing toConnector;
+    private final SharedMemoryRing fromConnector;
+
+    private SharedMemoryTransport(Path path, boolean owner, FileChannel channel, int ringCapacity) throws IOException {
+        this.path = path;
+        this.owner = owner;
+        this.channel = channel;
+
+        int ringSize = SharedMemoryRing.size(ringCapacity);
+        this.mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * ringSize);
+        mapping.order(ByteOrder.nativeOrder());
+        if (owner) {
+            mapping.putInt(0, MAGIC);
+            mapping.putInt(4, ringCapacity);
+        }
+        this.toConnector = new SharedMemoryRing(slice(mapping, HEADER_SIZE, ringSize), ringCapacity);
+        this.fromConnector = new SharedMemoryRing(slice(mapping, HEADER_SIZE + ringSize, ringSize), ringCapacity);
+    }
+
+    /**
+     * Creates a new transport in a fresh temporary file. Called by the game.
+     */
+    public static SharedMemoryTransport create(int ringCapacity) throws IOException {
+        deletePending();
+        Path path = Files.createTempFile("essential-quic", ".shm");
+        path.toFile().deleteOnExit();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new SharedMemoryTransport(path, true, channel, ringCapacity);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a transport previously created via {@link #create(int)}. Called by the QUIC connector.
+     */
+    public static SharedMemoryTransport open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Unexpected end of shared memory file");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Invalid shared memory file");
+            }
+            return new SharedMemoryTransport(Paths.get(path), false, channel, header.getInt(4));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + size).position(offset);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /** Ring written by the game and read by the connector. */
+    public SharedMemoryRing getToConnector() {
+        return toConnector;
+    }
+
+    /** Ring written by the connector and read by the game. */
+    public SharedMemoryRing getFromConnector() {
+        return fromConnector;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        unmap(mapping);
+        if (owner) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Still mapped by the connector (Windows only), try again later
+                pendingDeletion.add(path);
+            }
+        }
+    }
+
+    private static void deletePending() {
+        for (Iterator<Path> iter = pendingDeletion.iterator(); iter.hasNext(); ) {
+            Path path = iter.next();
+            try {
+                Files.deleteIfExists(path);
+                iter.remove();
+            } catch (IOException ignored) {
+                // Still in use, try again next time
+            }
+        }
+    }
+
+    /**
+     * Releases the given mapping immediately instead of waiting for it to be garbage collected.
+     * Best effort, if the JVM does not expose a way to do so, the mapping is left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        try {
+            // Java 8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+    }
+}
@@ -23,4 +23,10 @@ public interface QuicBackend extends Closeable  {
 
     void quicSend(byte[] buf);
 
+    /**
+     * Pauses/resumes reading from the QUIC stream, i.e. calls to {@link QuicListener#quicRecv(byte[])}.
+     * While paused, QUIC flow control will eventually stop the remote side from sending more data.
+     */
+    void setQuicRecvPaused(boolean paused);
+
 }
@@ -14,6 +14,7 @@ package gg.essential.quic.backend;
 import gg.essential.config.AccessedViaReflection;
 import gg.essential.quic.LogOnce;
 import gg.essential.quic.ProxyHandler;
+import gg.essential.quic.QuicStreamPriorities;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
@@ -46,6 +47,7 @@ import io.netty.incubator.codec.quic.QuicSslContext;
 import io.netty.incubator.codec.quic.QuicSslContextBuilder;
 import io.netty.incubator.codec.quic.QuicStreamChannel;
 import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -55,7 +57,11 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static gg.essential.quic.QuicUtil.LOCALHOST;
 
@@ -118,6 +124,9 @@ public class QuicBackendImpl implements QuicBackend {
     private QuicChannel quicChannel;
     private QuicStreamChannel streamChannel;
 
+    private final BatchedWriter transportWriter = new BatchedWriter(() -> transportChannel);
+    private final BatchedWriter streamWriter = new BatchedWriter(() -> streamChannel);
+
     public QuicBackendImpl(Logger logger, QuicListener listener) {
         this.logger = logger;
         this.listener = listener;
@@ -188,6 +197,7 @@ public class QuicBackendImpl implements QuicBackend {
                     }
 
                     streamChannel = streamChannelFuture.getNow();
+                    QuicStreamPriorities.apply(streamChannel, QuicStreamPriorities.GAME);
 
                     listener.onOpen();
                 });
@@ -239,6 +249,7 @@ public class QuicBackendImpl implements QuicBackend {
                     if (waitingForInitialChannel) {
                         waitingForInitialChannel = false;
                         streamChannel = ch;
+                        QuicStreamPriorities.apply(ch, QuicStreamPriorities.GAME);
 
                         ch.pipeline().addLast(new McProxyHandler(listener) {
                             @Override
@@ -250,6 +261,7 @@ public class QuicBackendImpl implements QuicBackend {
                         // Delay reading until the tcp proxy is ready
                         ch.config().setAutoRead(false);
                         ch.pipeline().addLast(new TcpProxyFrontendHandler(LOCALHOST, httpPort));
+                        QuicStreamPriorities.apply(ch, QuicStreamPriorities.HTTP);
                     }
                 }
             })
@@ -260,11 +272,19 @@ public class QuicBackendImpl implements QuicBackend {
 
     public void transportRecv(byte[] packet) {
         ByteBuf buf = Unpooled.wrappedBuffer(packet);
-        transportChannel.writeAndFlush(new DatagramPacket(buf, QUIC_LOCAL_ADDRESS, QUIC_REMOTE_ADDRESS));
+        transportWriter.write(new DatagramPacket(buf, QUIC_LOCAL_ADDRESS, QUIC_REMOTE_ADDRESS));
     }
 
     public void quicSend(byte[] buf) {
-        streamChannel.writeAndFlush(Unpooled.wrappedBuffer(buf));
+        streamWriter.write(Unpooled.wrappedBuffer(buf));
+    }
+
+    public void setQuicRecvPaused(boolean paused) {
+        eventLoop.execute(() -> {
+            if (streamChannel != null) {
+                streamChannel.config().setAutoRead(!paused);
+            }
+        });
     }
 
     @Override
@@ -290,6 +310,47 @@ public class QuicBackendImpl implements QuicBackend {
         }, 1, TimeUnit.SECONDS);
     }
 
+    /**
+     * Writes messages submitted from outside the event loop to a channel.
+     * Unlike calling {@link Channel#writeAndFlush(Object)} directly, this does not allocate a task and a promise for
+     * every message, and messages which arrive while the event loop is busy are flushed together as a single batch (so
+     * QUIC can e.g. coalesce acknowledgements for all of them into one packet).
+     */
+    private class BatchedWriter {
+        private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Supplier<Channel> channel;
+
+        private BatchedWriter(Supplier<Channel> channel) {
+            this.channel = channel;
+        }
+
+        public void write(Object msg) {
+            pending.add(msg);
+            if (scheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            scheduled.set(false);
+            Channel channel = this.channel.get();
+            boolean written = false;
+            Object msg;
+            while ((msg = pending.poll()) != null) {
+                if (channel == null) {
+                    ReferenceCountUtil.release(msg);
+                    continue;
+                }
+                channel.write(msg, channel.voidPromise());
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+    }
+
     private class UdpProxyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
         private final Logger logger;
         private final QuicListener listener;
@@ -337,6 +398,12 @@ public class QuicBackendImpl implements QuicBackend {
             listener.quicRecv(bytes);
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            listener.onQuicSendWritabilityChanged(ctx.channel().isWritable());
+            super.channelWritabilityChanged(ctx);
+        }
+
         @Override
         public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
             // Once our main QUIC stream is closed, close the whole QUIC channel
@@ -398,6 +465,7 @@ public class QuicBackendImpl implements QuicBackend {
                     }
 
                     targetChannel = streamChannelFuture.getNow();
+                    QuicStreamPriorities.apply(streamChannelFuture.getNow(), QuicStreamPriorities.HTTP);
 
                     // connection complete, begin reading data from frontend channel
                     if (tcpChannel.isActive()) {
@@ -23,4 +23,10 @@ public interface QuicListener {
 
     void quicRecv(byte[] packet);
 
+    /**
+     * Called when the QUIC stream stops or starts accepting more data via {@link QuicBackend#quicSend(byte[])}, e.g.
+     * because the remote side's flow control window or our congestion window is exhausted.
+     */
+    void onQuicSendWritabilityChanged(boolean writable);
+
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.util
+
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A named thread pool which registers itself with [WorkerPools] and keeps track of its queue depth and task latencies.
+ *
+ * By default the queue is unbounded, same as with a plain [ThreadPoolExecutor]. Pools whose producers can tolerate it
+ * may opt into a fixed [queueCapacity], in which case the [backPressure] policy decides what happens to new tasks
+ * once it is full. Note that [BackPressure.CALLER_RUNS] and [BackPressure.BLOCK] must not be used for pools which are
+ * submitted to from the render thread or other latency-sensitive threads.
+ *
+ * Threads are only started when there is work and time out after [keepAliveSeconds] of idling, so pools which are
+ * rarely used do not count against the total thread count.
+ */
+open class WorkerPool @JvmOverloads constructor(
+    val name: String,
+    val threads: Int,
+    val queueCapacity: Int = UNBOUNDED,
+    val backPressure: BackPressure = BackPressure.ABORT,
+    queue: BlockingQueue<Runnable> = LinkedBlockingQueue(queueCapacity),
+    threadFactory: ThreadFactory = WorkerThreadFactory(name, Thread.NORM_PRIORITY),
+    keepAliveSeconds: Long = 30,
+    /**
+     * Whether to wrap submitted tasks to measure the time they spend in the queue.
+     * Must be disabled for pools whose queue relies on the concrete type of its tasks (e.g. priority queues).
+     */
+    private val measureQueueTime: Boolean = true,
+) : ThreadPoolExecutor(threads, threads, keepAliveSeconds, TimeUnit.SECONDS, queue, threadFactory, backPressure.handler) {
+
+    private val runStart = ThreadLocal<LongArray>()
+
+    val submitted = LongAdder()
+    val completed = LongAdder()
+    val rejected = LongAdder()
+    val totalQueueNanos = LongAdder()
+    val totalRunNanos = LongAdder()
+    private val maxQueueDepthTracker = AtomicInteger()
+
+    /** Highest number of tasks observed waiting in the queue at once. */
+    val maxQueueDepth: Int
+        get() = maxQueueDepthTracker.get()
+
+    init {
+        allowCoreThreadTimeOut(true)
+        @Suppress("LeakingThis")
+        WorkerPools.register(this)
+    }
+
+    override fun execute(command: Runnable) {
+        submitted.increment()
+        super.execute(if (measureQueueTime) QueuedTask(command, System.nanoTime()) else command)
+        val depth = queue.size
+        if (depth > maxQueueDepthTracker.get()) {
+            maxQueueDepthTracker.accumulateAndGet(depth) { a, b -> maxOf(a, b) }
+        }
+    }
+
+    override fun beforeExecute(t: Thread, r: Runnable) {
+        super.beforeExecute(t, r)
+        val now = System.nanoTime()
+        if (r is QueuedTask) {
+            totalQueueNanos.add(now - r.queuedAt)
+        }
+        val start = runStart.get() ?: LongArray(1).also { runStart.set(it) }
+        start[0] = now
+    }
+
+    override fun afterExecute(r: Runnable, t: Throwable?) {
+        super.afterExecute(r, t)
+        val start = runStart.get()
+        if (start != null) {
+            totalRunNanos.add(System.nanoTime() - start[0])
+        }
+        completed.increment()
+    }
+
+    override fun terminated() {
+        super.terminated()
+        WorkerPools.unregister(this)
+    }
+
+    fun resetStats() {
+        submitted.reset()
+        completed.reset()
+        rejected.reset()
+        totalQueueNanos.reset()
+        totalRunNanos.reset()
+        maxQueueDepthTracker.set(0)
+    }
+
+    override fun toString(): String {
+        val completed = completed.sum()
+        val avgQueueMs = if (completed > 0 && measureQueueTime) totalQueueNanos.sum() / completed / 1_000_000.0 else Double.NaN
+        val avgRunMs = if (completed > 0) totalRunNanos.sum() / completed / 1_000_000.0 else Double.NaN
+        val capacity = if (queueCapacity == UNBOUNDED) "unbounded" else queueCapacity.toString()
+        return "%s: %d/%d threads (%d active), queue %d/%s (max %d), %d completed, %d rejected, avg queue %.2fms, avg run %.2fms".format(
+            name, poolSize, threads, activeCount, queue.size, capacity, maxQueueDepth,
+            completed, rejected.sum(), avgQueueMs, avgRunMs,
+        )
+    }
+
+    private class QueuedTask(val task: Runnable, val queuedAt: Long) : Runnable {
+        override fun run() = task.run()
+    }
+
+    /**
+     * What to do with a task submitted while the queue is full.
+     */
+    enum class BackPressure(internal val handler: RejectedExecutionHandler) {
+        /** Run the task on the submitting thread, naturally slowing down the producer. */
+        CALLER_RUNS(RejectedExecutionHandler { r, executor ->
+            (executor as WorkerPool).rejected.increment()
+            if (!executor.isShutdown) {
+                r.run()
+            }
+        }),
+        /** Block the submitting thread until there is space in the queue. */
+        BLOCK(RejectedExecutionHandler { r, executor ->
+            (executor as WorkerPool).rejected.increment()
+            if (executor.isShutdown) {
+                throw RejectedExecutionException("$executor has been shut down")
+            }
+            try {
+                executor.queue.put(r)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw RejectedExecutionException(e)
+            }
+        }),
+        /** Drop the oldest queued task in favour of the new one. Only suitable for tasks which are safe to lose. */
+        DISCARD_OLDEST(RejectedExecutionHandler { r, executor ->
+            (executor as WorkerPool).rejected.increment()
+            if (!executor.isShutdown) {
+                executor.queue.poll()
+                executor.queue.offer(r)
+            }
+        }),
+        /** Throw a [RejectedExecutionException]. */
+        ABORT(RejectedExecutionHandler { r, executor ->
+            (executor as WorkerPool).rejected.increment()
+            throw RejectedExecutionException("Task $r rejected from $executor")
+        }),
+    }
+
+    class WorkerThreadFactory(private val name: String, private val priority: Int) : ThreadFactory {
+        private val counter = AtomicInteger(0)
+
+        override fun newThread(r: Runnable): Thread {
+            return Thread(r, "Essential $name ${counter.incrementAndGet()}").also {
+                it.priority = priority
+            }
+        }
+    }
+
+    companion object {
+        /** [queueCapacity] of pools whose queue is unbounded, i.e. which never apply any [BackPressure]. */
+        const val UNBOUNDED = Int.MAX_VALUE
+    }
+}
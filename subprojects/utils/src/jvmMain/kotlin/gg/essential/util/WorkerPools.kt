@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2024 ModCore Inc. All rights reserved.
+ *
+ * This code is part of ModCore Inc.'s Essential Mod repository and is protected
+ * under copyright registration # TX0009138511. For the full license, see:
+ * https://github.com/EssentialGG/Essential/blob/main/LICENSE
+ *
+ * You may not use, copy, reproduce, modify, sell, license, distribute,
+ * commercialize, or otherwise exploit, or create derivative works based
+ * upon, this file or any other in this repository, all of which is reserved by Essential.
+ */
+package gg.essential.util
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ThreadPoolExecutor
+
+/**
+ * Registry of all [WorkerPool]s, so the total number of threads we may spawn is known and observable in one place.
+ *
+ * Pool sizes should be derived from [availableProcessors] rather than hardcoded, so low-core machines do not end up
+ * with many more runnable threads than they have cores.
+ */
+object WorkerPools {
+    private val pools = CopyOnWriteArrayList<WorkerPool>()
+    private val unmanagedPools = CopyOnWriteArrayList<Pair<String, ThreadPoolExecutor>>()
+
+    @JvmStatic
+    val availableProcessors: Int = Runtime.getRuntime().availableProcessors()
+
+    /** Threads for CPU bound work (image decoding and scaling), leaving one core for the game. */
+    @JvmStatic
+    val cpuThreads: Int = (availableProcessors - 1).coerceIn(1, 8)
+
+    /** Threads for work which mostly blocks on disk or network IO. */
+    @JvmStatic
+    val ioThreads: Int = (availableProcessors * 2).coerceIn(4, 10)
+
+    @JvmStatic
+    fun all(): List<WorkerPool> = pools.toList()
+
+    /**
+     * Registers an executor which cannot be a [WorkerPool] (e.g. a scheduled executor), so it still counts towards
+     * and shows up in the totals.
+     */
+    @JvmStatic
+    fun registerUnmanaged(name: String, executor: ThreadPoolExecutor) {
+        unmanagedPools.add(Pair(name, executor))
+    }
+
+    /** Maximum number of threads all currently registered pools may spawn. */
+    @JvmStatic
+    val maxTotalThreads: Int
+        get() = pools.sumOf { it.threads } + unmanagedPools.sumOf { it.second.maximumPoolSize.coerceAtMost(it.second.corePoolSize) }
+
+    /** Number of threads currently alive across all registered pools. */
+    @JvmStatic
+    val currentTotalThreads: Int
+        get() = pools.sumOf { it.poolSize } + unmanagedPools.sumOf { it.second.poolSize }
+
+    /** One line per pool describing its current state, for debugging. */
+    @JvmStatic
+    fun describe(): List<String> =
+        pools.map { it.toString() } + unmanagedPools.map { (name, executor) ->
+            "$name: ${executor.poolSize}/${executor.corePoolSize} threads (${executor.activeCount} active), queue ${executor.queue.size}, ${executor.completedTaskCount} completed"
+        }
+
+    internal fun register(pool: WorkerPool) {
+        pools.add(pool)
+    }
+
+    internal fun unregister(pool: WorkerPool) {
+        pools.remove(pool)
+    }
+}